@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Common Buffer operations, run as JavaScript inside a live script so that the whole path from Rhino
+ * through the Buffer module is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark
+{
+    private static final int LOOPS = 100;
+
+    private static final String SCRIPT =
+        "var str, buf, out, hex, b64, parts;\n" +
+        "global.setup = function(size) {\n" +
+        "  str = '';\n" +
+        "  while (str.length < size) { str += 'Hello, World! \\u00e9\\u4e16 '; }\n" +
+        "  str = str.substring(0, size);\n" +
+        "  buf = new Buffer(str, 'utf8');\n" +
+        "  out = new Buffer(buf.length * 3);\n" +
+        "  hex = buf.toString('hex');\n" +
+        "  b64 = buf.toString('base64');\n" +
+        "  parts = [];\n" +
+        "  for (var i = 0; i < 16; i++) {\n" +
+        "    parts.push(buf.slice((i * buf.length / 16) | 0, ((i + 1) * buf.length / 16) | 0));\n" +
+        "  }\n" +
+        "};\n" +
+        "global.byteLength = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += Buffer.byteLength(str, 'utf8'); } return t;\n" +
+        "};\n" +
+        "global.writeUtf8 = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += out.write(str, 0, 'utf8'); } return t;\n" +
+        "};\n" +
+        "global.toStringUtf8 = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += buf.toString('utf8').length; } return t;\n" +
+        "};\n" +
+        "global.toStringHex = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += buf.toString('hex').length; } return t;\n" +
+        "};\n" +
+        "global.toStringBase64 = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += buf.toString('base64').length; } return t;\n" +
+        "};\n" +
+        "global.fromHex = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += new Buffer(hex, 'hex').length; } return t;\n" +
+        "};\n" +
+        "global.fromBase64 = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += new Buffer(b64, 'base64').length; } return t;\n" +
+        "};\n" +
+        "global.concat = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += Buffer.concat(parts).length; } return t;\n" +
+        "};\n" +
+        "global.readWriteInt = function(n) {\n" +
+        "  var t = 0;\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    for (var j = 0; (j + 4) <= buf.length; j += 4) { t += out.writeUInt32LE(buf.readUInt32LE(j), j); }\n" +
+        "  }\n" +
+        "  return t;\n" +
+        "};\n";
+
+    @Param({ "0.10.x", "0.11.x" })
+    public String nodeVersion;
+
+    @Param({ "64", "4096" })
+    public int size;
+
+    private NodeEnvironment env;
+    private ScriptHarness harness;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        harness = new ScriptHarness(env, null, nodeVersion, SCRIPT);
+        harness.call("setup", size);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        harness.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object byteLength()
+        throws Exception
+    {
+        return harness.call("byteLength", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object writeUtf8()
+        throws Exception
+    {
+        return harness.call("writeUtf8", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object toStringUtf8()
+        throws Exception
+    {
+        return harness.call("toStringUtf8", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object toStringHex()
+        throws Exception
+    {
+        return harness.call("toStringHex", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object toStringBase64()
+        throws Exception
+    {
+        return harness.call("toStringBase64", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object fromHex()
+        throws Exception
+    {
+        return harness.call("fromHex", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object fromBase64()
+        throws Exception
+    {
+        return harness.call("fromBase64", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object concat()
+        throws Exception
+    {
+        return harness.call("concat", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object readWriteInt()
+        throws Exception
+    {
+        return harness.call("readWriteInt", LOOPS);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spawning OS child processes from a script on the 0.11 implementation: how many short-lived children can
+ * be started per second, both with "spawnSync" and with "spawn" and ten at a time, and how fast one megabyte
+ * of output gets back to the script. These only run where "sh," "true," "cat," and "head" exist.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChildProcessBenchmark
+{
+    private static final int BATCH = 10;
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+    private static final long WAIT_TIMEOUT_SECS = 60L;
+
+    private static final String SCRIPT =
+        "var child = require('child_process');\n" +
+        "global.spawnSync = function(n) {\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    if (child.spawnSync('true').status !== 0) { throw new Error('Bad exit'); }\n" +
+        "  }\n" +
+        "};\n" +
+        "global.spawnMany = function(n, done) {\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    child.spawn('true').on('close', function() { done(); });\n" +
+        "  }\n" +
+        "};\n" +
+        "global.readOutput = function(size, done) {\n" +
+        "  var len = 0;\n" +
+        "  var c = child.spawn('head', ['-c', String(size), '/dev/zero']);\n" +
+        "  c.stdout.on('data', function(chunk) { len += chunk.length; });\n" +
+        "  c.on('close', function() {\n" +
+        "    if (len !== size) { throw new Error('Got ' + len); }\n" +
+        "    done();\n" +
+        "  });\n" +
+        "};\n" +
+        "global.readOutputSync = function(size) {\n" +
+        "  var r = child.spawnSync('sh', ['-c', 'head -c ' + size + ' /dev/zero']);\n" +
+        "  return r.stdout.length;\n" +
+        "};\n";
+
+    private NodeEnvironment env;
+    private ScriptHarness harness;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        harness = new ScriptHarness(env, null, "0.11.x", SCRIPT);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        harness.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void spawnSync()
+        throws Exception
+    {
+        harness.call("spawnSync", BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void spawnAsync()
+        throws Exception
+    {
+        CountDownLatch done = new CountDownLatch(BATCH);
+        harness.call("spawnMany", BATCH, countDown(done));
+        await(done);
+    }
+
+    /**
+     * Each operation is one megabyte read from a child's stdout.
+     */
+    @Benchmark
+    public void readOutput()
+        throws Exception
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        harness.call("readOutput", OUTPUT_SIZE, countDown(done));
+        await(done);
+    }
+
+    @Benchmark
+    public Object readOutputSync()
+        throws Exception
+    {
+        return harness.call("readOutputSync", OUTPUT_SIZE);
+    }
+
+    /**
+     * Return a function that the script can call to count down the latch.
+     */
+    private static BaseFunction countDown(final CountDownLatch latch)
+    {
+        return new BaseFunction()
+        {
+            @Override
+            public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args)
+            {
+                latch.countDown();
+                return Undefined.instance;
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch)
+        throws InterruptedException
+    {
+        if (!latch.await(WAIT_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Child processes did not finish");
+        }
+    }
+}
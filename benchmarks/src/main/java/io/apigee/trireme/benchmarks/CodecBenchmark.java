@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.charsets.Utf8Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The table-driven codecs that Buffer uses, compared with the charset-based encoders that they replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+    @Param({ "64", "4096", "65536" })
+    public int size;
+
+    private byte[] data;
+    private String hex;
+    private String base64;
+    private String text;
+    private byte[] utf8Out;
+
+    @Setup
+    public void setUp()
+    {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        hex = HexCodec.encode(data, 0, data.length);
+        base64 = Base64Codec.encode(data, 0, data.length);
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("Hello, World! \u00e9\u4e16 ");
+        }
+        text = sb.substring(0, size);
+        utf8Out = new byte[size * 3];
+    }
+
+    @Benchmark
+    public String hexEncode()
+    {
+        return HexCodec.encode(data, 0, data.length);
+    }
+
+    @Benchmark
+    public CharBuffer hexEncodeCharset()
+    {
+        return Charsets.NODE_HEX.decode(ByteBuffer.wrap(data));
+    }
+
+    @Benchmark
+    public int hexDecode()
+    {
+        byte[] out = new byte[HexCodec.decodedLength(hex)];
+        return HexCodec.decode(hex, out, 0, out.length);
+    }
+
+    @Benchmark
+    public ByteBuffer hexDecodeCharset()
+    {
+        return Charsets.NODE_HEX.encode(hex);
+    }
+
+    @Benchmark
+    public String base64Encode()
+    {
+        return Base64Codec.encode(data, 0, data.length);
+    }
+
+    @Benchmark
+    public CharBuffer base64EncodeCharset()
+    {
+        return Charsets.BASE64.decode(ByteBuffer.wrap(data));
+    }
+
+    @Benchmark
+    public byte[] base64Decode()
+    {
+        return Base64Codec.decode(base64);
+    }
+
+    @Benchmark
+    public ByteBuffer base64DecodeCharset()
+    {
+        return Charsets.BASE64.encode(base64);
+    }
+
+    @Benchmark
+    public int utf8Length()
+    {
+        return Utf8Codec.encodedLength(text);
+    }
+
+    @Benchmark
+    public long utf8Encode()
+    {
+        return Utf8Codec.encode(text, utf8Out, 0, utf8Out.length);
+    }
+
+    @Benchmark
+    public byte[] utf8EncodeJdk()
+    {
+        return text.getBytes(Charsets.UTF8);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.fs.FilesystemImage;
+import io.apigee.trireme.kernel.fs.StatCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of files that a benchmark script reads, which may be served from a temporary directory on disk,
+ * from the same directory through a StatCache, or from a FilesystemImage.
+ */
+public class FileTree
+{
+    public static final String DISK = "disk";
+    public static final String STAT_CACHE = "statCache";
+    public static final String IMAGE = "image";
+
+    private final TreeMap<String, String> files = new TreeMap<String, String>();
+    private File root;
+    private StatCache statCache;
+
+    /**
+     * Add a file, whose path must be absolute. Parent directories are created automatically.
+     */
+    public void add(String path, String contents)
+    {
+        files.put(path, contents);
+    }
+
+    /**
+     * Create a sandbox that serves the files in the specified way.
+     */
+    public Sandbox makeSandbox(String mode)
+        throws IOException
+    {
+        Sandbox sb = new Sandbox();
+        if (IMAGE.equals(mode)) {
+            sb.setFilesystemImage(makeImage(), false);
+        } else {
+            sb.setFilesystemRoot(writeToDisk().getPath());
+            if (STAT_CACHE.equals(mode)) {
+                statCache = new StatCache(1, TimeUnit.HOURS);
+                sb.setStatCache(statCache);
+            } else if (!DISK.equals(mode)) {
+                throw new IllegalArgumentException("Invalid mode " + mode);
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Return the file that the script should be started from, which for an image is the virtual path,
+     * but otherwise is the real location of the file on the disk.
+     */
+    public File getScriptFile(String mode, String path)
+    {
+        if (IMAGE.equals(mode)) {
+            return new File(path);
+        }
+        return new File(root, path.substring(1));
+    }
+
+    private FilesystemImage makeImage()
+    {
+        long now = System.currentTimeMillis();
+        FilesystemImage.Builder b = new FilesystemImage.Builder();
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            b.addFile(e.getKey(), e.getValue().getBytes(Charsets.UTF8), now);
+        }
+        return b.build();
+    }
+
+    private File writeToDisk()
+        throws IOException
+    {
+        if (root != null) {
+            return root;
+        }
+        root = File.createTempFile("trireme-bench", "");
+        if (!root.delete() || !root.mkdir()) {
+            throw new IOException("Can't create " + root);
+        }
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            File f = new File(root, e.getKey().substring(1));
+            File dir = f.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                out.write(e.getValue().getBytes(Charsets.UTF8));
+            } finally {
+                out.close();
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Remove the files from the disk and stop the stat cache, if there is one.
+     */
+    public void close()
+    {
+        if (statCache != null) {
+            statCache.close();
+            statCache = null;
+        }
+        if (root != null) {
+            delete(root);
+            root = null;
+        }
+    }
+
+    private static void delete(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronous "fs" calls on a small set of files, served from the disk, from the disk through a
+ * StatCache, or from a FilesystemImage. Each operation touches every file once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilesystemBenchmark
+{
+    private static final int FILES = 20;
+    private static final int LOOPS = 10;
+
+    private static final String SCRIPT =
+        "var fs = require('fs');\n" +
+        "var names = [];\n" +
+        "for (var i = 0; i < " + FILES + "; i++) { names.push('/data/file' + i + '.txt'); }\n" +
+        "global.stat = function(n) {\n" +
+        "  var t = 0;\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    for (var j = 0; j < names.length; j++) { t += fs.statSync(names[j]).size; }\n" +
+        "  }\n" +
+        "  return t;\n" +
+        "};\n" +
+        "global.exists = function(n) {\n" +
+        "  var t = 0;\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    for (var j = 0; j < names.length; j++) { if (fs.existsSync(names[j] + '.missing')) { t++; } }\n" +
+        "  }\n" +
+        "  return t;\n" +
+        "};\n" +
+        "global.readdir = function(n) {\n" +
+        "  var t = 0; for (var i = 0; i < n; i++) { t += fs.readdirSync('/data').length; } return t;\n" +
+        "};\n" +
+        "global.readFile = function(n) {\n" +
+        "  var t = 0;\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    for (var j = 0; j < names.length; j++) { t += fs.readFileSync(names[j]).length; }\n" +
+        "  }\n" +
+        "  return t;\n" +
+        "};\n";
+
+    @Param({ FileTree.DISK, FileTree.STAT_CACHE, FileTree.IMAGE })
+    public String fs;
+
+    private NodeEnvironment env;
+    private FileTree tree;
+    private ScriptHarness harness;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        tree = new FileTree();
+        StringBuilder contents = new StringBuilder();
+        while (contents.length() < 1024) {
+            contents.append("The quick brown fox jumps over the lazy dog.\n");
+        }
+        for (int i = 0; i < FILES; i++) {
+            tree.add("/data/file" + i + ".txt", contents.toString());
+        }
+        harness = new ScriptHarness(env, tree.makeSandbox(fs), null, SCRIPT);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        harness.close();
+        tree.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object stat()
+        throws Exception
+    {
+        return harness.call("stat", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object exists()
+        throws Exception
+    {
+        return harness.call("exists", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object readdir()
+        throws Exception
+    {
+        return harness.call("readdir", LOOPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object readFile()
+        throws Exception
+    {
+        return harness.call("readFile", LOOPS);
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.kernel.crypto.Digests;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a small value with a new digest each time, which is what "crypto.createHash" does. The
+ * "getInstance" variant is what Digests replaced, and "createHash" runs the whole thing from JavaScript.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark
+{
+    private static final int LOOPS = 100;
+
+    private static final String SCRIPT =
+        "var crypto = require('crypto');\n" +
+        "var data;\n" +
+        "global.setup = function(size) {\n" +
+        "  data = new Buffer(size);\n" +
+        "  for (var i = 0; i < size; i++) { data[i] = i & 0xff; }\n" +
+        "};\n" +
+        "global.createHash = function(alg, n) {\n" +
+        "  var t = 0;\n" +
+        "  for (var i = 0; i < n; i++) { t += crypto.createHash(alg).update(data).digest('hex').length; }\n" +
+        "  return t;\n" +
+        "};\n";
+
+    @Param({ "MD5", "SHA-1", "SHA-256", "SHA-512" })
+    public String algorithm;
+
+    @Param({ "64", "4096" })
+    public int size;
+
+    private byte[] data;
+    private String nodeAlgorithm;
+    private NodeEnvironment env;
+    private ScriptHarness harness;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte)i;
+        }
+        // Node names the algorithms without the dash and in lower case
+        nodeAlgorithm = algorithm.replace("-", "").toLowerCase();
+
+        env = new NodeEnvironment();
+        harness = new ScriptHarness(env, null, null, SCRIPT);
+        harness.call("setup", size);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        harness.close();
+        env.close();
+    }
+
+    @Benchmark
+    public byte[] digests()
+        throws NoSuchAlgorithmException
+    {
+        MessageDigest md = Digests.getDigest(algorithm);
+        return md.digest(data);
+    }
+
+    @Benchmark
+    public byte[] getInstance()
+        throws NoSuchAlgorithmException
+    {
+        MessageDigest md = MessageDigest.getInstance(algorithm);
+        return md.digest(data);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOPS)
+    public Object createHash()
+        throws Exception
+    {
+        return harness.call("createHash", nodeAlgorithm, LOOPS);
+    }
+}
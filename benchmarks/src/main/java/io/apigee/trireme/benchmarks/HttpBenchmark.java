@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.container.netty.NettyHttpContainer;
+import io.apigee.trireme.core.NodeEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP requests over a keep-alive connection to a server running in a script, which covers the
+ * HTTP parser, the socket handles, and the hand-off between the selector and the script thread.
+ * The "0.10-netty" server runs the 0.10 "http" module on top of the Netty HTTP container.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpBenchmark
+{
+    private static final int REQUESTS = 10;
+    private static final long LISTEN_TIMEOUT_MS = 10000L;
+
+    private static final String SCRIPT =
+        "var http = require('http');\n" +
+        "var body = 'Hello, World!\\n';\n" +
+        "var server = http.createServer(function(req, resp) {\n" +
+        "  req.resume();\n" +
+        "  req.on('end', function() {\n" +
+        "    if (req.url === '/chunked') {\n" +
+        "      resp.writeHead(200, { 'Content-Type': 'text/plain' });\n" +
+        "      for (var i = 0; i < 8; i++) { resp.write(body); }\n" +
+        "      resp.end();\n" +
+        "    } else {\n" +
+        "      resp.writeHead(200, { 'Content-Type': 'text/plain', 'Content-Length': body.length });\n" +
+        "      resp.end(body);\n" +
+        "    }\n" +
+        "  });\n" +
+        "});\n" +
+        "var listening = false;\n" +
+        "global.listen = function(port) {\n" +
+        "  server.listen(port, function() { listening = true; });\n" +
+        "};\n" +
+        "global.isListening = function() {\n" +
+        "  return listening;\n" +
+        "};\n";
+
+    @Param({ "0.10.x", "0.10.x-netty", "0.11.x" })
+    public String server;
+
+    private NodeEnvironment env;
+    private ScriptHarness harness;
+    private URL smallUrl;
+    private URL chunkedUrl;
+    private final byte[] readBuf = new byte[4096];
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        String version = server;
+        if (server.endsWith("-netty")) {
+            env.setHttpContainer(new NettyHttpContainer());
+            version = server.substring(0, server.length() - 6);
+        }
+        harness = new ScriptHarness(env, null, version, SCRIPT);
+
+        // Not every HTTP container can report an ephemeral port, so pick one here
+        ServerSocket tmp = new ServerSocket(0);
+        int port = tmp.getLocalPort();
+        tmp.close();
+        harness.call("listen", port);
+
+        long deadline = System.currentTimeMillis() + LISTEN_TIMEOUT_MS;
+        while (!Boolean.TRUE.equals(harness.call("isListening"))) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Server did not start listening");
+            }
+            Thread.sleep(10L);
+        }
+
+        smallUrl = new URL("http://localhost:" + port + "/small");
+        chunkedUrl = new URL("http://localhost:" + port + "/chunked");
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        harness.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int small()
+        throws IOException
+    {
+        int total = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            total += get(smallUrl);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public int chunked()
+        throws IOException
+    {
+        int total = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            total += get(chunkedUrl);
+        }
+        return total;
+    }
+
+    /**
+     * Read the whole response and close the stream, which returns the connection to the keep-alive pool.
+     */
+    private int get(URL url)
+        throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("Got HTTP status " + conn.getResponseCode());
+        }
+        int len = 0;
+        InputStream in = conn.getInputStream();
+        try {
+            int r;
+            while ((r = in.read(readBuf)) > 0) {
+                len += r;
+            }
+        } finally {
+            in.close();
+        }
+        return len;
+    }
+}
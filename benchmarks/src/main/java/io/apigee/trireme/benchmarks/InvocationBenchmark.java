@@ -0,0 +1,239 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.BufferLease;
+import io.apigee.trireme.core.InvocationFuture;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFunction;
+import io.apigee.trireme.core.ScriptFuture;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Calling a function exported by a module for each of a batch of records, the way the Hadoop sample
+ * does. "enqueueCallback" hands each record over with a callback that releases a latch, as the sample
+ * does today; the others use ScriptFunction one record at a time and as a single batch. The "payload"
+ * benchmarks pass a 1 MB buffer to a script and back, copying it each way or lending it with a
+ * BufferLease.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvocationBenchmark
+{
+    private static final int RECORDS = 1000;
+    private static final long TIMEOUT_SECS = 60L;
+
+    private static final String SCRIPT =
+        "exports.map = function(rec, cb) {\n" +
+        "  cb(undefined, rec.length);\n" +
+        "};\n" +
+        "exports.length = function(rec) {\n" +
+        "  return rec.length;\n" +
+        "};\n" +
+        "exports.echo = function(buf) {\n" +
+        "  return buf;\n" +
+        "};\n";
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+
+    private File scriptFile;
+    private NodeEnvironment env;
+    private NodeScript script;
+    private ScriptFuture future;
+    private Scriptable module;
+    private Function mapFunc;
+    private ScriptFunction map;
+    private ScriptFunction length;
+    private ScriptFunction echo;
+    private ScriptFunction echoView;
+    private ByteBuffer directPayload;
+    private ByteBuffer heapPayload;
+    private List<Object[]> records;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        scriptFile = File.createTempFile("invocation", ".js");
+        FileOutputStream out = new FileOutputStream(scriptFile);
+        try {
+            out.write(SCRIPT.getBytes("UTF8"));
+        } finally {
+            out.close();
+        }
+
+        env = new NodeEnvironment();
+        script = env.createScript(scriptFile.getName(), scriptFile, null);
+        future = script.executeModule();
+        module = future.getModuleResult();
+        mapFunc = (Function)ScriptableObject.getProperty(module, "map");
+        map = future.getFunction("map");
+        length = future.getFunction("length");
+        echo = future.getFunction("echo");
+        echoView = future.getFunction("echo");
+        echoView.setCopyBuffers(false);
+        directPayload = ByteBuffer.allocateDirect(PAYLOAD_SIZE);
+        heapPayload = ByteBuffer.allocate(PAYLOAD_SIZE);
+
+        records = new ArrayList<Object[]>(RECORDS);
+        for (int i = 0; i < RECORDS; i++) {
+            records.add(new Object[] { "This is record number " + i });
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        future.cancel(true);
+        script.close();
+        env.close();
+        scriptFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void enqueueCallback()
+        throws InterruptedException, TimeoutException
+    {
+        for (Object[] rec : records) {
+            CountDownLatch latch = new CountDownLatch(1);
+            future.getRuntime().enqueueCallback(mapFunc, module, module,
+                                                new Object[] { rec[0], new LatchCallback(latch) });
+            if (!latch.await(TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                throw new TimeoutException();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public Object call()
+        throws Exception
+    {
+        Object ret = null;
+        for (Object[] rec : records) {
+            ret = length.call(rec).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public Object callAsync()
+        throws Exception
+    {
+        Object ret = null;
+        for (Object[] rec : records) {
+            ret = map.callAsync(rec).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public Object callAll()
+        throws Exception
+    {
+        Object ret = null;
+        for (InvocationFuture f : length.callAll(records)) {
+            ret = f.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public Object callAllAsync()
+        throws Exception
+    {
+        Object ret = null;
+        for (InvocationFuture f : map.callAllAsync(records)) {
+            ret = f.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public Object payloadCopied()
+        throws Exception
+    {
+        return echo.call(directPayload.duplicate()).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Object payloadLent()
+        throws Exception
+    {
+        BufferLease lease = new BufferLease(heapPayload);
+        Object ret = echoView.call(lease).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        lease.release();
+        return ret;
+    }
+
+    private static final class LatchCallback
+        extends BaseFunction
+    {
+        private final CountDownLatch latch;
+
+        LatchCallback(CountDownLatch latch)
+        {
+            this.latch = latch;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args)
+        {
+            latch.countDown();
+            return Undefined.instance;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.ModulePool;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFunction;
+import io.apigee.trireme.core.ScriptFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Four Java threads calling a CPU-bound function exported by a module, either on one instance
+ * of the module or on a ModulePool of up to four.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ModulePoolBenchmark
+{
+    private static final long TIMEOUT_SECS = 60L;
+
+    private static final String SCRIPT =
+        "exports.work = function(n) {\n" +
+        "  var sum = 0;\n" +
+        "  for (var i = 0; i < n; i++) {\n" +
+        "    sum += (i % 7);\n" +
+        "  }\n" +
+        "  return sum;\n" +
+        "};\n";
+    private static final int ITERATIONS = 100000;
+
+    private File scriptFile;
+    private NodeEnvironment env;
+    private NodeScript script;
+    private ScriptFuture future;
+    private ScriptFunction work;
+    private ModulePool pool;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        scriptFile = File.createTempFile("modulepool", ".js");
+        FileOutputStream out = new FileOutputStream(scriptFile);
+        try {
+            out.write(SCRIPT.getBytes("UTF8"));
+        } finally {
+            out.close();
+        }
+
+        env = new NodeEnvironment();
+        script = env.createScript(scriptFile.getName(), scriptFile, null);
+        future = script.executeModule();
+        work = future.getFunction("work");
+
+        pool = env.createModulePool(scriptFile.getName(), scriptFile, null);
+        pool.setMinInstances(1).setMaxInstances(4);
+        pool.start();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pool.close();
+        future.cancel(true);
+        script.close();
+        env.close();
+        scriptFile.delete();
+    }
+
+    @Benchmark
+    public Object singleInstance()
+        throws Exception
+    {
+        return work.call(ITERATIONS).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Object pool()
+        throws Exception
+    {
+        return pool.call("work", ITERATIONS).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+    }
+}
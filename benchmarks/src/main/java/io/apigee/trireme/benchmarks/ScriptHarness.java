@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs a script that stays alive until it is closed, so that benchmarks can run code inside
+ * the script thread. The script source defines global functions and "call" runs one of them and waits
+ * for the result. Benchmarks should loop inside the function so that the cost of handing off to the
+ * script thread doesn't dominate the result.
+ */
+public class ScriptHarness
+{
+    private static final long CALL_TIMEOUT_SECS = 60L;
+
+    private final NodeScript script;
+    private final ScriptFuture future;
+    private final ScriptRunner runner;
+
+    public ScriptHarness(NodeEnvironment env, Sandbox sandbox, String nodeVersion, String source)
+        throws NodeException
+    {
+        script = env.createScript("benchmark.js", source, null);
+        script.setNodeVersion(nodeVersion);
+        if (sandbox != null) {
+            script.setSandbox(sandbox);
+        }
+        script.setPinned(true);
+        future = script.execute();
+        runner = script._getRuntime();
+    }
+
+    /**
+     * Call the named global function in the script thread with the specified arguments.
+     */
+    public Object call(final String name, final Object... args)
+        throws InterruptedException, TimeoutException
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final RuntimeException[] error = new RuntimeException[1];
+
+        runner.enqueueTask(new ScriptTask()
+        {
+            @Override
+            public void execute(Context cx, Scriptable scope)
+            {
+                try {
+                    Object f = ScriptableObject.getProperty(scope, name);
+                    if (!(f instanceof Function)) {
+                        throw new IllegalArgumentException("Script has no function named " + name);
+                    }
+                    result[0] = ((Function)f).call(cx, scope, scope, args);
+                } catch (RuntimeException re) {
+                    error[0] = re;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+
+        if (!done.await(CALL_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+            throw new TimeoutException("Timed out calling " + name);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return result[0];
+    }
+
+    public ScriptRunner getRunner() {
+        return runner;
+    }
+
+    public void close()
+    {
+        future.cancel(true);
+        script.close();
+    }
+}
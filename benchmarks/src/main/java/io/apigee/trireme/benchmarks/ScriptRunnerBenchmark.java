@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The cost of handing work from another thread to the script thread, which is what every completed
+ * I/O operation does. Tasks are handed over one at a time, as a batch, or as timers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptRunnerBenchmark
+{
+    private static final int TASKS = 1000;
+    private static final long TIMEOUT_SECS = 60L;
+
+    private NodeEnvironment env;
+    private ScriptHarness harness;
+    private ScriptRunner runner;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        harness = new ScriptHarness(env, null, null, "");
+        runner = harness.getRunner();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        harness.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void enqueueTask()
+        throws InterruptedException, TimeoutException
+    {
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            runner.enqueueTask(new CountingTask(latch));
+        }
+        await(latch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void enqueueTasks()
+        throws InterruptedException, TimeoutException
+    {
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        ArrayList<ScriptTask> tasks = new ArrayList<ScriptTask>(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            tasks.add(new CountingTask(latch));
+        }
+        runner.enqueueTasks(tasks, null);
+        await(latch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void timedTask()
+        throws InterruptedException, TimeoutException
+    {
+        final CountDownLatch latch = new CountDownLatch(TASKS);
+        Runnable r = new Runnable() {
+            @Override
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < TASKS; i++) {
+            runner.createTimedTask(r, 0L, TimeUnit.MILLISECONDS, false, null);
+        }
+        await(latch);
+    }
+
+    private static void await(CountDownLatch latch)
+        throws InterruptedException, TimeoutException
+    {
+        if (!latch.await(TIMEOUT_SECS, TimeUnit.SECONDS)) {
+            throw new TimeoutException("Script thread did not run all the tasks");
+        }
+    }
+
+    private static final class CountingTask
+        implements ScriptTask
+    {
+        private final CountDownLatch latch;
+
+        CountingTask(CountDownLatch latch)
+        {
+            this.latch = latch;
+        }
+
+        @Override
+        public void execute(Context cx, Scriptable scope)
+        {
+            latch.countDown();
+        }
+    }
+}
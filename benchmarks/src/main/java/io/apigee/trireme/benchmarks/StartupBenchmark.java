@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.core.ScriptStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start a script that loads a few built-in modules and a tree of application modules, and run it
+ * to completion. The application modules come either from the disk or from a FilesystemImage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartupBenchmark
+{
+    private static final int MODULES = 50;
+    private static final long TIMEOUT_SECS = 60L;
+
+    private static final String MAIN = "/app/main.js";
+    private static final String SCRIPT =
+        "var http = require('http');\n" +
+        "var util = require('util');\n" +
+        "var total = 0;\n" +
+        "for (var i = 0; i < " + MODULES + "; i++) {\n" +
+        "  total += require('./lib/mod' + i).value();\n" +
+        "}\n" +
+        "if (total !== " + (MODULES * (MODULES - 1) / 2) + ") { throw new Error('Wrong total ' + total); }\n";
+
+    @Param({ "0.10.x", "0.11.x" })
+    public String nodeVersion;
+
+    @Param({ FileTree.DISK, FileTree.IMAGE })
+    public String fs;
+
+    private NodeEnvironment env;
+    private FileTree tree;
+    private Sandbox sandbox;
+    private File mainFile;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        tree = new FileTree();
+        tree.add(MAIN, SCRIPT);
+        tree.add("/app/lib/common.js",
+                 "exports.identity = function(x) { return x; };\n");
+        for (int i = 0; i < MODULES; i++) {
+            tree.add("/app/lib/mod" + i + ".js",
+                     "var common = require('./common');\n" +
+                     "var path = require('path');\n" +
+                     "exports.name = path.basename(__filename, '.js');\n" +
+                     "exports.value = function() { return common.identity(" + i + "); };\n");
+        }
+        sandbox = tree.makeSandbox(fs);
+        mainFile = tree.getScriptFile(fs, MAIN);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        tree.close();
+        env.close();
+    }
+
+    @Benchmark
+    public ScriptStatus start()
+        throws Exception
+    {
+        NodeScript script = env.createScript("main.js", mainFile, null);
+        script.setNodeVersion(nodeVersion);
+        script.setSandbox(sandbox);
+        try {
+            ScriptStatus status = script.execute().get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            if (!status.isOk()) {
+                throw new IllegalStateException("Script failed", status.getCause());
+            }
+            return status;
+        } finally {
+            script.close();
+        }
+    }
+}
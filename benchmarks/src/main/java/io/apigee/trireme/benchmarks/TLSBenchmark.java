@@ -0,0 +1,452 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.kernel.BiCallback;
+import io.apigee.trireme.kernel.Callback;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.TriCallback;
+import io.apigee.trireme.kernel.net.NetworkPolicy;
+import io.apigee.trireme.kernel.tls.TLSConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client and a server TLSConnection talking to each other in memory, so that what is measured is the
+ * TLS record processing and buffer handling without any network I/O. Everything, including the
+ * SSLEngine's delegated tasks, runs on the benchmark thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TLSBenchmark
+{
+    private static final char[] PASSWORD = "secure".toCharArray();
+    private static final String HOST = "localhost";
+    private static final int PORT = 443;
+
+    /**
+     * Send a payload from the client to the server, which echoes it back, over an established connection.
+     */
+    @Benchmark
+    public int roundTrip(Connected c)
+    {
+        c.received = 0;
+        c.client.wrap(c.payload.duplicate(), null);
+        c.pair.runtime.runUntil(c.pair, c.payload.remaining());
+        return c.received;
+    }
+
+    /**
+     * A complete handshake on a new pair of connections, resuming the previous session if "resume" is set.
+     */
+    @Benchmark
+    public boolean handshake(Contexts c)
+    {
+        return doHandshake(c);
+    }
+
+    static boolean doHandshake(Contexts c)
+    {
+        if (!c.resume && (c.lastSession != null)) {
+            c.lastSession.invalidate();
+        }
+        Pair p = new Pair(c.runtime, c.client, c.server);
+        p.handshake();
+        c.lastSession = p.client.getSession();
+        return p.client.isSessionReused();
+    }
+
+    @State(Scope.Thread)
+    public static class Contexts
+    {
+        @Param({ "true", "false" })
+        public boolean resume;
+
+        Loopback runtime;
+        SSLContext client;
+        SSLContext server;
+        SSLSession lastSession;
+
+        @Setup(Level.Trial)
+        public void setUp()
+            throws GeneralSecurityException, IOException
+        {
+            runtime = new Loopback();
+            server = makeServerContext();
+            client = makeClientContext();
+
+            // Make sure that resumption really is or is not happening
+            doHandshake(this);
+            if (doHandshake(this) != resume) {
+                throw new IllegalStateException("Session resumption was expected to be " + resume);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connected
+    {
+        @Param({ "1024", "16384", "65536" })
+        public int size;
+
+        Pair pair;
+        TLSConnection client;
+        ByteBuffer payload;
+        int received;
+
+        @Setup(Level.Trial)
+        public void setUp()
+            throws GeneralSecurityException, IOException
+        {
+            payload = ByteBuffer.allocate(size);
+            for (int i = 0; i < size; i++) {
+                payload.put((byte)i);
+            }
+            payload.flip();
+
+            pair = new Pair(new Loopback(), makeClientContext(), makeServerContext());
+            pair.handshake();
+            client = pair.client;
+
+            // The server echoes everything, and the client counts what comes back
+            pair.server.setReadCallback(new BiCallback<ByteBuffer, Boolean>() {
+                @Override
+                public void call(final ByteBuffer bb, Boolean eof)
+                {
+                    if (bb != null) {
+                        pair.runtime.post(new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                pair.server.wrap(bb, null);
+                            }
+                        });
+                    }
+                }
+            });
+            pair.client.setReadCallback(new BiCallback<ByteBuffer, Boolean>() {
+                @Override
+                public void call(ByteBuffer bb, Boolean eof)
+                {
+                    if (bb != null) {
+                        received += bb.remaining();
+                    }
+                }
+            });
+            pair.connected = this;
+        }
+    }
+
+    /**
+     * Two connections whose output is queued up as input for the other.
+     */
+    static final class Pair
+    {
+        final Loopback runtime;
+        final TLSConnection client;
+        final TLSConnection server;
+        boolean clientDone;
+        boolean serverDone;
+        Connected connected;
+
+        Pair(Loopback runtime, SSLContext clientCtx, SSLContext serverCtx)
+        {
+            this.runtime = runtime;
+
+            server = new TLSConnection(runtime, true, false, false, null, 0);
+            server.init(serverCtx, null, TRUST_ALL);
+            client = new TLSConnection(runtime, false, false, false, HOST, PORT);
+            client.init(clientCtx, null, TRUST_ALL);
+
+            connect(client, server);
+            connect(server, client);
+            client.setHandshakeDoneCallback(new Callback<Void>() {
+                @Override
+                public void call(Void val)
+                {
+                    clientDone = true;
+                }
+            });
+            server.setHandshakeDoneCallback(new Callback<Void>() {
+                @Override
+                public void call(Void val)
+                {
+                    serverDone = true;
+                }
+            });
+        }
+
+        private void connect(TLSConnection from, final TLSConnection to)
+        {
+            from.setWriteCallback(new TriCallback<ByteBuffer, Boolean, Object>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void call(final ByteBuffer bb, Boolean shutdown, Object cbo)
+                {
+                    final Callback<Object> cb = (Callback<Object>)cbo;
+                    runtime.post(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            if (bb != null) {
+                                to.unwrap(bb, null);
+                            }
+                            if (cb != null) {
+                                cb.call(null);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        void handshake()
+        {
+            client.start();
+            while (!(clientDone && serverDone)) {
+                runtime.runOne();
+            }
+            // Let the server finish anything that it sends after the handshake, like session tickets
+            runtime.drain();
+        }
+
+        boolean isDone(int expected)
+        {
+            return (connected.received >= expected);
+        }
+    }
+
+    /**
+     * A runtime whose "script thread" and thread pool are both a queue drained by the benchmark thread.
+     */
+    static final class Loopback
+        implements GenericNodeRuntime
+    {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private final ExecutorService pool = new AbstractExecutorService() {
+            @Override
+            public void execute(Runnable command)
+            {
+                post(command);
+            }
+
+            @Override
+            public void shutdown()
+            {
+            }
+
+            @Override
+            public List<Runnable> shutdownNow()
+            {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public boolean isShutdown()
+            {
+                return false;
+            }
+
+            @Override
+            public boolean isTerminated()
+            {
+                return false;
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit)
+            {
+                return false;
+            }
+        };
+
+        void post(Runnable r)
+        {
+            tasks.add(r);
+        }
+
+        void runOne()
+        {
+            Runnable r = tasks.poll();
+            if (r == null) {
+                throw new IllegalStateException("TLS connection stalled");
+            }
+            r.run();
+        }
+
+        void drain()
+        {
+            Runnable r;
+            while ((r = tasks.poll()) != null) {
+                r.run();
+            }
+        }
+
+        void runUntil(Pair p, int expected)
+        {
+            while (!p.isDone(expected)) {
+                runOne();
+            }
+            drain();
+        }
+
+        @Override
+        public void pin()
+        {
+        }
+
+        @Override
+        public void unPin()
+        {
+        }
+
+        @Override
+        public ExecutorService getAsyncPool()
+        {
+            return pool;
+        }
+
+        @Override
+        public ExecutorService getUnboundedPool()
+        {
+            return pool;
+        }
+
+        @Override
+        public void registerCloseable(Closeable c)
+        {
+        }
+
+        @Override
+        public void unregisterCloseable(Closeable c)
+        {
+        }
+
+        @Override
+        public Selector getSelector()
+        {
+            return null;
+        }
+
+        @Override
+        public NetworkPolicy getNetworkPolicy()
+        {
+            return null;
+        }
+
+        @Override
+        public Object getDomain()
+        {
+            return null;
+        }
+
+        @Override
+        public void executeScriptTask(Runnable task, Object domain)
+        {
+            post(task);
+        }
+
+        @Override
+        public Future<Boolean> createTimedTask(Runnable r, long delay, TimeUnit unit, boolean repeating, Object domain)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final X509TrustManager TRUST_ALL = new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+        {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+        {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return new X509Certificate[0];
+        }
+    };
+
+    static SSLContext makeServerContext()
+        throws GeneralSecurityException, IOException
+    {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        InputStream in = TLSBenchmark.class.getResourceAsStream("/agent2.jks");
+        try {
+            ks.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, PASSWORD);
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), new TrustManager[] { TRUST_ALL }, null);
+        return ctx;
+    }
+
+    static SSLContext makeClientContext()
+        throws GeneralSecurityException
+    {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { TRUST_ALL }, null);
+        return ctx;
+    }
+}
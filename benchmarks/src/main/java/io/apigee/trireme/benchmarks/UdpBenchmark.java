@@ -0,0 +1,137 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datagrams per second through a "dgram" echo server running in a script over loopback. Each
+ * invocation sends a window of datagrams and waits for all the replies, so that the script reads
+ * several of them on each selector wakeup. The window is kept well under what the socket buffer
+ * holds because a dropped datagram fails the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpBenchmark
+{
+    private static final int WINDOW = 32;
+    private static final int RECEIVE_TIMEOUT_MS = 2000;
+    private static final long LISTEN_TIMEOUT_MS = 10000L;
+
+    private static final String SCRIPT =
+        "var dgram = require('dgram');\n" +
+        "var server = dgram.createSocket('udp4');\n" +
+        "server.on('message', function(msg, rinfo) {\n" +
+        "  server.send(msg, 0, msg.length, rinfo.port, rinfo.address);\n" +
+        "});\n" +
+        "var port = 0;\n" +
+        "server.bind(0, '127.0.0.1', function() { port = server.address().port; });\n" +
+        "global.getPort = function() {\n" +
+        "  return port;\n" +
+        "};\n";
+
+    @Param({ "0.10.x", "0.11.x" })
+    public String nodeVersion;
+
+    @Param({ "64", "1024" })
+    public int size;
+
+    private NodeEnvironment env;
+    private ScriptHarness harness;
+    private DatagramSocket socket;
+    private InetSocketAddress serverAddr;
+    private DatagramPacket sendPacket;
+    private DatagramPacket receivePacket;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        env = new NodeEnvironment();
+        harness = new ScriptHarness(env, null, nodeVersion, SCRIPT);
+
+        int port = 0;
+        long deadline = System.currentTimeMillis() + LISTEN_TIMEOUT_MS;
+        while (port == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Server did not bind");
+            }
+            Thread.sleep(10L);
+            port = ((Number)harness.call("getPort")).intValue();
+        }
+
+        serverAddr = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+        sendPacket = new DatagramPacket(new byte[size], size, serverAddr);
+        receivePacket = new DatagramPacket(new byte[size], size);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        socket.close();
+        harness.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public int echo()
+        throws IOException
+    {
+        for (int i = 0; i < WINDOW; i++) {
+            socket.send(sendPacket);
+        }
+        int total = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            receivePacket.setLength(size);
+            socket.receive(receivePacket);
+            total += receivePacket.getLength();
+        }
+        return total;
+    }
+}
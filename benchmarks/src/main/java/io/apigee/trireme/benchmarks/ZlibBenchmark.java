@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.benchmarks;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.zip.Compressor;
+import io.apigee.trireme.kernel.zip.Decompressor;
+import io.apigee.trireme.kernel.zip.ZlibWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+/**
+ * One complete compression or decompression of a JSON-like payload through the same Compressor and
+ * Decompressor classes that back the "zlib" module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZlibBenchmark
+{
+    @Param({ "deflate", "gzip" })
+    public String format;
+
+    @Param({ "1024", "65536" })
+    public int size;
+
+    private byte[] plain;
+    private byte[] compressed;
+    private int compressMode;
+    private int decompressMode;
+
+    @Setup
+    public void setUp()
+        throws OSException, DataFormatException
+    {
+        if ("gzip".equals(format)) {
+            compressMode = ZlibWriter.GZIP;
+            decompressMode = ZlibWriter.GUNZIP;
+        } else {
+            compressMode = ZlibWriter.DEFLATE;
+            decompressMode = ZlibWriter.INFLATE;
+        }
+
+        StringBuilder str = new StringBuilder(size + 64);
+        int i = 0;
+        while (str.length() < size) {
+            str.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i * 7919 % 1000)
+               .append("\",\"active\":").append((i % 3) == 0).append("},");
+            i++;
+        }
+        plain = str.substring(0, size).getBytes(Charsets.UTF8);
+
+        ByteBuffer out = compress();
+        compressed = new byte[out.remaining()];
+        out.get(compressed);
+
+        ByteBuffer check = decompress();
+        byte[] result = new byte[check.remaining()];
+        check.get(result);
+        if (!Arrays.equals(plain, result)) {
+            throw new IllegalStateException("Round trip through " + format + " failed");
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer compress()
+        throws OSException
+    {
+        Compressor c = new Compressor(compressMode, Deflater.DEFAULT_COMPRESSION,
+                                      Deflater.DEFAULT_STRATEGY, null);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(plain);
+            ByteBuffer out = ByteBuffer.allocate(plain.length + 1024);
+            int lastPos;
+            do {
+                lastPos = out.position();
+                c.write(ZlibWriter.FINISH, in, out);
+            } while (out.position() != lastPos);
+            out.flip();
+            return out;
+        } finally {
+            c.close();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer decompress()
+        throws OSException, DataFormatException
+    {
+        Decompressor d = new Decompressor(decompressMode, null);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(compressed);
+            ByteBuffer out = ByteBuffer.allocate(plain.length);
+            int lastPos;
+            int lastRemaining;
+            do {
+                lastPos = out.position();
+                lastRemaining = in.remaining();
+                d.write(Deflater.NO_FLUSH, in, out);
+            } while ((out.position() != lastPos) || (in.remaining() != lastRemaining));
+            out.flip();
+            return out;
+        } finally {
+            d.close();
+        }
+    }
+}
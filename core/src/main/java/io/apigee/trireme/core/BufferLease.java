@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.core.modules.Buffer;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>
+ * Lends a ByteBuffer to a script as a Buffer for a limited time. Pass the lease as an argument to a
+ * ScriptFunction, and the script gets a Buffer of the buffer's remaining bytes. Once "release" returns,
+ * the Buffer and every slice that the script made of it have a length of zero, so the script can no
+ * longer read or write the memory, and the caller owns the ByteBuffer again.
+ * </p>
+ * <p>
+ * A heap ByteBuffer is lent without copying, so the script sees and changes the same array. Buffers in
+ * Trireme are always backed by an array, so a direct or read-only ByteBuffer is copied when the
+ * script first gets it, and "release" copies the contents back into a writable buffer, so that changes
+ * made by the script are visible either way. A heap ByteBuffer may be copied in the same way by
+ * constructing the lease with "copy" set. The position and limit of the ByteBuffer never change.
+ * </p>
+ * <p>
+ * Release the lease when the script is done with the data, for instance when the function's callback is
+ * called. "release" cuts the script's Buffer off from the memory, but it cannot stop an operation that
+ * already took the Buffer's array and runs on another thread. Those operations may still read the
+ * memory, and may also write it, after "release" returns. Among them are "fs.read," which fills the
+ * array on the async pool, and "fs.write," socket and stream writes, and zlib, which read it later.
+ * If the script may have started any of those, either wait until they complete, just as Node.js code
+ * would before reusing a Buffer, or lend a copy, so that late reads and writes only touch the copy.
+ * If the script exits first, the lease is released automatically.
+ * </p>
+ */
+
+public class BufferLease
+{
+    private final ByteBuffer source;
+    private final boolean copy;
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    // Only touched on the script thread, or before the lease was ever lent
+    private ScriptRunner runner;
+    private Buffer.BufferImpl buffer;
+    private Closeable closer;
+    private volatile boolean releasing;
+
+    public BufferLease(ByteBuffer source)
+    {
+        this(source, false);
+    }
+
+    /**
+     * Lend the buffer, copying it first if "copy" is set even if it has an array. Use a copy when
+     * the caller can't be sure that the script has no I/O in progress on the Buffer when it releases it.
+     */
+    public BufferLease(ByteBuffer source, boolean copy)
+    {
+        this.source = source;
+        this.copy = copy;
+    }
+
+    public ByteBuffer getSource() {
+        return source;
+    }
+
+    /**
+     * Return true if the script gets a copy of the data rather than the ByteBuffer's own array.
+     */
+    public boolean isCopied()
+    {
+        return copy || !source.hasArray();
+    }
+
+    public boolean isReleased()
+    {
+        return released.getCount() == 0;
+    }
+
+    /**
+     * Return the Buffer that the script sees, creating it the first time. This must be called on the
+     * script thread, and is what ScriptFunction does with a lease that is passed as an argument.
+     *
+     * @throws IllegalStateException if the lease was released, or was lent to a different script
+     */
+    public synchronized Buffer.BufferImpl toScript(Context cx, Scriptable scope)
+    {
+        if (releasing) {
+            throw new IllegalStateException("Buffer lease has been released");
+        }
+        ScriptRunner r = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        if (buffer != null) {
+            if (r != runner) {
+                throw new IllegalStateException("Buffer lease was lent to a different script");
+            }
+            return buffer;
+        }
+
+        runner = r;
+        buffer = Buffer.BufferImpl.newBuffer(cx, scope, source, isCopied());
+        buffer.trackViews();
+        closer = new Closeable()
+        {
+            @Override
+            public void close()
+            {
+                // The script is exiting, and is already going through its closeables
+                detach(false);
+            }
+        };
+        runner.registerCloseable(closer);
+        return buffer;
+    }
+
+    /**
+     * Take the memory back from the script. This may be called from any thread. Since the Buffer may
+     * only be changed on the script thread, this waits for the script to run a task that detaches it,
+     * unless it is called on the script thread itself.
+     */
+    public void release()
+        throws InterruptedException
+    {
+        ScriptRunner r;
+        synchronized (this) {
+            if (!releasing) {
+                releasing = true;
+                if (runner == null) {
+                    // Never lent
+                    released.countDown();
+                    return;
+                }
+            }
+            r = runner;
+        }
+
+        if (r == null) {
+            return;
+        }
+        Context cx = Context.getCurrentContext();
+        if ((cx != null) && (cx.getThreadLocal(ScriptRunner.RUNNER) == r)) {
+            detach(true);
+        } else if (!isReleased()) {
+            r.enqueueTask(new ScriptTask()
+            {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    detach(true);
+                }
+            });
+        }
+        released.await();
+    }
+
+    /**
+     * Detach the Buffer and all its slices. This happens either on the script thread or as the script exits.
+     */
+    private synchronized void detach(boolean unregister)
+    {
+        releasing = true;
+        if (isReleased()) {
+            return;
+        }
+        if ((buffer != null) && isCopied() && !source.isReadOnly()) {
+            ByteBuffer dst = source.duplicate();
+            dst.put(buffer.getBuffer());
+        }
+        if (buffer != null) {
+            buffer.detach();
+            buffer = null;
+        }
+        if (closer != null) {
+            if (unregister) {
+                runner.unregisterCloseable(closer);
+            }
+            closer = null;
+        }
+        released.countDown();
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a call to a ScriptFunction. The result has already been converted to a Java object
+ * as described in ScriptFunction. If the function threw an exception, or passed an error to its callback,
+ * or the script exited before the call completed, then "get" throws an ExecutionException.
+ * Use "setListener" to be notified when the call completes rather than waiting for it.
+ */
+
+public class InvocationFuture
+    implements Future<Object>
+{
+    private final ScriptFuture script;
+    private final Object[] args;
+
+    private boolean done;
+    private boolean finishing;
+    private boolean cancelled;
+    private Object result;
+    private Throwable error;
+    private InvocationListener listener;
+    private InvocationListener hook;
+
+    InvocationFuture(ScriptFuture script, Object[] args)
+    {
+        this.script = script;
+        this.args = args;
+    }
+
+    Object[] getArgs() {
+        return args;
+    }
+
+    /**
+     * Cancel the call if it has not started running yet. A call that is already running on the
+     * script thread can't be stopped.
+     */
+    @Override
+    public boolean cancel(boolean interrupt)
+    {
+        return finish(null, null, true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    @Override
+    public synchronized Object get()
+        throws InterruptedException, ExecutionException
+    {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized Object get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long now = System.nanoTime();
+        long expiration = now + unit.toNanos(timeout);
+        while (!done && (now < expiration)) {
+            TimeUnit.NANOSECONDS.timedWait(this, expiration - now);
+            now = System.nanoTime();
+        }
+        if (!done) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private Object getResult()
+        throws ExecutionException
+    {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    public void setListener(InvocationListener l)
+    {
+        boolean fire;
+        synchronized (this) {
+            listener = l;
+            fire = done;
+        }
+        if (fire) {
+            l.onComplete(this);
+        }
+    }
+
+    /**
+     * Set a listener for internal use, such as by a ModulePool, that runs before the user's listener.
+     */
+    void setCompletionHook(InvocationListener h)
+    {
+        boolean fire;
+        synchronized (this) {
+            hook = h;
+            // "finish" only runs the hook that was set when it started
+            fire = done || finishing;
+        }
+        if (fire) {
+            h.onComplete(this);
+        }
+    }
+
+    void complete(Object val)
+    {
+        finish(val, null, false);
+    }
+
+    void fail(Throwable t)
+    {
+        finish(null, t, false);
+    }
+
+    /**
+     * Only the first result counts -- for instance, a callback may be called after the script exited.
+     * The hook runs before anyone waiting in "get" is woken up, so that the call has been fully
+     * accounted for by the time that the caller sees the result.
+     */
+    private boolean finish(Object val, Throwable t, boolean cancel)
+    {
+        InvocationListener l;
+        InvocationListener h;
+        synchronized (this) {
+            if (done || finishing) {
+                return false;
+            }
+            finishing = true;
+            cancelled = cancel;
+            result = val;
+            error = t;
+            h = hook;
+        }
+        script.removePendingCall(this);
+        if (h != null) {
+            h.onComplete(this);
+        }
+        synchronized (this) {
+            done = true;
+            l = listener;
+            notifyAll();
+        }
+        if (l != null) {
+            l.onComplete(this);
+        }
+        return true;
+    }
+}
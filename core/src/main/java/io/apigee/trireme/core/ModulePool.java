@@ -0,0 +1,649 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A pool of identical instances of a module, each running in its own thread with its own event loop, so
+ * that calls from Java to the module's exported functions aren't all serialized on a single thread.
+ * Get one from NodeEnvironment.createModulePool, change the settings, and call "start".
+ * </p>
+ * <p>
+ * Each call goes to the instance with the fewest calls outstanding. When every instance already has
+ * "targetConcurrency" calls outstanding, another is started in the background, up to "maxInstances."
+ * Instances above "minInstances" that have been idle for "idleTimeout" are stopped the next time
+ * the pool is used. An instance is recycled -- it gets no new calls, and is stopped once its
+ * outstanding calls complete -- after "maxCallsPerInstance" calls, or once it has allocated
+ * "maxAllocatedBytes" of heap. An instance whose script exits, for instance because of an uncaught
+ * exception, is removed from the pool, and the calls that it hadn't finished fail.
+ * </p>
+ * <p>
+ * Since the instances run the same code, they share compiled classes through the environment's
+ * ClassCache. If the environment doesn't have one, the default one is set when the pool is created.
+ * </p>
+ */
+
+public class ModulePool
+{
+    private static final Logger log = LoggerFactory.getLogger(ModulePool.class);
+
+    public static final int DEFAULT_MIN_INSTANCES = 1;
+    public static final int DEFAULT_TARGET_CONCURRENCY = 1;
+    public static final long DEFAULT_IDLE_TIMEOUT_SECS = 60L;
+
+    private final NodeEnvironment env;
+    private final String scriptName;
+    private final File scriptFile;
+    private final String[] args;
+
+    private int minInstances = DEFAULT_MIN_INSTANCES;
+    private int maxInstances = Runtime.getRuntime().availableProcessors();
+    private int targetConcurrency = DEFAULT_TARGET_CONCURRENCY;
+    private long maxCallsPerInstance;
+    private long maxAllocatedBytes;
+    private long idleTimeout = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TIMEOUT_SECS);
+    private String nodeVersion;
+
+    private final ArrayList<Instance> instances = new ArrayList<Instance>();
+    private int starting;
+    private long recycled;
+    private boolean started;
+    private boolean closed;
+
+    ModulePool(NodeEnvironment env, String scriptName, File scriptFile, String[] args)
+    {
+        this.env = env;
+        this.scriptName = scriptName;
+        this.scriptFile = scriptFile;
+        this.args = args;
+    }
+
+    /**
+     * The number of instances that "start" starts, and that the pool shrinks back to. The default is one.
+     */
+    public ModulePool setMinInstances(int min)
+    {
+        if (min < 1) {
+            throw new IllegalArgumentException("There must be at least one instance");
+        }
+        this.minInstances = min;
+        return this;
+    }
+
+    public int getMinInstances() {
+        return minInstances;
+    }
+
+    /**
+     * The most instances that the pool will grow to. The default is the number of processors.
+     */
+    public ModulePool setMaxInstances(int max)
+    {
+        if (max < 1) {
+            throw new IllegalArgumentException("There must be at least one instance");
+        }
+        this.maxInstances = max;
+        return this;
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    /**
+     * How many calls may be outstanding on every instance before the pool starts another one. Raise it
+     * for modules whose functions spend most of their time waiting for I/O. The default is one.
+     */
+    public ModulePool setTargetConcurrency(int target)
+    {
+        if (target < 1) {
+            throw new IllegalArgumentException("Target concurrency must be at least one");
+        }
+        this.targetConcurrency = target;
+        return this;
+    }
+
+    public int getTargetConcurrency() {
+        return targetConcurrency;
+    }
+
+    /**
+     * Recycle each instance after it has handled this many calls. Zero, the default, means never.
+     */
+    public ModulePool setMaxCallsPerInstance(long max)
+    {
+        this.maxCallsPerInstance = max;
+        return this;
+    }
+
+    public long getMaxCallsPerInstance() {
+        return maxCallsPerInstance;
+    }
+
+    /**
+     * Recycle each instance once its thread has allocated this many bytes of heap, as reported
+     * by NodeScript.getResourceUsage. This catches modules that leak by keeping state in global
+     * variables. Zero, the default, means never.
+     */
+    public ModulePool setMaxAllocatedBytes(long max)
+    {
+        this.maxAllocatedBytes = max;
+        return this;
+    }
+
+    public long getMaxAllocatedBytes() {
+        return maxAllocatedBytes;
+    }
+
+    /**
+     * Stop instances above the minimum that have had no calls for this long. The default is 60 seconds.
+     */
+    public ModulePool setIdleTimeout(long timeout, TimeUnit unit)
+    {
+        this.idleTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    public long getIdleTimeout(TimeUnit unit) {
+        return unit.convert(idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the instances using a particular version of Node.js, as in NodeScript.setNodeVersion.
+     */
+    public ModulePool setNodeVersion(String v)
+    {
+        this.nodeVersion = v;
+        return this;
+    }
+
+    public String getNodeVersion() {
+        return nodeVersion;
+    }
+
+    /**
+     * Start "minInstances" instances and wait for the module to load in each one.
+     *
+     * @throws NodeException if the module could not be loaded
+     */
+    public void start()
+        throws NodeException
+    {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("Pool already started");
+            }
+            started = true;
+            starting += minInstances;
+        }
+
+        ArrayList<Instance> newInstances = new ArrayList<Instance>(minInstances);
+        try {
+            for (int i = 0; i < minInstances; i++) {
+                Instance inst = new Instance();
+                newInstances.add(inst);
+                inst.start();
+            }
+            for (Instance inst : newInstances) {
+                inst.awaitStart();
+            }
+        } catch (NodeException ne) {
+            for (Instance inst : newInstances) {
+                inst.stop();
+            }
+            close();
+            throw ne;
+        }
+
+        synchronized (this) {
+            starting -= minInstances;
+            instances.addAll(newInstances);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Call the exported function "name" on the least-busy instance, as in ScriptFunction.call.
+     *
+     * @throws NodeException if the module does not export a function with that name, or no instance
+     * could be started
+     */
+    public InvocationFuture call(String name, Object... args)
+        throws NodeException
+    {
+        return dispatch(name, Collections.singletonList(args), false).get(0);
+    }
+
+    /**
+     * Call the exported function "name" on the least-busy instance, as in ScriptFunction.callAsync.
+     */
+    public InvocationFuture callAsync(String name, Object... args)
+        throws NodeException
+    {
+        return dispatch(name, Collections.singletonList(args), true).get(0);
+    }
+
+    /**
+     * Send a whole batch of calls to the least-busy instance, as in ScriptFunction.callAll.
+     */
+    public List<InvocationFuture> callAll(String name, List<Object[]> argSets)
+        throws NodeException
+    {
+        return dispatch(name, argSets, false);
+    }
+
+    public List<InvocationFuture> callAllAsync(String name, List<Object[]> argSets)
+        throws NodeException
+    {
+        return dispatch(name, argSets, true);
+    }
+
+    /**
+     * Return the number of instances that are running, including ones that are being recycled.
+     */
+    public synchronized int getInstanceCount() {
+        return instances.size();
+    }
+
+    /**
+     * Return the number of calls that were dispatched and have not completed yet.
+     */
+    public synchronized int getOutstandingCalls()
+    {
+        int total = 0;
+        for (Instance inst : instances) {
+            total += inst.outstanding;
+        }
+        return total;
+    }
+
+    /**
+     * Return how many instances have been recycled or stopped for being idle since the pool started.
+     */
+    public synchronized long getRecycledCount() {
+        return recycled;
+    }
+
+    /**
+     * Stop all the instances. Calls that have not completed will fail.
+     */
+    public void close()
+    {
+        ArrayList<Instance> toStop;
+        synchronized (this) {
+            closed = true;
+            toStop = new ArrayList<Instance>(instances);
+            instances.clear();
+            notifyAll();
+        }
+        for (Instance inst : toStop) {
+            inst.stop();
+        }
+    }
+
+    private List<InvocationFuture> dispatch(String name, List<Object[]> argSets, boolean async)
+        throws NodeException
+    {
+        Instance inst = acquire(argSets.size());
+        List<InvocationFuture> calls;
+        try {
+            ScriptFunction f = inst.getFunction(name);
+            calls = async ? f.callAllAsync(argSets) : f.callAll(argSets);
+        } catch (NodeException ne) {
+            release(inst, argSets.size());
+            throw ne;
+        }
+        for (InvocationFuture call : calls) {
+            call.setCompletionHook(inst);
+        }
+        return calls;
+    }
+
+    /**
+     * Pick the least-busy instance and count "calls" against it, starting new instances as needed.
+     */
+    private Instance acquire(int calls)
+        throws NodeException
+    {
+        ArrayList<Instance> toStop = new ArrayList<Instance>();
+        Instance inst;
+        int toStart = 0;
+        boolean startNow = false;
+
+        synchronized (this) {
+            if (!started || closed) {
+                throw new IllegalStateException("Pool is not running");
+            }
+            reap(toStop);
+            inst = leastBusy();
+            while ((inst == null) && (instances.size() + starting >= maxInstances) && (starting > 0)) {
+                // Every slot is taken by an instance that is still starting
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    throw new NodeException("Interrupted waiting for a module instance");
+                }
+                if (closed) {
+                    throw new IllegalStateException("Pool is not running");
+                }
+                inst = leastBusy();
+            }
+
+            if (((inst == null) || (inst.outstanding >= targetConcurrency)) &&
+                (instances.size() + starting < maxInstances)) {
+                starting++;
+                if (inst == null) {
+                    startNow = true;
+                } else {
+                    toStart++;
+                }
+            }
+            if (inst != null) {
+                reserve(inst, calls);
+            }
+            toStart += replenish();
+        }
+
+        stopAll(toStop);
+        startInBackground(toStart);
+        if ((inst == null) && !startNow) {
+            // Every instance is retiring, and there is no room to start another one
+            throw new NodeException("No module instance is available");
+        }
+        if (startNow) {
+            inst = startInstance();
+            if (inst == null) {
+                throw new NodeException("Pool is not running");
+            }
+            synchronized (this) {
+                reserve(inst, calls);
+            }
+        }
+        return inst;
+    }
+
+    private void reserve(Instance inst, int calls)
+    {
+        inst.outstanding += calls;
+        inst.calls += calls;
+        inst.lastUsed = System.currentTimeMillis();
+        if ((maxCallsPerInstance > 0L) && (inst.calls >= maxCallsPerInstance)) {
+            inst.retiring = true;
+        }
+    }
+
+    private void release(Instance inst, int calls)
+    {
+        boolean overAllocated = (maxAllocatedBytes > 0L) && !inst.retiring &&
+                                (inst.getAllocatedBytes() >= maxAllocatedBytes);
+        boolean stop = false;
+        int toStart;
+
+        synchronized (this) {
+            inst.outstanding -= calls;
+            if (overAllocated) {
+                inst.retiring = true;
+            }
+            if (inst.retiring && (inst.outstanding <= 0) && instances.remove(inst)) {
+                recycled++;
+                stop = true;
+            }
+            toStart = replenish();
+        }
+
+        if (stop) {
+            if (log.isDebugEnabled()) {
+                log.debug("Recycling {} after {} calls", inst, inst.calls);
+            }
+            inst.stop();
+        }
+        startInBackground(toStart);
+    }
+
+    /**
+     * Remove instances whose scripts have exited, and stop idle ones above the minimum. Must be called
+     * while synchronized.
+     */
+    private void reap(List<Instance> toStop)
+    {
+        long now = System.currentTimeMillis();
+        int active = 0;
+        for (Instance inst : instances) {
+            if (!inst.retiring) {
+                active++;
+            }
+        }
+
+        Iterator<Instance> it = instances.iterator();
+        while (it.hasNext()) {
+            Instance inst = it.next();
+            if (inst.isExited()) {
+                log.debug("{} exited", inst);
+                it.remove();
+                if (!inst.retiring) {
+                    active--;
+                }
+            } else if (!inst.retiring && (active > minInstances) &&
+                       (inst.outstanding == 0) && ((now - inst.lastUsed) > idleTimeout)) {
+                it.remove();
+                active--;
+                recycled++;
+                toStop.add(inst);
+            }
+        }
+    }
+
+    /**
+     * Return the instance with the fewest calls outstanding. Must be called while synchronized.
+     */
+    private Instance leastBusy()
+    {
+        Instance best = null;
+        for (Instance inst : instances) {
+            if (!inst.retiring && !inst.isExited() &&
+                ((best == null) || (inst.outstanding < best.outstanding))) {
+                best = inst;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return how many instances must be started to get back to the minimum, and count them as starting.
+     * Must be called while synchronized.
+     */
+    private int replenish()
+    {
+        if (closed) {
+            return 0;
+        }
+        int active = starting;
+        for (Instance inst : instances) {
+            if (!inst.retiring) {
+                active++;
+            }
+        }
+        int needed = Math.max(0, minInstances - active);
+        starting += needed;
+        return needed;
+    }
+
+    /**
+     * Start an instance that was already counted in "starting," and add it to the pool.
+     * Returns null if the pool was closed in the meantime.
+     */
+    private Instance startInstance()
+        throws NodeException
+    {
+        Instance inst = new Instance();
+        try {
+            inst.start();
+            inst.awaitStart();
+        } catch (NodeException ne) {
+            inst.stop();
+            synchronized (this) {
+                starting--;
+                notifyAll();
+            }
+            throw ne;
+        }
+
+        boolean stop;
+        synchronized (this) {
+            starting--;
+            stop = closed;
+            if (!closed) {
+                instances.add(inst);
+            }
+            notifyAll();
+        }
+        if (stop) {
+            inst.stop();
+            return null;
+        }
+        return inst;
+    }
+
+    private void startInBackground(int count)
+    {
+        for (int i = 0; i < count; i++) {
+            env.getAsyncPool().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        startInstance();
+                    } catch (NodeException ne) {
+                        log.warn("Cannot start another instance of {}: {}", scriptName, ne.toString());
+                    }
+                }
+            });
+        }
+    }
+
+    private static void stopAll(List<Instance> toStop)
+    {
+        for (Instance inst : toStop) {
+            inst.stop();
+        }
+    }
+
+    /**
+     * One running copy of the module. The counters are protected by the pool's lock.
+     */
+    private final class Instance
+        implements InvocationListener
+    {
+        private final HashMap<String, ScriptFunction> functions = new HashMap<String, ScriptFunction>();
+        private NodeScript script;
+        private ScriptFuture future;
+
+        int outstanding;
+        long calls;
+        long lastUsed = System.currentTimeMillis();
+        boolean retiring;
+
+        void start()
+            throws NodeException
+        {
+            script = env.createScript(scriptName, scriptFile, args);
+            if (nodeVersion != null) {
+                script.setNodeVersion(nodeVersion);
+            }
+            future = script.executeModule();
+        }
+
+        void awaitStart()
+            throws NodeException
+        {
+            try {
+                future.getModuleResult();
+            } catch (InterruptedException ie) {
+                throw new NodeException("Interrupted waiting for " + scriptName + " to load");
+            } catch (ExecutionException ee) {
+                throw new NodeException("Module " + scriptName + " failed to load: " + ee.getCause(), ee.getCause());
+            }
+        }
+
+        synchronized ScriptFunction getFunction(String name)
+            throws NodeException
+        {
+            ScriptFunction f = functions.get(name);
+            if (f == null) {
+                try {
+                    f = future.getFunction(name);
+                } catch (InterruptedException ie) {
+                    throw new NodeException("Interrupted waiting for " + scriptName + " to load");
+                } catch (ExecutionException ee) {
+                    throw new NodeException("Module " + scriptName + " exited: " + ee.getCause(), ee.getCause());
+                }
+                functions.put(name, f);
+            }
+            return f;
+        }
+
+        boolean isExited() {
+            return future.isDone();
+        }
+
+        long getAllocatedBytes()
+        {
+            ResourceUsage usage = script.getResourceUsage();
+            return (usage == null ? 0L : usage.getAllocatedBytes());
+        }
+
+        void stop()
+        {
+            if (future != null) {
+                future.cancel(true);
+            }
+            if (script != null) {
+                script.close();
+            }
+        }
+
+        @Override
+        public void onComplete(InvocationFuture call)
+        {
+            release(this, 1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ModulePool.Instance[" + scriptName + ']';
+        }
+    }
+}
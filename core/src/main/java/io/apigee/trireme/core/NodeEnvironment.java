@@ -27,6 +27,11 @@ import io.apigee.trireme.core.internal.SoftClassCache;
 import io.apigee.trireme.kernel.VersionMatcher;
 import io.apigee.trireme.core.spi.NodeImplementation;
 import io.apigee.trireme.kernel.NodeVersion;
+import io.apigee.trireme.kernel.crypto.CryptoPool;
+import io.apigee.trireme.kernel.crypto.KeyMaterialCache;
+import io.apigee.trireme.kernel.streams.AsyncOutputWriter;
+import io.apigee.trireme.kernel.streams.StreamPump;
+import io.apigee.trireme.kernel.tls.SSLContextCache;
 import io.apigee.trireme.net.spi.HttpServerContainer;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
@@ -82,6 +87,15 @@ public class
     private ClassCache          classCache;
     private String              defaultNodeVersion;
     private int                 maxAsyncPoolSize = MAX_POOL_SIZE;
+    private int                 cryptoPoolSize = Runtime.getRuntime().availableProcessors();
+    private CryptoPool          cryptoPool;
+    private int                 streamPumpThreads = StreamPump.DEFAULT_THREADS;
+    private StreamPump          streamPump;
+    private AsyncOutputWriter   outputWriter;
+    private int                 maxXsltJobs;
+    private boolean             jmxEnabled;
+    private final SSLContextCache sslContextCache = new SSLContextCache();
+    private final KeyMaterialCache keyMaterialCache = new KeyMaterialCache();
 
     private int                 optLevel = DEFAULT_OPT_LEVEL;
 
@@ -122,6 +136,17 @@ public class
      */
     public void close()
     {
+        if (streamPump != null) {
+            streamPump.shutdown();
+        }
+        if (cryptoPool != null) {
+            cryptoPool.shutdown();
+        }
+        synchronized (this) {
+            if (outputWriter != null) {
+                outputWriter.shutdown();
+            }
+        }
     }
 
     /**
@@ -191,6 +216,23 @@ public class
         return new NodeScript(this, args, forceRepl);
     }
 
+    /**
+     * Create a pool of instances of the module in "script," which Java code may use to call the
+     * module's exported functions in parallel. Call "start" on the pool once it has been configured.
+     * Since the instances share compiled code, this sets the default class cache if there isn't one.
+     */
+    public ModulePool createModulePool(String scriptName, File script, String[] args)
+        throws NodeException
+    {
+        initialize();
+        synchronized (this) {
+            if (classCache == null) {
+                setDefaultClassCache();
+            }
+        }
+        return new ModulePool(this, scriptName, script, args);
+    }
+
     /**
      * Replace the default HTTP implementation with a custom implementation. Must be set before
      * any calls to "createScript" in order to have any effect.
@@ -285,6 +327,151 @@ public class
         return maxAsyncPoolSize;
     }
 
+    /**
+     * Set the maximum number of TLS sessions that will be cached for resumption by each TLS context,
+     * or zero for no limit. The default is the JSSE default, which is currently 20480. This only affects
+     * TLS contexts that are created after the call.
+     */
+    public NodeEnvironment setTLSSessionCacheSize(int size)
+    {
+        sslContextCache.setSessionCacheSize(size);
+        return this;
+    }
+
+    /**
+     * Set the number of seconds during which a cached TLS session may be resumed, or zero for no limit.
+     * The default is the JSSE default, which is currently one day. This only affects TLS contexts that
+     * are created after the call.
+     */
+    public NodeEnvironment setTLSSessionTimeout(int seconds)
+    {
+        sslContextCache.setSessionTimeout(seconds);
+        return this;
+    }
+
+    /**
+     * Return the object that manages TLS contexts and sessions for all the scripts in this environment.
+     * It may be used to read the number of full and resumed TLS handshakes. TLS sessions are only
+     * resumed by scripts that run in the same Sandbox.
+     */
+    public SSLContextCache getSSLContextCache() {
+        return sslContextCache;
+    }
+
+    /**
+     * Set the maximum number of parsed TLS keys, certificates, and key and trust managers that are shared
+     * by all the scripts in this environment, so that identical TLS contexts are not parsed over and over.
+     * The default is 1000, and zero disables the cache.
+     */
+    public NodeEnvironment setKeyMaterialCacheSize(int size)
+    {
+        keyMaterialCache.setMaxEntries(size);
+        return this;
+    }
+
+    /**
+     * Return the cache of parsed TLS key material, which may be used to read how often it was used and
+     * how much parsing time it has saved.
+     */
+    public KeyMaterialCache getKeyMaterialCache() {
+        return keyMaterialCache;
+    }
+
+    /**
+     * Register the event loop metrics of each script, as returned by NodeScript.getMetrics(), with the
+     * platform MBean server while the script runs. The default is false. Only affects scripts that are
+     * started after the call.
+     */
+    public NodeEnvironment setJmxEnabled(boolean enabled)
+    {
+        this.jmxEnabled = enabled;
+        return this;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Set the number of threads in the "crypto pool," which runs CPU-intensive crypto operations like PBKDF2
+     * and random number generation when the script asked for them to run asynchronously. The default is the
+     * number of processors. It must be called before "execute" is called on the first script that uses
+     * this environment, or it will have no effect. When the pool's queue is full, new operations run on
+     * the thread of the script that asked for them, so size the pool for the expected load.
+     */
+    public NodeEnvironment setCryptoPoolSize(int size)
+    {
+        this.cryptoPoolSize = size;
+        return this;
+    }
+
+    public int getCryptoPoolSize() {
+        return cryptoPoolSize;
+    }
+
+    /**
+     * Return the thread pool for async crypto operations, which may be used to read its queue depth
+     * and latency. This will be null until the first script has been created.
+     */
+    public CryptoPool getCryptoPool() {
+        return cryptoPool;
+    }
+
+    /**
+     * Set the number of threads that read the output of child processes and wait for them to exit. These
+     * threads are shared by all the child processes of every script in this environment. The default is
+     * two. It must be called before "execute" is called on the first script that uses this environment,
+     * or it will have no effect.
+     */
+    public NodeEnvironment setStreamPumpThreads(int threads)
+    {
+        this.streamPumpThreads = threads;
+        return this;
+    }
+
+    public int getStreamPumpThreads() {
+        return streamPumpThreads;
+    }
+
+    /**
+     * Set the number of asynchronous XSLT transforms, started using the "trireme-xslt" and "node_xslt"
+     * modules, that may run at once across every script in this environment. Scripts that start more
+     * wait for a free slot. If this is not set, the "trireme.max.xslt.jobs" system property is used, or
+     * eight if that is not set either. It must be called before the first script that uses this
+     * environment loads one of those modules, or it will have no effect.
+     */
+    public NodeEnvironment setMaxXsltJobs(int jobs)
+    {
+        this.maxXsltJobs = jobs;
+        return this;
+    }
+
+    /**
+     * Return the limit set by "setMaxXsltJobs," or zero if it was not set.
+     */
+    public int getMaxXsltJobs() {
+        return maxXsltJobs;
+    }
+
+    /**
+     * Internal: Get the threads that read from child processes. This will be null until the first script
+     * has been created.
+     */
+    public StreamPump getStreamPump() {
+        return streamPump;
+    }
+
+    /**
+     * Internal: Get the thread that writes script output when the sandbox asks for asynchronous output.
+     * It is only started the first time that it is needed.
+     */
+    public synchronized AsyncOutputWriter getOutputWriter() {
+        if (outputWriter == null) {
+            outputWriter = new AsyncOutputWriter();
+        }
+        return outputWriter;
+    }
+
     /**
      * Internal: Get the thread pool for async tasks.
      */
@@ -344,6 +531,9 @@ public class
                 asyncPool = pool;
             }
 
+            cryptoPool = new CryptoPool(cryptoPoolSize, CryptoPool.DEFAULT_QUEUE_SIZE);
+            streamPump = new StreamPump(streamPumpThreads);
+
             // This pool is used to run scripts. As a cached thread pool it will grow as necessary and shrink
             // down to zero when idle. This is a separate thread pool because these threads persist for the life
             // of the script.
@@ -28,6 +28,7 @@ import org.mozilla.javascript.Scriptable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  * This interface is passed to internal Node modules. It allows them to interface with the runtime,
@@ -72,6 +73,12 @@ public interface NodeRuntime
      */
     void enqueueTask(ScriptTask task, Object domain);
 
+    /**
+     * Put several tasks on the tick queue at once. They will run in order, and no other task will be
+     * run in between them. This is cheaper than calling "enqueueTask" once per task from outside
+     * the main script thread, because the script thread is only woken up once.
+     */
+    void enqueueTasks(Collection<ScriptTask> tasks, Object domain);
 
     /**
      * Put a task on the tick queue to run the specified function in the specified scope.
@@ -236,6 +236,25 @@ public class NodeScript
         this.attachment = attachment;
     }
 
+    /**
+     * Return metrics about the script's event loop, such as how late timers are firing and how much time
+     * is spent in each phase of the loop. Returns null until "execute" or "executeModule" has been called.
+     */
+    public ScriptMetrics getMetrics()
+    {
+        return (runner == null ? null : runner.getMetrics());
+    }
+
+    /**
+     * Return the CPU time, heap allocation, and instructions used by the script so far, for instance for
+     * billing or for deciding when to add capacity. Returns null until "execute" or "executeModule"
+     * has been called. Once the script exits the values stop changing.
+     */
+    public ResourceUsage getResourceUsage()
+    {
+        return (runner == null ? null : runner.getResourceUsage());
+    }
+
     /**
      * Pin the script before running it -- this ensures that the script will never exit unless process.exit
      * is called or the future is explicitly cancelled. Used to run the "repl".
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the resources that a script has used so far, as returned by NodeScript.getResourceUsage().
+ * Values that the JVM cannot measure are -1.
+ */
+
+public class ResourceUsage
+{
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final long instructions;
+    private final boolean throttled;
+
+    public ResourceUsage(long cpuNanos, long allocatedBytes, long instructions, boolean throttled)
+    {
+        this.cpuNanos = cpuNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.instructions = instructions;
+        this.throttled = throttled;
+    }
+
+    /**
+     * Return the CPU time used by the script's thread.
+     */
+    public long getCpuTime(TimeUnit unit)
+    {
+        return (cpuNanos < 0L ? -1L : unit.convert(cpuNanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Return the number of bytes allocated on the heap by the script's thread.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Return the number of instructions executed, which is only counted if the environment
+     * has a script time limit or a quota.
+     */
+    public long getInstructionCount() {
+        return instructions;
+    }
+
+    /**
+     * Return whether the script passed a soft limit in its quota and is being slowed down.
+     */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "cpu=" + getCpuTime(TimeUnit.MICROSECONDS) + "us allocated=" + allocatedBytes +
+               " instructions=" + instructions + (throttled ? " (throttled)" : "");
+    }
+}
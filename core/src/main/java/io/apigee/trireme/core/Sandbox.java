@@ -21,7 +21,10 @@
  */
 package io.apigee.trireme.core;
 
+import io.apigee.trireme.kernel.fs.FilesystemImage;
+import io.apigee.trireme.kernel.fs.StatCache;
 import io.apigee.trireme.kernel.net.NetworkPolicy;
+import io.apigee.trireme.kernel.streams.AsyncOutputWriter;
 import org.mozilla.javascript.ClassShutter;
 import org.mozilla.javascript.Scriptable;
 
@@ -55,6 +58,12 @@ public class Sandbox
     private boolean         hideOsDetails;
     private ClassShutter    extraClassShutter;
     private boolean         allowJarLoading = true;
+    private FilesystemImage filesystemImage;
+    private boolean         filesystemOverlay;
+    private StatCache       statCache;
+    private ScriptQuota     quota;
+    private int             asyncOutputCapacity;
+    private AsyncOutputWriter.OverflowPolicy asyncOutputPolicy;
 
     /**
      * Create a new sandbox that will not affect anything in any way.
@@ -84,6 +93,12 @@ public class Sandbox
             this.hideOsDetails = parent.hideOsDetails;
             this.extraClassShutter = parent.extraClassShutter;
             this.allowJarLoading = parent.allowJarLoading;
+            this.filesystemImage = parent.filesystemImage;
+            this.filesystemOverlay = parent.filesystemOverlay;
+            this.statCache = parent.statCache;
+            this.quota = parent.quota;
+            this.asyncOutputCapacity = parent.asyncOutputCapacity;
+            this.asyncOutputPolicy = parent.asyncOutputPolicy;
             if (parent.mounts != null) {
                 this.mounts = new ArrayList<Map.Entry<String, String>>(parent.mounts);
             }
@@ -130,6 +145,51 @@ public class Sandbox
         return mounts;
     }
 
+    /**
+     * Serve the filesystem from a read-only image, such as one built from a JAR or ZIP file, rather than
+     * from the disk. This allows a script and its modules to run without being extracted first.
+     * The image appears at the filesystem root set by "setFilesystemRoot," or, if there is none, it
+     * becomes the entire filesystem seen by the script, in which case "mount" should not be used.
+     * The same image may be shared by many sandboxes.
+     *
+     * @param image the image, or null to use the disk as usual
+     * @param overlay if true, then files on the disk under the filesystem root are visible on top of the
+     *                image, and all changes to the filesystem are written there. If false, then
+     *                the filesystem is read-only and attempts to change it fail with EROFS.
+     */
+    public Sandbox setFilesystemImage(FilesystemImage image, boolean overlay)
+    {
+        this.filesystemImage = image;
+        this.filesystemOverlay = overlay;
+        return this;
+    }
+
+    public FilesystemImage getFilesystemImage() {
+        return filesystemImage;
+    }
+
+    public boolean isFilesystemOverlay() {
+        return filesystemOverlay;
+    }
+
+    /**
+     * Cache the results of "fs.stat," "fs.lstat," and "fs.readdir" on the disk in the specified cache.
+     * Servers that stat the same files on every request can save a great deal of I/O this way, at the
+     * expense of seeing changes made outside the script only after the entries expire, unless the
+     * directory has been passed to "StatCache.watch." Changes made by the script itself are always
+     * seen right away. The cache may be shared by many sandboxes, and its hit and miss counts are
+     * available from the cache itself. By default there is no cache.
+     */
+    public Sandbox setStatCache(StatCache cache)
+    {
+        this.statCache = cache;
+        return this;
+    }
+
+    public StatCache getStatCache() {
+        return statCache;
+    }
+
     /**
      * Set the working directory of this script. This is the directory for relative paths and for "process.cwd()".
      * This directory is relative to the filesystem root set in "setFilesystemRoot".
@@ -275,4 +335,42 @@ public class Sandbox
     public boolean isAllowJarLoading() {
         return allowJarLoading;
     }
+
+    /**
+     * Limit the CPU time, heap allocation, and instructions that each script may use. Scripts that go over
+     * a soft limit are slowed down and scripts that go over a hard limit are terminated. See ScriptQuota
+     * for the details. Each script is measured separately.
+     */
+    public Sandbox setQuota(ScriptQuota quota) {
+        this.quota = quota;
+        return this;
+    }
+
+    public ScriptQuota getQuota() {
+        return quota;
+    }
+
+    /**
+     * Write standard output and standard error asynchronously, so that a slow stream does not hold up
+     * the script. Each write is queued, and a single thread shared by the whole NodeEnvironment writes
+     * out each queue in batches. "capacity" is the maximum number of writes to queue for each stream,
+     * and "policy" says what to do when the queue is full. Dropped writes and the time taken to write
+     * each batch are reported by ScriptMetrics. A capacity of zero, which is the default, turns this off.
+     */
+    public Sandbox setAsyncOutput(int capacity, AsyncOutputWriter.OverflowPolicy policy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity");
+        }
+        this.asyncOutputCapacity = capacity;
+        this.asyncOutputPolicy = (policy == null ? AsyncOutputWriter.OverflowPolicy.BLOCK : policy);
+        return this;
+    }
+
+    public int getAsyncOutputCapacity() {
+        return asyncOutputCapacity;
+    }
+
+    public AsyncOutputWriter.OverflowPolicy getAsyncOutputPolicy() {
+        return asyncOutputPolicy;
+    }
 }
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import io.apigee.trireme.core.internal.NodeExitException;
+import io.apigee.trireme.core.internal.ValueConverter;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * A function exported by a script that was started using NodeScript.executeModule, which may be called
+ * from any Java thread. Get one from ScriptFuture.getFunction. Each call is queued to run on the
+ * script's thread, and returns an InvocationFuture right away. "callAll" queues a whole batch of calls
+ * as a single task, which is much cheaper than handing off each call separately.
+ * </p>
+ * <p>
+ * Arguments and results are converted between Java and JavaScript by ValueConverter: strings, numbers,
+ * and booleans are passed as they are; byte arrays and ByteBuffers become Buffers and Buffers become
+ * byte arrays; Maps, Lists, and arrays become objects and arrays and vice versa. To hand a buffer to the
+ * script for a limited time, and get it back afterwards, wrap it in a BufferLease.
+ * </p>
+ * <p>
+ * "call" completes with whatever the function returns. "callAsync" adds a Node.js-style callback to
+ * the arguments and completes when the function calls it, with the callback's second argument as the
+ * result, or with a NodeException if the first argument is set.
+ * </p>
+ */
+
+public class ScriptFunction
+{
+    private final ScriptFuture script;
+    private final NodeRuntime runtime;
+    private final Scriptable thisObj;
+    private final Function function;
+    private final String name;
+    private volatile boolean copyBuffers = true;
+
+    ScriptFunction(ScriptFuture script, NodeRuntime runtime, Scriptable thisObj, Function function, String name)
+    {
+        this.script = script;
+        this.runtime = runtime;
+        this.thisObj = thisObj;
+        this.function = function;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * If false, a Buffer that the function returns, or passes to its callback, comes back as a ByteBuffer
+     * that wraps the script's memory instead of a copy in a byte array. See ValueConverter.toJava.
+     * The default is true.
+     */
+    public void setCopyBuffers(boolean copy) {
+        this.copyBuffers = copy;
+    }
+
+    public boolean isCopyBuffers() {
+        return copyBuffers;
+    }
+
+    public InvocationFuture call(Object... args)
+    {
+        return callAll(Collections.singletonList(args), false).get(0);
+    }
+
+    public InvocationFuture callAsync(Object... args)
+    {
+        return callAll(Collections.singletonList(args), true).get(0);
+    }
+
+    /**
+     * Call the function once for each set of arguments, in order, in a single task on the script thread.
+     */
+    public List<InvocationFuture> callAll(List<Object[]> argSets)
+    {
+        return callAll(argSets, false);
+    }
+
+    public List<InvocationFuture> callAllAsync(List<Object[]> argSets)
+    {
+        return callAll(argSets, true);
+    }
+
+    private List<InvocationFuture> callAll(List<Object[]> argSets, final boolean async)
+    {
+        final ArrayList<InvocationFuture> calls = new ArrayList<InvocationFuture>(argSets.size());
+        for (Object[] args : argSets) {
+            InvocationFuture f = new InvocationFuture(script, args);
+            calls.add(f);
+            if (!script.addPendingCall(f)) {
+                f.fail(new NodeException("Cannot call " + name + ": the script is not running"));
+            }
+        }
+
+        runtime.enqueueTask(new ScriptTask()
+        {
+            @Override
+            public void execute(Context cx, Scriptable scope)
+            {
+                for (InvocationFuture f : calls) {
+                    if (!f.isDone()) {
+                        invoke(cx, scope, f, async);
+                    }
+                }
+            }
+        });
+        return calls;
+    }
+
+    private void invoke(Context cx, Scriptable scope, InvocationFuture f, boolean async)
+    {
+        try {
+            Object[] in = f.getArgs();
+            Object[] args = new Object[(in == null ? 0 : in.length) + (async ? 1 : 0)];
+            for (int i = 0; (in != null) && (i < in.length); i++) {
+                args[i] = ValueConverter.toJavaScript(cx, scope, in[i]);
+            }
+            if (async) {
+                args[args.length - 1] = new Callback(f, copyBuffers);
+            }
+
+            Object ret = function.call(cx, scope, thisObj, args);
+            if (!async) {
+                f.complete(ValueConverter.toJava(ret, copyBuffers));
+            }
+
+        } catch (NodeExitException ne) {
+            // The function called "process.exit" -- let the script exit, which fails the other calls too
+            f.fail(ne);
+            throw ne;
+        } catch (RhinoException re) {
+            f.fail(re);
+        } catch (IllegalArgumentException iae) {
+            f.fail(iae);
+        } catch (IllegalStateException ise) {
+            // For instance, an argument was a BufferLease that was already released
+            f.fail(ise);
+        }
+    }
+
+    private static final class Callback
+        extends BaseFunction
+    {
+        private final InvocationFuture future;
+        private final boolean copyBuffers;
+
+        Callback(InvocationFuture future, boolean copyBuffers)
+        {
+            this.future = future;
+            this.copyBuffers = copyBuffers;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args)
+        {
+            Object err = (args.length > 0) ? args[0] : null;
+            if ((err != null) && !Undefined.instance.equals(err)) {
+                Object msg = err;
+                if (err instanceof Scriptable) {
+                    Object m = ScriptableObject.getProperty((Scriptable)err, "message");
+                    if (m != Scriptable.NOT_FOUND) {
+                        msg = m;
+                    }
+                }
+                future.fail(new NodeException(Context.toString(msg)));
+            } else {
+                future.complete(ValueConverter.toJava((args.length > 1) ? args[1] : null, copyBuffers));
+            }
+            return Undefined.instance;
+        }
+    }
+}
@@ -23,10 +23,16 @@ package io.apigee.trireme.core;
 
 import io.apigee.trireme.core.internal.NodeExitException;
 import io.apigee.trireme.core.internal.ScriptRunner;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RunnableFuture;
@@ -42,6 +48,8 @@ public class ScriptFuture
     private ScriptStatusListener listener;
     private ScriptStatus         result;
     private Scriptable           moduleResult;
+    private final Set<InvocationFuture> pendingCalls =
+        Collections.newSetFromMap(new IdentityHashMap<InvocationFuture, Boolean>());
 
     private volatile boolean cancelled;
 
@@ -161,13 +169,54 @@ public class ScriptFuture
         return runner;
     }
 
-    private synchronized void set(ScriptStatus status)
+    /**
+     * Wait for the module to be loaded, as with "getModuleResult," and return a handle to the function
+     * that it exports under "name." The handle may be used to call the function from any thread.
+     *
+     * @throws NodeException if the module does not export a function with that name
+     */
+    public ScriptFunction getFunction(String name)
+        throws InterruptedException, ExecutionException, NodeException
     {
-        result = status;
-        if (listener != null) {
-            listener.onComplete(runner.getScriptObject(), status);
+        Scriptable module = getModuleResult();
+        Object f = ScriptableObject.getProperty(module, name);
+        if (!(f instanceof Function)) {
+            throw new NodeException("Module does not export a function named " + name);
+        }
+        return new ScriptFunction(this, runner, module, (Function)f, name);
+    }
+
+    synchronized boolean addPendingCall(InvocationFuture f)
+    {
+        if (result != null) {
+            return false;
+        }
+        pendingCalls.add(f);
+        return true;
+    }
+
+    synchronized void removePendingCall(InvocationFuture f)
+    {
+        pendingCalls.remove(f);
+    }
+
+    private void set(ScriptStatus status)
+    {
+        ArrayList<InvocationFuture> unfinished;
+        synchronized (this) {
+            result = status;
+            if (listener != null) {
+                listener.onComplete(runner.getScriptObject(), status);
+            }
+            notifyAll();
+            unfinished = new ArrayList<InvocationFuture>(pendingCalls);
+            pendingCalls.clear();
+        }
+
+        // Calls that were still queued or waiting for a callback will never complete now
+        for (InvocationFuture f : unfinished) {
+            f.fail(new NodeException("Script exited before the call completed"));
         }
-        notifyAll();
     }
 
     public synchronized void setModuleResult(Scriptable result)
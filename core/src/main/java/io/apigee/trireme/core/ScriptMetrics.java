@@ -0,0 +1,300 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.kernel.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * This class shows what the event loop of a running script is doing. It is always collected, since
+ * recording costs a few calls to System.nanoTime and a few atomic increments per pass through the loop.
+ * Get it from NodeScript.getMetrics(), or turn on NodeEnvironment.setJmxEnabled to see it
+ * as an MXBean named "io.apigee.trireme:type=Script,name=(script name),id=(number)."
+ * </p>
+ * <ul>
+ *     <li>Event loop lag is how late each timer fired compared to when it was supposed to.
+ *     A script that blocks its thread shows up here first.</li>
+ *     <li>The phase histograms record how long each pass through the loop spent running
+ *     "process.nextTick" callbacks, tasks queued from Java code, "setImmediate" callbacks,
+ *     network I/O callbacks, and timers.</li>
+ *     <li>Async pool wait is how long this script's tasks sat in the async pool's queue.</li>
+ *     <li>Output flush latency and dropped output writes are only recorded when the sandbox turns on
+ *     asynchronous output. The latency is how long it took to write and flush each batch.</li>
+ *     <li>The queue depths and pin count are read when asked for.</li>
+ *     <li>CPU time, allocation, and instruction counts come from the script's ResourceUsage.</li>
+ * </ul>
+ * <p>
+ * All times are in microseconds.
+ * </p>
+ */
+
+public class ScriptMetrics
+    implements ScriptMetricsMXBean
+{
+    private static final Logger log = LoggerFactory.getLogger(ScriptMetrics.class);
+
+    public static final String JMX_DOMAIN = "io.apigee.trireme";
+
+    private static final AtomicInteger lastId = new AtomicInteger();
+
+    public enum Phase { NEXT_TICKS, TICKS, IMMEDIATE, NETWORK, TIMERS }
+
+    private final ScriptRunner runner;
+    private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LatencyHistogram asyncWait = new LatencyHistogram();
+    private final LatencyHistogram outputFlush = new LatencyHistogram();
+    private final AtomicLong iterations = new AtomicLong();
+    private ObjectName jmxName;
+
+    public ScriptMetrics(ScriptRunner runner)
+    {
+        this.runner = runner;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    public void recordPhase(Phase phase, long nanos)
+    {
+        phases[phase.ordinal()].recordNanos(nanos);
+    }
+
+    public void recordIteration()
+    {
+        iterations.incrementAndGet();
+    }
+
+    public void recordLag(long millis)
+    {
+        lag.recordMicros(millis * 1000L);
+    }
+
+    /**
+     * Return the histogram that the wrapped async pool records queue wait times into.
+     */
+    public LatencyHistogram getAsyncWaitHistogram()
+    {
+        return asyncWait;
+    }
+
+    /**
+     * Return the histogram that asynchronous stdout and stderr record the time to write each batch into.
+     */
+    public LatencyHistogram getOutputFlushHistogram()
+    {
+        return outputFlush;
+    }
+
+    public LatencyHistogram.Snapshot getPhase(Phase phase)
+    {
+        return phases[phase.ordinal()].getSnapshot();
+    }
+
+    @Override
+    public String getScriptName()
+    {
+        return runner.getScriptName();
+    }
+
+    @Override
+    public long getLoopIterations()
+    {
+        return iterations.get();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getEventLoopLag()
+    {
+        return lag.getSnapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getNextTicksPhase()
+    {
+        return getPhase(Phase.NEXT_TICKS);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTicksPhase()
+    {
+        return getPhase(Phase.TICKS);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getImmediatePhase()
+    {
+        return getPhase(Phase.IMMEDIATE);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getNetworkPhase()
+    {
+        return getPhase(Phase.NETWORK);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTimersPhase()
+    {
+        return getPhase(Phase.TIMERS);
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getAsyncPoolWait()
+    {
+        return asyncWait.getSnapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getOutputFlushLatency()
+    {
+        return outputFlush.getSnapshot();
+    }
+
+    @Override
+    public long getDroppedOutputWrites()
+    {
+        return runner.getDroppedOutputWrites();
+    }
+
+    @Override
+    public int getTickQueueDepth()
+    {
+        return runner.getTickQueueDepth();
+    }
+
+    @Override
+    public int getTimerQueueDepth()
+    {
+        return runner.getTimerQueueDepth();
+    }
+
+    @Override
+    public int getPinCount()
+    {
+        return runner.getPinCount();
+    }
+
+    @Override
+    public long getSelectorWakeups()
+    {
+        return runner.getSelectorWakeups();
+    }
+
+    @Override
+    public long getCpuTimeMicros()
+    {
+        return runner.getResourceUsage().getCpuTime(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getAllocatedBytes()
+    {
+        return runner.getResourceUsage().getAllocatedBytes();
+    }
+
+    @Override
+    public long getInstructionCount()
+    {
+        return runner.getResourceUsage().getInstructionCount();
+    }
+
+    @Override
+    public boolean isThrottled()
+    {
+        return runner.getResourceUsage().isThrottled();
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LatencyHistogram h : phases) {
+            h.clear();
+        }
+        lag.clear();
+        asyncWait.clear();
+        outputFlush.clear();
+        iterations.set(0L);
+    }
+
+    /**
+     * Register with the platform MBean server. Failures are logged and otherwise ignored, since they
+     * should never stop a script from running.
+     */
+    public void registerMBean()
+    {
+        try {
+            String scriptName = getScriptName();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Script,name=" +
+                                             ObjectName.quote(scriptName == null ? "" : scriptName) +
+                                             ",id=" + lastId.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            jmxName = name;
+        } catch (JMException e) {
+            log.warn("Cannot register script metrics with JMX: {}", e.toString());
+        }
+    }
+
+    public void unregisterMBean()
+    {
+        if (jmxName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(jmxName);
+        } catch (JMException e) {
+            log.debug("Error unregistering script metrics: {}", e.toString());
+        }
+        jmxName = null;
+    }
+
+    public ObjectName getMBeanName()
+    {
+        return jmxName;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append("iterations=").append(getLoopIterations());
+        s.append("\nlag: ").append(getEventLoopLag());
+        for (Phase p : Phase.values()) {
+            s.append('\n').append(p.name().toLowerCase()).append(": ").append(getPhase(p));
+        }
+        s.append("\nasync wait: ").append(getAsyncPoolWait());
+        s.append("\noutput flush: ").append(getOutputFlushLatency());
+        return s.toString();
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import io.apigee.trireme.kernel.util.LatencyHistogram;
+
+/**
+ * The management interface for the event loop of a single script. All times are in microseconds.
+ * See ScriptMetrics for what each value means.
+ */
+
+public interface ScriptMetricsMXBean
+{
+    String getScriptName();
+
+    long getLoopIterations();
+
+    LatencyHistogram.Snapshot getEventLoopLag();
+
+    LatencyHistogram.Snapshot getNextTicksPhase();
+
+    LatencyHistogram.Snapshot getTicksPhase();
+
+    LatencyHistogram.Snapshot getImmediatePhase();
+
+    LatencyHistogram.Snapshot getNetworkPhase();
+
+    LatencyHistogram.Snapshot getTimersPhase();
+
+    LatencyHistogram.Snapshot getAsyncPoolWait();
+
+    LatencyHistogram.Snapshot getOutputFlushLatency();
+
+    long getDroppedOutputWrites();
+
+    int getTickQueueDepth();
+
+    int getTimerQueueDepth();
+
+    int getPinCount();
+
+    long getSelectorWakeups();
+
+    long getCpuTimeMicros();
+
+    long getAllocatedBytes();
+
+    long getInstructionCount();
+
+    boolean isThrottled();
+
+    void reset();
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Limits on the resources that a single script may consume over its whole life, for environments that
+ * run scripts from many tenants in the same JVM. Set it using Sandbox.setQuota. Each limit has two levels:
+ * </p>
+ * <ul>
+ *     <li>When a script passes a <i>soft</i> limit, its thread is set to the lowest priority and it pauses for
+ *     the "throttle delay" on every pass through its event loop, so that other scripts get a larger share
+ *     of the CPU.</li>
+ *     <li>When a script passes a <i>hard</i> limit, it is terminated. Its ScriptStatus will contain a
+ *     QuotaExceededException. Scripts cannot catch this exception, although "finally" blocks will run.</li>
+ * </ul>
+ * <p>
+ * CPU time and allocated bytes are measured on the script's own thread using the JVM's ThreadMXBean, so they
+ * do not include work done in thread pools on the script's behalf. Allocation tracking requires
+ * a HotSpot-based JVM and is ignored elsewhere. Instructions are counted by Rhino for every script that has
+ * a quota, whether it comes from the Sandbox for the NodeEnvironment or from the script's own Sandbox, so
+ * there is no need to set an environment-wide Sandbox just to turn counting on. Limits are checked between
+ * callbacks, and also during long-running callbacks. A value of zero means no limit.
+ * </p>
+ */
+
+public class ScriptQuota
+{
+    public static final long DEFAULT_THROTTLE_DELAY_MS = 10L;
+
+    private long softCpuNanos;
+    private long hardCpuNanos;
+    private long softAllocatedBytes;
+    private long hardAllocatedBytes;
+    private long softInstructions;
+    private long hardInstructions;
+    private long throttleDelayMs = DEFAULT_THROTTLE_DELAY_MS;
+
+    /**
+     * Limit the total CPU time used by the script thread.
+     */
+    public ScriptQuota setCpuTime(long soft, long hard, TimeUnit unit)
+    {
+        this.softCpuNanos = unit.toNanos(soft);
+        this.hardCpuNanos = unit.toNanos(hard);
+        return this;
+    }
+
+    public long getSoftCpuTime(TimeUnit unit) {
+        return unit.convert(softCpuNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getHardCpuTime(TimeUnit unit) {
+        return unit.convert(hardCpuNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Limit the total number of bytes allocated by the script thread. This is not the same as the
+     * amount of memory that the script is holding on to, but it is a good measure of how hard it works
+     * the garbage collector.
+     */
+    public ScriptQuota setAllocatedBytes(long soft, long hard)
+    {
+        this.softAllocatedBytes = soft;
+        this.hardAllocatedBytes = hard;
+        return this;
+    }
+
+    public long getSoftAllocatedBytes() {
+        return softAllocatedBytes;
+    }
+
+    public long getHardAllocatedBytes() {
+        return hardAllocatedBytes;
+    }
+
+    /**
+     * Limit the number of JavaScript instructions executed, as counted by Rhino. The count is
+     * only updated every 100,000 instructions.
+     */
+    public ScriptQuota setInstructions(long soft, long hard)
+    {
+        this.softInstructions = soft;
+        this.hardInstructions = hard;
+        return this;
+    }
+
+    public long getSoftInstructions() {
+        return softInstructions;
+    }
+
+    public long getHardInstructions() {
+        return hardInstructions;
+    }
+
+    /**
+     * Set how long a script that passed a soft limit pauses on each pass through the event loop.
+     * The default is 10 milliseconds.
+     */
+    public ScriptQuota setThrottleDelay(long delay, TimeUnit unit)
+    {
+        this.throttleDelayMs = unit.toMillis(delay);
+        return this;
+    }
+
+    public long getThrottleDelay(TimeUnit unit) {
+        return unit.convert(throttleDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isSoftLimitExceeded(ResourceUsage usage)
+    {
+        return exceeded(softCpuNanos, usage.getCpuTime(TimeUnit.NANOSECONDS)) ||
+               exceeded(softAllocatedBytes, usage.getAllocatedBytes()) ||
+               exceeded(softInstructions, usage.getInstructionCount());
+    }
+
+    /**
+     * Return a description of the first hard limit that was exceeded, or null if none were.
+     */
+    public String getHardLimitExceeded(ResourceUsage usage)
+    {
+        if (exceeded(hardCpuNanos, usage.getCpuTime(TimeUnit.NANOSECONDS))) {
+            return "CPU time";
+        }
+        if (exceeded(hardAllocatedBytes, usage.getAllocatedBytes())) {
+            return "allocated bytes";
+        }
+        if (exceeded(hardInstructions, usage.getInstructionCount())) {
+            return "instruction count";
+        }
+        return null;
+    }
+
+    private static boolean exceeded(long limit, long value)
+    {
+        return ((limit > 0L) && (value > limit));
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.QuotaExceededException;
+import io.apigee.trireme.core.ResourceUsage;
+import io.apigee.trireme.core.ScriptQuota;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class tracks the CPU time, heap allocation, and instruction count of a single script, and
+ * enforces its ScriptQuota if it has one. Script threads come from a pool, so the counters of the thread
+ * are recorded when the script starts and subtracted later. Everything except the "get" methods must be
+ * called from the script thread.
+ */
+
+public class ResourceMonitor
+{
+    private static final Logger log = LoggerFactory.getLogger(ResourceMonitor.class);
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuSupported;
+    private static final boolean allocSupported;
+
+    static {
+        boolean cpu = false;
+        try {
+            cpu = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException ignore) {
+        }
+        cpuSupported = cpu;
+
+        boolean alloc = false;
+        try {
+            alloc = (threadBean instanceof com.sun.management.ThreadMXBean) &&
+                    ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported() &&
+                    ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemoryEnabled();
+        } catch (LinkageError ignore) {
+            // Not a HotSpot-based JVM
+        } catch (UnsupportedOperationException ignore) {
+        }
+        allocSupported = alloc;
+    }
+
+    private final ScriptQuota quota;
+    private String scriptName;
+
+    private volatile boolean running;
+    private volatile long threadId;
+    private volatile long cpuBase;
+    private volatile long allocBase;
+    private volatile long finalCpu;
+    private volatile long finalAlloc;
+    private volatile long instructions;
+    private volatile boolean throttled;
+    private String hardLimitExceeded;
+    private int oldPriority;
+
+    public ResourceMonitor(ScriptQuota quota)
+    {
+        this.quota = quota;
+    }
+
+    public boolean hasQuota() {
+        return (quota != null);
+    }
+
+    /**
+     * Start counting. Called on the script thread before the script runs.
+     */
+    public void start(String scriptName)
+    {
+        this.scriptName = scriptName;
+        Thread t = Thread.currentThread();
+        threadId = t.getId();
+        oldPriority = t.getPriority();
+        cpuBase = (cpuSupported ? threadBean.getCurrentThreadCpuTime() : 0L);
+        allocBase = (allocSupported ? getAllocatedBytes(threadId) : 0L);
+        running = true;
+    }
+
+    /**
+     * Stop counting and put the thread back the way it was before it goes back to the pool.
+     */
+    public void stop()
+    {
+        finalCpu = getCpuNanos();
+        finalAlloc = getAllocated();
+        running = false;
+        if (throttled) {
+            Thread.currentThread().setPriority(oldPriority);
+        }
+    }
+
+    /**
+     * Called by the context factory with the number of instructions executed since the last call.
+     */
+    public void addInstructions(int count)
+    {
+        instructions += count;
+        check();
+    }
+
+    /**
+     * Check the quota. Throw QuotaExceededException if a hard limit was passed, and return true if
+     * the script has passed a soft limit and the caller should slow it down.
+     */
+    public boolean check()
+    {
+        if (quota == null) {
+            return false;
+        }
+        if (hardLimitExceeded != null) {
+            // Some code caught the exception before -- throw it again until the script is gone
+            throw new QuotaExceededException("Script exceeded its " + hardLimitExceeded + " quota", getUsage());
+        }
+
+        ResourceUsage usage = getUsage();
+        String hard = quota.getHardLimitExceeded(usage);
+        if (hard != null) {
+            log.warn("Terminating script {}: hard {} limit exceeded: {}", scriptName, hard, usage);
+            hardLimitExceeded = hard;
+            throw new QuotaExceededException("Script exceeded its " + hard + " quota", usage);
+        }
+
+        if (!throttled && quota.isSoftLimitExceeded(usage)) {
+            log.info("Throttling script {}: soft limit exceeded: {}", scriptName, usage);
+            throttled = true;
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        }
+        return throttled;
+    }
+
+    /**
+     * Pause the script thread if it is being throttled. Called once per pass through the event loop.
+     */
+    public void throttle()
+    {
+        if (check()) {
+            long delay = quota.getThrottleDelay(TimeUnit.MILLISECONDS);
+            if (delay > 0L) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public ResourceUsage getUsage()
+    {
+        return new ResourceUsage(getCpuNanos(), getAllocated(), instructions, throttled);
+    }
+
+    private long getCpuNanos()
+    {
+        if (!cpuSupported) {
+            return -1L;
+        }
+        if (!running) {
+            return finalCpu;
+        }
+        long cpu = threadBean.getThreadCpuTime(threadId);
+        return (cpu < 0L ? finalCpu : cpu - cpuBase);
+    }
+
+    private long getAllocated()
+    {
+        if (!allocSupported) {
+            return -1L;
+        }
+        if (!running) {
+            return finalAlloc;
+        }
+        long alloc = getAllocatedBytes(threadId);
+        return (alloc < 0L ? finalAlloc : alloc - allocBase);
+    }
+
+    private static long getAllocatedBytes(long id)
+    {
+        return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(id);
+    }
+}
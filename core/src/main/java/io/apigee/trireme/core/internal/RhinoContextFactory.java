@@ -53,7 +53,7 @@ public class RhinoContextFactory
         c.setOptimizationLevel(optLevel);
         c.setGenerateObserverCount(countOperations);
         if (countOperations) {
-            c.setInstructionObserverThreshold(DEFAULT_INSTRUCTION_THRESHOLD);
+            countOperations(c);
         }
         if (extraClassShutter == null) {
             c.setClassShutter(DEFAULT_SHUTTER);
@@ -63,13 +63,29 @@ public class RhinoContextFactory
         return c;
     }
 
+    /**
+     * Make code compiled in this context call "observeInstructionCount." Scripts with a quota do this
+     * for their own context even when the factory isn't set to count operations for every script.
+     */
+    public static void countOperations(Context c)
+    {
+        c.setGenerateObserverCount(true);
+        c.setInstructionObserverThreshold(DEFAULT_INSTRUCTION_THRESHOLD);
+    }
+
     /**
      * Rhino will call this every "instruction observer threshold" bytecode instructions. We will look
      * on the current thread stack and if the expiration time is set, then we will
+     * time out the script. We also count instructions and check the script's quota here.
      */
     @Override
     protected void observeInstructionCount(Context cx, int count)
     {
+        ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        if (runner != null) {
+            runner.getResourceMonitor().addInstructions(count);
+        }
+
         Object timeoutObj = cx.getThreadLocal(ScriptRunner.TIMEOUT_TIMESTAMP_KEY);
         if (timeoutObj == null) {
             return;
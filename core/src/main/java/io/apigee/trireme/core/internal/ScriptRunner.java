@@ -27,7 +27,10 @@ import io.apigee.trireme.core.NodeException;
 import io.apigee.trireme.core.NodeModule;
 import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.QuotaExceededException;
+import io.apigee.trireme.core.ResourceUsage;
 import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.core.ScriptMetrics;
 import io.apigee.trireme.core.ScriptFuture;
 import io.apigee.trireme.core.ScriptStatus;
 import io.apigee.trireme.core.ScriptTask;
@@ -38,9 +41,12 @@ import io.apigee.trireme.core.modules.NativeModule;
 import io.apigee.trireme.kernel.PathTranslator;
 import io.apigee.trireme.kernel.fs.AdvancedFilesystem;
 import io.apigee.trireme.kernel.fs.BasicFilesystem;
+import io.apigee.trireme.kernel.fs.CachingFilesystem;
+import io.apigee.trireme.kernel.fs.ImageFilesystem;
 import io.apigee.trireme.kernel.handles.IpcHandle;
 import io.apigee.trireme.kernel.net.NetworkPolicy;
 import io.apigee.trireme.kernel.net.SelectorHandler;
+import io.apigee.trireme.kernel.streams.AsyncOutputWriter;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextAction;
 import org.mozilla.javascript.EcmaError;
@@ -54,6 +60,7 @@ import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.WrappedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,6 +75,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
@@ -81,7 +89,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class actually runs the script.
@@ -119,6 +129,12 @@ public class ScriptRunner
     private final  Selector                      selector;
     private        int                           timerSequence;
     private final  AtomicInteger                 pinCount      = new AtomicInteger(0);
+    private final  AtomicBoolean                 selecting     = new AtomicBoolean();
+    private final  AtomicLong                    wakeups       = new AtomicLong();
+    private final  ScriptMetrics                 metrics;
+    private final  ResourceMonitor               resources;
+    private final  AsyncOutputWriter.Sink        stdoutSink;
+    private final  AsyncOutputWriter.Sink        stderrSink;
     private        BasicFilesystem               filesystem;
 
     // Globals that are set up for the process
@@ -177,22 +193,33 @@ public class ScriptRunner
             } catch (IOException ioe) {
                 throw new AssertionError("Unexpected I/O error setting filesystem root: " + ioe);
             }
+        } else if ((sandbox != null) && (sandbox.getFilesystemImage() != null)) {
+            // With no root, the image is the whole filesystem
+            try {
+                pathTranslator.setRoot(File.separator);
+            } catch (IOException ioe) {
+                throw new AssertionError("Unexpected I/O error setting filesystem root: " + ioe);
+            }
         }
 
         if ((sandbox != null) && (sandbox.getWorkingDirectory() != null)) {
             this.workingDirectory = sandbox.getWorkingDirectory();
-        } else if ((sandbox != null) && (sandbox.getFilesystemRoot() != null)) {
+        } else if (pathTranslator.getRoot() != null) {
             this.workingDirectory = "/";
         } else {
             this.workingDirectory = new File(".").getAbsolutePath();
         }
         pathTranslator.setWorkingDir(workingDirectory);
 
+        this.metrics = new ScriptMetrics(this);
+        this.resources = new ResourceMonitor(sandbox == null ? null : sandbox.getQuota());
+        ExecutorService pool;
         if ((sandbox != null) && (sandbox.getAsyncThreadPool() != null)) {
-            this.asyncPool = sandbox.getAsyncThreadPool();
+            pool = sandbox.getAsyncThreadPool();
         } else {
-            this.asyncPool = env.getAsyncPool();
+            pool = env.getAsyncPool();
         }
+        this.asyncPool = (pool == null ? null : new TimedExecutorService(pool, metrics.getAsyncWaitHistogram()));
 
         if ((sandbox != null) && (sandbox.getMounts() != null)) {
             for (Map.Entry<String, String> mount : sandbox.getMounts()) {
@@ -200,6 +227,17 @@ public class ScriptRunner
             }
         }
 
+        if ((sandbox != null) && (sandbox.getAsyncOutputCapacity() > 0)) {
+            AsyncOutputWriter writer = env.getOutputWriter();
+            this.stdoutSink = writer.createSink(getRawStdout(), sandbox.getAsyncOutputCapacity(),
+                                                sandbox.getAsyncOutputPolicy(), metrics.getOutputFlushHistogram());
+            this.stderrSink = writer.createSink(getRawStderr(), sandbox.getAsyncOutputCapacity(),
+                                                sandbox.getAsyncOutputPolicy(), metrics.getOutputFlushHistogram());
+        } else {
+            this.stdoutSink = null;
+            this.stderrSink = null;
+        }
+
         try {
             this.selector = Selector.open();
         } catch (IOException ioe) {
@@ -250,6 +288,49 @@ public class ScriptRunner
         return (sandbox == null ? null : sandbox.getNetworkPolicy());
     }
 
+    public ScriptMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ResourceMonitor getResourceMonitor() {
+        return resources;
+    }
+
+    public ResourceUsage getResourceUsage() {
+        return resources.getUsage();
+    }
+
+    /**
+     * Return a name for the script for logging and monitoring: the display name if set, or else the file name.
+     */
+    public String getScriptName()
+    {
+        if (scriptObject.getDisplayName() != null) {
+            return scriptObject.getDisplayName();
+        }
+        return scriptFileName;
+    }
+
+    /**
+     * Return the number of tasks waiting on the tick queue. This walks the queue, so it is meant for
+     * occasional monitoring and not for use inside the event loop.
+     */
+    public int getTickQueueDepth() {
+        return tickFunctions.size();
+    }
+
+    /**
+     * Return the number of timers. This may be called from any thread, but the result is approximate
+     * since the timer queue is only modified by the script thread.
+     */
+    public int getTimerQueueDepth() {
+        return timerQueue.size();
+    }
+
+    public int getPinCount() {
+        return pinCount.get();
+    }
+
     @Override
     public NodeScript getScriptObject() {
         return scriptObject;
@@ -326,13 +407,37 @@ public class ScriptRunner
     }
 
     public OutputStream getStdout() {
-        return ((sandbox != null) && (sandbox.getStdout() != null)) ? sandbox.getStdout() : System.out;
+        return (stdoutSink == null) ? getRawStdout() : stdoutSink;
     }
 
     public OutputStream getStderr() {
+        return (stderrSink == null) ? getRawStderr() : stderrSink;
+    }
+
+    private OutputStream getRawStdout() {
+        return ((sandbox != null) && (sandbox.getStdout() != null)) ? sandbox.getStdout() : System.out;
+    }
+
+    private OutputStream getRawStderr() {
         return ((sandbox != null) && (sandbox.getStderr() != null)) ? sandbox.getStderr() : System.err;
     }
 
+    /**
+     * Return the number of writes to stdout and stderr that were dropped because the async output queue
+     * was full.
+     */
+    public long getDroppedOutputWrites()
+    {
+        long dropped = 0L;
+        if (stdoutSink != null) {
+            dropped += stdoutSink.getDroppedWrites();
+        }
+        if (stderrSink != null) {
+            dropped += stderrSink.getDroppedWrites();
+        }
+        return dropped;
+    }
+
     public TriremeProcess getParentProcess() {
         return parentProcess;
     }
@@ -406,7 +511,7 @@ public class ScriptRunner
         Callback cb = new Callback(f, scope, thisObj, args);
         cb.setDomain((Scriptable)domain);
         tickFunctions.offer(cb);
-        selector.wakeup();
+        wakeSelector();
     }
 
     /**
@@ -427,7 +532,24 @@ public class ScriptRunner
         Task t = new Task(task, scope);
         t.setDomain((Scriptable)domain);
         tickFunctions.offer(t);
-        selector.wakeup();
+        wakeSelector();
+    }
+
+    /**
+     * This method uses a concurrent queue so it may be called from any thread. All the tasks are added
+     * to the queue together, in order, and the script thread is woken up at most once.
+     */
+    @Override
+    public void enqueueTasks(Collection<ScriptTask> tasks, Object domain)
+    {
+        ArrayList<Activity> batch = new ArrayList<Activity>(tasks.size());
+        for (ScriptTask task : tasks) {
+            Task t = new Task(task, scope);
+            t.setDomain((Scriptable)domain);
+            batch.add(t);
+        }
+        tickFunctions.addAll(batch);
+        wakeSelector();
     }
 
     @Override
@@ -436,7 +558,29 @@ public class ScriptRunner
         RunnableTask t = new RunnableTask(r);
         t.setDomain((Scriptable)domain);
         tickFunctions.offer(t);
-        selector.wakeup();
+        wakeSelector();
+    }
+
+    /**
+     * Wake up the script thread if it is blocked in "select," or is just about to be. Waking up
+     * a selector is a system call, and most of the time the thread is already awake and running
+     * ticks, in which case it will see new work before it goes to sleep again. So only the
+     * first caller after the main loop decides to sleep actually calls "wakeup."
+     */
+    private void wakeSelector()
+    {
+        if (selecting.get() && selecting.compareAndSet(true, false)) {
+            wakeups.incrementAndGet();
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Return the number of times that another thread had to wake up the script thread.
+     */
+    public long getSelectorWakeups()
+    {
+        return wakeups.get();
     }
 
     /**
@@ -577,7 +721,7 @@ public class ScriptRunner
             t.setRepeating(true);
         }
         timerQueue.add(t);
-        selector.wakeup();
+        wakeSelector();
         return t;
     }
 
@@ -603,7 +747,7 @@ public class ScriptRunner
                 if (!t.isCancelled()) {
                     t.setId(timerSequence++);
                     timerQueue.add(t);
-                    selector.wakeup();
+                    wakeSelector();
                 }
             }
         });
@@ -627,7 +771,7 @@ public class ScriptRunner
             log.warn("Negative pin count: {}", currentPinCount);
         }
         if (currentPinCount == 0) {
-            selector.wakeup();
+            wakeSelector();
         }
     }
 
@@ -721,8 +865,17 @@ public class ScriptRunner
         }
 
         cx.putThreadLocal(RUNNER, this);
+        if (resources.hasQuota()) {
+            // The quota may come from this script's own sandbox, so count here and not in the factory
+            RhinoContextFactory.countOperations(cx);
+        }
         now = System.currentTimeMillis();
 
+        if (env.isJmxEnabled()) {
+            metrics.registerMBean();
+        }
+        resources.start(getScriptName());
+
         try {
             // All scripts get their own global scope. This is a lot safer than sharing them in case a script wants
             // to add to the prototype of String or Date or whatever (as they often do)
@@ -785,7 +938,7 @@ public class ScriptRunner
             status = new ScriptStatus(ioe);
         } catch (Throwable t) {
             log.debug("Unexpected script error: {}", t);
-            status = new ScriptStatus(t);
+            status = new ScriptStatus(unwrapQuotaException(t));
         }
 
         log.debug("Script exiting with exit code {}", status.getExitCode());
@@ -808,17 +961,26 @@ public class ScriptRunner
 
         closeCloseables(cx);
         try {
-            OutputStream stdout = getStdout();
+            // Closing the sinks waits for queued output to be written
+            if (stdoutSink != null) {
+                stdoutSink.close();
+            }
+            if (stderrSink != null) {
+                stderrSink.close();
+            }
+            OutputStream stdout = getRawStdout();
             if (stdout != System.out) {
                 stdout.close();
             }
-            OutputStream stderr = getStderr();
+            OutputStream stderr = getRawStderr();
             if (stderr != System.err) {
                 stderr.close();
             }
         } catch (IOException ignore) {
         }
 
+        resources.stop();
+        metrics.unregisterMBean();
         return status;
     }
 
@@ -875,16 +1037,28 @@ public class ScriptRunner
                     return ScriptStatus.CANCELLED;
                 }
 
+                metrics.recordIteration();
+                // Enforce the quota, if any, and slow down the script if it has used too much
+                resources.throttle();
+
                 // Call tick functions scheduled by process.nextTick. Node.js docs for
                 // process.nextTick say that these things run before anything else in the event loop
+                long start = System.nanoTime();
                 executeNextTicks(cx);
+                long end = System.nanoTime();
+                metrics.recordPhase(ScriptMetrics.Phase.NEXT_TICKS, end - start);
 
                 // Call tick functions scheduled by Java code.
+                start = end;
                 executeTicks(cx);
+                end = System.nanoTime();
+                metrics.recordPhase(ScriptMetrics.Phase.TICKS, end - start);
 
                 // If necessary, call into the timer module to fire all the tasks set up with "setImmediate."
                 // Again, like regular Node, the docs say that these run before all I/O activity and all timers.
+                start = end;
                 executeImmediateCallbacks(cx);
+                metrics.recordPhase(ScriptMetrics.Phase.IMMEDIATE, System.nanoTime() - start);
 
                 // Calculate how long we will wait in the call to select, taking into consideration
                 // what is on the timer queue and if there are pending ticks or immediate tasks.
@@ -903,21 +1077,34 @@ public class ScriptRunner
                 }
 
                 // Check for network I/O and also sleep if necessary.
-                // Any new timer or tick will wake up the selector immediately
+                // Any new timer or tick will wake up the selector immediately. Announce that we are
+                // about to sleep first, and then check again for work that arrived in the meantime,
+                // so that "wakeSelector" only needs to make a system call when it matters.
                 if (pollTimeout > 0L) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("mainLoop: sleeping for {} pinCount = {}", pollTimeout, pinCount.get());
+                    selecting.set(true);
+                    if (tickFunctions.isEmpty() && (pinCount.get() > 0)) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("mainLoop: sleeping for {} pinCount = {}", pollTimeout, pinCount.get());
+                        }
+                        selector.select(pollTimeout);
+                    } else {
+                        selector.selectNow();
                     }
-                    selector.select(pollTimeout);
+                    selecting.set(false);
                 } else {
                     selector.selectNow();
                 }
 
                 // Fire any selected I/O functions
+                start = System.nanoTime();
                 executeNetworkCallbacks(cx);
+                end = System.nanoTime();
+                metrics.recordPhase(ScriptMetrics.Phase.NETWORK, end - start);
 
                 // Check the timer queue for all expired timers
+                start = end;
                 executeTimerTasks(cx, now);
+                metrics.recordPhase(ScriptMetrics.Phase.TIMERS, System.nanoTime() - start);
 
             } catch (NodeExitException ne) {
                 // This exception is thrown by process.exit()
@@ -925,12 +1112,25 @@ public class ScriptRunner
             } catch (RhinoException re) {
                 // All domain and process-wide error handling happened before we got here, so
                 // if we get a RhinoException here, then we know that it is fatal.
-                return new ScriptStatus(re);
+                return new ScriptStatus(unwrapQuotaException(re));
             }
         }
         return ScriptStatus.OK;
     }
 
+    /**
+     * Rhino wraps exceptions thrown by Java code that JavaScript called, so a quota exception
+     * usually arrives wrapped. Return the original so that the caller of the script sees it.
+     */
+    private static Throwable unwrapQuotaException(Throwable t)
+    {
+        if ((t instanceof WrappedException) &&
+            (((WrappedException)t).getWrappedException() instanceof QuotaExceededException)) {
+            return ((WrappedException)t).getWrappedException();
+        }
+        return t;
+    }
+
     private Scriptable makeError(Context cx, RhinoException re)
     {
         if ((re instanceof JavaScriptException) &&
@@ -948,6 +1148,10 @@ public class ScriptRunner
         if (re instanceof NodeExitException) {
             return false;
         }
+        if (unwrapQuotaException(re) instanceof QuotaExceededException) {
+            // Scripts don't get to handle this one
+            return false;
+        }
 
         // Stop script timing before we run this, so that we don't end up timing out the script twice!
         endTiming(cx);
@@ -1090,6 +1294,8 @@ public class ScriptRunner
         while ((timed != null) && (timed.timeout <= now)) {
             timerQueue.poll();
             if (!timed.cancelled) {
+                // Timers are the best measure of how far behind the event loop is running
+                metrics.recordLag(System.currentTimeMillis() - timed.timeout);
                 boolean timing = startTiming(cx);
                 try {
                     if (log.isDebugEnabled()) {
@@ -1130,6 +1336,13 @@ public class ScriptRunner
         } else {
             filesystem = new BasicFilesystem();
         }
+        if ((sandbox != null) && (sandbox.getStatCache() != null)) {
+            filesystem = new CachingFilesystem(filesystem, sandbox.getStatCache());
+        }
+        if ((sandbox != null) && (sandbox.getFilesystemImage() != null)) {
+            filesystem = new ImageFilesystem(sandbox.getFilesystemImage(), new File(pathTranslator.getRoot()),
+                                             filesystem, sandbox.isFilesystemOverlay());
+        }
 
         try {
             // Need to bootstrap the "native module" before we can do anything
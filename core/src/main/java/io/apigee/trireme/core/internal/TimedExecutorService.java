@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.kernel.util.LatencyHistogram;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This wraps the async pool for a single script so that we can see how long that script's tasks wait
+ * in the queue before a thread picks them up. It is otherwise a straight pass-through: the pool itself
+ * is shared, so shutting this down shuts down the underlying pool just as before.
+ */
+
+public class TimedExecutorService
+    extends AbstractExecutorService
+{
+    private final ExecutorService pool;
+    private final LatencyHistogram waitTimes;
+
+    public TimedExecutorService(ExecutorService pool, LatencyHistogram waitTimes)
+    {
+        this.pool = pool;
+        this.waitTimes = waitTimes;
+    }
+
+    @Override
+    public void execute(final Runnable command)
+    {
+        final long queued = System.nanoTime();
+        pool.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                waitTimes.recordNanos(System.nanoTime() - queued);
+                command.run();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        return pool.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return pool.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return pool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        return pool.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.core.internal;
+
+import io.apigee.trireme.core.BufferLease;
+import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.handles.AbstractHandle;
+import io.apigee.trireme.kernel.handles.PublisherHandle;
+import io.apigee.trireme.kernel.handles.SubscriberHandle;
+import io.apigee.trireme.kernel.streams.Publisher;
+import io.apigee.trireme.kernel.streams.Subscriber;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Convert plain Java values to JavaScript and back, for code that calls into scripts from Java.
+ * Only data is converted -- strings, numbers, booleans, buffers, arrays, and objects -- so that
+ * scripts never see arbitrary Java objects, which the sandbox may not allow anyway.
+ * These methods must be called on the script thread.
+ */
+
+public class ValueConverter
+{
+    /** Deeper structures than this are probably cyclic. */
+    public static final int MAX_DEPTH = 64;
+
+    /**
+     * Convert a Java value to JavaScript:
+     * <ul>
+     *     <li>Strings, Booleans, Integers, and Doubles are passed unchanged. Characters become strings
+     *     and other Numbers become doubles.</li>
+     *     <li>A byte array or ByteBuffer becomes a Buffer. The data is not copied.</li>
+     *     <li>A BufferLease becomes the Buffer that it lends.</li>
+     *     <li>A Map becomes an object, and a List or array of Objects becomes an array.</li>
+     *     <li>A Publisher of ByteBuffers becomes a readable stream, and a Subscriber of ByteBuffers
+     *     becomes a writable stream, as described in "toReadable" and "toWritable."</li>
+     *     <li>JavaScript objects are passed unchanged.</li>
+     * </ul>
+     * Anything else results in an IllegalArgumentException.
+     */
+    public static Object toJavaScript(Context cx, Scriptable scope, Object val)
+    {
+        return toJavaScript(cx, scope, val, 0);
+    }
+
+    private static Object toJavaScript(Context cx, Scriptable scope, Object val, int depth)
+    {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Value is nested too deeply");
+        }
+        if ((val == null) || (val instanceof String) || (val instanceof Boolean) ||
+            (val instanceof Integer) || (val instanceof Double) || (val instanceof Scriptable)) {
+            return val;
+        }
+        if (val instanceof Number) {
+            return ((Number)val).doubleValue();
+        }
+        if (val instanceof Character) {
+            return val.toString();
+        }
+        if (val instanceof byte[]) {
+            return Buffer.BufferImpl.newBuffer(cx, scope, (byte[])val);
+        }
+        if (val instanceof ByteBuffer) {
+            return Buffer.BufferImpl.newBuffer(cx, scope, (ByteBuffer)val, false);
+        }
+        if (val instanceof BufferLease) {
+            return ((BufferLease)val).toScript(cx, scope);
+        }
+        if (val instanceof Map) {
+            Scriptable obj = cx.newObject(scope);
+            for (Map.Entry<?, ?> e : ((Map<?, ?>)val).entrySet()) {
+                obj.put(String.valueOf(e.getKey()), obj, toJavaScript(cx, scope, e.getValue(), depth + 1));
+            }
+            return obj;
+        }
+        if (val instanceof List) {
+            List<?> l = (List<?>)val;
+            Object[] elts = new Object[l.size()];
+            int i = 0;
+            for (Object o : l) {
+                elts[i++] = toJavaScript(cx, scope, o, depth + 1);
+            }
+            return cx.newArray(scope, elts);
+        }
+        if (val instanceof Object[]) {
+            Object[] a = (Object[])val;
+            Object[] elts = new Object[a.length];
+            for (int i = 0; i < a.length; i++) {
+                elts[i] = toJavaScript(cx, scope, a[i], depth + 1);
+            }
+            return cx.newArray(scope, elts);
+        }
+        if (val instanceof Publisher) {
+            @SuppressWarnings("unchecked")
+            Publisher<ByteBuffer> pub = (Publisher<ByteBuffer>)val;
+            return toReadable(cx, scope, pub);
+        }
+        if (val instanceof Subscriber) {
+            @SuppressWarnings("unchecked")
+            Subscriber<? super ByteBuffer> sub = (Subscriber<? super ByteBuffer>)val;
+            return toWritable(cx, scope, sub);
+        }
+        throw new IllegalArgumentException("Cannot convert " + val.getClass().getName() + " to JavaScript");
+    }
+
+    /**
+     * Return a readable "net.Socket" that subscribes to the publisher when the script starts reading it,
+     * and asks for more data only while the stream wants it. No thread is used while it waits.
+     */
+    public static Scriptable toReadable(Context cx, Scriptable scope, Publisher<ByteBuffer> pub)
+    {
+        ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        return makeSocket(cx, scope, new PublisherHandle(pub, runner), true);
+    }
+
+    /**
+     * Return a writable "net.Socket" that passes each write to the subscriber once it has asked
+     * for it. Writes wait until then, so "write" returns false and "drain" is emitted as usual.
+     * Ending the stream calls "onComplete."
+     */
+    public static Scriptable toWritable(Context cx, Scriptable scope, Subscriber<? super ByteBuffer> sub)
+    {
+        ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        SubscriberHandle handle = new SubscriberHandle(sub, runner);
+        handle.subscribe();
+        return makeSocket(cx, scope, handle, false);
+    }
+
+    private static Scriptable makeSocket(Context cx, Scriptable scope, AbstractHandle handle, boolean readable)
+    {
+        ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        // The handles pin the script themselves while they have work to do
+        Scriptable wrapMod = (Scriptable)runner.requireInternal("java_stream_wrap", cx);
+        Scriptable wrap = cx.newObject(wrapMod, "JavaStream", new Object[] { handle, Boolean.FALSE });
+
+        Scriptable net = (Scriptable)runner.require("net", cx);
+        Function socket = (Function)ScriptableObject.getProperty(net, "Socket");
+        Scriptable opts = cx.newObject(scope);
+        opts.put("handle", opts, wrap);
+        opts.put("readable", opts, readable);
+        opts.put("writable", opts, !readable);
+        return socket.construct(cx, scope, new Object[] { opts });
+    }
+
+    /**
+     * Convert a JavaScript value to Java:
+     * <ul>
+     *     <li>null and undefined become null.</li>
+     *     <li>Strings become Strings, numbers become Numbers, and booleans become Booleans.</li>
+     *     <li>A Buffer becomes a copy of its contents as a byte array.</li>
+     *     <li>An array becomes a List, and any other object becomes a Map of its enumerable properties,
+     *     in order.</li>
+     *     <li>Functions are returned unchanged, and wrapped Java objects are unwrapped.</li>
+     * </ul>
+     */
+    public static Object toJava(Object val)
+    {
+        return toJava(val, true, 0);
+    }
+
+    /**
+     * Convert a JavaScript value to Java as above, except that if "copyBuffers" is false, a Buffer
+     * becomes a ByteBuffer that wraps the Buffer's own memory. That saves a copy, but the script may still
+     * change the contents, so the caller must be done with it before the script could touch the Buffer
+     * again.
+     */
+    public static Object toJava(Object val, boolean copyBuffers)
+    {
+        return toJava(val, copyBuffers, 0);
+    }
+
+    private static Object toJava(Object val, boolean copyBuffers, int depth)
+    {
+        if (depth > MAX_DEPTH) {
+            throw new EvaluatorException("Value is nested too deeply");
+        }
+        if ((val == null) || Undefined.instance.equals(val) || (val == Scriptable.NOT_FOUND)) {
+            return null;
+        }
+        if (val instanceof CharSequence) {
+            return val.toString();
+        }
+        if ((val instanceof Number) || (val instanceof Boolean) || (val instanceof Function)) {
+            return val;
+        }
+        if (val instanceof Wrapper) {
+            return ((Wrapper)val).unwrap();
+        }
+        if (val instanceof Buffer.BufferImpl) {
+            Buffer.BufferImpl buf = (Buffer.BufferImpl)val;
+            if (!copyBuffers) {
+                return buf.getBuffer();
+            }
+            byte[] ret = new byte[buf.getLength()];
+            System.arraycopy(buf.getArray(), buf.getArrayOffset(), ret, 0, ret.length);
+            return ret;
+        }
+        if (val instanceof NativeArray) {
+            NativeArray a = (NativeArray)val;
+            int len = (int)a.getLength();
+            ArrayList<Object> ret = new ArrayList<Object>(len);
+            for (int i = 0; i < len; i++) {
+                ret.add(toJava(a.get(i, a), copyBuffers, depth + 1));
+            }
+            return ret;
+        }
+        if (val instanceof Scriptable) {
+            Scriptable s = (Scriptable)val;
+            LinkedHashMap<String, Object> ret = new LinkedHashMap<String, Object>();
+            for (Object id : s.getIds()) {
+                if (id instanceof String) {
+                    ret.put((String)id, toJava(s.get((String)id, s), copyBuffers, depth + 1));
+                } else if (id instanceof Number) {
+                    int ix = ((Number)id).intValue();
+                    ret.put(String.valueOf(ix), toJava(s.get(ix, s), copyBuffers, depth + 1));
+                }
+            }
+            return ret;
+        }
+        return val;
+    }
+}
@@ -24,6 +24,10 @@ package io.apigee.trireme.core.modules;
 import io.apigee.trireme.core.NodeModule;
 import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.charsets.SingleByteCodec;
+import io.apigee.trireme.kernel.charsets.Utf8Codec;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.Utils;
 import org.mozilla.javascript.Context;
@@ -50,6 +54,7 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 public class Buffer
@@ -128,9 +133,13 @@ public class Buffer
         extends ScriptableObject
     {
         public static final String CLASS_NAME = "Buffer";
+        private static final byte[] DETACHED = new byte[0];
+
         private byte[] buf;
         private int bufOffset;
         private int bufLength;
+        // Shared by a lent buffer and every slice of it, so that "detach" can reach them all
+        private ArrayList<BufferImpl> lentViews;
 
         /**
          * Read the bytes from the corresponding buffer into this one. If "copy" is true then
@@ -174,6 +183,43 @@ public class Buffer
             return buf;
         }
 
+        /**
+         * Keep track of every slice made from this buffer, and from those slices, from now on, so that
+         * "detach" can cut all of them off from the memory. Used by BufferLease.
+         */
+        public void trackViews()
+        {
+            if (lentViews == null) {
+                lentViews = new ArrayList<BufferImpl>();
+                lentViews.add(this);
+            }
+        }
+
+        /**
+         * Make this buffer, and every slice tracked since "trackViews" was called, zero-length, so that
+         * scripts can no longer read or write the memory behind them.
+         */
+        public void detach()
+        {
+            if (lentViews == null) {
+                detachView();
+                return;
+            }
+            ArrayList<BufferImpl> views = lentViews;
+            for (BufferImpl v : views) {
+                v.detachView();
+            }
+            views.clear();
+        }
+
+        private void detachView()
+        {
+            buf = DETACHED;
+            bufOffset = 0;
+            bufLength = 0;
+            lentViews = null;
+        }
+
         public ByteBuffer getBuffer()
         {
             return ByteBuffer.wrap(buf, bufOffset, bufLength);
@@ -257,7 +303,7 @@ public class Buffer
             if (args[0] instanceof String) {
                 // If a string, encode and create -- this is in the docs
                 Charset encoding = resolveEncoding(args, 1);
-                buf.fromStringInternal(((String)args[0]), encoding);
+                buf.fromStringInternal(cx, ctorObj, ((String)args[0]), encoding);
 
             } else if (args[0] instanceof Number) {
                 // If a non-negative integer, use that, otherwise 0 -- from the tests and docs
@@ -389,6 +435,41 @@ public class Buffer
             if (maxLen < 0) {
                 return Context.toNumber(0);
             }
+
+            if (Charsets.BASE64.equals(charset)) {
+                // Decode straight into the array. Node reports bytes, not characters, here.
+                int written = Base64Codec.decode(data, b.buf, offset + b.bufOffset, maxLen);
+                b.setCharsWritten(written);
+                return Context.toNumber(written);
+            }
+            if (Charsets.NODE_HEX.equals(charset)) {
+                if (!HexCodec.isEvenLength(data)) {
+                    throw Utils.makeTypeError(cx, thisObj, "Invalid hex string");
+                }
+                int written = HexCodec.decode(data, b.buf, offset + b.bufOffset, maxLen);
+                if (written < Math.min(maxLen, HexCodec.decodedLength(data))) {
+                    throw Utils.makeTypeError(cx, thisObj, "Invalid hex string");
+                }
+                b.setCharsWritten(written * 2);
+                return Context.toNumber(written);
+            }
+            if (Charsets.UTF8.equals(charset)) {
+                // Stops on any incomplete character, as per the spec
+                long result = Utf8Codec.encode(data, b.buf, offset + b.bufOffset, maxLen);
+                b.setCharsWritten(Utf8Codec.charsRead(result));
+                return Context.toNumber(Utf8Codec.bytesWritten(result));
+            }
+            if (Charsets.NODE_BINARY.equals(charset)) {
+                int written = SingleByteCodec.encodeBinary(data, b.buf, offset + b.bufOffset, maxLen);
+                b.setCharsWritten(written);
+                return Context.toNumber(written);
+            }
+            if (Charsets.ASCII.equals(charset)) {
+                int written = SingleByteCodec.encodeAscii(data, b.buf, offset + b.bufOffset, maxLen);
+                b.setCharsWritten(written);
+                return Context.toNumber(written);
+            }
+
             ByteBuffer writeBuf = ByteBuffer.wrap(b.buf, offset + b.bufOffset, maxLen);
 
             // When encoding, it's important that we stop on any incomplete character
@@ -447,11 +528,31 @@ public class Buffer
             }
             int length = end - start;
             int realLength = Math.min(length, b.bufLength - start);
+            if (Charsets.BASE64.equals(charset)) {
+                return Base64Codec.encode(b.buf, start + b.bufOffset, realLength);
+            }
+            if (Charsets.NODE_HEX.equals(charset)) {
+                return HexCodec.encode(b.buf, start + b.bufOffset, realLength);
+            }
             return Utils.bufferToString(ByteBuffer.wrap(b.buf, start + b.bufOffset, realLength), charset);
         }
 
-        private void fromStringInternal(String s, Charset cs)
+        private void fromStringInternal(Context cx, Scriptable scope, String s, Charset cs)
         {
+            if (Charsets.NODE_HEX.equals(cs)) {
+                // Handled here rather than in Utils so that bad input raises the same error as "write"
+                if (!HexCodec.isEvenLength(s)) {
+                    throw Utils.makeTypeError(cx, scope, "Invalid hex string");
+                }
+                buf = new byte[HexCodec.decodedLength(s)];
+                bufOffset = 0;
+                bufLength = HexCodec.decode(s, buf, 0, buf.length);
+                if (bufLength < buf.length) {
+                    throw Utils.makeTypeError(cx, scope, "Invalid hex string");
+                }
+                return;
+            }
+
             ByteBuffer writeBuf =
                 Utils.stringToBuffer(s, cs);
             assert(!writeBuf.isDirect());
@@ -488,6 +589,10 @@ public class Buffer
 
             BufferImpl s = (BufferImpl)cx.newObject(thisObj, CLASS_NAME);
             s.buf = b.buf;
+            if (b.lentViews != null) {
+                s.lentViews = b.lentViews;
+                s.lentViews.add(s);
+            }
             if (start > end) {
                 s.bufOffset = 0;
                 s.bufLength = 0;
@@ -1039,6 +1144,22 @@ public class Buffer
             String data = stringArg(args, 0);
             Charset charset = resolveEncoding(args, 1);
 
+            if (Charsets.BASE64.equals(charset)) {
+                return Context.toNumber(Base64Codec.decodedLength(data));
+            }
+            if (Charsets.NODE_HEX.equals(charset)) {
+                return Context.toNumber(HexCodec.decodedLength(data));
+            }
+            if (Charsets.UTF8.equals(charset)) {
+                return Context.toNumber(Utf8Codec.encodedLength(data));
+            }
+            if (Charsets.ASCII.equals(charset) || Charsets.NODE_BINARY.equals(charset)) {
+                return Context.toNumber(data.length());
+            }
+            if (Charsets.UCS2.equals(charset)) {
+                return Context.toNumber(data.length() * 2);
+            }
+
             // Encode the characters and replace, just as we would do in the constructor
             CharsetEncoder encoder = getCharsetEncoder(charset, true);
 
@@ -23,11 +23,20 @@ package io.apigee.trireme.core.modules;
 
 import io.apigee.trireme.core.modules.crypto.CryptoLoader;
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
 import io.apigee.trireme.kernel.crypto.CryptoAlgorithms;
+import io.apigee.trireme.kernel.crypto.CryptoPool;
 import io.apigee.trireme.kernel.crypto.CryptoService;
+import io.apigee.trireme.kernel.crypto.Digests;
+import io.apigee.trireme.kernel.fs.BasicFilesystem;
+import io.apigee.trireme.kernel.fs.FileConstants;
+import io.apigee.trireme.kernel.fs.FileStats;
 import io.apigee.trireme.core.InternalNodeModule;
+import io.apigee.trireme.core.ScriptTask;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.crypto.CipherImpl;
 import io.apigee.trireme.core.modules.crypto.ConnectionImpl;
 import io.apigee.trireme.core.modules.crypto.DHGroupImpl;
@@ -51,15 +60,20 @@ import org.slf4j.LoggerFactory;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.ServiceLoader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
@@ -95,7 +109,7 @@ public class Crypto
         CryptoImpl export = (CryptoImpl) cx.newObject(scope, CryptoImpl.CLASS_NAME);
         export.setRuntime(runtime);
 
-        // We have to lock the scope in which the randomBytes/pseudoRandomBytes methods are executed to the `export`
+        // We have to lock the scope in which the randomBytes/pseudoRandomBytes/PBKDF2 methods are executed to the `export`
         // CryptoImpl instance. In the JS module, the binding methods are exposed through exports, but this reassignment
         // makes them lose the scope of the module. That is:
         //
@@ -118,6 +132,10 @@ public class Crypto
         randomBytes.setParentScope(export);
         FunctionObject pseudoRandomBytes = (FunctionObject) proto.get("pseudoRandomBytes", proto);
         pseudoRandomBytes.setParentScope(export);
+        FunctionObject pbkdf2 = (FunctionObject) proto.get("PBKDF2", proto);
+        pbkdf2.setParentScope(export);
+        FunctionObject hashFile = (FunctionObject) proto.get("hashFile", proto);
+        hashFile.setParentScope(export);
 
         ScriptableObject.defineClass(export, HashImpl.class, false, true);
         ScriptableObject.defineClass(export, MacImpl.class, false, true);
@@ -168,8 +186,27 @@ public class Crypto
     {
         public static final String CLASS_NAME = "_cryptoClass";
 
-        private static final SecureRandom secureRandom = new SecureRandom();
-        private static final Random pseudoRandom = new Random();
+        /**
+         * SecureRandom is thread-safe but synchronized, so a single instance becomes a bottleneck when
+         * many scripts (and the crypto pool) generate random bytes at once. Give each thread its own.
+         */
+        private static final ThreadLocal<SecureRandom> secureRandom = new ThreadLocal<SecureRandom>()
+        {
+            @Override
+            protected SecureRandom initialValue()
+            {
+                return new SecureRandom();
+            }
+        };
+
+        private static final ThreadLocal<Random> pseudoRandom = new ThreadLocal<Random>()
+        {
+            @Override
+            protected Random initialValue()
+            {
+                return new Random();
+            }
+        };
 
         private NodeRuntime runtime;
 
@@ -183,17 +220,24 @@ public class Crypto
         @SuppressWarnings("unused")
         public static Object randomBytes(Context cx, Scriptable thisObj, Object[] args, Function func)
         {
-            return randomBytesCommon(cx, thisObj, args, func, secureRandom);
+            return randomBytesCommon(cx, thisObj, args, func, true);
         }
 
         @JSFunction
         @SuppressWarnings("unused")
         public static Object pseudoRandomBytes(Context cx, Scriptable thisObj, Object[] args, Function func)
         {
-            return randomBytesCommon(cx, thisObj, args, func, pseudoRandom);
+            return randomBytesCommon(cx, thisObj, args, func, false);
         }
 
-        private static Object randomBytesCommon(Context cx, Scriptable thisObj, Object[] args, Function func, Random randomImpl) {
+        private static Random getRandom(boolean secure)
+        {
+            return (secure ? secureRandom.get() : pseudoRandom.get());
+        }
+
+        private static Object randomBytesCommon(Context cx, Scriptable thisObj, Object[] args, Function func,
+                                                final boolean secure)
+        {
             CryptoImpl thisClass = (CryptoImpl) func.getParentScope();
 
             // the tests are picky about what can be passed in as size -- only a valid number
@@ -210,20 +254,37 @@ public class Crypto
                 }
             }
 
-            Function callback = objArg(args, 1, Function.class, false);
+            final Function callback = objArg(args, 1, Function.class, false);
 
-            byte[] randomBytes = new byte[sizeNum.intValue()];
-            randomImpl.nextBytes(randomBytes);
-            Buffer.BufferImpl randomBytesBuffer = Buffer.BufferImpl.newBuffer(cx, thisObj, randomBytes);
+            final byte[] randomBytes = new byte[sizeNum.intValue()];
+            final Buffer.BufferImpl randomBytesBuffer = Buffer.BufferImpl.newBuffer(cx, thisObj, randomBytes);
 
-            if (callback != null) {
-                // TODO: what exception can be returned here?
-                thisClass.runtime.enqueueCallback(callback, callback, thisObj, thisClass.runtime.getDomain(),
-                        new Object[] { null, randomBytesBuffer });
-                return Undefined.instance;
-            } else {
+            if (callback == null) {
+                getRandom(secure).nextBytes(randomBytes);
                 return randomBytesBuffer;
             }
+
+            // Fill the buffer, which nothing else can see yet, in the crypto pool and then call back
+            final NodeRuntime runtime = thisClass.runtime;
+            final Scriptable self = thisObj;
+            final Object domain = runtime.getDomain();
+            runtime.pin();
+            thisClass.submit(cx, self, callback, domain, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        getRandom(secure).nextBytes(randomBytes);
+                        // TODO: what exception can be returned here?
+                        runtime.enqueueCallback(callback, callback, self, domain,
+                                                new Object[] { null, randomBytesBuffer });
+                    } finally {
+                        runtime.unPin();
+                    }
+                }
+            });
+            return Undefined.instance;
         }
 
         @JSFunction
@@ -247,39 +308,195 @@ public class Crypto
             String pw = stringArg(args, 0);
             String saltStr = stringArg(args, 1);
             int iterations = intArg(args, 2);
-            int keyLen = intArg(args, 3);
-            Function callback = functionArg(args, 4, false);
-            SecretKey key;
+            final int keyLen = intArg(args, 3);
+            final Function callback = functionArg(args, 4, false);
 
-            try {
-                SecretKeyFactory kf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-                char[] passphrase = pw.toCharArray();
-                byte[] salt = saltStr.getBytes(Charsets.UTF8);
-                PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, keyLen * 8);
+            // Create the spec here so that invalid arguments are thrown right away
+            char[] passphrase = pw.toCharArray();
+            final PBEKeySpec spec =
+                new PBEKeySpec(passphrase, saltStr.getBytes(Charsets.UTF8), iterations, keyLen * 8);
+            Arrays.fill(passphrase, '\0');
 
+            if (callback == null) {
                 try {
-                    key = kf.generateSecret(spec);
-                } finally {
-                    Arrays.fill(passphrase, '\0');
+                    return Buffer.BufferImpl.newBuffer(cx, thisObj, generatePBKDF2(spec));
+                } catch (GeneralSecurityException gse) {
+                    throw Utils.makeError(cx, thisObj, gse.toString());
                 }
+            }
 
-            } catch (GeneralSecurityException gse) {
-                if (callback == null) {
-                    throw Utils.makeError(cx, thisObj, gse.toString());
-                } else {
-                    callback.call(cx, thisObj, null,
-                                  new Object[] { Utils.makeErrorObject(cx, thisObj, gse.toString()) });
-                    return null;
+            // Thousands of iterations take long enough to stall the event loop, so run them in the crypto pool
+            CryptoImpl thisClass = (CryptoImpl)func.getParentScope();
+            final NodeRuntime runtime = thisClass.runtime;
+            final Scriptable self = thisObj;
+            final Object domain = runtime.getDomain();
+            final Buffer.BufferImpl keyBuf = Buffer.BufferImpl.newBuffer(cx, thisObj, new byte[keyLen]);
+
+            runtime.pin();
+            thisClass.submit(cx, self, callback, domain, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        byte[] key = generatePBKDF2(spec);
+                        System.arraycopy(key, 0, keyBuf.getArray(), keyBuf.getArrayOffset(), keyLen);
+                        runtime.enqueueCallback(callback, callback, null, domain,
+                                                new Object[] { Undefined.instance, keyBuf });
+
+                    } catch (final GeneralSecurityException gse) {
+                        runtime.enqueueTask(new ScriptTask()
+                        {
+                            @Override
+                            public void execute(Context cx, Scriptable scope)
+                            {
+                                callback.call(cx, self, null,
+                                              new Object[] { Utils.makeErrorObject(cx, self, gse.toString()) });
+                            }
+                        }, domain);
+                    } finally {
+                        runtime.unPin();
+                    }
                 }
+            });
+            return null;
+        }
+
+        /**
+         * Digest an entire file without ever passing its contents through JavaScript. The file is
+         * read and hashed in the async pool, and the callback gets the digest in the requested encoding.
+         * Arguments are the algorithm, the path, the output encoding (or null for a Buffer), and the callback.
+         */
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static void hashFile(Context cx, Scriptable thisObj, Object[] args, Function func)
+        {
+            String nodeAlgorithm = stringArg(args, 0);
+            final String path = stringArg(args, 1);
+            final String encoding = stringArg(args, 2, null);
+            final Function callback = functionArg(args, 3, true);
+
+            String jceAlgorithm = HashImpl.MD_ALGORITHMS.get(nodeAlgorithm);
+            if (jceAlgorithm == null) {
+                jceAlgorithm = nodeAlgorithm;
+            }
+            final MessageDigest md;
+            try {
+                md = Digests.getDigest(jceAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw Utils.makeError(cx, thisObj, "Digest method not supported");
             }
 
-            Buffer.BufferImpl keyBuf = Buffer.BufferImpl.newBuffer(cx, thisObj, key.getEncoded());
-            if (callback == null) {
-                return keyBuf;
+            CryptoImpl thisClass = (CryptoImpl)func.getParentScope();
+            final NodeRuntime runtime = thisClass.runtime;
+            final Scriptable self = thisObj;
+            final Object domain = runtime.getDomain();
+            final File file = runtime.translatePath(path);
+            // Go through the script's filesystem just like the "fs" module, so that images, the stat
+            // cache and the sandbox all apply
+            final BasicFilesystem fs = ((ScriptRunner)runtime).getFilesystem();
+
+            // Reading is blocking I/O, so this goes in the async pool just like the "fs" module
+            runtime.pin();
+            runtime.getAsyncPool().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    byte[] digest = null;
+                    OSException error = null;
+                    try {
+                        if (file == null) {
+                            throw new OSException(ErrorCodes.ENOENT, path);
+                        }
+                        digest = digestFile(fs, file, path, md);
+                    } catch (OSException ose) {
+                        error = ose;
+                    }
+
+                    final byte[] result = digest;
+                    final OSException err = error;
+                    try {
+                        // Encoding the result creates JavaScript objects, so that has to happen on the script thread
+                        runtime.enqueueTask(new ScriptTask()
+                        {
+                            @Override
+                            public void execute(Context cx, Scriptable scope)
+                            {
+                                if (result == null) {
+                                    callback.call(cx, self, null,
+                                                  new Object[] { Utils.makeErrorObject(cx, self, err) });
+                                } else {
+                                    callback.call(cx, self, null,
+                                                  new Object[] { Undefined.instance,
+                                                                 HashImpl.encodeDigest(cx, self, result, encoding) });
+                                }
+                            }
+                        }, domain);
+                    } finally {
+                        runtime.unPin();
+                    }
+                }
+            });
+        }
+
+        private static byte[] digestFile(BasicFilesystem fs, File file, String path, MessageDigest md)
+            throws OSException
+        {
+            FileStats stats = fs.stat(file, path, false);
+            if ((stats.getMode() & FileConstants.S_IFMT) == FileConstants.S_IFDIR) {
+                throw new OSException(ErrorCodes.EISDIR, path);
+            }
+
+            int fd = fs.open(file, path, FileConstants.O_RDONLY, 0, 0);
+            try {
+                ByteBuffer chunk = ByteBuffer.allocate(Digests.FILE_CHUNK_SIZE);
+                long pos = 0L;
+                int count;
+                while ((count = fs.read(fd, chunk, pos)) > 0) {
+                    chunk.flip();
+                    md.update(chunk);
+                    chunk.clear();
+                    pos += count;
+                }
+            } finally {
+                fs.close(fd);
+            }
+            return md.digest();
+        }
+
+        private static byte[] generatePBKDF2(PBEKeySpec spec)
+            throws GeneralSecurityException
+        {
+            try {
+                SecretKeyFactory kf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+                SecretKey key = kf.generateSecret(spec);
+                return key.getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        private Executor getCryptoPool()
+        {
+            CryptoPool pool = runtime.getEnvironment().getCryptoPool();
+            return (pool == null ? runtime.getAsyncPool() : pool);
+        }
+
+        /**
+         * Run a task in the crypto pool, after the caller has pinned the runtime. If the pool won't take it,
+         * because the environment was closed, then pass an error to the callback and unpin, so that the
+         * script isn't left waiting forever.
+         */
+        private void submit(Context cx, Scriptable self, Function callback, Object domain, Runnable task)
+        {
+            try {
+                getCryptoPool().execute(task);
+            } catch (RejectedExecutionException ree) {
+                runtime.enqueueCallback(callback, callback, self, domain,
+                                        new Object[] { Utils.makeErrorObject(cx, self, "Crypto pool is not running") });
+                runtime.unPin();
             }
-            callback.call(cx, thisObj, null,
-                          new Object[] { Context.getUndefinedValue(), keyBuf });
-            return null;
         }
 
         private void setRuntime(NodeRuntime runtime) {
@@ -231,7 +231,8 @@ public class Evals
                 return ScriptUtils.tryCompile(cx, code, fileName);
             }
 
-            String cacheKey = makeCacheKey(code);
+            // Code compiled to count instructions for a quota must not be shared with code that doesn't
+            String cacheKey = makeCacheKey(code, cx.generateObserverCount);
             Script compiled = cache.getCachedScript(cacheKey);
             if (compiled == null) {
                 compiled = ScriptUtils.tryCompile(cx, code, fileName);
@@ -245,14 +246,15 @@ public class Evals
 
 
 
-        private static String makeCacheKey(String code)
+        private static String makeCacheKey(String code, boolean counted)
         {
             try {
                 MessageDigest md = MessageDigest.getInstance(CACHE_KEY_HASH);
                 ByteBuffer codeBuf = Utils.stringToBuffer(code, Charsets.UTF8);
                 md.update(codeBuf);
                 ByteBuffer keyBuf = ByteBuffer.wrap(md.digest());
-                return Utils.bufferToString(keyBuf, Charsets.BASE64);
+                String key = Utils.bufferToString(keyBuf, Charsets.BASE64);
+                return (counted ? "counted:" + key : key);
 
             } catch (NoSuchAlgorithmException e) {
                 if (log.isDebugEnabled()) {
@@ -57,6 +57,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.IdentityHashMap;
 import java.util.Map;
@@ -259,7 +260,7 @@ public class HTTPWrap
             }
 
             // Queue up a task to process the request
-            runner.enqueueTask(new ScriptTask()
+            ScriptTask headersTask = new ScriptTask()
             {
                 @Override
                 public void execute(Context cx, Scriptable scope)
@@ -287,30 +288,34 @@ public class HTTPWrap
 
                     onHeaders.call(cx, onHeaders, ServerContainer.this, new Object[] { requestObj, responseObj });
                 }
-            });
+            };
 
             if (request.isSelfContained()) {
                 final ByteBuffer requestData =
                     (request.hasData() ? request.getData() : null);
-                // Queue up another task for the data. Noderunner guarantees that this will run after
+                // Queue up more tasks for the data. Noderunner guarantees that these will run after
                 // the previous task. However, do this in a separate tick because it's highly likely that
-                // the revious request to call "onHeaders" will register more event handlers
-                runner.enqueueTask(new ScriptTask()
+                // the revious request to call "onHeaders" will register more event handlers.
+                // Enqueue all three together so that the script thread is only woken up once.
+                ScriptTask dataTask = new ScriptTask()
                 {
                     @Override
                     public void execute(Context cx, Scriptable scope)
                     {
                         callOnData(cx, scope, request, requestData);
                     }
-                });
-                runner.enqueueTask(new ScriptTask()
+                };
+                ScriptTask completeTask = new ScriptTask()
                 {
                     @Override
                     public void execute(Context cx, Scriptable scope)
                     {
                         callOnComplete(cx, request);
                     }
-                });
+                };
+                runner.enqueueTasks(Arrays.asList(headersTask, dataTask, completeTask), null);
+            } else {
+                runner.enqueueTask(headersTask);
             }
         }
 
@@ -354,23 +359,26 @@ public class HTTPWrap
             }
             final ByteBuffer requestData =
                     (data.hasData() ? data.getData() : null);
-            runner.enqueueTask(new ScriptTask()
+            ScriptTask dataTask = new ScriptTask()
             {
                 @Override
                 public void execute(Context cx, Scriptable scope)
                 {
                     callOnData(cx, scope, request, requestData);
                 }
-            });
+            };
             if (data.isLastChunk()) {
-                runner.enqueueTask(new ScriptTask()
+                ScriptTask completeTask = new ScriptTask()
                 {
                     @Override
                     public void execute(Context cx, Scriptable scope)
                     {
                         callOnComplete(cx, request);
                     }
-                });
+                };
+                runner.enqueueTasks(Arrays.asList(dataTask, completeTask), null);
+            } else {
+                runner.enqueueTask(dataTask);
             }
         }
 
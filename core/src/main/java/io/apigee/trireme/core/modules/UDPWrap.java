@@ -47,6 +47,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class UDPWrap
     implements InternalNodeModule
@@ -80,6 +82,8 @@ public class UDPWrap
         private Function onMessage;
         private ScriptRunner runner;
         private NIODatagramHandle handle;
+        private boolean reading;
+        private ArrayList<QueuedWrite> completedWrites;
 
         @JSConstructor
         @SuppressWarnings("unused")
@@ -142,6 +146,7 @@ public class UDPWrap
         public void close()
         {
             super.close();
+            reading = false;
             if (handle != null) {
                 handle.close();
             }
@@ -165,6 +170,8 @@ public class UDPWrap
             qw.domain = self.runner.getDomain();
 
             ByteBuffer bbuf = buf.getBuffer();
+            bbuf.position(bbuf.position() + offset);
+            bbuf.limit(bbuf.position() + length);
             try {
                 self.handle.send(host, port, bbuf, new IOCompletionHandler<Integer>()
                 {
@@ -197,43 +204,68 @@ public class UDPWrap
             return send(cx, thisObj, args, func);
         }
 
-        protected void writeComplete(final int err, final QueuedWrite qw)
+        protected void writeComplete(int err, QueuedWrite qw)
         {
             // Always put the completion callback on the queue because "oncomplete" is not
             // set in Node 10.x until after the call returns and this callback might
-            // return first.
+            // return first. Completions that arrive before that task runs share it, so that
+            // a burst of sends doesn't put a task on the queue for every datagram.
+            qw.err = err;
+            if (completedWrites != null) {
+                completedWrites.add(qw);
+                return;
+            }
+
+            completedWrites = new ArrayList<QueuedWrite>();
+            completedWrites.add(qw);
             runner.enqueueTask(new ScriptTask() {
                 @Override
                 public void execute(Context cx, Scriptable scope)
                 {
-                    if (qw.onComplete != null) {
-                        if (err == 0) {
-                            qw.onComplete.call(cx, qw.onComplete, UDPImpl.this,
-                                               new Object[] { 0, UDPImpl.this, qw, qw.buf });
-                        } else {
-                            qw.onComplete.call(cx, qw.onComplete, UDPImpl.this,
-                                               new Object[] { ErrorCodes.get().toString(err),
-                                                              UDPImpl.this, qw, qw.buf });
-                        }
+                    ArrayList<QueuedWrite> completed = completedWrites;
+                    completedWrites = null;
+                    for (QueuedWrite w : completed) {
+                        callOnComplete(cx, w);
                     }
                 }
             });
         }
 
+        private void callOnComplete(Context cx, QueuedWrite qw)
+        {
+            if (qw.onComplete != null) {
+                if (qw.err == 0) {
+                    qw.onComplete.call(cx, qw.onComplete, this,
+                                       new Object[] { 0, this, qw, qw.buf });
+                } else {
+                    qw.onComplete.call(cx, qw.onComplete, this,
+                                       new Object[] { ErrorCodes.get().toString(qw.err),
+                                                      this, qw, qw.buf });
+                }
+            }
+        }
+
         @JSFunction
         @SuppressWarnings("unused")
         public void recvStart()
         {
             clearErrno();
             if (handle != null) {
-                handle.startReadingDatagrams(new IOCompletionHandler<NIODatagramHandle.ReceivedDatagram>()
+                handle.startReadingDatagramBatches(new IOCompletionHandler<List<NIODatagramHandle.ReceivedDatagram>>()
                 {
                     @Override
-                    public void ioComplete(int errCode, NIODatagramHandle.ReceivedDatagram value)
+                    public void ioComplete(int errCode, List<NIODatagramHandle.ReceivedDatagram> batch)
                     {
-                        readComplete(errCode, value.getBuffer(), value.getAddress());
+                        for (NIODatagramHandle.ReceivedDatagram dg : batch) {
+                            // "onmessage" may have stopped reading or closed the socket
+                            if (!reading) {
+                                break;
+                            }
+                            readComplete(errCode, dg.getBuffer(), dg.getAddress());
+                        }
                     }
                 });
+                reading = true;
             }
             requestPin();
         }
@@ -244,6 +276,7 @@ public class UDPWrap
         {
             clearPin();
             clearErrno();
+            reading = false;
             if (handle != null) {
                 handle.stopReading();
             }
@@ -376,6 +409,7 @@ public class UDPWrap
         Function onComplete;
         Object domain;
         Buffer.BufferImpl buf;
+        int err;
 
         @Override
         public String getClassName()
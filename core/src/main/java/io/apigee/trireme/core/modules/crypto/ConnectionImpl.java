@@ -30,6 +30,7 @@ import io.apigee.trireme.kernel.TriCallback;
 import io.apigee.trireme.kernel.crypto.SSLCiphers;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.tls.SSLContextCache;
 import io.apigee.trireme.kernel.tls.TLSConnection;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
@@ -152,6 +153,8 @@ public class ConnectionImpl
 
         SSLContext ctx = self.context.makeContext(cx, self);
 
+        self.processor.setContextCache(self.runtime.getEnvironment().getSSLContextCache(),
+                                       self.runtime.getSandbox());
         self.processor.init(ctx, self.context.getCipherSuites(),
                             self.context.getTrustManager());
     }
@@ -436,30 +439,64 @@ public class ConnectionImpl
         return CertificateParser.get().parse(cx, self, cert);
     }
 
+    /**
+     * Return an opaque buffer that identifies the current session. JSSE will not let us export the session
+     * itself, so this is only meaningful when passed back to "setSession" by a script in the same
+     * NodeEnvironment.
+     */
     @JSFunction
     @SuppressWarnings("unused")
     public static Object getSession(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
-        return Undefined.instance;
+        ConnectionImpl self = (ConnectionImpl)thisObj;
+        byte[] token = self.processor.getSessionToken();
+        if (token == null) {
+            return Undefined.instance;
+        }
+        return Buffer.BufferImpl.newBuffer(cx, self, token.clone());
     }
 
+    /**
+     * Resume the session previously returned by "getSession," by attaching this connection to the
+     * SSLContext that holds it. This must be called before the handshake starts, which is what "tls.js" does.
+     */
     @JSFunction
     @SuppressWarnings("unused")
     public static void setSession(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
+        Buffer.BufferImpl buf = objArg(args, 0, Buffer.BufferImpl.class, true);
+        ConnectionImpl self = (ConnectionImpl)thisObj;
+
+        SSLContextCache cache = self.runtime.getEnvironment().getSSLContextCache();
+        SSLContext ctx = cache.getSession(self.runtime.getSandbox(),
+                                          buf.getArray(), buf.getArrayOffset(), buf.getLength());
+        if (ctx == null) {
+            log.debug("Session to resume is not in the cache -- a new session will be created");
+            return;
+        }
+        if ((ctx != self.processor.getContext()) && !self.processor.isInitFinished()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Connection {} switching to SSLContext {} to resume a session", self.id, ctx);
+            }
+            self.processor.init(ctx, self.context.getCipherSuites(),
+                                self.context.getTrustManager());
+        }
     }
 
     @JSFunction
     @SuppressWarnings("unused")
     public static void loadSession(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
+        // Only used by servers that cache sessions in JavaScript. JSSE manages the server-side session
+        // cache itself, so there is nothing to load.
     }
 
     @JSFunction
     @SuppressWarnings("unused")
     public static boolean isSessionReused(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
-        return false;
+        ConnectionImpl self = (ConnectionImpl)thisObj;
+        return self.processor.isSessionReused();
     }
 
     @JSFunction
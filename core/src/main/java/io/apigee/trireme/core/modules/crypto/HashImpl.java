@@ -24,6 +24,9 @@ package io.apigee.trireme.core.modules.crypto;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.kernel.Charsets;
 import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.crypto.Digests;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -89,7 +92,7 @@ public class HashImpl
         }
 
         try {
-            messageDigest = MessageDigest.getInstance(jceAlgorithm);
+            messageDigest = Digests.getDigest(jceAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             throw Utils.makeError(cx, ctorObj, "Digest method not supported");
         }
@@ -123,14 +126,28 @@ public class HashImpl
         String encoding = stringArg(args, 0, null);
 
         byte[] digest = thisClass.messageDigest.digest();
+        return encodeDigest(cx, thisObj, digest, encoding);
+    }
+
+    /**
+     * Return a digest as a Buffer or a string. Hex and base64 are by far the most common encodings
+     * for digests, so encode them directly rather than through a CharsetDecoder.
+     */
+    public static Object encodeDigest(Context cx, Scriptable scope, byte[] digest, String encoding)
+    {
         if ((encoding == null) || "buffer".equals(encoding)) {
-            return Buffer.BufferImpl.newBuffer(cx, thisObj, digest);
+            return Buffer.BufferImpl.newBuffer(cx, scope, digest);
+        }
+        if ("hex".equals(encoding)) {
+            return HexCodec.encode(digest, 0, digest.length);
+        }
+        if ("base64".equals(encoding)) {
+            return Base64Codec.encode(digest, 0, digest.length);
         }
 
         ByteBuffer bb = ByteBuffer.wrap(digest);
         return Utils.bufferToString(bb,
                                     Charsets.get().resolveCharset(encoding));
     }
-
 }
 
@@ -24,6 +24,7 @@ package io.apigee.trireme.core.modules.crypto;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.kernel.Charsets;
 import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.crypto.Digests;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -77,7 +78,7 @@ public class MacImpl
         }
 
         try {
-            self.digest = Mac.getInstance(jceAlgorithm);
+            self.digest = Digests.getMac(jceAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             throw Utils.makeError(cx, thisObj, "Digest method not supported: \"" + jceAlgorithm + '\"');
         }
@@ -121,13 +122,7 @@ public class MacImpl
         String encoding = stringArg(args, 0, null);
 
         byte[] digest = thisClass.digest.doFinal();
-        if ((encoding == null) || "buffer".equals(encoding)) {
-            return Buffer.BufferImpl.newBuffer(cx, thisObj, digest);
-        }
-
-        ByteBuffer bb = ByteBuffer.wrap(digest);
-        return Utils.bufferToString(bb,
-                                    Charsets.get().resolveCharset(encoding));
+        return HashImpl.encodeDigest(cx, thisObj, digest, encoding);
     }
 }
 
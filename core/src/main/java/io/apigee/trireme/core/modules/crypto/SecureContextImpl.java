@@ -25,10 +25,12 @@ import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.kernel.Charsets;
 import io.apigee.trireme.kernel.CompositeTrustManager;
 import io.apigee.trireme.kernel.crypto.CryptoException;
+import io.apigee.trireme.kernel.crypto.KeyMaterialCache;
 import io.apigee.trireme.kernel.crypto.SSLCiphers;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.core.modules.Crypto;
+import io.apigee.trireme.kernel.tls.SSLContextCache;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -45,6 +47,8 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -53,9 +57,6 @@ import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.cert.CRLException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
@@ -81,14 +82,18 @@ public class SecureContextImpl
     private TrustManager[] trustManagers;
     private X509TrustManager trustedCertManager;
     private X509Certificate[] certChain;
+    private String certKey;
     private PrivateKey privateKey;
-    private KeyStore trustedCertStore;
-    private int trustedCertSequence = 0;
+    private String privateKeyKey;
+    private List<X509Certificate> trustedCerts;
+    private List<String> trustedCertKeys;
     private List<X509CRL> crls;
     private String protocol;
     private String mainProtocol;
     private String[] cipherSuites;
+    private int sessionTimeout = -1;
     private boolean initialized;
+    private SSLContext sslContext;
 
     @Override
     public String getClassName() {
@@ -165,17 +170,29 @@ public class SecureContextImpl
     public static void setKey(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
         Crypto.ensureCryptoService(cx, thisObj);
-        String key = stringArg(args, 0);
+        final String key = stringArg(args, 0);
         String p = stringArg(args, 1, null);
-        char[] passphrase = (p == null ? null : p.toCharArray());
+        final char[] passphrase = (p == null ? null : p.toCharArray());
         SecureContextImpl self = (SecureContextImpl)thisObj;
         self.initialized = false;
 
         try {
-            KeyPair kp = Crypto.getCryptoService().readKeyPair("RSA", key, passphrase);
-            self.privateKey = kp.getPrivate();
+            String cacheKey = KeyMaterialCache.makeKey("key", key, p);
+            self.privateKey = getKeyCache(cx).get(cacheKey, new KeyMaterialCache.Loader<PrivateKey>()
+            {
+                @Override
+                public PrivateKey load()
+                    throws IOException, CryptoException
+                {
+                    KeyPair kp = Crypto.getCryptoService().readKeyPair("RSA", key, passphrase);
+                    return kp.getPrivate();
+                }
+            });
+            self.privateKeyKey = cacheKey;
             log.debug("Set private key from an RSA key pair");
 
+        } catch (GeneralSecurityException gse) {
+            throw Utils.makeError(cx, thisObj, gse.toString());
         } catch (CryptoException ce) {
             throw Utils.makeError(cx, thisObj, ce.toString());
         } catch (IOException ioe) {
@@ -200,14 +217,16 @@ public class SecureContextImpl
         self.initialized = false;
 
         try {
-            ByteArrayInputStream bis =
-                new ByteArrayInputStream(certStr.getBytes(Charsets.ASCII));
-            X509Certificate cert = Crypto.getCryptoService().readCertificate(bis);
+            String cacheKey = KeyMaterialCache.makeKey("cert", certStr);
+            X509Certificate cert = readCertificate(cx, cacheKey, certStr);
             if (log.isDebugEnabled()) {
                 log.debug("Set my certificate to: {}", cert.getSubjectDN());
             }
             // TODO need to read the whole chain here!...
             self.certChain = new X509Certificate[] { cert };
+            self.certKey = cacheKey;
+        } catch (GeneralSecurityException gse) {
+            throw Utils.makeError(cx, thisObj, gse.toString());
         } catch (CryptoException ce) {
             throw Utils.makeError(cx, thisObj, ce.toString());
         } catch (IOException ioe) {
@@ -215,13 +234,26 @@ public class SecureContextImpl
         }
     }
 
-    private void ensureCertStore()
-        throws GeneralSecurityException, IOException
+    private static KeyMaterialCache getKeyCache(Context cx)
     {
-        if (trustedCertStore == null) {
-            trustedCertStore = Crypto.getCryptoService().createPemKeyStore();
-            trustedCertStore.load(null, null);
-        }
+        ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        return runtime.getEnvironment().getKeyMaterialCache();
+    }
+
+    private static X509Certificate readCertificate(Context cx, String cacheKey, final String certStr)
+        throws GeneralSecurityException, IOException, CryptoException
+    {
+        return getKeyCache(cx).get(cacheKey, new KeyMaterialCache.Loader<X509Certificate>()
+        {
+            @Override
+            public X509Certificate load()
+                throws IOException, CryptoException
+            {
+                ByteArrayInputStream bis =
+                    new ByteArrayInputStream(certStr.getBytes(Charsets.ASCII));
+                return Crypto.getCryptoService().readCertificate(bis);
+            }
+        });
     }
 
     /**
@@ -237,15 +269,17 @@ public class SecureContextImpl
         self.initialized = false;
 
         try {
-            self.ensureCertStore();
-            ByteArrayInputStream bis =
-                new ByteArrayInputStream(certStr.getBytes(Charsets.ASCII));
-            Certificate cert = Crypto.getCryptoService().readCertificate(bis);
+            String cacheKey = KeyMaterialCache.makeKey("cert", certStr);
+            X509Certificate cert = readCertificate(cx, cacheKey, certStr);
             if (log.isDebugEnabled()) {
-                log.debug("Adding trusted CA cert {}");
+                log.debug("Adding trusted CA cert {}", cert.getSubjectDN());
+            }
+            if (self.trustedCerts == null) {
+                self.trustedCerts = new ArrayList<X509Certificate>();
+                self.trustedCertKeys = new ArrayList<String>();
             }
-            self.trustedCertStore.setCertificateEntry("Cert " + self.trustedCertSequence, cert);
-            self.trustedCertSequence++;
+            self.trustedCerts.add(cert);
+            self.trustedCertKeys.add(cacheKey);
 
         } catch (GeneralSecurityException gse) {
             throw Utils.makeError(cx, thisObj, gse.toString());
@@ -263,25 +297,35 @@ public class SecureContextImpl
     @SuppressWarnings("unused")
     public static void addCRL(Context cx, Scriptable thisObj, Object[] args, Function func)
     {
-        String crlStr = stringArg(args, 0);
+        final String crlStr = stringArg(args, 0);
         SecureContextImpl self = (SecureContextImpl)thisObj;
         self.initialized = false;
 
-        ByteArrayInputStream bis =
-            new ByteArrayInputStream(crlStr.getBytes(Charsets.ASCII));
-
         try {
-            CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            X509CRL crl = (X509CRL)certFactory.generateCRL(bis);
+            X509CRL crl = getKeyCache(cx).get(KeyMaterialCache.makeKey("crl", crlStr),
+                                              new KeyMaterialCache.Loader<X509CRL>()
+            {
+                @Override
+                public X509CRL load()
+                    throws GeneralSecurityException
+                {
+                    ByteArrayInputStream bis =
+                        new ByteArrayInputStream(crlStr.getBytes(Charsets.ASCII));
+                    CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+                    return (X509CRL)certFactory.generateCRL(bis);
+                }
+            });
             if (self.crls == null) {
                 self.crls = new ArrayList<X509CRL>();
             }
             self.crls.add(crl);
             log.debug("Added CRL");
 
-        } catch (CertificateException e) {
+        } catch (GeneralSecurityException e) {
+            throw Utils.makeError(cx, thisObj, "Error reading CRL: " + e);
+        } catch (CryptoException e) {
             throw Utils.makeError(cx, thisObj, "Error reading CRL: " + e);
-        } catch (CRLException e) {
+        } catch (IOException e) {
             throw Utils.makeError(cx, thisObj, "Error reading CRL: " + e);
         }
     }
@@ -342,6 +386,19 @@ public class SecureContextImpl
         // Ignore this in Trireme.
     }
 
+    /**
+     * Set the number of seconds that sessions created using this context may be resumed.
+     */
+    @JSFunction
+    @SuppressWarnings("unused")
+    public static void setSessionTimeout(Context cx, Scriptable thisObj, Object[] args, Function func)
+    {
+        int timeout = intArg(args, 0);
+        SecureContextImpl self = (SecureContextImpl)thisObj;
+        self.initialized = false;
+        self.sessionTimeout = timeout;
+    }
+
     /**
      * Load a PKCS12 key store.
      */
@@ -351,28 +408,18 @@ public class SecureContextImpl
     {
         Buffer.BufferImpl pfxBuf = objArg(args, 0, Buffer.BufferImpl.class, true);
         String p = stringArg(args, 1, null);
-        char[] passphrase = (p == null ? null :p.toCharArray());
         SecureContextImpl self = (SecureContextImpl)thisObj;
         self.initialized = false;
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(pfxBuf.getArray(),
-                                                                pfxBuf.getArrayOffset(), pfxBuf.getLength());
-            KeyStore keyStore = KeyStore.getInstance("PKCS12");
-            keyStore.load(bis, passphrase);
-            KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            keyFactory.init(keyStore, passphrase);
-            self.keyManagers = keyFactory.getKeyManagers();
+            self.keyManagers = loadKeyManagers(cx, "PKCS12", pfxBuf.getArray(),
+                                               pfxBuf.getArrayOffset(), pfxBuf.getLength(), p);
             log.debug("Loaded SSL key from PKCS12");
 
         } catch (GeneralSecurityException gse) {
             throw Utils.makeError(cx, thisObj, "Error opening key store: " + gse);
         } catch (IOException ioe) {
             throw Utils.makeError(cx, thisObj, "I/O error reading key store: " + ioe);
-        } finally {
-            if (passphrase != null) {
-                Arrays.fill(passphrase, '\0');
-            }
         }
     }
 
@@ -390,19 +437,27 @@ public class SecureContextImpl
         ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
 
         try {
-            FileInputStream keyIn = new FileInputStream(runtime.translatePath(name));
-            try {
-                KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
-                trustStore.load(keyIn, null);
-                TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                trustFactory.init(trustStore);
-                self.trustManagers = trustFactory.getTrustManagers();
-            } finally {
-                keyIn.close();
-            }
+            final byte[] store = readFile(runtime.translatePath(name));
+            String cacheKey = KeyMaterialCache.makeKey("truststore", store, 0, store.length, null);
+            self.trustManagers = getKeyCache(cx).get(cacheKey, new KeyMaterialCache.Loader<TrustManager[]>()
+            {
+                @Override
+                public TrustManager[] load()
+                    throws GeneralSecurityException, IOException
+                {
+                    KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+                    trustStore.load(new ByteArrayInputStream(store), null);
+                    TrustManagerFactory trustFactory =
+                        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                    trustFactory.init(trustStore);
+                    return trustFactory.getTrustManagers();
+                }
+            });
 
         } catch (GeneralSecurityException gse) {
             throw Utils.makeError(cx, self, "Error opening key store: " + gse);
+        } catch (CryptoException ce) {
+            throw Utils.makeError(cx, self, "Error opening key store: " + ce);
         } catch (IOException ioe) {
             throw Utils.makeError(cx, self, "I/O error reading key store: " + ioe);
         }
@@ -422,24 +477,62 @@ public class SecureContextImpl
         self.initialized = false;
         ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
 
-        char[] passphrase = p.toCharArray();
         try {
-            FileInputStream keyIn = new FileInputStream(runtime.translatePath(name));
-            try {
-                KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keyStore.load(keyIn, passphrase);
-                KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                keyFactory.init(keyStore, passphrase);
-                self.keyManagers = keyFactory.getKeyManagers();
-            } finally {
-                keyIn.close();
-                keyIn.close();
-            }
+            byte[] store = readFile(runtime.translatePath(name));
+            self.keyManagers = loadKeyManagers(cx, KeyStore.getDefaultType(), store, 0, store.length, p);
 
         } catch (GeneralSecurityException gse) {
             throw Utils.makeError(cx, self, "Error opening key store: " + gse);
         } catch (IOException ioe) {
             throw Utils.makeError(cx, self, "I/O error reading key store: " + ioe);
+        }
+    }
+
+    private static byte[] readFile(File f)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = in.read(buf)) > 0) {
+                out.write(buf, 0, r);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Load key managers from a key store of the specified type, unless the same store with the same
+     * passphrase was already loaded by some other script.
+     */
+    private static KeyManager[] loadKeyManagers(Context cx, final String type,
+                                                final byte[] store, final int offset, final int length,
+                                                String p)
+        throws GeneralSecurityException, IOException
+    {
+        final char[] passphrase = (p == null ? null : p.toCharArray());
+        try {
+            String cacheKey = KeyMaterialCache.makeKey("keystore:" + type, store, offset, length, p);
+            return getKeyCache(cx).get(cacheKey, new KeyMaterialCache.Loader<KeyManager[]>()
+            {
+                @Override
+                public KeyManager[] load()
+                    throws GeneralSecurityException, IOException
+                {
+                    KeyStore keyStore = KeyStore.getInstance(type);
+                    keyStore.load(new ByteArrayInputStream(store, offset, length), passphrase);
+                    KeyManagerFactory keyFactory =
+                        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                    keyFactory.init(keyStore, passphrase);
+                    return keyFactory.getKeyManagers();
+                }
+            });
+        } catch (CryptoException ce) {
+            throw new GeneralSecurityException(ce);
         } finally {
             if (passphrase != null) {
                 Arrays.fill(passphrase, '\0');
@@ -465,43 +558,74 @@ public class SecureContextImpl
         if ((keyManagers == null) && (privateKey != null)) {
             // A Java key store was not already loaded
             Crypto.ensureCryptoService(cx, scope);
-            KeyStore pemKs = Crypto.getCryptoService().createPemKeyStore();
 
             try {
-                pemKs.load(null, null);
-                pemKs.setKeyEntry(DEFAULT_KEY_ENTRY, privateKey, null, certChain);
-                KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                if (log.isDebugEnabled()) {
-                    log.debug("Setting up key manager factory {}", keyFactory);
-                }
-                keyFactory.init(pemKs, null);
-                keyManagers = keyFactory.getKeyManagers();
+                String cacheKey = KeyMaterialCache.makeKey("keymanager", privateKeyKey, certKey);
+                keyManagers = getKeyCache(cx).get(cacheKey, new KeyMaterialCache.Loader<KeyManager[]>()
+                {
+                    @Override
+                    public KeyManager[] load()
+                        throws GeneralSecurityException, IOException
+                    {
+                        KeyStore pemKs = Crypto.getCryptoService().createPemKeyStore();
+                        pemKs.load(null, null);
+                        pemKs.setKeyEntry(DEFAULT_KEY_ENTRY, privateKey, null, certChain);
+                        KeyManagerFactory keyFactory =
+                            KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                        if (log.isDebugEnabled()) {
+                            log.debug("Setting up key manager factory {}", keyFactory);
+                        }
+                        keyFactory.init(pemKs, null);
+                        return keyFactory.getKeyManagers();
+                    }
+                });
 
                 assert(keyManagers != null);
                 assert(keyManagers.length == 1);
 
             } catch (GeneralSecurityException gse) {
                 throw Utils.makeError(cx, scope, gse.toString());
+            } catch (CryptoException ce) {
+                throw Utils.makeError(cx, scope, ce.toString());
             } catch (IOException ioe) {
                 throw Utils.makeError(cx, scope, ioe.toString());
             }
         }
 
-        if ((trustManagers == null) && (trustedCertStore != null)) {
-            // Ensure that we created the PEM-based cert store if there is no explicit trust manager,
-            // because it might be empty (meaning that we trust nobody).
+        if ((trustManagers == null) && (trustedCerts != null)) {
+            // Build the PEM-based cert store if there is no explicit trust manager,
+            // even though it might be empty (meaning that we trust nobody).
             // After this, if we don't trust anybody, then there will be no trust manager.
             try {
-                ensureCertStore();
-                TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                if (log.isDebugEnabled()) {
-                    log.debug("Setting up trust manager factory {}", factory);
-                }
-                factory.init(trustedCertStore);
-                trustManagers = factory.getTrustManagers();
+                String cacheKey =
+                    KeyMaterialCache.makeKey("trustmanager", trustedCertKeys.toArray(new String[trustedCertKeys.size()]));
+                trustManagers = getKeyCache(cx).get(cacheKey, new KeyMaterialCache.Loader<TrustManager[]>()
+                {
+                    @Override
+                    public TrustManager[] load()
+                        throws GeneralSecurityException, IOException
+                    {
+                        KeyStore trustedCertStore = Crypto.getCryptoService().createPemKeyStore();
+                        trustedCertStore.load(null, null);
+                        int seq = 0;
+                        for (X509Certificate cert : trustedCerts) {
+                            trustedCertStore.setCertificateEntry("Cert " + seq, cert);
+                            seq++;
+                        }
+                        TrustManagerFactory factory =
+                            TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                        if (log.isDebugEnabled()) {
+                            log.debug("Setting up trust manager factory {}", factory);
+                        }
+                        factory.init(trustedCertStore);
+                        return factory.getTrustManagers();
+                    }
+                });
 
             } catch (GeneralSecurityException gse) {
                 throw Utils.makeError(cx, this, gse.toString());
+            } catch (CryptoException ce) {
+                throw Utils.makeError(cx, this, ce.toString());
             } catch (IOException ioe) {
                 throw Utils.makeError(cx, this, ioe.toString());
             }
@@ -526,11 +650,21 @@ public class SecureContextImpl
 
     /**
      * Once all that stuff on top has been all set, then this actually creates an SSLContext object.
+     * The context is created only once, and re-used until one of the setters is called again. Since
+     * JSSE caches TLS sessions inside the SSLContext, this is also what makes session resumption work.
      */
     public SSLContext makeContext(Context cx, Scriptable scope)
     {
+        ScriptRunner runtime = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+        SSLContextCache cache = runtime.getEnvironment().getSSLContextCache();
+
         if (!initialized) {
             initialize(cx, scope);
+            sslContext = null;
+        }
+        if (sslContext != null) {
+            cache.recordReuse();
+            return sslContext;
         }
 
         // Create an SSLContext that totally ignores the trust manager that we just spent all that time
@@ -539,15 +673,18 @@ public class SecureContextImpl
         // to tls.js.
         // This is the same thing that regular Node.js does as of 10.x
 
+        TrustManager[] tms = new TrustManager[] { AllTrustingManager.INSTANCE };
         try {
-            SSLContext context = SSLContext.getInstance(protocol);
-            context.init(keyManagers,
-                         new TrustManager[] { AllTrustingManager.INSTANCE },
-                         null);
-            if (log.isDebugEnabled()) {
-                log.debug("Created a new SSLContext {}", context);
+            if ((keyManagers == null) && (sessionTimeout < 0)) {
+                // Nearly every client looks like this, and "tls.connect" creates a new context every time.
+                // Sharing the SSLContext lets JSSE resume sessions to the same host and port. It is only
+                // shared by scripts in the same sandbox, so that tenants can't resume each other's sessions.
+                sslContext = cache.getSharedContext(runtime.getSandbox(), protocol, tms);
+            } else {
+                sslContext = cache.createContext(protocol, keyManagers, tms,
+                                                 (sessionTimeout < 0 ? cache.getSessionTimeout() : sessionTimeout));
             }
-            return context;
+            return sslContext;
 
         } catch (NoSuchAlgorithmException nse) {
             // We checked this long ago, back in "init"!
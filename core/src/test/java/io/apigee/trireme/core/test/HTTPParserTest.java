@@ -473,6 +473,93 @@ public class HTTPParserTest
         parser.parse(null);
     }
 
+    @Test
+    public void testCompleteRequestByteByByte()
+    {
+        ByteBuffer whole = Utils.stringToBuffer(COMPLETE_CHUNKED_CHUNKS, Charsets.ASCII);
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        StringBuilder body = new StringBuilder();
+        int headerCount = 0;
+        HTTPParsingMachine.Result r = null;
+
+        while (whole.hasRemaining()) {
+            r = parser.parse(splitBuffer(whole, 1));
+            assertFalse(r.isError());
+            if (r.hasHeaders()) {
+                // Each header arrives in the result where its line was completed
+                assertEquals(1, r.getHeaders().size());
+                headerCount++;
+            }
+            if (r.hasBody()) {
+                body.append(Utils.bufferToString(r.getBody(), Charsets.ASCII));
+            }
+        }
+        assertEquals(3, headerCount);
+        assertTrue(r.isComplete());
+        assertEquals("GET", r.getMethod());
+        assertEquals("/foo/bar/baz", r.getUri());
+        assertEquals("Hello, World! This is some chunked data.", body.toString());
+    }
+
+    @Test
+    public void testLargeContentLength()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        HTTPParsingMachine.Result r =
+            parser.parse(Utils.stringToBuffer(LARGE_LENGTH_REQUEST, Charsets.ASCII));
+        assertFalse(r.isError());
+        assertTrue(r.isHeadersComplete());
+        assertFalse(r.isComplete());
+        assertEquals("PUT", r.getMethod());
+        assertEquals("Hello", Utils.bufferToString(r.getBody(), Charsets.ASCII));
+    }
+
+    @Test
+    public void testInternedNames()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        HTTPParsingMachine.Result r =
+            parser.parse(Utils.stringToBuffer(COMPLETE_REQUEST_LENGTH, Charsets.ASCII));
+        assertTrue(r.isComplete());
+        assertSame("GET", r.getMethod());
+        assertSame("Host", r.getHeaders().get(0).getKey());
+        assertSame("User-Agent", r.getHeaders().get(1).getKey());
+    }
+
+    @Test
+    public void testContinuationAndTrim()
+    {
+        HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+        HTTPParsingMachine.Result r =
+            parser.parse(Utils.stringToBuffer(CONTINUATION_REQUEST, Charsets.ASCII));
+        assertFalse(r.isError());
+        assertTrue(r.isComplete());
+        assertEquals("/a b", r.getUri());
+        assertEquals("Myself", getFirstHeader(r, "X-Foo"));
+        // Continuation lines are appended without their leading white space
+        assertEquals("Longheader value", getFirstHeader(r, "X-Long"));
+        assertFalse(r.shouldKeepAlive());
+    }
+
+    @Test
+    public void testInvalidLines()
+    {
+        String[] bad = {
+            "GET /foo HTTP/1.1\r\nBad Header: foo\r\n\r\n",
+            "GET /foo HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+            "GET /foo HTTP/1.1\r\nContent-Length: 99999999999999999999\r\n\r\n",
+            "GET /foo HTTP/1.1\r\n continued: nothing\r\n\r\n",
+            "GET /foo HTTX/1.1\r\n\r\n",
+            "GET HTTP/1.1\r\n\r\n",
+            "GET /foo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"
+        };
+        for (String req : bad) {
+            HTTPParsingMachine parser = new HTTPParsingMachine(HTTPParsingMachine.ParsingMode.REQUEST);
+            HTTPParsingMachine.Result r = parser.parse(Utils.stringToBuffer(req, Charsets.ASCII));
+            assertTrue(req, r.isError());
+        }
+    }
+
     private static String getFirstHeader(HTTPParsingMachine.Result r, String name)
     {
         if (r.getHeaders() == null) {
@@ -610,4 +697,19 @@ public class HTTPParserTest
     "\r\n1b\r\n" +
     " This is some chunked data." +
     "\r\n0\r\n\r\n";
+
+    private static final String LARGE_LENGTH_REQUEST =
+    "PUT /upload HTTP/1.1\r\n" +
+    "Host: mybox\r\n" +
+    "Content-Length: 6442450944\r\n" +
+    "\r\n" +
+    "Hello";
+
+    private static final String CONTINUATION_REQUEST =
+    "GET /a b HTTP/1.1  \r\n" +
+    "X-Foo:   Myself  \r\n" +
+    "X-Long: Long\r\n" +
+    "  header value\r\n" +
+    "Connection: Close\r\n" +
+    "\r\n";
 }
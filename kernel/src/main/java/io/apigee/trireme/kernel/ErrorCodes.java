@@ -56,6 +56,7 @@ public class ErrorCodes
     public static final int ENOTDIR = -20;
     public static final int EPERM = -1;
     public static final int EPIPE = -32;
+    public static final int EROFS = -30;
     public static final int ESRCH = -3;
 
     public static final int EOF = -99;
@@ -108,6 +109,7 @@ public class ErrorCodes
         mapCode("ENOTDIR", ENOTDIR);
         mapCode("EPERM", EPERM);
         mapCode("EPIPE", EPIPE);
+        mapCode("EROFS", EROFS);
         mapCode("ESRCH", ESRCH);
 
         mapCode("EOF", EOF);
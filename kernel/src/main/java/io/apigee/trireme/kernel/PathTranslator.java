@@ -29,41 +29,58 @@ import java.io.IOException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
  * This class performs a "chroot." Given a root path, it translates all paths relative to that
  * root. If a translated path would be "above" that root, then it simply returns null.
+ * Since this runs on every filesystem call, mounts are compiled into a tree of path components,
+ * and the results of recent translations are kept in a small LRU cache.
  */
 
 public class PathTranslator
 {
     private static final Logger log = LoggerFactory.getLogger(PathTranslator.class.getName());
-    private static final Pattern separator = Pattern.compile("\\" + File.separatorChar);
     private static final Pattern windowsRoot = Pattern.compile("^[A-Za-z]:.*$");
     private static final boolean caseSensitive = !new File("a").equals(new File("A"));
 
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /** Cached in place of null for paths that try to escape the root. */
+    private static final File ESCAPED = new File("");
+    private static final char KEY_SEPARATOR = '\u0000';
+
     private File root;
     private String canonicalRoot;
     private File workingDir;
+    private String workingDirPath;
     private List<Map.Entry<String, File>> mounts = Collections.emptyList();
+    private final MountNode mountTable = new MountNode();
+    private final TranslationCache cache;
 
     public PathTranslator()
     {
         this.root = null;
         this.canonicalRoot = null;
+        this.cache = new TranslationCache(DEFAULT_CACHE_SIZE);
     }
 
     public PathTranslator(String root)
         throws IOException
     {
+        this.cache = new TranslationCache(DEFAULT_CACHE_SIZE);
         setRoot(root);
     }
 
     public void setWorkingDir(String wd) {
         this.workingDir = new File(wd);
+        // The working directory is part of the cache key, so there is no need to clear the cache
+        this.workingDirPath = workingDir.getPath();
     }
 
     public void setRoot(String root)
@@ -71,6 +88,7 @@ public class PathTranslator
     {
         this.root = new File(root);
         this.canonicalRoot = this.root.getCanonicalPath();
+        cache.clear();
     }
 
     public String getRoot() {
@@ -82,6 +100,8 @@ public class PathTranslator
      * real OS -- the filesystem tree under "path" appears on "prefix". (For instance, you can mount
      * "./foo/bar" as "/usr/lib/bar". This method does not account for absolutely every permutation of path --
      * in order for it to work, "prefix" should be an absolute path delimited by "/" characters.
+     * As on a real OS, mounts only match whole path components, and when one mount is nested
+     * inside another, the deepest one wins.
      */
     public void mount(String prefix, File path)
     {
@@ -89,6 +109,26 @@ public class PathTranslator
             mounts = new ArrayList<Map.Entry<String, File>>();
         }
         mounts.add(new AbstractMap.SimpleEntry<String, File>(prefix, path));
+
+        List<String> components = normalize(new File(prefix).getPath());
+        if (components == null) {
+            throw new IllegalArgumentException("Invalid mount point " + prefix);
+        }
+        MountNode node = mountTable;
+        for (String c : components) {
+            String key = componentKey(c);
+            MountNode child = node.children.get(key);
+            if (child == null) {
+                child = new MountNode();
+                node.children.put(key, child);
+            }
+            node = child;
+        }
+        if (node.target == null) {
+            // As before, the first mount on a particular path wins
+            node.target = path;
+        }
+        cache.clear();
     }
 
     /**
@@ -102,7 +142,20 @@ public class PathTranslator
         if (pathStr.startsWith("\\\\?\\")) {
             pathStr = pathStr.substring(4);
         }
-        
+
+        String key = cacheKey(pathStr);
+        File cached = cache.get(key);
+        if (cached != null) {
+            return (cached == ESCAPED ? null : cached);
+        }
+
+        File result = translateInternal(pathStr);
+        cache.put(key, (result == null ? ESCAPED : result));
+        return result;
+    }
+
+    private File translateInternal(String pathStr)
+    {
         File path = new File(pathStr);
         if (!path.isAbsolute() && !windowsRoot.matcher(pathStr).matches()) {
             // Make the path relative to the working directory in case it starts with a ".".
@@ -110,18 +163,15 @@ public class PathTranslator
             path = new File(workingDir, pathStr);
         }
 
+        // Process "." and ".." before looking at the mounts, so that ".." can't be used
+        // to climb out of a mounted directory.
+        List<String> components = normalize(path.getPath());
+
         // Calculate mounted filesystems. These must be absolute paths or it doesn't work.
-        for (Map.Entry<String, File> mount : mounts) {
-            if (startsWithFS(path.getPath(), mount.getKey())) {
-                // We hit one of the "mounted filesystems," so take off the path and re-calculate.
-                // Then the rest of the filesystem stuff doesn't matter -- we have found our path.
-                String remaining;
-                if (path.getPath().length() == mount.getKey().length()) {
-                    remaining = ".";
-                } else {
-                    remaining = path.getPath().substring(mount.getKey().length());
-                }
-                return new File(mount.getValue(), remaining);
+        if ((components != null) && !mountTable.children.isEmpty()) {
+            File mounted = translateMount(components);
+            if (mounted != null) {
+                return mounted;
             }
         }
 
@@ -133,16 +183,7 @@ public class PathTranslator
         }
 
         // Now we process the "chroot" stuff.
-        String[] components = separator.split(path.getPath());
-        int depth = 0;
-        for (String c : components) {
-            if ("..".equals(c)) {
-                depth--;
-            } else if (!".".equals(c) && !c.isEmpty()) {
-                depth++;
-            }
-        }
-        if (depth < 0) {
+        if (components == null) {
             if (log.isDebugEnabled()) {
                 log.debug("PathTranslator: {} tries to escape root", path);
             }
@@ -156,11 +197,59 @@ public class PathTranslator
         return realPath;
     }
 
+    /**
+     * Walk the mount table and return the translated path under the deepest mount point
+     * that matches, or null if none matches.
+     */
+    private File translateMount(List<String> components)
+    {
+        MountNode node = mountTable;
+        File target = null;
+        int matched = 0;
+
+        for (int i = 0; i < components.size(); i++) {
+            node = node.children.get(componentKey(components.get(i)));
+            if (node == null) {
+                break;
+            }
+            if (node.target != null) {
+                target = node.target;
+                matched = i + 1;
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+
+        if (matched == components.size()) {
+            return new File(target, ".");
+        }
+        StringBuilder remaining = new StringBuilder();
+        for (int i = matched; i < components.size(); i++) {
+            if (i > matched) {
+                remaining.append(File.separatorChar);
+            }
+            remaining.append(components.get(i));
+        }
+        return new File(target, remaining.toString());
+    }
+
     /**
      * Convert a native (Java) path to a Node.js path based on the root.
      */
     public String reverseTranslate(String path)
         throws IOException
+    {
+        return reverseTranslate(path, false);
+    }
+
+    /**
+     * Convert a native (Java) path to a Node.js path based on the root. If "canonical" is true, then
+     * the caller guarantees that the path is already canonical, and we will not ask the filesystem
+     * to make it so.
+     */
+    public String reverseTranslate(String path, boolean canonical)
+        throws IOException
     {
         // mounts may be defined outside of root
         if (!mounts.isEmpty()) {
@@ -185,15 +274,20 @@ public class PathTranslator
         if (root == null) {
             return path;
         }
-        String canon = new File(path).getCanonicalPath();
+        String canon = (canonical ? path : new File(path).getCanonicalPath());
         String realPath;
 
-        if (canon.length() < canonicalRoot.length()) {
+        if (!startsWithFS(canon, canonicalRoot)) {
             realPath = null;
         } else if (canon.length() == canonicalRoot.length()) {
             realPath = File.separator;
-        } else {
+        } else if (canon.charAt(canonicalRoot.length()) == File.separatorChar) {
             realPath = canon.substring(canonicalRoot.length());
+        } else if (canonicalRoot.endsWith(File.separator)) {
+            realPath = canon.substring(canonicalRoot.length() - 1);
+        } else {
+            // Something like "/rootfoo" when the root is "/root"
+            realPath = null;
         }
         if (log.isDebugEnabled()) {
             log.debug("PathTranslator.reverse: {} -> {}", path, realPath);
@@ -201,7 +295,96 @@ public class PathTranslator
         return realPath;
     }
 
+    private String cacheKey(String pathStr)
+    {
+        if ((workingDirPath == null) || pathStr.startsWith(File.separator)) {
+            return pathStr;
+        }
+        return workingDirPath + KEY_SEPARATOR + pathStr;
+    }
+
+    /**
+     * Split a path into its components, processing "." and ".." along the way. Return null if
+     * a ".." would go above the top of the path.
+     */
+    private static List<String> normalize(String path)
+    {
+        ArrayList<String> ret = new ArrayList<String>();
+        int len = path.length();
+        int start = 0;
+        while (start <= len) {
+            int end = path.indexOf(File.separatorChar, start);
+            if (end < 0) {
+                end = len;
+            }
+            if (end > start) {
+                String c = path.substring(start, end);
+                if ("..".equals(c)) {
+                    if (ret.isEmpty()) {
+                        return null;
+                    }
+                    ret.remove(ret.size() - 1);
+                } else if (!".".equals(c)) {
+                    ret.add(c);
+                }
+            }
+            start = end + 1;
+        }
+        return ret;
+    }
+
+    private static String componentKey(String c)
+    {
+        return (caseSensitive ? c : c.toLowerCase(Locale.US));
+    }
+
     private static boolean startsWithFS(final String path, final String prefix) {
     	return caseSensitive ? path.startsWith(prefix) : path.length() >= prefix.length() && prefix.equalsIgnoreCase(path.substring(0, prefix.length()));
     }
+
+    private static final class MountNode
+    {
+        final HashMap<String, MountNode> children = new HashMap<String, MountNode>();
+        File target;
+    }
+
+    /**
+     * A bounded LRU cache of translations. Filesystem calls may come from the async pool as well
+     * as the script thread, so all access is synchronized.
+     */
+    private static final class TranslationCache
+        extends LinkedHashMap<String, File>
+    {
+        private final int maxSize;
+
+        TranslationCache(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public synchronized File get(Object key)
+        {
+            return super.get(key);
+        }
+
+        @Override
+        public synchronized File put(String key, File value)
+        {
+            return super.put(key, value);
+        }
+
+        @Override
+        public synchronized void clear()
+        {
+            super.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, File> eldest)
+        {
+            return size() > maxSize;
+        }
+    }
 }
@@ -129,7 +129,7 @@ public class Base64Charset
                         continue;
                     }
 
-                    boolean valid = ((c <= decoding.length) && (decoding[c] >= 0));
+                    boolean valid = ((c < decoding.length) && (decoding[c] >= 0));
                     if (!valid && CodingErrorAction.REPORT.equals(unmappableAction)) {
                         throw new CharacterCodingException();
                     }
@@ -216,17 +216,13 @@ public class Base64Charset
                 int c2 = leftovers.isEmpty() ? 0 : leftovers.remove();
                 int c3 = leftovers.isEmpty() ? 0 : leftovers.remove();
 
+                // As in Node, bits left over that do not make up a whole byte are discarded
                 out.put((byte)((c0 << 2) | (c1 >> 4)));
-                int next = (c1 << 4) & 0xff;
-                if ((rem >= 3) || (next != 0)) {
-                    out.put((byte)(next | (c2 >> 2)));
-                }
-
                 if (rem >= 3) {
-                    next = (c2 << 6) & 0xff;
-                    if ((rem >= 4) || (next != 0)) {
-                        out.put((byte)(next | c3));
-                    }
+                    out.put((byte)(((c1 << 4) & 0xff) | (c2 >> 2)));
+                }
+                if (rem >= 4) {
+                    out.put((byte)(((c2 << 6) & 0xff) | c3));
                 }
             }
             assert(leftovers.size() < 2);
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+/**
+ * A table-driven Base64 codec that works directly on byte arrays and strings. Unlike Base64Charset,
+ * it does not go through a CharsetEncoder or CharsetDecoder, so it can size its output exactly and
+ * write straight into the array behind a Buffer. Decoding follows the rules that Node uses:
+ * whitespace, padding, and illegal characters are skipped, both the standard and "URL-safe" alphabets
+ * are accepted, and trailing bits that do not make up a whole byte are discarded.
+ */
+public class Base64Codec
+{
+    private static final char[] ENCODING =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char[] URL_ENCODING =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /**
+     * Map ASCII character codes to six-bit values. Characters that are not part of either alphabet
+     * map to -1 and are skipped.
+     */
+    private static final byte[] DECODING = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODING.length; i++) {
+            DECODING[i] = -1;
+        }
+        for (int i = 0; i < ENCODING.length; i++) {
+            DECODING[ENCODING[i]] = (byte)i;
+            DECODING[URL_ENCODING[i]] = (byte)i;
+        }
+    }
+
+    private Base64Codec()
+    {
+    }
+
+    /**
+     * Return the exact number of characters that will be produced by encoding "len" bytes.
+     * URL-safe output is not padded.
+     */
+    public static int encodedLength(int len, boolean urlSafe)
+    {
+        if (urlSafe) {
+            return ((len / 3) * 4) + (((len % 3) == 0) ? 0 : (len % 3) + 1);
+        }
+        return ((len + 2) / 3) * 4;
+    }
+
+    public static String encode(byte[] src, int off, int len)
+    {
+        return encode(src, off, len, false);
+    }
+
+    public static String encode(byte[] src, int off, int len, boolean urlSafe)
+    {
+        char[] out = new char[encodedLength(len, urlSafe)];
+        encode(src, off, len, out, 0, urlSafe);
+        return new String(out);
+    }
+
+    /**
+     * Encode "len" bytes starting at "off" into "dst", which must have room for
+     * "encodedLength(len, urlSafe)" characters. Return the number of characters written.
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int dstOff, boolean urlSafe)
+    {
+        char[] table = (urlSafe ? URL_ENCODING : ENCODING);
+        int sp = off;
+        int dp = dstOff;
+        int fullEnd = off + ((len / 3) * 3);
+
+        while (sp < fullEnd) {
+            int bits = ((src[sp] & 0xff) << 16) | ((src[sp + 1] & 0xff) << 8) | (src[sp + 2] & 0xff);
+            sp += 3;
+            dst[dp] = table[bits >>> 18];
+            dst[dp + 1] = table[(bits >>> 12) & 0x3f];
+            dst[dp + 2] = table[(bits >>> 6) & 0x3f];
+            dst[dp + 3] = table[bits & 0x3f];
+            dp += 4;
+        }
+
+        int rem = (off + len) - fullEnd;
+        if (rem > 0) {
+            int b0 = src[sp] & 0xff;
+            int b1 = ((rem == 2) ? (src[sp + 1] & 0xff) : 0);
+            dst[dp++] = table[b0 >>> 2];
+            dst[dp++] = table[((b0 & 0x3) << 4) | (b1 >>> 4)];
+            if (rem == 2) {
+                dst[dp++] = table[(b1 & 0xf) << 2];
+            } else if (!urlSafe) {
+                dst[dp++] = '=';
+            }
+            if (!urlSafe) {
+                dst[dp++] = '=';
+            }
+        }
+        return dp - dstOff;
+    }
+
+    /**
+     * Return the exact number of bytes that decoding the whole string will produce.
+     */
+    public static int decodedLength(String s)
+    {
+        int len = s.length();
+        int valid = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if ((c < 128) && (DECODING[c] >= 0)) {
+                valid++;
+            }
+        }
+        return bytesForChars(valid);
+    }
+
+    private static int bytesForChars(int chars)
+    {
+        int ret = (chars / 4) * 3;
+        switch (chars % 4) {
+        case 2:
+            return ret + 1;
+        case 3:
+            return ret + 2;
+        default:
+            return ret;
+        }
+    }
+
+    public static byte[] decode(String s)
+    {
+        byte[] out = new byte[decodedLength(s)];
+        decode(s, out, 0, out.length);
+        return out;
+    }
+
+    /**
+     * Decode the string into "dst", stopping once "maxLen" bytes have been written. Return
+     * the number of bytes actually written.
+     */
+    public static int decode(String s, byte[] dst, int dstOff, int maxLen)
+    {
+        int len = s.length();
+        int dp = dstOff;
+        int end = dstOff + maxLen;
+        int bits = 0;
+        int count = 0;
+
+        for (int i = 0; (i < len) && (dp < end); i++) {
+            char c = s.charAt(i);
+            int v = ((c < 128) ? DECODING[c] : -1);
+            if (v < 0) {
+                continue;
+            }
+            bits = (bits << 6) | v;
+            count++;
+            if (count == 4) {
+                dst[dp++] = (byte)(bits >>> 16);
+                if (dp < end) {
+                    dst[dp++] = (byte)(bits >>> 8);
+                }
+                if (dp < end) {
+                    dst[dp++] = (byte)bits;
+                }
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        // Two leftover characters make one byte, and three make two
+        if ((count == 2) && (dp < end)) {
+            dst[dp++] = (byte)(bits >>> 4);
+        } else if (count == 3) {
+            if (dp < end) {
+                dst[dp++] = (byte)(bits >>> 10);
+            }
+            if (dp < end) {
+                dst[dp++] = (byte)(bits >>> 2);
+            }
+        }
+        return dp - dstOff;
+    }
+}
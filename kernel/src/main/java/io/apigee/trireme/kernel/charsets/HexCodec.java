@@ -0,0 +1,120 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+/**
+ * A table-driven hex codec that works directly on byte arrays and strings, without going through
+ * a CharsetEncoder or CharsetDecoder like HexCharset does. Output is always lower case. Decoding
+ * accepts either case, ignores a trailing odd character, and stops at the first pair that is not valid hex.
+ * Callers that follow Node's Buffer rules reject an odd-length string first, using "isEvenLength."
+ */
+public class HexCodec
+{
+    private static final char[] DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    /** Map ASCII character codes to four-bit values, or -1 if not a hex digit. */
+    private static final byte[] DECODING = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODING.length; i++) {
+            DECODING[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            DECODING['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DECODING['a' + i] = (byte)(10 + i);
+            DECODING['A' + i] = (byte)(10 + i);
+        }
+    }
+
+    private HexCodec()
+    {
+    }
+
+    public static int encodedLength(int len)
+    {
+        return len * 2;
+    }
+
+    public static String encode(byte[] src, int off, int len)
+    {
+        char[] out = new char[encodedLength(len)];
+        encode(src, off, len, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Encode "len" bytes into "dst" and return the number of characters written.
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int dstOff)
+    {
+        int dp = dstOff;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int b = src[i];
+            dst[dp] = DIGITS[(b >> 4) & 0xf];
+            dst[dp + 1] = DIGITS[b & 0xf];
+            dp += 2;
+        }
+        return dp - dstOff;
+    }
+
+    /**
+     * Return the number of bytes that decoding the string will produce if it is entirely valid.
+     */
+    public static int decodedLength(String s)
+    {
+        return s.length() / 2;
+    }
+
+    /**
+     * Return false if the string has a trailing character that does not form a whole byte.
+     */
+    public static boolean isEvenLength(String s)
+    {
+        return (s.length() % 2) == 0;
+    }
+
+    /**
+     * Decode up to "maxLen" bytes from the string into "dst", and return the number of bytes
+     * written. If this is less than both "maxLen" and "decodedLength(s)" then the string
+     * contained an invalid character.
+     */
+    public static int decode(String s, byte[] dst, int dstOff, int maxLen)
+    {
+        int pairs = Math.min(s.length() / 2, maxLen);
+        for (int i = 0; i < pairs; i++) {
+            char c0 = s.charAt(i * 2);
+            char c1 = s.charAt((i * 2) + 1);
+            int hi = ((c0 < 128) ? DECODING[c0] : -1);
+            int lo = ((c1 < 128) ? DECODING[c1] : -1);
+            if ((hi < 0) || (lo < 0)) {
+                return i;
+            }
+            dst[dstOff + i] = (byte)((hi << 4) | lo);
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+/**
+ * Encoders for the character sets that always produce one byte per character. Node's "binary"
+ * encoding keeps the low eight bits of each character, and "ascii" replaces anything that is not
+ * seven-bit with '?' as the Java encoder does.
+ */
+public class SingleByteCodec
+{
+    public static final byte REPLACEMENT = '?';
+
+    private SingleByteCodec()
+    {
+    }
+
+    /**
+     * Write up to "maxLen" characters of "s" to "dst" in the "binary" encoding, and return the number written.
+     */
+    public static int encodeBinary(String s, byte[] dst, int dstOff, int maxLen)
+    {
+        int len = Math.min(s.length(), maxLen);
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] = (byte)s.charAt(i);
+        }
+        return len;
+    }
+
+    /**
+     * Write up to "maxLen" characters of "s" to "dst" as ASCII, and return the number written.
+     */
+    public static int encodeAscii(String s, byte[] dst, int dstOff, int maxLen)
+    {
+        int len = Math.min(s.length(), maxLen);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            dst[dstOff + i] = ((c < 0x80) ? (byte)c : REPLACEMENT);
+        }
+        return len;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.charsets;
+
+/**
+ * A UTF-8 encoder that counts and writes bytes directly, without a CharsetEncoder or a temporary
+ * buffer. Unpaired surrogates are replaced with '?', just as String.getBytes does, so the length
+ * computed here always matches what the constructor of a Buffer will produce.
+ */
+public class Utf8Codec
+{
+    public static final byte REPLACEMENT = '?';
+
+    private Utf8Codec()
+    {
+    }
+
+    /**
+     * The same as "Character.isSurrogate," which is not in Java 6.
+     */
+    private static boolean isSurrogate(char c)
+    {
+        return ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE));
+    }
+
+    /**
+     * Return the number of bytes that encoding the whole string will produce, in a single pass.
+     */
+    public static int encodedLength(String s)
+    {
+        int len = s.length();
+        int ret = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                ret++;
+            } else if (isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && ((i + 1) < len) &&
+                    Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // Four bytes for two chars
+                    ret += 2;
+                    i++;
+                }
+                // Otherwise one byte for the replacement
+            } else {
+                ret += 2;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Encode as much of the string as fits into "maxLen" bytes of "dst". A character is never split,
+     * so encoding stops before any character whose bytes would not all fit. The result packs the
+     * number of characters consumed and the number of bytes written into a single value,
+     * which may be unpacked using "charsRead" and "bytesWritten".
+     */
+    public static long encode(String s, byte[] dst, int dstOff, int maxLen)
+    {
+        int len = s.length();
+        int dp = dstOff;
+        int end = dstOff + maxLen;
+        int i = 0;
+
+        // Most strings are mostly ASCII, so copy those characters as quickly as possible
+        int asciiEnd = Math.min(len, maxLen);
+        while (i < asciiEnd) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            dst[dp++] = (byte)c;
+            i++;
+        }
+
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (dp >= end) {
+                    break;
+                }
+                dst[dp++] = (byte)c;
+                i++;
+
+            } else if (c < 0x800) {
+                if ((end - dp) < 2) {
+                    break;
+                }
+                dst[dp++] = (byte)(0xc0 | (c >> 6));
+                dst[dp++] = (byte)(0x80 | (c & 0x3f));
+                i++;
+
+            } else if (isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && ((i + 1) < len) &&
+                    Character.isLowSurrogate(s.charAt(i + 1))) {
+                    if ((end - dp) < 4) {
+                        break;
+                    }
+                    int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                    dst[dp++] = (byte)(0xf0 | (cp >> 18));
+                    dst[dp++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                    dst[dp++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                    dst[dp++] = (byte)(0x80 | (cp & 0x3f));
+                    i += 2;
+                } else {
+                    if (dp >= end) {
+                        break;
+                    }
+                    dst[dp++] = REPLACEMENT;
+                    i++;
+                }
+
+            } else {
+                if ((end - dp) < 3) {
+                    break;
+                }
+                dst[dp++] = (byte)(0xe0 | (c >> 12));
+                dst[dp++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                dst[dp++] = (byte)(0x80 | (c & 0x3f));
+                i++;
+            }
+        }
+
+        return ((long)i << 32) | (dp - dstOff);
+    }
+
+    /**
+     * Return the number of characters consumed from the result of "encode".
+     */
+    public static int charsRead(long result)
+    {
+        return (int)(result >>> 32);
+    }
+
+    /**
+     * Return the number of bytes written from the result of "encode".
+     */
+    public static int bytesWritten(long result)
+    {
+        return (int)result;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool for CPU-heavy crypto operations such as PBKDF2 and random number generation, which
+ * must not run on a script thread and should not compete with file and DNS I/O in the general async pool.
+ * When the queue is full, the task runs on the submitting thread, which slows down the scripts that
+ * are producing the work. That is a trade-off: a script that submits work faster than the pool can do it
+ * will run some of that work, such as PBKDF2, on its own thread and stall its event loop, rather than
+ * queue an unbounded amount of work. "getCallerRunCount" shows how often this happens, and a larger pool
+ * or queue makes it less likely. Once the pool is shut down, "execute" throws RejectedExecutionException.
+ * The pool keeps track of its queue depth and how long tasks wait and run.
+ */
+
+public class CryptoPool
+    implements Executor
+{
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final long THREAD_TIMEOUT_SECS = 60L;
+
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+
+    /**
+     * Create a pool with one thread per processor and the default queue size.
+     */
+    public CryptoPool()
+    {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+    }
+
+    public CryptoPool(int threads, int queueSize)
+    {
+        pool = new ThreadPoolExecutor(threads, threads, THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queueSize),
+                                      new PoolThreadFactory(),
+                                      new CallerRuns());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable r)
+    {
+        submitted.incrementAndGet();
+        pool.execute(new TimedTask(r));
+    }
+
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Return the number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Return the number of tasks running right now.
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Return the number of tasks that ran on the caller's thread because the queue was full.
+     */
+    public long getCallerRunCount() {
+        return callerRuns.get();
+    }
+
+    /**
+     * Return the average time that a task waited in the queue before it started.
+     */
+    public long getAverageWaitTime(TimeUnit unit)
+    {
+        long c = completed.get();
+        return (c == 0L ? 0L : unit.convert(waitNanos.get() / c, TimeUnit.NANOSECONDS));
+    }
+
+    public long getMaxWaitTime(TimeUnit unit) {
+        return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the average time that a task took to run once it started.
+     */
+    public long getAverageRunTime(TimeUnit unit)
+    {
+        long c = completed.get();
+        return (c == 0L ? 0L : unit.convert(runNanos.get() / c, TimeUnit.NANOSECONDS));
+    }
+
+    private void recordWait(long nanos)
+    {
+        waitNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = maxWaitNanos.get();
+        } while ((nanos > max) && !maxWaitNanos.compareAndSet(max, nanos));
+    }
+
+    private final class TimedTask
+        implements Runnable
+    {
+        private final Runnable task;
+        private final long queued = System.nanoTime();
+
+        TimedTask(Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.nanoTime();
+            recordWait(start - queued);
+            try {
+                task.run();
+            } finally {
+                runNanos.addAndGet(System.nanoTime() - start);
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    private final class CallerRuns
+        implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown()) {
+                // Don't drop the task silently, since the caller is probably waiting for a callback
+                throw new RejectedExecutionException("Crypto pool is shut down");
+            }
+            callerRuns.incrementAndGet();
+            r.run();
+        }
+    }
+
+    private static final class PoolThreadFactory
+        implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "Trireme Crypto Pool " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+
+/**
+ * This class hands out MessageDigest and Mac instances. "getInstance" walks the list of security
+ * providers every time that it is called, which is a measurable cost when a script hashes many
+ * small values. Instead, we look up one prototype per algorithm and clone it, which only copies the
+ * digest state. Prototypes are never updated, so cloning them from many threads is safe. Providers
+ * that do not support cloning fall back to "getInstance."
+ */
+
+public class Digests
+{
+    /** Read files in chunks of this size when digesting them. */
+    public static final int FILE_CHUNK_SIZE = 65536;
+
+    private static final Object NOT_CLONEABLE = new Object();
+
+    private static final ConcurrentHashMap<String, Object> digestPrototypes =
+        new ConcurrentHashMap<String, Object>();
+    private static final ConcurrentHashMap<String, Object> macPrototypes =
+        new ConcurrentHashMap<String, Object>();
+
+    private Digests()
+    {
+    }
+
+    /**
+     * Return a new, reset MessageDigest for the JCE algorithm name.
+     */
+    public static MessageDigest getDigest(String algorithm)
+        throws NoSuchAlgorithmException
+    {
+        Object proto = digestPrototypes.get(algorithm);
+        if (proto == null) {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            try {
+                MessageDigest copy = (MessageDigest)md.clone();
+                digestPrototypes.putIfAbsent(algorithm, md);
+                return copy;
+            } catch (CloneNotSupportedException e) {
+                digestPrototypes.putIfAbsent(algorithm, NOT_CLONEABLE);
+                return md;
+            }
+        }
+
+        if (proto != NOT_CLONEABLE) {
+            try {
+                return (MessageDigest)((MessageDigest)proto).clone();
+            } catch (CloneNotSupportedException e) {
+                // Not possible since it worked the first time, but fall through anyway
+            }
+        }
+        return MessageDigest.getInstance(algorithm);
+    }
+
+    /**
+     * Return a new Mac for the JCE algorithm name, which must still be initialized with a key.
+     */
+    public static Mac getMac(String algorithm)
+        throws NoSuchAlgorithmException
+    {
+        Object proto = macPrototypes.get(algorithm);
+        if (proto == null) {
+            Mac mac = Mac.getInstance(algorithm);
+            try {
+                Mac copy = (Mac)mac.clone();
+                macPrototypes.putIfAbsent(algorithm, mac);
+                return copy;
+            } catch (CloneNotSupportedException e) {
+                macPrototypes.putIfAbsent(algorithm, NOT_CLONEABLE);
+                return mac;
+            }
+        }
+
+        if (proto != NOT_CLONEABLE) {
+            try {
+                return (Mac)((Mac)proto).clone();
+            } catch (CloneNotSupportedException e) {
+                // Fall through as above
+            }
+        }
+        return Mac.getInstance(algorithm);
+    }
+}
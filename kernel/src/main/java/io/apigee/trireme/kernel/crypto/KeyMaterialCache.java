@@ -0,0 +1,251 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.crypto;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of parsed keys, certificates, and the key and trust managers built from them. Parsing
+ * PEM files and building a KeyManagerFactory is expensive, and a multi-tenant server may create the same
+ * TLS context in hundreds of scripts. Entries are looked up by a digest of the content that they were
+ * parsed from (and the passphrase, if any) so that identical input from different scripts produces the same
+ * object. Everything stored here must therefore be immutable or thread-safe, which is the case for
+ * keys, certificates, and the managers produced by the JSSE factories. The cache holds a bounded number of
+ * entries and discards the least recently used ones first.
+ */
+
+public class KeyMaterialCache
+{
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final EntryMap entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    public KeyMaterialCache()
+    {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a cache that holds at most "maxEntries" objects. Zero disables caching altogether.
+     */
+    public KeyMaterialCache(int maxEntries)
+    {
+        this.entries = new EntryMap(maxEntries);
+    }
+
+    /**
+     * Change the maximum number of entries, discarding entries right away if there are now too many.
+     */
+    public void setMaxEntries(int max)
+    {
+        synchronized (entries) {
+            entries.maxEntries = max;
+            while (entries.size() > max) {
+                entries.remove(entries.keySet().iterator().next());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public int getMaxEntries()
+    {
+        synchronized (entries) {
+            return entries.maxEntries;
+        }
+    }
+
+    /**
+     * Build a cache key from the type of object and all the strings that it will be parsed from.
+     * Null strings are allowed and are different from empty ones.
+     */
+    public static String makeKey(String kind, String... parts)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(kind.getBytes(Charsets.UTF8));
+        for (String p : parts) {
+            if (p == null) {
+                digest.update((byte)0);
+            } else {
+                digest.update((byte)1);
+                updateLength(digest, p.length());
+                digest.update(p.getBytes(Charsets.UTF8));
+            }
+        }
+        return kind + ':' + HexCodec.encode(digest.digest(), 0, digest.getDigestLength());
+    }
+
+    /**
+     * Build a cache key from the type of object, the binary data that it will be parsed from, and a
+     * passphrase, which may be null.
+     */
+    public static String makeKey(String kind, byte[] content, int offset, int length, String passphrase)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(kind.getBytes(Charsets.UTF8));
+        updateLength(digest, length);
+        digest.update(content, offset, length);
+        if (passphrase != null) {
+            digest.update(passphrase.getBytes(Charsets.UTF8));
+        }
+        return kind + ':' + HexCodec.encode(digest.digest(), 0, digest.getDigestLength());
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try {
+            return Digests.getDigest(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nse) {
+            throw new AssertionError(nse);
+        }
+    }
+
+    private static void updateLength(MessageDigest digest, int len)
+    {
+        digest.update((byte)(len >>> 24));
+        digest.update((byte)(len >>> 16));
+        digest.update((byte)(len >>> 8));
+        digest.update((byte)len);
+    }
+
+    /**
+     * Return the object stored under "key," or call the loader to create it and store the result.
+     * The loader runs outside any lock, so two threads that miss at the same time may both load the
+     * same object, and one of the results will win.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Loader<T> loader)
+        throws GeneralSecurityException, IOException, CryptoException
+    {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(key);
+        }
+        if (e != null) {
+            hits.incrementAndGet();
+            savedNanos.addAndGet(e.loadNanos);
+            return (T)e.value;
+        }
+
+        misses.incrementAndGet();
+        long start = System.nanoTime();
+        T value = loader.load();
+        e = new Entry(value, System.nanoTime() - start);
+
+        synchronized (entries) {
+            if (entries.maxEntries > 0) {
+                entries.put(key, e);
+            }
+        }
+        return value;
+    }
+
+    public void clear()
+    {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the total time that it took to originally load every object that was later found in the cache,
+     * which is the amount of parsing that the cache has avoided.
+     */
+    public long getTimeSaved(TimeUnit unit) {
+        return unit.convert(savedNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public interface Loader<T>
+    {
+        T load()
+            throws GeneralSecurityException, IOException, CryptoException;
+    }
+
+    private static final class Entry
+    {
+        final Object value;
+        final long loadNanos;
+
+        Entry(Object value, long loadNanos)
+        {
+            this.value = value;
+            this.loadNanos = loadNanos;
+        }
+    }
+
+    private final class EntryMap
+        extends LinkedHashMap<String, Entry>
+    {
+        int maxEntries;
+
+        EntryMap(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+        {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -148,7 +148,7 @@ public class AdvancedFilesystem
                     fileHandle.noFollow = true;
                 }
                 */
-            int fd = nextFd.getAndIncrement();
+            int fd = allocateFd();
             fileHandle.setFd(fd);
             if (log.isDebugEnabled()) {
                 log.debug("  open({}) = {}", origPath, fd);
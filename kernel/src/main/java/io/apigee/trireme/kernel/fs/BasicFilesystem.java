@@ -53,6 +53,15 @@ public class BasicFilesystem
     protected final ConcurrentHashMap<Integer, AbstractFileHandle> descriptors =
             new ConcurrentHashMap<Integer, AbstractFileHandle>();
 
+    /**
+     * Return a new file descriptor. A filesystem that wraps another one must forward this to it, so that
+     * descriptors from every layer come from the same counter and never collide.
+     */
+    protected int allocateFd()
+    {
+        return nextFd.getAndIncrement();
+    }
+
     public int open(File path, String origPath, int flags, int mode, int umask)
         throws OSException
     {
@@ -139,7 +148,7 @@ public class BasicFilesystem
             throw new OSException(ErrorCodes.EIO, ioe, origPath);
         }
 
-        int fd = nextFd.getAndIncrement();
+        int fd = allocateFd();
         handle.setFd(fd);
         descriptors.put(fd, handle);
 
@@ -0,0 +1,368 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This filesystem answers "stat," "lstat," and "readdir" from a StatCache when it can, and passes
+ * everything else to another filesystem. Every change made through it removes the affected paths from
+ * the cache, so a script always sees its own changes. Changes made elsewhere are seen once the entries
+ * expire, or right away if the directory is watched by the cache.
+ */
+
+public class CachingFilesystem
+    extends BasicFilesystem
+{
+    private static final int WRITE_FLAGS =
+        FileConstants.O_WRONLY | FileConstants.O_RDWR | FileConstants.O_CREAT |
+        FileConstants.O_TRUNC | FileConstants.O_APPEND;
+
+    private final BasicFilesystem disk;
+    private final StatCache cache;
+
+    /** Cache keys for open files, so that we don't re-calculate them on every write */
+    private final ConcurrentHashMap<Integer, String> fdKeys = new ConcurrentHashMap<Integer, String>();
+
+    public CachingFilesystem(BasicFilesystem disk, StatCache cache)
+    {
+        this.disk = disk;
+        this.cache = cache;
+    }
+
+    public StatCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Only cache errors that mean "it's not there," which is what module loading hits over and over.
+     */
+    private static boolean isCacheable(OSException ose)
+    {
+        return ((ose.getCode() == ErrorCodes.ENOENT) || (ose.getCode() == ErrorCodes.ENOTDIR));
+    }
+
+    @Override
+    public FileStats stat(File f, String origPath, boolean noFollow)
+        throws OSException
+    {
+        String key = StatCache.getKey(f);
+        Object cached = cache.getStats(key, noFollow);
+        if (cached instanceof FileStats) {
+            return (FileStats)cached;
+        }
+        if (cached != null) {
+            throw new OSException((Integer)cached, origPath);
+        }
+
+        try {
+            FileStats s = disk.stat(f, origPath, noFollow);
+            cache.putStats(key, noFollow, s);
+            return s;
+        } catch (OSException ose) {
+            if (isCacheable(ose)) {
+                cache.putStats(key, noFollow, ose.getCode());
+            }
+            throw ose;
+        }
+    }
+
+    @Override
+    public List<String> readdir(File f, String origPath)
+        throws OSException
+    {
+        String key = StatCache.getKey(f);
+        Object cached = cache.getListing(key);
+        if (cached instanceof List) {
+            return (List<String>)cached;
+        }
+        if (cached != null) {
+            throw new OSException((Integer)cached, origPath);
+        }
+
+        try {
+            List<String> names = Collections.unmodifiableList(disk.readdir(f, origPath));
+            cache.putListing(key, names);
+            return names;
+        } catch (OSException ose) {
+            if (isCacheable(ose)) {
+                cache.putListing(key, ose.getCode());
+            }
+            throw ose;
+        }
+    }
+
+    @Override
+    protected int allocateFd()
+    {
+        return disk.allocateFd();
+    }
+
+    @Override
+    public int open(File path, String origPath, int flags, int mode, int umask)
+        throws OSException
+    {
+        int fd = disk.open(path, origPath, flags, mode, umask);
+        if ((flags & WRITE_FLAGS) != 0) {
+            cache.invalidateEntry(path);
+            fdKeys.put(fd, StatCache.getKey(path));
+        }
+        return fd;
+    }
+
+    private void invalidateFd(int fd)
+    {
+        String key = fdKeys.get(fd);
+        if (key == null) {
+            AbstractFileHandle h = disk.descriptors.get(fd);
+            if (h == null) {
+                return;
+            }
+            key = StatCache.getKey(h.getFile());
+        }
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void close(int fd)
+        throws OSException
+    {
+        if (fdKeys.containsKey(fd)) {
+            invalidateFd(fd);
+            fdKeys.remove(fd);
+        }
+        disk.close(fd);
+    }
+
+    @Override
+    public long updatePosition(int fd, int delta)
+        throws OSException
+    {
+        return disk.updatePosition(fd, delta);
+    }
+
+    @Override
+    public long getPosition(int fd)
+        throws OSException
+    {
+        return disk.getPosition(fd);
+    }
+
+    @Override
+    public int write(int fd, ByteBuffer buf, long pos)
+        throws OSException
+    {
+        int written = disk.write(fd, buf, pos);
+        invalidateFd(fd);
+        return written;
+    }
+
+    @Override
+    public int read(int fd, ByteBuffer buf, long pos)
+        throws OSException
+    {
+        return disk.read(fd, buf, pos);
+    }
+
+    @Override
+    public FileStats fstat(int fd, boolean noFollow)
+        throws OSException
+    {
+        // The file is already open, so there is nothing to save by caching
+        return disk.fstat(fd, noFollow);
+    }
+
+    @Override
+    public void utimes(File f, String origPath, long atime, long mtime)
+        throws OSException
+    {
+        try {
+            disk.utimes(f, origPath, atime, mtime);
+        } finally {
+            cache.invalidate(StatCache.getKey(f));
+        }
+    }
+
+    @Override
+    public void futimes(int fd, long atime, long mtime)
+        throws OSException
+    {
+        try {
+            disk.futimes(fd, atime, mtime);
+        } finally {
+            invalidateFd(fd);
+        }
+    }
+
+    @Override
+    public void chmod(File f, String origPath, int mode, int umask, boolean noFollow)
+        throws OSException
+    {
+        try {
+            disk.chmod(f, origPath, mode, umask, noFollow);
+        } finally {
+            cache.invalidate(StatCache.getKey(f));
+        }
+    }
+
+    @Override
+    public void fchmod(int fd, int mode, int umask)
+        throws OSException
+    {
+        try {
+            disk.fchmod(fd, mode, umask);
+        } finally {
+            invalidateFd(fd);
+        }
+    }
+
+    @Override
+    public void mkdir(File file, String origPath, int mode, int umask)
+        throws OSException
+    {
+        try {
+            disk.mkdir(file, origPath, mode, umask);
+        } finally {
+            cache.invalidateEntry(file);
+        }
+    }
+
+    @Override
+    public void unlink(File file, String origPath)
+        throws OSException
+    {
+        try {
+            disk.unlink(file, origPath);
+        } finally {
+            cache.invalidateEntry(file);
+        }
+    }
+
+    @Override
+    public void rmdir(File file, String origPath)
+        throws OSException
+    {
+        try {
+            disk.rmdir(file, origPath);
+        } finally {
+            cache.invalidateEntry(file);
+        }
+    }
+
+    @Override
+    public void rename(File oldFile, String oldPath, File newFile, String newPath)
+        throws OSException
+    {
+        try {
+            disk.rename(oldFile, oldPath, newFile, newPath);
+        } finally {
+            // A renamed directory changes every path under it, so start over
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void ftruncate(int fd, long len)
+        throws OSException
+    {
+        try {
+            disk.ftruncate(fd, len);
+        } finally {
+            invalidateFd(fd);
+        }
+    }
+
+    @Override
+    public void fsync(int fd, boolean syncMetadata)
+        throws OSException
+    {
+        disk.fsync(fd, syncMetadata);
+    }
+
+    @Override
+    public void chown(File file, String origPath, String uid, String gid, boolean noFollow)
+        throws OSException
+    {
+        try {
+            disk.chown(file, origPath, uid, gid, noFollow);
+        } finally {
+            cache.invalidate(StatCache.getKey(file));
+        }
+    }
+
+    @Override
+    public void fchown(int fd, String uid, String gid, boolean noFollow)
+        throws OSException
+    {
+        try {
+            disk.fchown(fd, uid, gid, noFollow);
+        } finally {
+            invalidateFd(fd);
+        }
+    }
+
+    @Override
+    public void link(File destFile, String destPath, File srcFile, String srcPath)
+        throws OSException
+    {
+        try {
+            disk.link(destFile, destPath, srcFile, srcPath);
+        } finally {
+            cache.invalidateEntry(srcFile);
+            cache.invalidate(StatCache.getKey(destFile));
+        }
+    }
+
+    @Override
+    public void symlink(File destFile, String destPath, File srcFile, String srcPath)
+        throws OSException
+    {
+        try {
+            disk.symlink(destFile, destPath, srcFile, srcPath);
+        } finally {
+            if (destFile != null) {
+                cache.invalidateEntry(destFile);
+            }
+        }
+    }
+
+    @Override
+    public String readlink(File file, String origPath)
+        throws OSException
+    {
+        return disk.readlink(file, origPath);
+    }
+
+    @Override
+    public void cleanup()
+    {
+        fdKeys.clear();
+        disk.cleanup();
+    }
+}
@@ -46,6 +46,19 @@ public class FileStats
     {
     }
 
+    /**
+     * Create stats for a file that does not exist on the disk, such as one inside a
+     * FilesystemImage.
+     */
+    public FileStats(int mode, long size, long mtime, int ino)
+    {
+        this.nlink = 1;
+        this.mode = mode;
+        this.size = size;
+        this.atime = this.mtime = this.ctime = mtime;
+        this.ino = ino;
+    }
+
     public FileStats(File file)
     {
         // Fake "nlink"
@@ -0,0 +1,339 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * This class is a read-only, fully-indexed image of a directory tree. It is built once, from a JAR,
+ * a ZIP file, or from data supplied directly to a Builder, and may then be shared by any number of
+ * scripts through an ImageFilesystem. All file contents are held in memory and all stats are
+ * computed up front, so looking up or reading a file never touches the disk.
+ * Paths inside the image are relative and always use "/" as the separator.
+ */
+
+public class FilesystemImage
+{
+    public static final int FILE_MODE = FileConstants.S_IFREG | 0444;
+    public static final int DIRECTORY_MODE = FileConstants.S_IFDIR | 0555;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Map<String, Entry> entries;
+    private final long totalSize;
+
+    private FilesystemImage(Map<String, Entry> entries, long totalSize)
+    {
+        this.entries = entries;
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * Read an image from the entries of a JAR or ZIP file. Only entries that start with "prefix"
+     * are included, and the prefix is removed from their names. Use an empty or null prefix
+     * to include the whole file.
+     */
+    public static FilesystemImage fromZip(File zipFile, String prefix)
+        throws IOException
+    {
+        Builder b = new Builder();
+        String pfx = normalizePrefix(prefix);
+        ZipFile zf = new ZipFile(zipFile);
+        try {
+            Enumeration<? extends ZipEntry> zes = zf.entries();
+            while (zes.hasMoreElements()) {
+                ZipEntry ze = zes.nextElement();
+                String name = stripPrefix(ze.getName(), pfx);
+                if (name == null) {
+                    continue;
+                }
+                if (ze.isDirectory()) {
+                    b.addDirectory(name, ze.getTime());
+                } else {
+                    InputStream in = zf.getInputStream(ze);
+                    try {
+                        b.addFile(name, readFully(in, ze.getSize()), ze.getTime());
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            zf.close();
+        }
+        return b.build();
+    }
+
+    /**
+     * Read an image from a stream that contains a JAR or ZIP file, such as a resource that
+     * is itself nested inside another JAR. The stream is read to the end but not closed.
+     */
+    public static FilesystemImage fromZip(InputStream zipStream, String prefix)
+        throws IOException
+    {
+        Builder b = new Builder();
+        String pfx = normalizePrefix(prefix);
+        ZipInputStream zin = new ZipInputStream(zipStream);
+        ZipEntry ze;
+        while ((ze = zin.getNextEntry()) != null) {
+            String name = stripPrefix(ze.getName(), pfx);
+            if (name != null) {
+                if (ze.isDirectory()) {
+                    b.addDirectory(name, ze.getTime());
+                } else {
+                    b.addFile(name, readFully(zin, ze.getSize()), ze.getTime());
+                }
+            }
+            zin.closeEntry();
+        }
+        return b.build();
+    }
+
+    /**
+     * Look up an entry by its relative path, which must already be normalized -- it may not
+     * contain "." or "..". The root of the image is the empty string. Return null if there
+     * is no such entry.
+     */
+    public Entry get(String path)
+    {
+        return entries.get(path);
+    }
+
+    /**
+     * Return the number of files and directories in the image, including the root.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the total number of bytes of file content held by the image.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    private static String normalizePrefix(String prefix)
+    {
+        if ((prefix == null) || prefix.isEmpty()) {
+            return "";
+        }
+        String p = trimSlashes(prefix);
+        return (p.isEmpty() ? "" : p + '/');
+    }
+
+    private static String stripPrefix(String name, String prefix)
+    {
+        if (!name.startsWith(prefix)) {
+            return null;
+        }
+        String n = trimSlashes(name.substring(prefix.length()));
+        return (n.isEmpty() ? null : n);
+    }
+
+    private static String trimSlashes(String p)
+    {
+        int start = 0;
+        int end = p.length();
+        while ((start < end) && (p.charAt(start) == '/')) {
+            start++;
+        }
+        while ((end > start) && (p.charAt(end - 1) == '/')) {
+            end--;
+        }
+        return p.substring(start, end);
+    }
+
+    private static byte[] readFully(InputStream in, long sizeHint)
+        throws IOException
+    {
+        ByteArrayOutputStream out =
+            new ByteArrayOutputStream(((sizeHint > 0) && (sizeHint < Integer.MAX_VALUE)) ? (int)sizeHint : BUFFER_SIZE);
+        byte[] buf = new byte[BUFFER_SIZE];
+        int r;
+        while ((r = in.read(buf)) > 0) {
+            out.write(buf, 0, r);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A single file or directory in the image.
+     */
+    public static final class Entry
+    {
+        private final String path;
+        private final FileStats stats;
+        private final ByteBuffer contents;
+        private final List<String> children;
+
+        Entry(String path, FileStats stats, ByteBuffer contents, List<String> children)
+        {
+            this.path = path;
+            this.stats = stats;
+            this.contents = contents;
+            this.children = children;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return (contents == null);
+        }
+
+        public FileStats getStats() {
+            return stats;
+        }
+
+        /**
+         * Return a read-only view of the contents of a file, positioned at zero. Each call returns a new
+         * view, so the caller may change its position and limit. Return null for a directory.
+         */
+        public ByteBuffer getContents() {
+            return (contents == null ? null : contents.duplicate());
+        }
+
+        /**
+         * Return the sorted names of the entries in a directory, or null for a file.
+         */
+        public List<String> getChildren() {
+            return children;
+        }
+    }
+
+    /**
+     * Build an image from files and directories supplied in any order. Parent directories are
+     * created automatically. Adding the same file twice replaces it.
+     */
+    public static class Builder
+    {
+        private final HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+        private final HashMap<String, Long> times = new HashMap<String, Long>();
+        private final HashMap<String, TreeSet<String>> dirs = new HashMap<String, TreeSet<String>>();
+        private final long now = System.currentTimeMillis();
+
+        public Builder()
+        {
+            dirs.put("", new TreeSet<String>());
+        }
+
+        public Builder addFile(String path, byte[] data, long mtime)
+        {
+            String p = checkPath(path);
+            if (dirs.containsKey(p)) {
+                throw new IllegalArgumentException(path + " is already a directory");
+            }
+            addToParent(p);
+            files.put(p, data);
+            times.put(p, mtime);
+            return this;
+        }
+
+        public Builder addDirectory(String path, long mtime)
+        {
+            String p = checkPath(path);
+            if (files.containsKey(p)) {
+                throw new IllegalArgumentException(path + " is already a file");
+            }
+            if (!dirs.containsKey(p)) {
+                addToParent(p);
+                dirs.put(p, new TreeSet<String>());
+            }
+            times.put(p, mtime);
+            return this;
+        }
+
+        public FilesystemImage build()
+        {
+            HashMap<String, Entry> entries = new HashMap<String, Entry>(files.size() + dirs.size());
+            int ino = 1;
+            long total = 0L;
+
+            for (Map.Entry<String, TreeSet<String>> d : dirs.entrySet()) {
+                FileStats stats = new FileStats(DIRECTORY_MODE, 0L, getTime(d.getKey()), ino++);
+                List<String> children =
+                    Collections.unmodifiableList(new ArrayList<String>(d.getValue()));
+                entries.put(d.getKey(), new Entry(d.getKey(), stats, null, children));
+            }
+            for (Map.Entry<String, byte[]> f : files.entrySet()) {
+                byte[] data = f.getValue();
+                FileStats stats = new FileStats(FILE_MODE, data.length, getTime(f.getKey()), ino++);
+                entries.put(f.getKey(),
+                            new Entry(f.getKey(), stats, ByteBuffer.wrap(data).asReadOnlyBuffer(), null));
+                total += data.length;
+            }
+            return new FilesystemImage(entries, total);
+        }
+
+        private long getTime(String p)
+        {
+            Long t = times.get(p);
+            return ((t == null) || (t < 0L)) ? now : t;
+        }
+
+        private void addToParent(String p)
+        {
+            int slash = p.lastIndexOf('/');
+            String parent = (slash < 0 ? "" : p.substring(0, slash));
+            TreeSet<String> siblings = dirs.get(parent);
+            if (siblings == null) {
+                if (files.containsKey(parent)) {
+                    throw new IllegalArgumentException(parent + " is already a file");
+                }
+                addToParent(parent);
+                siblings = new TreeSet<String>();
+                dirs.put(parent, siblings);
+            }
+            siblings.add(p.substring(slash + 1));
+        }
+
+        private static String checkPath(String path)
+        {
+            String p = trimSlashes(path.replace('\\', '/'));
+            if (p.isEmpty()) {
+                throw new IllegalArgumentException("Empty path");
+            }
+            for (String c : p.split("/")) {
+                if (c.isEmpty() || ".".equals(c) || "..".equals(c)) {
+                    throw new IllegalArgumentException("Invalid path " + path);
+                }
+            }
+            return p;
+        }
+    }
+}
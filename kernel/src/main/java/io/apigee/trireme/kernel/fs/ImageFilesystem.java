@@ -0,0 +1,600 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * This is a filesystem that serves the tree under a "base" directory from a read-only FilesystemImage
+ * rather than from the disk. All files outside the base, such as those mounted from elsewhere, are passed
+ * to a regular "disk" filesystem.
+ * <p>
+ * Without an overlay, the tree under the base is read-only and every attempt to change it fails
+ * with EROFS. With an overlay, files on the disk under the base take precedence over those in the
+ * image, and all changes are made on the disk. Files that are only in the image may be opened for
+ * writing, in which case they are first copied to the disk, but they may not be removed or renamed.
+ * </p>
+ */
+
+public class ImageFilesystem
+    extends BasicFilesystem
+{
+    private static final Logger log = LoggerFactory.getLogger(ImageFilesystem.class);
+
+    private static final int WRITE_FLAGS =
+        FileConstants.O_WRONLY | FileConstants.O_RDWR | FileConstants.O_CREAT |
+        FileConstants.O_TRUNC | FileConstants.O_APPEND;
+
+    private final FilesystemImage image;
+    private final String basePath;
+    private final BasicFilesystem disk;
+    private final boolean overlay;
+
+    /**
+     * Create a new filesystem.
+     *
+     * @param image the image to serve
+     * @param base the directory at which the image appears. Normally this is the filesystem root of
+     *             the script.
+     * @param disk the filesystem used for everything outside the base, and for the overlay
+     * @param overlay if true, then look for files on the disk under "base" before looking in the image,
+     *                and allow changes to be made there.
+     */
+    public ImageFilesystem(FilesystemImage image, File base, BasicFilesystem disk, boolean overlay)
+    {
+        this.image = image;
+        this.disk = disk;
+        this.overlay = overlay;
+
+        String bp = base.getPath();
+        if ((bp.length() > 1) && bp.endsWith(File.separator)) {
+            bp = bp.substring(0, bp.length() - 1);
+        }
+        this.basePath = bp;
+    }
+
+    public FilesystemImage getImage() {
+        return image;
+    }
+
+    /**
+     * Return the path of "f" relative to the base using "/" as the separator, or null if the file
+     * is outside the base.
+     */
+    private String imagePath(File f)
+    {
+        String p = f.getPath();
+        int start;
+        if (p.equals(basePath)) {
+            return "";
+        }
+        if (basePath.endsWith(File.separator)) {
+            if (!p.startsWith(basePath)) {
+                return null;
+            }
+            start = basePath.length();
+        } else {
+            if (!p.startsWith(basePath) || (p.charAt(basePath.length()) != File.separatorChar)) {
+                return null;
+            }
+            start = basePath.length() + 1;
+        }
+
+        // Normalize the rest -- the path translator does not remove "." and ".." from what it returns
+        ArrayList<String> components = new ArrayList<String>();
+        int len = p.length();
+        while (start <= len) {
+            int end = p.indexOf(File.separatorChar, start);
+            if (end < 0) {
+                end = len;
+            }
+            if (end > start) {
+                String c = p.substring(start, end);
+                if ("..".equals(c)) {
+                    if (components.isEmpty()) {
+                        return null;
+                    }
+                    components.remove(components.size() - 1);
+                } else if (!".".equals(c)) {
+                    components.add(c);
+                }
+            }
+            start = end + 1;
+        }
+
+        StringBuilder rel = new StringBuilder(p.length() - basePath.length());
+        for (String c : components) {
+            if (rel.length() > 0) {
+                rel.append('/');
+            }
+            rel.append(c);
+        }
+        return rel.toString();
+    }
+
+    /**
+     * Return true if the operation on "f" should go to the disk filesystem.
+     */
+    private boolean useDisk(File f, String rel)
+    {
+        return ((rel == null) || (overlay && f.exists()));
+    }
+
+    private FilesystemImage.Entry ensureEntry(String rel, String origPath)
+        throws OSException
+    {
+        FilesystemImage.Entry e = image.get(rel);
+        if (e == null) {
+            throw new OSException(ErrorCodes.ENOENT, origPath);
+        }
+        return e;
+    }
+
+    /**
+     * Before creating something on the overlay, make sure that its parent exists on the disk
+     * if it exists in the image.
+     */
+    private void copyUpParent(File f, String rel)
+        throws OSException
+    {
+        File parent = f.getParentFile();
+        if ((parent == null) || parent.exists()) {
+            return;
+        }
+        int slash = rel.lastIndexOf('/');
+        FilesystemImage.Entry pe = image.get(slash < 0 ? "" : rel.substring(0, slash));
+        if ((pe != null) && pe.isDirectory() && !parent.mkdirs()) {
+            throw new OSException(ErrorCodes.EIO, parent.getPath());
+        }
+    }
+
+    /**
+     * Copy a file from the image to the same place on the disk so that it may be modified.
+     */
+    private void copyUp(File f, FilesystemImage.Entry e, String origPath)
+        throws OSException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Copying {} from the image to {}", origPath, f.getPath());
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(f);
+            try {
+                FileChannel chan = out.getChannel();
+                ByteBuffer contents = e.getContents();
+                while (contents.hasRemaining()) {
+                    chan.write(contents);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new OSException(ErrorCodes.EIO, ioe, origPath);
+        }
+    }
+
+    private ImageFileHandle getImageHandle(int fd)
+    {
+        return (ImageFileHandle)descriptors.get(fd);
+    }
+
+    @Override
+    protected int allocateFd()
+    {
+        // Share the disk filesystem's descriptors so that the two never collide
+        return disk.allocateFd();
+    }
+
+    @Override
+    public int open(File path, String origPath, int flags, int mode, int umask)
+        throws OSException
+    {
+        String rel = imagePath(path);
+        if (useDisk(path, rel)) {
+            return disk.open(path, origPath, flags, mode, umask);
+        }
+
+        FilesystemImage.Entry e = image.get(rel);
+        if ((flags & WRITE_FLAGS) != 0) {
+            if (!overlay) {
+                throw new OSException((e == null) ? ErrorCodes.ENOENT : ErrorCodes.EROFS, origPath);
+            }
+            if (e != null) {
+                if (((flags & FileConstants.O_CREAT) != 0) && ((flags & FileConstants.O_EXCL) != 0)) {
+                    throw new OSException(ErrorCodes.EEXIST, origPath);
+                }
+                if (e.isDirectory()) {
+                    throw new OSException(ErrorCodes.EISDIR, origPath);
+                }
+            }
+            copyUpParent(path, rel);
+            if ((e != null) && ((flags & FileConstants.O_TRUNC) == 0)) {
+                copyUp(path, e, origPath);
+            }
+            return disk.open(path, origPath, flags, mode, umask);
+        }
+
+        if (e == null) {
+            throw new OSException(ErrorCodes.ENOENT, origPath);
+        }
+
+        ImageFileHandle handle = new ImageFileHandle(path, origPath, e);
+        int fd = allocateFd();
+        handle.setFd(fd);
+        descriptors.put(fd, handle);
+
+        if (log.isDebugEnabled()) {
+            log.debug("open({}) = {} from image", origPath, fd);
+        }
+        return fd;
+    }
+
+    @Override
+    public void close(int fd)
+        throws OSException
+    {
+        if (descriptors.remove(fd) == null) {
+            disk.close(fd);
+        }
+    }
+
+    @Override
+    public long updatePosition(int fd, int delta)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            return disk.updatePosition(fd, delta);
+        }
+        long oldPos = h.getPosition();
+        h.setPosition(oldPos + delta);
+        return oldPos;
+    }
+
+    @Override
+    public long getPosition(int fd)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            return disk.getPosition(fd);
+        }
+        return h.getPosition();
+    }
+
+    @Override
+    public int write(int fd, ByteBuffer buf, long pos)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            return disk.write(fd, buf, pos);
+        }
+        // We never open image files for writing
+        throw new OSException(ErrorCodes.EBADF);
+    }
+
+    @Override
+    public int read(int fd, ByteBuffer buf, long pos)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            return disk.read(fd, buf, pos);
+        }
+        if (h.entry.isDirectory()) {
+            throw new OSException(ErrorCodes.EISDIR, h.getOrigPath());
+        }
+
+        ByteBuffer contents = h.entry.getContents();
+        if (pos >= contents.limit()) {
+            return 0;
+        }
+        contents.position((int)pos);
+        if (contents.remaining() > buf.remaining()) {
+            contents.limit(contents.position() + buf.remaining());
+        }
+        int count = contents.remaining();
+        buf.put(contents);
+        return count;
+    }
+
+    @Override
+    public FileStats stat(File f, String origPath, boolean noFollow)
+        throws OSException
+    {
+        String rel = imagePath(f);
+        if (useDisk(f, rel)) {
+            return disk.stat(f, origPath, noFollow);
+        }
+        return ensureEntry(rel, origPath).getStats();
+    }
+
+    @Override
+    public FileStats fstat(int fd, boolean noFollow)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            return disk.fstat(fd, noFollow);
+        }
+        return h.entry.getStats();
+    }
+
+    @Override
+    public List<String> readdir(File f, String origPath)
+        throws OSException
+    {
+        String rel = imagePath(f);
+        if (rel == null) {
+            return disk.readdir(f, origPath);
+        }
+
+        FilesystemImage.Entry e = image.get(rel);
+        boolean onDisk = overlay && f.isDirectory();
+        if ((e == null) || !e.isDirectory()) {
+            if (onDisk || (overlay && (e == null))) {
+                return disk.readdir(f, origPath);
+            }
+            throw new OSException(e == null ? ErrorCodes.ENOENT : ErrorCodes.ENOTDIR, origPath);
+        }
+        if (!onDisk) {
+            return e.getChildren();
+        }
+
+        TreeSet<String> names = new TreeSet<String>(e.getChildren());
+        names.addAll(disk.readdir(f, origPath));
+        return new ArrayList<String>(names);
+    }
+
+    @Override
+    public void utimes(File f, String origPath, long atime, long mtime)
+        throws OSException
+    {
+        String rel = imagePath(f);
+        if (useDisk(f, rel)) {
+            disk.utimes(f, origPath, atime, mtime);
+        } else {
+            ensureEntry(rel, origPath);
+            throw new OSException(ErrorCodes.EROFS, origPath);
+        }
+    }
+
+    @Override
+    public void futimes(int fd, long atime, long mtime)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            disk.futimes(fd, atime, mtime);
+        } else {
+            throw new OSException(ErrorCodes.EROFS, h.getOrigPath());
+        }
+    }
+
+    @Override
+    public void chmod(File f, String origPath, int mode, int umask, boolean noFollow)
+        throws OSException
+    {
+        String rel = imagePath(f);
+        if (useDisk(f, rel)) {
+            disk.chmod(f, origPath, mode, umask, noFollow);
+        } else {
+            ensureEntry(rel, origPath);
+            throw new OSException(ErrorCodes.EROFS, origPath);
+        }
+    }
+
+    @Override
+    public void fchmod(int fd, int mode, int umask)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            disk.fchmod(fd, mode, umask);
+        } else {
+            throw new OSException(ErrorCodes.EROFS, h.getOrigPath());
+        }
+    }
+
+    @Override
+    public void mkdir(File file, String origPath, int mode, int umask)
+        throws OSException
+    {
+        String rel = imagePath(file);
+        if (useDisk(file, rel)) {
+            disk.mkdir(file, origPath, mode, umask);
+            return;
+        }
+        if (image.get(rel) != null) {
+            throw new OSException(ErrorCodes.EEXIST, origPath);
+        }
+        if (!overlay) {
+            throw new OSException(ErrorCodes.EROFS, origPath);
+        }
+        copyUpParent(file, rel);
+        disk.mkdir(file, origPath, mode, umask);
+    }
+
+    @Override
+    public void unlink(File file, String origPath)
+        throws OSException
+    {
+        String rel = imagePath(file);
+        if (useDisk(file, rel)) {
+            disk.unlink(file, origPath);
+        } else {
+            ensureEntry(rel, origPath);
+            throw new OSException(ErrorCodes.EROFS, origPath);
+        }
+    }
+
+    @Override
+    public void rmdir(File file, String origPath)
+        throws OSException
+    {
+        String rel = imagePath(file);
+        if (useDisk(file, rel)) {
+            disk.rmdir(file, origPath);
+        } else {
+            ensureEntry(rel, origPath);
+            throw new OSException(ErrorCodes.EROFS, origPath);
+        }
+    }
+
+    @Override
+    public void rename(File oldFile, String oldPath, File newFile, String newPath)
+        throws OSException
+    {
+        String oldRel = imagePath(oldFile);
+        String newRel = imagePath(newFile);
+        if (!useDisk(oldFile, oldRel)) {
+            ensureEntry(oldRel, oldPath);
+            throw new OSException(ErrorCodes.EROFS, oldPath);
+        }
+        if (newRel != null) {
+            if (!overlay) {
+                throw new OSException(ErrorCodes.EROFS, newPath);
+            }
+            copyUpParent(newFile, newRel);
+        }
+        disk.rename(oldFile, oldPath, newFile, newPath);
+    }
+
+    @Override
+    public void ftruncate(int fd, long len)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            disk.ftruncate(fd, len);
+        } else {
+            throw new OSException(ErrorCodes.EBADF);
+        }
+    }
+
+    @Override
+    public void fsync(int fd, boolean syncMetadata)
+        throws OSException
+    {
+        if (getImageHandle(fd) == null) {
+            disk.fsync(fd, syncMetadata);
+        }
+    }
+
+    @Override
+    public void chown(File file, String origPath, String uid, String gid, boolean noFollow)
+        throws OSException
+    {
+        String rel = imagePath(file);
+        if (useDisk(file, rel)) {
+            disk.chown(file, origPath, uid, gid, noFollow);
+        } else {
+            ensureEntry(rel, origPath);
+            throw new OSException(ErrorCodes.EROFS, origPath);
+        }
+    }
+
+    @Override
+    public void fchown(int fd, String uid, String gid, boolean noFollow)
+        throws OSException
+    {
+        ImageFileHandle h = getImageHandle(fd);
+        if (h == null) {
+            disk.fchown(fd, uid, gid, noFollow);
+        } else {
+            throw new OSException(ErrorCodes.EROFS, h.getOrigPath());
+        }
+    }
+
+    @Override
+    public void link(File destFile, String destPath, File srcFile, String srcPath)
+        throws OSException
+    {
+        checkLinkTarget(srcFile, srcPath);
+        disk.link(destFile, destPath, srcFile, srcPath);
+    }
+
+    @Override
+    public void symlink(File destFile, String destPath, File srcFile, String srcPath)
+        throws OSException
+    {
+        checkLinkTarget(destFile, destPath);
+        disk.symlink(destFile, destPath, srcFile, srcPath);
+    }
+
+    private void checkLinkTarget(File f, String origPath)
+        throws OSException
+    {
+        String rel = (f == null ? null : imagePath(f));
+        if (rel != null) {
+            if (!overlay) {
+                throw new OSException(ErrorCodes.EROFS, origPath);
+            }
+            copyUpParent(f, rel);
+        }
+    }
+
+    @Override
+    public String readlink(File file, String origPath)
+        throws OSException
+    {
+        String rel = imagePath(file);
+        if (useDisk(file, rel)) {
+            return disk.readlink(file, origPath);
+        }
+        // There are no links in an image
+        ensureEntry(rel, origPath);
+        throw new OSException(ErrorCodes.EINVAL, origPath);
+    }
+
+    @Override
+    public void cleanup()
+    {
+        descriptors.clear();
+        disk.cleanup();
+    }
+
+    private static final class ImageFileHandle
+        extends AbstractFileHandle
+    {
+        final FilesystemImage.Entry entry;
+
+        ImageFileHandle(File file, String origPath, FilesystemImage.Entry entry)
+        {
+            super(file, origPath, null);
+            this.entry = entry;
+        }
+    }
+}
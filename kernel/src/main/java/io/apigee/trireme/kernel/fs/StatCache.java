@@ -0,0 +1,356 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.fs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a cache of file stats and directory listings that a CachingFilesystem consults before going
+ * to the disk. Entries expire after a fixed time. They are also removed as soon as the same path is
+ * changed through any CachingFilesystem that uses the cache, and, for directories that have been
+ * passed to "watch," as soon as the OS reports a change. A single cache is thread-safe and may be
+ * shared by many scripts. It requires Java 7.
+ */
+
+public class StatCache
+{
+    private static final Logger log = LoggerFactory.getLogger(StatCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final long ttl;
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> stats = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, Entry> lstats = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, Entry> listings = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<WatchKey, WatchedDir> watched =
+        new ConcurrentHashMap<WatchKey, WatchedDir>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private WatchService watcher;
+    private Thread watchThread;
+    private volatile boolean closed;
+
+    /**
+     * Create a cache whose entries expire after the specified time.
+     */
+    public StatCache(long ttl, TimeUnit unit)
+    {
+        this(ttl, unit, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a cache whose entries expire after the specified time. When the cache holds more than
+     * "maxEntries" stats or listings, it is emptied.
+     */
+    public StatCache(long ttl, TimeUnit unit, int maxEntries)
+    {
+        this.ttl = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Watch a directory for changes made outside Trireme, and invalidate entries as soon as they happen.
+     * If "recursive" is true, then all the directories under it are watched too, including new ones.
+     */
+    public synchronized void watch(File dir, boolean recursive)
+        throws IOException
+    {
+        if (closed) {
+            throw new IllegalStateException("Cache is closed");
+        }
+        if (watcher == null) {
+            watcher = FileSystems.getDefault().newWatchService();
+            watchThread = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    watchLoop();
+                }
+            }, "Trireme stat cache watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+
+        Path p = Paths.get(dir.getPath()).toAbsolutePath().normalize();
+        if (recursive) {
+            Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs)
+                    throws IOException
+                {
+                    register(d, true);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } else {
+            register(p, false);
+        }
+    }
+
+    private void register(Path dir, boolean recursive)
+        throws IOException
+    {
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watched.put(key, new WatchedDir(dir, recursive));
+        if (log.isDebugEnabled()) {
+            log.debug("Watching {} for changes", dir);
+        }
+    }
+
+    private void watchLoop()
+    {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException ie) {
+                continue;
+            } catch (ClosedWatchServiceException cwe) {
+                return;
+            }
+
+            WatchedDir wd = watched.get(key);
+            if (wd != null) {
+                Path dir = wd.dir;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // We don't know what we missed
+                        clear();
+                        continue;
+                    }
+                    Path child = dir.resolve((Path)event.context());
+                    if (log.isTraceEnabled()) {
+                        log.trace("{} on {}", event.kind(), child);
+                    }
+                    invalidate(child.toString());
+                    invalidateListing(dir.toString());
+
+                    if (wd.recursive && (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) &&
+                        Files.isDirectory(child)) {
+                        try {
+                            synchronized (this) {
+                                if (!closed) {
+                                    register(child, true);
+                                }
+                            }
+                        } catch (IOException ioe) {
+                            log.debug("Can't watch new directory {}: {}", child, ioe);
+                        }
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                watched.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stop watching all directories and empty the cache.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing watch service: {}", ioe);
+            }
+            watchThread.interrupt();
+        }
+        watched.clear();
+        clear();
+    }
+
+    /**
+     * Remove everything from the cache.
+     */
+    public void clear()
+    {
+        stats.clear();
+        lstats.clear();
+        listings.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of entries that have been removed because their path was changed.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Return the number of stats and directory listings currently cached.
+     */
+    public int size() {
+        return stats.size() + lstats.size() + listings.size();
+    }
+
+    /**
+     * Turn a file into a key. Files that translate to the same path on the disk must produce the
+     * same key, no matter how the path was written.
+     */
+    static String getKey(File f)
+    {
+        return Paths.get(f.getPath()).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Return a cached result. The result is either FileStats, a list of names, or an OSException
+     * error code for a path that can't be read. Return null if there is nothing in the cache.
+     */
+    Object getStats(String key, boolean noFollow)
+    {
+        return get(noFollow ? lstats : stats, key);
+    }
+
+    void putStats(String key, boolean noFollow, Object result)
+    {
+        put(noFollow ? lstats : stats, key, result);
+    }
+
+    Object getListing(String key)
+    {
+        return get(listings, key);
+    }
+
+    void putListing(String key, Object result)
+    {
+        put(listings, key, result);
+    }
+
+    private Object get(ConcurrentHashMap<String, Entry> map, String key)
+    {
+        Entry e = map.get(key);
+        if (e != null) {
+            if ((System.nanoTime() - e.expiration) < 0L) {
+                hits.incrementAndGet();
+                return e.value;
+            }
+            map.remove(key, e);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void put(ConcurrentHashMap<String, Entry> map, String key, Object value)
+    {
+        if (map.size() >= maxEntries) {
+            // Simple and cheap -- the cache will fill again with whatever is popular
+            map.clear();
+        }
+        map.put(key, new Entry(value, System.nanoTime() + ttl));
+    }
+
+    /**
+     * Remove the stats for a path. This does not change the listing of its parent.
+     */
+    void invalidate(String key)
+    {
+        boolean removed = (stats.remove(key) != null);
+        removed |= (lstats.remove(key) != null);
+        if (removed) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    void invalidateListing(String key)
+    {
+        if (listings.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove a path, its parent's listing, and, if it's a directory, its own listing.
+     */
+    void invalidateEntry(File f)
+    {
+        String key = getKey(f);
+        invalidate(key);
+        invalidateListing(key);
+        File parent = new File(key).getParentFile();
+        if (parent != null) {
+            invalidateListing(parent.getPath());
+        }
+    }
+
+    private static final class WatchedDir
+    {
+        final Path dir;
+        final boolean recursive;
+
+        WatchedDir(Path dir, boolean recursive)
+        {
+            this.dir = dir;
+            this.recursive = recursive;
+        }
+    }
+
+    private static final class Entry
+    {
+        final Object value;
+        final long expiration;
+
+        Entry(Object value, long expiration)
+        {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -67,6 +67,25 @@ public abstract class AbstractHandle
         return writeHandle(buf, handleArg, handler);
     }
 
+    @Override
+    public int writev(ByteBuffer[] bufs, IOCompletionHandler<Integer> handler)
+    {
+        // Handles that can't do a gathering write still get one write instead of one per buffer
+        if (bufs.length == 1) {
+            return write(bufs[0], handler);
+        }
+        int len = 0;
+        for (ByteBuffer b : bufs) {
+            len += b.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(len);
+        for (ByteBuffer b : bufs) {
+            all.put(b.duplicate());
+        }
+        all.flip();
+        return write(all, handler);
+    }
+
     @Override
     public int getWritesOutstanding()
     {
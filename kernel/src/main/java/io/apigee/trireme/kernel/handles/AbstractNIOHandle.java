@@ -26,8 +26,10 @@ import io.apigee.trireme.kernel.net.NetworkPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.util.ArrayDeque;
 
@@ -103,6 +105,7 @@ public abstract class AbstractNIOHandle
     public static class QueuedWrite
     {
         ByteBuffer buf;
+        ByteBuffer[] bufs;
         int length;
         IOCompletionHandler<Integer> handler;
         Object context;
@@ -116,6 +119,44 @@ public abstract class AbstractNIOHandle
             this.handler = handler;
         }
 
+        /**
+         * Create a write that will be sent using a single gathering write.
+         */
+        public QueuedWrite(ByteBuffer[] bufs, IOCompletionHandler<Integer> handler)
+        {
+            this.bufs = bufs;
+            for (ByteBuffer b : bufs) {
+                length += b.remaining();
+            }
+            this.handler = handler;
+        }
+
+        /**
+         * Write as much as possible to the channel in one call.
+         */
+        public long writeTo(GatheringByteChannel channel)
+            throws IOException
+        {
+            if (bufs == null) {
+                return channel.write(buf);
+            }
+            return channel.write(bufs);
+        }
+
+        public boolean hasRemaining()
+        {
+            if (bufs == null) {
+                return buf.hasRemaining();
+            }
+            // Check every buffer -- trailing buffers may be empty and say nothing about the rest
+            for (ByteBuffer b : bufs) {
+                if (b.hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         public ByteBuffer getBuf()
         {
             return buf;
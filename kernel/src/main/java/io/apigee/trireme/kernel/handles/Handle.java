@@ -34,6 +34,12 @@ public interface Handle
 
     int writeHandle(String s, Charset cs, Object handleArg, IOCompletionHandler<Integer> handler);
 
+    /**
+     * Write all the buffers in order as a single operation, calling the handler once when they have
+     * all been written. Returns the total number of bytes.
+     */
+    int writev(ByteBuffer[] bufs, IOCompletionHandler<Integer> handler);
+
     int getWritesOutstanding();
 
     void startReading(IOCompletionHandler<ByteBuffer> handler);
@@ -23,6 +23,7 @@ package io.apigee.trireme.kernel.handles;
 
 import io.apigee.trireme.kernel.ErrorCodes;
 import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.StreamPump;
 import io.apigee.trireme.kernel.util.PinState;
 
 import java.io.EOFException;
@@ -35,7 +36,8 @@ import java.util.concurrent.Future;
 /**
  * This class implements the generic "handle" pattern with a Java input or output stream. Different Node
  * versions wire it up to a specific handle type depending on the specific JavaScript contract required.
- * This class basically does the async I/O on the handle.
+ * This class basically does the async I/O on the handle. Normally it reads using a dedicated thread, but
+ * when it is created with a StreamPump it shares the pump's threads instead.
  */
 
 public class JavaInputStreamHandle
@@ -46,14 +48,31 @@ public class JavaInputStreamHandle
     private final InputStream in;
     private final GenericNodeRuntime runtime;
     private final PinState pinState = new PinState();
+    private final StreamPump pump;
+    private final StreamPump.Source source;
 
     private Future<?> readTask;
+    private StreamPump.Pump pumpTask;
     private volatile boolean reading;
 
     public JavaInputStreamHandle(InputStream in, GenericNodeRuntime runtime)
     {
         this.in = in;
         this.runtime = runtime;
+        this.pump = null;
+        this.source = null;
+    }
+
+    /**
+     * Read from the source using the pump, which will only read to EOF once the source says
+     * that the writer has closed.
+     */
+    public JavaInputStreamHandle(StreamPump.Source source, StreamPump pump, GenericNodeRuntime runtime)
+    {
+        this.in = source.getStream();
+        this.runtime = runtime;
+        this.pump = pump;
+        this.source = source;
     }
 
     @Override
@@ -68,6 +87,17 @@ public class JavaInputStreamHandle
         // network handles, but instead "pin" when the socket is first created.
         reading = true;
         pinState.requestPin(runtime);
+        if (pump != null) {
+            pumpTask = pump.start(source, new IOCompletionHandler<ByteBuffer>()
+            {
+                @Override
+                public void ioComplete(int errCode, ByteBuffer value)
+                {
+                    deliverResult(errCode, value, handler);
+                }
+            });
+            return;
+        }
         readTask = runtime.getUnboundedPool().submit(new Runnable()
         {
             @Override
@@ -130,6 +160,10 @@ public class JavaInputStreamHandle
         if (readTask != null) {
             readTask.cancel(true);
         }
+        if (pumpTask != null) {
+            pumpTask.cancel();
+            pumpTask = null;
+        }
     }
 
     @Override
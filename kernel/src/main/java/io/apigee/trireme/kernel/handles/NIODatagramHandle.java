@@ -39,6 +39,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
 
 public class NIODatagramHandle
     extends AbstractNIOHandle
@@ -47,11 +49,23 @@ public class NIODatagramHandle
 
     /** Realistically actual UDP packets on the Internet are not gigantic. */
     public static final int MAX_READ_BUFFER = 8192;
+    /**
+     * Datagrams are received directly into slices of a larger slab, so that we don't need to
+     * allocate and copy a new buffer for each one.
+     */
+    public static final int SLAB_SIZE = 65536;
+    /**
+     * Read no more than this many datagrams per selector wakeup, so that a busy socket can't
+     * starve everything else on the script thread. Anything left is read on the next select.
+     */
+    public static final int MAX_READS_PER_SELECT = 64;
 
     private DatagramChannel channel;
     private boolean readStarted;
     private IOCompletionHandler<ReceivedDatagram> readHandler;
-    private ByteBuffer receiveBuffer;
+    private IOCompletionHandler<List<ReceivedDatagram>> batchHandler;
+    private ByteBuffer slab;
+    private int receiveSize;
 
     public NIODatagramHandle(GenericNodeRuntime runtime)
     {
@@ -205,21 +219,44 @@ public class NIODatagramHandle
         }
     }
 
+    /**
+     * Start reading, and deliver each datagram to the handler in a separate callback.
+     */
     public void startReadingDatagrams(IOCompletionHandler<ReceivedDatagram> handler)
     {
         if (!readStarted) {
             this.readHandler = handler;
-            if (receiveBuffer == null) {
-                try {
-                    receiveBuffer =
-                        ByteBuffer.allocate(Math.min(MAX_READ_BUFFER, channel.socket().getReceiveBufferSize()));
-                } catch (SocketException ignore) {
-                    // We only get here if the channel has been closed
-                }
+            this.batchHandler = null;
+            startReading();
+        }
+    }
+
+    /**
+     * Start reading, and deliver all the datagrams read on a single selector wakeup to the
+     * handler in one callback. The buffers in the list are slices of a shared slab and must
+     * not be modified.
+     */
+    public void startReadingDatagramBatches(IOCompletionHandler<List<ReceivedDatagram>> handler)
+    {
+        if (!readStarted) {
+            this.batchHandler = handler;
+            this.readHandler = null;
+            startReading();
+        }
+    }
+
+    private void startReading()
+    {
+        if (receiveSize == 0) {
+            try {
+                receiveSize = Math.min(MAX_READ_BUFFER, channel.socket().getReceiveBufferSize());
+            } catch (SocketException ignore) {
+                // We only get here if the channel has been closed
+                receiveSize = MAX_READ_BUFFER;
             }
-            addInterest(SelectionKey.OP_READ);
-            readStarted = true;
         }
+        addInterest(SelectionKey.OP_READ);
+        readStarted = true;
     }
 
     @Override
@@ -238,32 +275,52 @@ public class NIODatagramHandle
             return;
         }
 
+        ArrayList<ReceivedDatagram> batch = null;
+        int reads = 0;
         SocketAddress addr;
         do {
-            ByteBuffer buf = null;
+            if ((slab == null) || (slab.remaining() < receiveSize)) {
+                // Previous slab is still referenced by the slices that we already handed out
+                slab = ByteBuffer.allocate(SLAB_SIZE);
+            }
+            int start = slab.position();
+            slab.limit(start + receiveSize);
             try {
-                receiveBuffer.clear();
-                addr = channel.receive(receiveBuffer);
-
+                addr = channel.receive(slab);
             } catch (IOException ioe) {
                 if (log.isDebugEnabled()) {
                     log.debug("Error reading from channel: {}", ioe, ioe);
                 }
                 addr = null;
             }
-            if (log.isDebugEnabled()) {
-                log.debug("Read from {} into {}", channel, buf);
-            }
+            int end = slab.position();
+            slab.limit(slab.capacity());
+
             if (addr != null) {
-                // Copy the contents of the receive buffer into a temporary buffer, which will
-                // almost always be much smaller. Then clear the receive buffer so we can re-use it.
-                receiveBuffer.flip();
-                ByteBuffer readBuf = ByteBuffer.allocate(receiveBuffer.remaining());
-                readBuf.put(receiveBuffer);
-                readBuf.flip();
-                readHandler.ioComplete(0, new ReceivedDatagram(readBuf, addr));
+                reads++;
+                ByteBuffer readBuf = slab.duplicate();
+                readBuf.position(start);
+                readBuf.limit(end);
+                readBuf = readBuf.slice();
+                if (log.isDebugEnabled()) {
+                    log.debug("Read from {} into {}", channel, readBuf);
+                }
+
+                ReceivedDatagram dg = new ReceivedDatagram(readBuf, addr);
+                if (batchHandler == null) {
+                    readHandler.ioComplete(0, dg);
+                } else {
+                    if (batch == null) {
+                        batch = new ArrayList<ReceivedDatagram>();
+                    }
+                    batch.add(dg);
+                }
             }
-        } while (readStarted && (addr != null));
+        } while (readStarted && (addr != null) && (reads < MAX_READS_PER_SELECT));
+
+        if ((batch != null) && (batchHandler != null)) {
+            batchHandler.ioComplete(0, batch);
+        }
     }
 
     @Override
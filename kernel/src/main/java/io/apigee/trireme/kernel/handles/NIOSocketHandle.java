@@ -238,10 +238,18 @@ public class NIOSocketHandle
         return qw.length;
     }
 
+    @Override
+    public int writev(ByteBuffer[] bufs, IOCompletionHandler<Integer> handler)
+    {
+        QueuedWrite qw = new QueuedWrite(bufs, handler);
+        offerWrite(qw);
+        return qw.length;
+    }
+
     @Override
     public void shutdown(IOCompletionHandler<Integer> handler)
     {
-        QueuedWrite qw = new QueuedWrite(null, handler);
+        QueuedWrite qw = new QueuedWrite((ByteBuffer)null, handler);
         qw.setShutdown(true);
         offerWrite(qw);
     }
@@ -249,9 +257,9 @@ public class NIOSocketHandle
     private void offerWrite(QueuedWrite qw)
     {
         if (writeQueue.isEmpty() && !qw.shutdown) {
-            int written;
+            long written;
             try {
-                written = clientChannel.write(qw.buf);
+                written = qw.writeTo(clientChannel);
             } catch (IOException ioe) {
                 // Hacky? We failed the immediate write, but the callback isn't set yet,
                 // so go back and do it later
@@ -259,9 +267,9 @@ public class NIOSocketHandle
                 return;
             }
             if (log.isDebugEnabled()) {
-                log.debug("Wrote {} to {} from {}", written, clientChannel, qw.buf);
+                log.debug("Wrote {} of {} to {}", written, qw.length, clientChannel);
             }
-            if (qw.buf.hasRemaining()) {
+            if (qw.hasRemaining()) {
                 // We didn't write the whole thing.
                 writeReady = false;
                 queueWrite(qw);
@@ -402,11 +410,11 @@ public class NIOSocketHandle
                     clientChannel.socket().shutdownOutput();
                     qw.getHandler().ioComplete(0, 0);
                 } else {
-                    int written = clientChannel.write(qw.buf);
+                    long written = qw.writeTo(clientChannel);
                     if (log.isDebugEnabled()) {
-                        log.debug("Wrote {} to {} from {}", written, clientChannel, qw.buf);
+                        log.debug("Wrote {} of {} to {}", written, qw.length, clientChannel);
                     }
-                    if (qw.buf.hasRemaining()) {
+                    if (qw.hasRemaining()) {
                         // We didn't write the whole thing -- need to keep writing.
                         writeReady = false;
                         writeQueue.addFirst(qw);
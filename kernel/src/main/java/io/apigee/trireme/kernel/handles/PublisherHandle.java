@@ -0,0 +1,233 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.Publisher;
+import io.apigee.trireme.kernel.streams.Subscriber;
+import io.apigee.trireme.kernel.streams.Subscription;
+import io.apigee.trireme.kernel.util.PinState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This handle reads from a Publisher of ByteBuffers. Unlike JavaInputStreamHandle, it doesn't need a
+ * thread: it subscribes the first time that reading starts, and asks the publisher for up to "window"
+ * buffers at a time while the handle is reading. When reading stops, it stops asking, and buffers that
+ * were already requested are held until reading starts again. Every signal from the publisher is handed
+ * to the script thread, and all the state here is only touched there.
+ */
+
+public class PublisherHandle
+    extends AbstractHandle
+    implements Subscriber<ByteBuffer>
+{
+    private static final Logger log = LoggerFactory.getLogger(PublisherHandle.class);
+
+    public static final int DEFAULT_WINDOW = 16;
+
+    private final Publisher<ByteBuffer> publisher;
+    private final GenericNodeRuntime runtime;
+    private final int window;
+    private final PinState pinState = new PinState();
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+
+    private IOCompletionHandler<ByteBuffer> handler;
+    private Subscription subscription;
+    private boolean subscribed;
+    private boolean reading;
+    private boolean closed;
+    private boolean finished;
+    private int finalErr;
+    private long requested;
+
+    public PublisherHandle(Publisher<ByteBuffer> publisher, GenericNodeRuntime runtime)
+    {
+        this(publisher, runtime, DEFAULT_WINDOW);
+    }
+
+    public PublisherHandle(Publisher<ByteBuffer> publisher, GenericNodeRuntime runtime, int window)
+    {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least one");
+        }
+        this.publisher = publisher;
+        this.runtime = runtime;
+        this.window = window;
+    }
+
+    @Override
+    public void startReading(IOCompletionHandler<ByteBuffer> handler)
+    {
+        if (reading || closed) {
+            return;
+        }
+        this.handler = handler;
+        reading = true;
+        pinState.requestPin(runtime);
+
+        if (!subscribed) {
+            subscribed = true;
+            publisher.subscribe(this);
+        } else if (!pending.isEmpty() || (finalErr != 0)) {
+            // Don't call back into "onread" while "readStart" is still running
+            runtime.executeScriptTask(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    drain();
+                }
+            }, null);
+        } else {
+            requestMore();
+        }
+    }
+
+    @Override
+    public void stopReading()
+    {
+        if (reading) {
+            reading = false;
+            pinState.clearPin(runtime);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        stopReading();
+        closed = true;
+        pending.clear();
+        if ((subscription != null) && !finished) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Ask for enough buffers to fill the window again, but only once half of it has been used up,
+     * so that a fast publisher isn't asked for one buffer at a time.
+     */
+    private void requestMore()
+    {
+        if (!reading || finished || (subscription == null)) {
+            return;
+        }
+        long held = requested + pending.size();
+        if (held <= (window / 2)) {
+            long n = window - held;
+            requested += n;
+            subscription.request(n);
+        }
+    }
+
+    private void drain()
+    {
+        while (reading && !pending.isEmpty()) {
+            handler.ioComplete(0, pending.poll());
+        }
+        if (reading && pending.isEmpty() && (finalErr != 0)) {
+            int err = finalErr;
+            finalErr = 0;
+            stopReading();
+            handler.ioComplete(err, null);
+        }
+        requestMore();
+    }
+
+    @Override
+    public void onSubscribe(final Subscription s)
+    {
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (subscription != null) {
+                    // Only one subscription is allowed by the contract
+                    s.cancel();
+                    return;
+                }
+                subscription = s;
+                if (closed) {
+                    s.cancel();
+                } else {
+                    requestMore();
+                }
+            }
+        }, null);
+    }
+
+    @Override
+    public void onNext(final ByteBuffer buf)
+    {
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                requested--;
+                if (closed || finished) {
+                    return;
+                }
+                pending.add(buf);
+                drain();
+            }
+        }, null);
+    }
+
+    @Override
+    public void onError(final Throwable t)
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Error from publisher {}: {}", publisher, t);
+        }
+        finish(ErrorCodes.EIO);
+    }
+
+    @Override
+    public void onComplete()
+    {
+        finish(ErrorCodes.EOF);
+    }
+
+    private void finish(final int err)
+    {
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (closed || finished) {
+                    return;
+                }
+                finished = true;
+                finalErr = err;
+                drain();
+            }
+        }, null);
+    }
+}
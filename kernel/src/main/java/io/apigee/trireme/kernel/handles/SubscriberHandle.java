@@ -0,0 +1,202 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.handles;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.GenericNodeRuntime;
+import io.apigee.trireme.kernel.streams.Subscriber;
+import io.apigee.trireme.kernel.streams.Subscription;
+import io.apigee.trireme.kernel.util.PinState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This handle writes to a Subscriber of ByteBuffers. Each write is copied, since the subscriber may keep
+ * the buffer, and then passed to "onNext" as soon as the subscriber has asked for it. Until then the
+ * write is queued and its completion callback isn't called, so "writeQueueSize" grows and the Node
+ * stream stops accepting writes just as it would for a slow socket. Closing the handle completes the
+ * subscriber. All the state here is only touched on the script thread.
+ */
+
+public class SubscriberHandle
+    extends AbstractHandle
+    implements Subscription
+{
+    private final Subscriber<? super ByteBuffer> subscriber;
+    private final GenericNodeRuntime runtime;
+    private final PinState pinState = new PinState();
+    private final ArrayDeque<QueuedWrite> queue = new ArrayDeque<QueuedWrite>();
+
+    private long demand;
+    private int queuedBytes;
+    private boolean subscribed;
+    private boolean cancelled;
+    private boolean closed;
+
+    public SubscriberHandle(Subscriber<? super ByteBuffer> subscriber, GenericNodeRuntime runtime)
+    {
+        this.subscriber = subscriber;
+        this.runtime = runtime;
+    }
+
+    /**
+     * Call "onSubscribe" on the subscriber. This happens on the first write if it wasn't done already.
+     */
+    public void subscribe()
+    {
+        if (!subscribed) {
+            subscribed = true;
+            subscriber.onSubscribe(this);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer buf, IOCompletionHandler<Integer> handler)
+    {
+        int len = buf.remaining();
+        if (cancelled || closed) {
+            handler.ioComplete(ErrorCodes.EPIPE, 0);
+            return 0;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        copy.put(buf);
+        copy.flip();
+        queue.add(new QueuedWrite(copy, handler));
+        queuedBytes += len;
+        pinState.requestPin(runtime);
+
+        subscribe();
+        deliver();
+        return len;
+    }
+
+    @Override
+    public int getWritesOutstanding()
+    {
+        return queuedBytes;
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pinState.clearPin(runtime);
+        if (cancelled) {
+            return;
+        }
+        subscribe();
+        if (queue.isEmpty()) {
+            subscriber.onComplete();
+        } else {
+            int dropped = queue.size();
+            queue.clear();
+            queuedBytes = 0;
+            subscriber.onError(new IOException("Stream closed with " + dropped + " writes not delivered"));
+        }
+    }
+
+    private void deliver()
+    {
+        while ((demand > 0L) && !queue.isEmpty() && !cancelled) {
+            QueuedWrite w = queue.poll();
+            demand--;
+            queuedBytes -= w.buf.remaining();
+            int len = w.buf.remaining();
+            subscriber.onNext(w.buf);
+            w.handler.ioComplete(0, len);
+        }
+        if (queue.isEmpty()) {
+            pinState.clearPin(runtime);
+        }
+    }
+
+    @Override
+    public void request(final long n)
+    {
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (cancelled || closed) {
+                    return;
+                }
+                if (n <= 0L) {
+                    cancelled = true;
+                    failQueue();
+                    subscriber.onError(new IllegalArgumentException("request must be positive"));
+                    return;
+                }
+                demand += n;
+                if (demand < 0L) {
+                    // Overflowed -- the contract says that this means "unbounded"
+                    demand = Long.MAX_VALUE;
+                }
+                deliver();
+            }
+        }, null);
+    }
+
+    @Override
+    public void cancel()
+    {
+        runtime.executeScriptTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!cancelled) {
+                    cancelled = true;
+                    failQueue();
+                }
+            }
+        }, null);
+    }
+
+    private void failQueue()
+    {
+        pinState.clearPin(runtime);
+        queuedBytes = 0;
+        QueuedWrite w;
+        while ((w = queue.poll()) != null) {
+            w.handler.ioComplete(ErrorCodes.EPIPE, 0);
+        }
+    }
+
+    private static final class QueuedWrite
+    {
+        final ByteBuffer buf;
+        final IOCompletionHandler<Integer> handler;
+
+        QueuedWrite(ByteBuffer buf, IOCompletionHandler<Integer> handler)
+        {
+            this.buf = buf;
+            this.handler = handler;
+        }
+    }
+}
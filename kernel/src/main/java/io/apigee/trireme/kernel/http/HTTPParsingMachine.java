@@ -28,11 +28,15 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 
 /**
  * This is a generic HTTP parser that obeys the basic contract expected by Node. The "HTTPParser"
  * module uses this to perform parsing in a native way for Node.
+ * <p>
+ * Parsing happens directly on the bytes of the incoming buffers. Complete lines are scanned in place
+ * without copying, and only lines that span more than one buffer are collected in a scratch array that is
+ * reused from message to message. The grammar accepted is the same as the one described in HTTPGrammar.
+ * </p>
  */
 public class HTTPParsingMachine
 {
@@ -52,28 +56,87 @@ public class HTTPParsingMachine
 
     public static final String CONNECT_METHOD = "CONNECT";
 
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+
+    private static final int INITIAL_SCRATCH_SIZE = 256;
+    // Don't hang on to the scratch space between messages if one giant line made it grow this big
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 8192;
+
+    // Character classes from HTTPGrammar, indexed by unsigned byte value
+    private static final int TOKEN = 1;
+    private static final int NOT_CTL = 2;
+    private static final int LWS = 4;
+    private static final int DIGIT = 8;
+    private static final byte[] CHAR_CLASSES = new byte[256];
+
+    private static final InternTable METHODS = new InternTable(false,
+        "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "CONNECT", "TRACE");
+
+    private static final InternTable HEADER_NAMES = new InternTable(true,
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization", "Cache-Control",
+        "Connection", "Content-Encoding", "Content-Length", "Content-Type", "Cookie", "Date", "ETag", "Expect",
+        "Expires", "Host", "If-Modified-Since", "If-None-Match", "Keep-Alive", "Last-Modified", "Location",
+        "Origin", "Pragma", "Referer", "Server", "Set-Cookie", "Trailer", "Transfer-Encoding", "Upgrade",
+        "User-Agent", "Vary", "Via", "X-Forwarded-For", "X-Forwarded-Proto", "X-Requested-With");
+
+    private static final byte[] CONTENT_LENGTH = lowerBytes("Content-Length");
+    private static final byte[] TRANSFER_ENCODING = lowerBytes("Transfer-Encoding");
+    private static final byte[] CONNECTION = lowerBytes("Connection");
+    private static final byte[] UPGRADE = lowerBytes("Upgrade");
+    private static final byte[] IDENTITY = lowerBytes("identity");
+    private static final byte[] CLOSE = lowerBytes("close");
+    private static final byte[] KEEP_ALIVE = lowerBytes("keep-alive");
+
+    static {
+        String separators = "()<>@,;:\"/[]?+{} \t\\";
+        for (int i = 0; i < 256; i++) {
+            int cls = 0;
+            if ((i >= 0x20) && (i != 0x7f)) {
+                cls |= NOT_CTL;
+                if (separators.indexOf(i) < 0) {
+                    cls |= TOKEN;
+                }
+            }
+            if ((i == ' ') || (i == '\t')) {
+                cls |= LWS;
+            }
+            if ((i >= '0') && (i <= '9')) {
+                cls |= DIGIT;
+            }
+            CHAR_CLASSES[i] = (byte)cls;
+        }
+    }
+
     private final ParsingMode     mode;
     private BodyMode              bodyMode;
     private Status                state;
-    private ByteBuffer            oddData;
+
+    // Bytes of a line that was split across buffers. "line" points either here or directly into
+    // the array of the caller's buffer.
+    private byte[]      scratch;
+    private int         scratchLen;
+    private boolean     readCR;
+    private byte[]      line;
+    private int         lineStart;
+    private int         lineEnd;
 
     // These are set on each request for the convenience of the callee.
     // HTTP headers and body are NOT to save on GC.
-    private boolean     readCR;
     private String      method;
     private String      uri;
     private int         majorVersion;
     private int         minorVersion;
     private int         statusCode;
-    private String      reasonPhrase;
     private boolean     shouldKeepAlive;
     private boolean     upgradeHeader;
     private boolean     connectionUpgrade;
     private boolean     connectMethod;
     private Map.Entry<String, String> lastHeader;
     private Map.Entry<String, String> lastTrailer;
-    private int         contentLength;
-    private int         readLength;
+    private long        contentLength;
+    private long        readLength;
 
     public HTTPParsingMachine(ParsingMode mode)
     {
@@ -94,7 +157,7 @@ public class HTTPParsingMachine
         while (true) {
             switch (state) {
             case START:
-                if (!processStart(buf, r)) {
+                if (!processStart(buf)) {
                     return r;
                 }
                 break;
@@ -145,19 +208,23 @@ public class HTTPParsingMachine
     {
         bodyMode = BodyMode.NONE;
         state = Status.START;
-        oddData = null;
+        scratchLen = 0;
+        if ((scratch != null) && (scratch.length > MAX_RETAINED_SCRATCH_SIZE)) {
+            scratch = null;
+        }
         readCR = false;
+        line = null;
 
         method = null;
         uri = null;
         majorVersion = minorVersion = 0;
         statusCode = 0;
-        reasonPhrase = null;
         shouldKeepAlive = false;
         upgradeHeader = false;
         connectionUpgrade = false;
         connectMethod = false;
         lastHeader = null;
+        lastTrailer = null;
         contentLength = 0;
         readLength = -1;
     }
@@ -185,56 +252,30 @@ public class HTTPParsingMachine
      * Process the start line -- return false if we can't get a complete line, and otherwise return true and
      * update the state as appropriate.
      */
-    private boolean processStart(ByteBuffer buf, Result r)
+    private boolean processStart(ByteBuffer buf)
     {
-        skipBlankLine(buf);
-        String startLine = readLine(buf);
-        if (startLine == null) {
-            // We don't have a complete start line yet
-            storeRemaining(buf);
-            return false;
-        }
+        do {
+            if (!readLine(buf)) {
+                // We don't have a complete start line yet
+                return false;
+            }
+            // Skip blank lines left over between pipelined requests
+        } while (lineEnd == lineStart);
 
-        Matcher m;
+        boolean ok;
         switch (mode) {
         case REQUEST:
-            m = HTTPGrammar.REQUEST_LINE_PATTERN.matcher(startLine);
-            if (!m.matches() || (m.groupCount() != 4)) {
-                state = Status.ERROR;
-                return true;
-            }
-            method = m.group(1);
-            if (CONNECT_METHOD.equalsIgnoreCase(method)) {
-                connectMethod = true;
-            }
-            uri = m.group(2);
-            try {
-                majorVersion = Integer.parseInt(m.group(3));
-                minorVersion = Integer.parseInt(m.group(4));
-            } catch (NumberFormatException nfe) {
-                state = Status.ERROR;
-                return true;
-            }
+            ok = parseRequestLine(line, lineStart, lineEnd);
             break;
-
         case RESPONSE:
-            m = HTTPGrammar.STATUS_LINE_PATTERN.matcher(startLine);
-            if (!m.matches() || (m.groupCount() < 4)) {
-                state = Status.ERROR;
-                return true;
-            }
-            try {
-                majorVersion = Integer.parseInt(m.group(1));
-                minorVersion = Integer.parseInt(m.group(2));
-                statusCode = Integer.parseInt(m.group(3));
-            } catch (NumberFormatException nfe) {
-                state = Status.ERROR;
-                return true;
-            }
-            if (m.groupCount() > 4) {
-                reasonPhrase = m.group(4).trim();
-            }
+            ok = parseStatusLine(line, lineStart, lineEnd);
             break;
+        default:
+            throw new AssertionError();
+        }
+        if (!ok) {
+            state = Status.ERROR;
+            return true;
         }
 
         // Initialize keep alive -- we will explictly check the "Connection" header later
@@ -246,6 +287,90 @@ public class HTTPParsingMachine
         return true;
     }
 
+    /**
+     * Request-Line = Method SP Request-URI SP "HTTP/" DIGIT "." DIGIT
+     */
+    private boolean parseRequestLine(byte[] b, int start, int end)
+    {
+        int p = start;
+        while ((p < end) && is(b[p], TOKEN)) {
+            p++;
+        }
+        if ((p == start) || (p == end) || (b[p] != SP)) {
+            return false;
+        }
+        method = METHODS.get(b, start, p);
+        connectMethod = CONNECT_METHOD.equalsIgnoreCase(method);
+
+        // The URI is everything up to the version at the very end, and it may itself contain spaces
+        int uriStart = p + 1;
+        int versionEnd = trimLws(b, uriStart, end);
+        int uriEnd = versionEnd - 9;
+        if ((uriEnd <= uriStart) || (b[uriEnd] != SP) || !parseVersion(b, uriEnd + 1, versionEnd)) {
+            return false;
+        }
+        for (int i = uriStart; i < uriEnd; i++) {
+            if (!is(b[i], NOT_CTL | LWS)) {
+                return false;
+            }
+        }
+        uri = new String(b, uriStart, uriEnd - uriStart, Charsets.ASCII);
+        return true;
+    }
+
+    /**
+     * Status-Line = "HTTP/" DIGIT "." DIGIT SP Status-Code [SP Reason-Phrase]
+     */
+    private boolean parseStatusLine(byte[] b, int start, int end)
+    {
+        if ((end - start < 10) || !parseVersion(b, start, start + 8) || (b[start + 8] != SP)) {
+            return false;
+        }
+        int p = start + 9;
+        long code = 0;
+        while ((p < end) && is(b[p], DIGIT)) {
+            code = (code * 10) + (b[p] - '0');
+            if (code > Integer.MAX_VALUE) {
+                return false;
+            }
+            p++;
+        }
+        if (p == start + 9) {
+            return false;
+        }
+        statusCode = (int)code;
+
+        // Node doesn't need the reason phrase, so just make sure that it's legal
+        int phraseEnd = trimLws(b, p, end);
+        if (phraseEnd > p) {
+            if (b[p] != SP) {
+                return false;
+            }
+            for (int i = p; i < phraseEnd; i++) {
+                if (!is(b[i], NOT_CTL | LWS)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse exactly "HTTP/x.y" from "start" to "end."
+     */
+    private boolean parseVersion(byte[] b, int start, int end)
+    {
+        if ((end - start != 8) ||
+            (b[start] != 'H') || (b[start + 1] != 'T') || (b[start + 2] != 'T') || (b[start + 3] != 'P') ||
+            (b[start + 4] != '/') || !is(b[start + 5], DIGIT) ||
+            (b[start + 6] == CR) || (b[start + 6] == LF) || !is(b[start + 7], DIGIT)) {
+            return false;
+        }
+        majorVersion = b[start + 5] - '0';
+        minorVersion = b[start + 7] - '0';
+        return true;
+    }
+
     /**
      * Process lines until either we can't read a complete line, or we get to the end of the headers.
      */
@@ -253,46 +378,22 @@ public class HTTPParsingMachine
     {
         ArrayList<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
         r.setHeaders(headers);
-        String line = readLine(buf);
 
-        while (line != null) {
-            if (line.isEmpty()) {
+        while (readLine(buf)) {
+            if (lineEnd == lineStart) {
                 state = Status.BODY;
                 if ((upgradeHeader && connectionUpgrade) || connectMethod) {
                     // Stop processing data after headers on a CONNECT or Upgrade
                     return false;
                 }
                 return true;
-
-            } else {
-                Matcher m = HTTPGrammar.HEADER_PATTERN.matcher(line);
-                if (m.matches() && (m.groupCount() == 2)) {
-                    Map.Entry<String, String> hdr =
-                        new AbstractMap.SimpleEntry<String, String>(m.group(1), m.group(2).trim());
-                    headers.add(hdr);
-                    lastHeader = hdr;
-                    if (!processHeader(hdr.getKey(), hdr.getValue())) {
-                        state = Status.ERROR;
-                        return true;
-                    }
-
-                } else if (lastHeader != null) {
-                    Matcher cm = HTTPGrammar.HEADER_CONTINUATION_PATTERN.matcher(line);
-                    if (cm.matches() && (cm.groupCount() == 1)) {
-                        lastHeader.setValue(lastHeader.getValue() + cm.group(1));
-                    } else {
-                        state = Status.ERROR;
-                        return true;
-                    }
-                } else {
-                    state = Status.ERROR;
-                    return true;
-                }
             }
-            line = readLine(buf);
+            if (!parseHeaderLine(headers, true)) {
+                state = Status.ERROR;
+                return true;
+            }
         }
         // If we get here then we can't read a full line and aren't done
-        storeRemaining(buf);
         return false;
     }
 
@@ -303,68 +404,97 @@ public class HTTPParsingMachine
     {
         ArrayList<Map.Entry<String, String>> trailers = new ArrayList<Map.Entry<String, String>>();
         r.setTrailers(trailers);
-        String line = readLine(buf);
 
-        while (line != null) {
-            if (line.isEmpty()) {
+        while (readLine(buf)) {
+            if (lineEnd == lineStart) {
                 state = Status.COMPLETE;
                 return true;
-
-            } else {
-                Matcher m = HTTPGrammar.HEADER_PATTERN.matcher(line);
-                if (m.matches() && (m.groupCount() == 2)) {
-                    Map.Entry<String, String> hdr =
-                        new AbstractMap.SimpleEntry<String, String>(m.group(1), m.group(2));
-                    trailers.add(hdr);
-                    lastTrailer = hdr;
-
-                } else if (lastTrailer != null) {
-                    Matcher cm = HTTPGrammar.HEADER_CONTINUATION_PATTERN.matcher(line);
-                    if (cm.matches() && (cm.groupCount() == 1)) {
-                        lastTrailer.setValue(lastTrailer.getValue() + cm.group(1));
-                    } else {
-                        state = Status.ERROR;
-                        return true;
-                    }
-                } else {
-                    state = Status.ERROR;
-                    return true;
-                }
             }
-            line = readLine(buf);
+            if (!parseHeaderLine(trailers, false)) {
+                state = Status.ERROR;
+                return true;
+            }
         }
         // If we get here then we can't read a full line and aren't done
-        storeRemaining(buf);
+        return false;
+    }
+
+    /**
+     * Parse the current line as either "name: value" or as a continuation of the last header. Header values
+     * have trailing white space removed but trailer values do not, which is what Node has always seen.
+     */
+    private boolean parseHeaderLine(List<Map.Entry<String, String>> l, boolean isHeader)
+    {
+        byte[] b = line;
+        int start = lineStart;
+        int end = lineEnd;
+
+        int p = start;
+        while ((p < end) && is(b[p], TOKEN)) {
+            p++;
+        }
+
+        if ((p > start) && (p < end) && (b[p] == ':')) {
+            int valueStart = skipLws(b, p + 1, end);
+            int valueEnd = scanValue(b, valueStart, end);
+            if (valueEnd < 0) {
+                return false;
+            }
+            if (isHeader) {
+                valueEnd = trimLws(b, valueStart, valueEnd);
+            }
+            Map.Entry<String, String> hdr =
+                new AbstractMap.SimpleEntry<String, String>(HEADER_NAMES.get(b, start, p),
+                                                            new String(b, valueStart, valueEnd - valueStart, Charsets.ASCII));
+            l.add(hdr);
+            if (isHeader) {
+                lastHeader = hdr;
+                return processHeader(b, start, p, valueStart, valueEnd);
+            }
+            lastTrailer = hdr;
+            return true;
+        }
+
+        Map.Entry<String, String> last = (isHeader ? lastHeader : lastTrailer);
+        if ((last != null) && (p == start) && is(b[start], LWS)) {
+            int valueStart = skipLws(b, start, end);
+            int valueEnd = scanValue(b, valueStart, end);
+            if (valueEnd < 0) {
+                return false;
+            }
+            last.setValue(last.getValue() + new String(b, valueStart, valueEnd - valueStart, Charsets.ASCII));
+            return true;
+        }
         return false;
     }
 
     /**
      * Treat any headers that we care about because we need to handle the rest of the protocol.
      */
-    private boolean processHeader(String key, String value)
+    private boolean processHeader(byte[] b, int nameStart, int nameEnd, int valueStart, int valueEnd)
     {
-        if (key.equalsIgnoreCase("Content-Length")) {
-            try {
-                contentLength = Integer.parseInt(value);
-            } catch (NumberFormatException nfe) {
+        if (equalsLower(b, nameStart, nameEnd, CONTENT_LENGTH)) {
+            long len = parseNumber(b, valueStart, valueEnd, 10);
+            if (len < 0) {
                 return false;
             }
+            contentLength = len;
             bodyMode = BodyMode.LENGTH;
 
-        } else if (key.equalsIgnoreCase("Transfer-Encoding")) {
-            if (!value.equalsIgnoreCase("identity")) {
+        } else if (equalsLower(b, nameStart, nameEnd, TRANSFER_ENCODING)) {
+            if (!equalsLower(b, valueStart, valueEnd, IDENTITY)) {
               bodyMode = BodyMode.CHUNKED;
             }
 
-        } else if (key.equalsIgnoreCase("Connection")) {
-            if (value.equalsIgnoreCase("close")) {
+        } else if (equalsLower(b, nameStart, nameEnd, CONNECTION)) {
+            if (equalsLower(b, valueStart, valueEnd, CLOSE)) {
                 shouldKeepAlive = false;
-            } else if (value.equalsIgnoreCase("keep-alive")) {
+            } else if (equalsLower(b, valueStart, valueEnd, KEEP_ALIVE)) {
                 shouldKeepAlive = true;
-            } else if (value.equalsIgnoreCase("upgrade")) {
+            } else if (equalsLower(b, valueStart, valueEnd, UPGRADE)) {
                 connectionUpgrade = true;
             }
-        } else if (key.equalsIgnoreCase("Upgrade")) {
+        } else if (equalsLower(b, nameStart, nameEnd, UPGRADE)) {
             upgradeHeader = true;
         }
         return true;
@@ -436,29 +566,27 @@ public class HTTPParsingMachine
      */
     private boolean processChunkHeader(ByteBuffer buf)
     {
-        String line = readLine(buf);
-        if (line == null) {
-            storeRemaining(buf);
+        if (!readLine(buf)) {
             return false;
         }
-        try {
-            String hdr = line;
-            int semi = hdr.indexOf(';');
-            if (semi > 0) {
-                hdr = line.substring(0, semi);
-            }
-            contentLength = Integer.parseInt(hdr, 16);
-            readLength = 0;
-            if (contentLength == 0) {
-                state = Status.TRAILERS;
-            } else {
-                state = Status.CHUNK_BODY;
-            }
-            return true;
-        } catch (NumberFormatException nfe) {
+        // Ignore chunk extensions
+        int end = lineStart;
+        while ((end < lineEnd) && (line[end] != ';')) {
+            end++;
+        }
+        long len = parseNumber(line, lineStart, end, 16);
+        if (len < 0) {
             state = Status.ERROR;
             return true;
         }
+        contentLength = len;
+        readLength = 0;
+        if (contentLength == 0) {
+            state = Status.TRAILERS;
+        } else {
+            state = Status.CHUNK_BODY;
+        }
+        return true;
     }
 
     /**
@@ -466,9 +594,7 @@ public class HTTPParsingMachine
      */
     private boolean processChunkTrailer(ByteBuffer buf)
     {
-        String line = readLine(buf);
-        if (line == null) {
-            storeRemaining(buf);
+        if (!readLine(buf)) {
             return false;
         }
         if (contentLength == 0) {
@@ -501,7 +627,7 @@ public class HTTPParsingMachine
 
     private boolean processChunk(ByteBuffer buf, Result r)
     {
-        int remaining = contentLength - readLength;
+        long remaining = contentLength - readLength;
         if (remaining == 0) {
             return true;
         }
@@ -523,115 +649,247 @@ public class HTTPParsingMachine
             return false;
         }
 
-        // Only process part of the incoming buffer, leaving bytes remaining
+        // Only process part of the incoming buffer, leaving bytes remaining. "remaining" fits in an int here.
         ByteBuffer chunk = buf.duplicate();
-        chunk.limit(chunk.position() + remaining);
-        buf.position(buf.position() + remaining);
+        chunk.limit(chunk.position() + (int)remaining);
+        buf.position(buf.position() + (int)remaining);
         r.setBody(chunk);
         return true;
     }
 
     /**
      * Read a single line according to the HTTP spec -- read the line up to the end of a CRLF pair (not anything
-     * else, just CRLF and exactly that) and turn it into an ASCII (not UTF-8) string. For other protocols, like SIP,
-     * we'd want to modify this.
+     * else, just CRLF and exactly that). For other protocols, like SIP, we'd want to modify this.
+     * If there is a complete line, set "line," "lineStart," and "lineEnd" to the bytes of the line without
+     * the CRLF and return true. Otherwise save the partial line in the scratch space and return false.
      */
-    private String readLine(ByteBuffer buf)
+    private boolean readLine(ByteBuffer buf)
     {
         if (buf == null) {
-            return null;
-        }
-        int p = buf.position();
-        while (p < buf.limit()) {
-            // Search for the first CRLF pair before end of buffer
-            byte b = buf.get(p);
-            if (readCR && (b == '\n')) {
-                // If we get here then "p" points to the last character in the line. Slice the buffer.
-                readCR = false;
-                ByteBuffer line = buf.duplicate();
-                p++;
-                line.limit(p);
-                buf.position(p);
-
-                // Be sure to read from the odd-data buffer as well.
-                String ret;
-                if (oddData == null) {
-                    ret = bufferToString(line);
-                } else {
-                    oddData.flip();
-                    // This is only valid because we know that the line is ASCII
-                    ret = bufferToString(oddData) + bufferToString(line);
-                    oddData.clear();
-                }
-                assert(ret.endsWith("\r\n"));
-                return ret.substring(0, ret.length() - 2);
+            return false;
+        }
+        int start = buf.position();
+        int end = findLineEnd(buf);
+        if (end < 0) {
+            appendScratch(buf, start, buf.limit());
+            buf.position(buf.limit());
+            return false;
+        }
 
-            } else if (!readCR && (b == '\r')) {
-                readCR = true;
-            } else {
-                readCR = false;
+        if ((scratchLen == 0) && buf.hasArray()) {
+            // The common case -- the whole line is in this buffer, so parse it in place
+            line = buf.array();
+            lineStart = buf.arrayOffset() + start;
+            lineEnd = buf.arrayOffset() + end - 2;
+        } else {
+            appendScratch(buf, start, end);
+            line = scratch;
+            lineStart = 0;
+            lineEnd = scratchLen - 2;
+            scratchLen = 0;
+        }
+        buf.position(end);
+        return true;
+    }
+
+    /**
+     * Return the position just past the next CRLF in the buffer, or -1 if there isn't one. A CR at the end
+     * of the last buffer counts towards a CRLF at the start of this one.
+     */
+    private int findLineEnd(ByteBuffer buf)
+    {
+        int limit = buf.limit();
+        if (buf.hasArray()) {
+            byte[] a = buf.array();
+            int off = buf.arrayOffset();
+            for (int p = buf.position(); p < limit; p++) {
+                byte b = a[off + p];
+                if (readCR && (b == LF)) {
+                    readCR = false;
+                    return p + 1;
+                }
+                readCR = (b == CR);
+            }
+        } else {
+            for (int p = buf.position(); p < limit; p++) {
+                byte b = buf.get(p);
+                if (readCR && (b == LF)) {
+                    readCR = false;
+                    return p + 1;
+                }
+                readCR = (b == CR);
             }
+        }
+        return -1;
+    }
+
+    private void appendScratch(ByteBuffer buf, int start, int end)
+    {
+        int len = end - start;
+        if (len == 0) {
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[Math.max(INITIAL_SCRATCH_SIZE, len)];
+        } else if ((scratch.length - scratchLen) < len) {
+            byte[] newScratch = new byte[Math.max(scratch.length * 2, scratchLen + len)];
+            System.arraycopy(scratch, 0, newScratch, 0, scratchLen);
+            scratch = newScratch;
+        }
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + start, scratch, scratchLen, len);
+        } else {
+            ByteBuffer src = buf.duplicate();
+            src.limit(end);
+            src.position(start);
+            src.get(scratch, scratchLen, len);
+        }
+        scratchLen += len;
+    }
+
+    private static boolean is(byte b, int cls)
+    {
+        return ((CHAR_CLASSES[b & 0xff] & cls) != 0);
+    }
+
+    private static int skipLws(byte[] b, int start, int end)
+    {
+        int p = start;
+        while ((p < end) && is(b[p], LWS)) {
             p++;
         }
-        return null;
+        return p;
     }
 
-    private String bufferToString(ByteBuffer buf)
+    private static int trimLws(byte[] b, int start, int end)
     {
-        assert(buf.hasArray());
-        return new String(buf.array(), buf.arrayOffset() + buf.position(),
-                          buf.remaining(), Charsets.ASCII);
+        int p = end;
+        while ((p > start) && is(b[p - 1], LWS)) {
+            p--;
+        }
+        return p;
     }
 
     /**
-     * Skip the first two characters in the buffer or in the "odd data" buffer if and only if
-     * they are an empty CRLF. We use this to skip extra lines in pipelined requests.
+     * A header value runs until the first control character or tab, and may only be followed by
+     * white space. Return where it ends, or -1 if it is invalid.
      */
-    private void skipBlankLine(ByteBuffer buf)
+    private static int scanValue(byte[] b, int start, int end)
     {
-        // Tricky because we have to look in two different buffers.
-        if (oddData == null) {
-            if (buf.remaining() >= 2) {
-                if ((buf.get(buf.position()) == '\r') && (buf.get(buf.position() + 1) == '\n')) {
-                    buf.position(buf.position() + 2);
-                }
-            }
-        } else if (oddData.remaining() == 1) {
-            if (buf.remaining() >= 1) {
-                if ((oddData.get(0) == '\r') && (buf.get(buf.position()) == '\n')) {
-                    oddData = null;
-                    buf.position(buf.position() + 1);
-                }
+        int p = start;
+        while ((p < end) && is(b[p], NOT_CTL)) {
+            p++;
+        }
+        if (skipLws(b, p, end) < end) {
+            return -1;
+        }
+        return p;
+    }
+
+    /**
+     * Parse a non-negative decimal or hex number that fits in a long, or return -1.
+     */
+    private static long parseNumber(byte[] b, int start, int end, int radix)
+    {
+        int maxDigits = (radix == 16) ? 15 : 18;
+        if ((start == end) || ((end - start) > maxDigits)) {
+            return -1L;
+        }
+        long val = 0;
+        for (int p = start; p < end; p++) {
+            int d = Character.digit(b[p], radix);
+            if (d < 0) {
+                return -1L;
             }
-        } else if (oddData.remaining() >= 2) {
-            if ((oddData.get(0) == '\r') && (oddData.get(1) == '\n')) {
-                oddData.position(2);
-                if (!oddData.hasRemaining()) {
-                    oddData = null;
-                }
+            val = (val * radix) + d;
+        }
+        return val;
+    }
+
+    private static byte toLower(byte b)
+    {
+        return (((b >= 'A') && (b <= 'Z')) ? (byte)(b + ('a' - 'A')) : b);
+    }
+
+    private static boolean equalsLower(byte[] b, int start, int end, byte[] lower)
+    {
+        if ((end - start) != lower.length) {
+            return false;
+        }
+        for (int i = 0; i < lower.length; i++) {
+            if (toLower(b[start + i]) != lower[i]) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static byte[] lowerBytes(String s)
+    {
+        return s.toLowerCase().getBytes(Charsets.ASCII);
     }
 
     /**
-     * Copy whatever is remaining in the current buffer into the "odd data" buffer, so that we can handle
-     * partial lines and chunks.
+     * A small table of strings that we see over and over again, like method and header names, so that
+     * we can return the same String rather than decode a new one for every message. Lookups are
+     * case-sensitive because callers see the names exactly as they were sent.
      */
-    private void storeRemaining(ByteBuffer buf)
+    private static final class InternTable
     {
-        if (buf == null) {
-            return;
+        private static final int MAX_LENGTH = 32;
+
+        private final String[][] strings = new String[MAX_LENGTH + 1][];
+        private final byte[][][] bytes = new byte[MAX_LENGTH + 1][][];
+
+        InternTable(boolean addLowerCase, String... values)
+        {
+            ArrayList<String> all = new ArrayList<String>();
+            for (String v : values) {
+                all.add(v);
+                if (addLowerCase && !v.equals(v.toLowerCase())) {
+                    all.add(v.toLowerCase());
+                }
+            }
+            for (int len = 0; len <= MAX_LENGTH; len++) {
+                ArrayList<String> bucket = new ArrayList<String>();
+                for (String v : all) {
+                    if (v.length() == len) {
+                        bucket.add(v);
+                    }
+                }
+                if (!bucket.isEmpty()) {
+                    strings[len] = bucket.toArray(new String[bucket.size()]);
+                    bytes[len] = new byte[bucket.size()][];
+                    for (int i = 0; i < bucket.size(); i++) {
+                        bytes[len][i] = bucket.get(i).getBytes(Charsets.ASCII);
+                    }
+                }
+            }
+        }
+
+        String get(byte[] b, int start, int end)
+        {
+            int len = end - start;
+            if ((len <= MAX_LENGTH) && (bytes[len] != null)) {
+                byte[][] candidates = bytes[len];
+                for (int i = 0; i < candidates.length; i++) {
+                    if (matches(candidates[i], b, start)) {
+                        return strings[len][i];
+                    }
+                }
+            }
+            return new String(b, start, len, Charsets.ASCII);
         }
-        // TODO should we slice the buffer instead and make a list of buffers?
-        if (oddData == null) {
-            oddData = ByteBuffer.allocate(buf.remaining());
-        } else if (oddData.remaining() < buf.remaining()) {
-            ByteBuffer newData = ByteBuffer.allocate(oddData.position() + buf.remaining());
-            oddData.flip();
-            newData.put(oddData);
-            oddData = newData;
+
+        private static boolean matches(byte[] candidate, byte[] b, int start)
+        {
+            for (int i = 0; i < candidate.length; i++) {
+                if (candidate[i] != b[start + i]) {
+                    return false;
+                }
+            }
+            return true;
         }
-        oddData.put(buf);
     }
 
     public class Result
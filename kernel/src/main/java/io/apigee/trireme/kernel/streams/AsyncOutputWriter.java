@@ -0,0 +1,294 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.streams;
+
+import io.apigee.trireme.kernel.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class lets scripts write to stdout and stderr without waiting for the underlying stream. Each stream
+ * gets a "Sink," which is a bounded queue of pending writes. A single writer thread, shared by every sink,
+ * drains each queue in batches, writing everything that is queued and then flushing the stream once.
+ * This way a slow log appender only slows down the writer thread rather than every script's event loop.
+ * Once the writer is shut down, sinks write on the calling thread instead, so nothing that was queued
+ * or written later is lost.
+ */
+
+public class AsyncOutputWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncOutputWriter.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * What to do when a script writes to a sink whose queue is full.
+     */
+    public enum OverflowPolicy
+    {
+        /** Block the writing thread until there is room in the queue. Nothing is lost. */
+        BLOCK,
+        /** Discard the oldest queued write to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the new write. */
+        DROP_NEWEST
+    }
+
+    private final ExecutorService writer;
+
+    public AsyncOutputWriter()
+    {
+        writer = Executors.newSingleThreadExecutor(new WriterThreadFactory());
+    }
+
+    /**
+     * Create a new sink that writes to "out." Closing the sink waits for it to drain but does not close
+     * "out".
+     *
+     * @param capacity the maximum number of writes to queue
+     * @param flushLatency if not null, the time taken to write and flush each batch is recorded here
+     */
+    public Sink createSink(OutputStream out, int capacity, OverflowPolicy policy,
+                           LatencyHistogram flushLatency)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity");
+        }
+        return new Sink(out, capacity, policy, flushLatency);
+    }
+
+    /**
+     * Stop the writer thread once it has written what is already queued.
+     */
+    public void shutdown()
+    {
+        writer.shutdown();
+    }
+
+    public class Sink
+        extends OutputStream
+        implements Runnable
+    {
+        private final OutputStream out;
+        private final int capacity;
+        private final OverflowPolicy policy;
+        private final LatencyHistogram flushLatency;
+        private final ArrayDeque<byte[]> queue;
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong droppedBytes = new AtomicLong();
+
+        private boolean scheduled;
+        private boolean closed;
+
+        Sink(OutputStream out, int capacity, OverflowPolicy policy, LatencyHistogram flushLatency)
+        {
+            this.out = out;
+            this.capacity = capacity;
+            this.policy = policy;
+            this.flushLatency = flushLatency;
+            this.queue = new ArrayDeque<byte[]>(Math.min(capacity, DEFAULT_CAPACITY));
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            if (len == 0) {
+                return;
+            }
+            // The caller may re-use its buffer as soon as we return
+            byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+
+            boolean inline = false;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Stream Closed");
+                }
+                while (queue.size() >= capacity) {
+                    switch (policy) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException ie) {
+                            throw new InterruptedIOException();
+                        }
+                        if (closed) {
+                            throw new IOException("Stream Closed");
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        byte[] old = queue.poll();
+                        dropped.incrementAndGet();
+                        droppedBytes.addAndGet(old.length);
+                        break;
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        droppedBytes.addAndGet(len);
+                        return;
+                    default:
+                        throw new AssertionError();
+                    }
+                }
+
+                queue.add(copy);
+                if (!scheduled) {
+                    scheduled = true;
+                    inline = !submit();
+                }
+            }
+            if (inline) {
+                // The writer thread was shut down, so write here instead
+                run();
+            }
+        }
+
+        /**
+         * Hand this sink to the writer thread, or return false if it has been shut down.
+         */
+        private boolean submit()
+        {
+            try {
+                writer.execute(this);
+                return true;
+            } catch (RejectedExecutionException ree) {
+                return false;
+            }
+        }
+
+        /**
+         * This does not wait for anything -- the writer thread flushes the stream after every batch.
+         */
+        @Override
+        public void flush()
+        {
+        }
+
+        /**
+         * Stop accepting writes and wait for everything that was queued to be written.
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                while (scheduled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called on the writer thread to write out one batch, or on the caller's thread, until the
+         * queue is empty, if the writer was shut down.
+         */
+        @Override
+        public void run()
+        {
+            while (true) {
+                ArrayList<byte[]> batch;
+                synchronized (this) {
+                    batch = new ArrayList<byte[]>(queue);
+                    queue.clear();
+                    // Wake up anyone blocked by the "BLOCK" policy
+                    notifyAll();
+                }
+
+                long start = System.nanoTime();
+                try {
+                    for (byte[] b : batch) {
+                        out.write(b);
+                    }
+                    out.flush();
+                } catch (IOException ioe) {
+                    log.debug("Error writing script output: {}", ioe);
+                }
+                if (flushLatency != null) {
+                    flushLatency.recordNanos(System.nanoTime() - start);
+                }
+
+                synchronized (this) {
+                    if (queue.isEmpty()) {
+                        scheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                    // Go to the back of the line so that one busy sink can't starve the others
+                    if (submit()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Return the number of writes that were discarded because the queue was full.
+         */
+        public long getDroppedWrites() {
+            return dropped.get();
+        }
+
+        public long getDroppedBytes() {
+            return droppedBytes.get();
+        }
+
+        public synchronized int getQueuedWrites() {
+            return queue.size();
+        }
+    }
+
+    private static final class WriterThreadFactory
+        implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "Trireme Output Writer");
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.streams;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, shared set of threads that reads from blocking InputStreams, such as the output of a child
+ * process, and watches child processes for exit. This replaces a dedicated thread per stream.
+ * Java can't select on these streams, so each one is polled using "available," and polled less often
+ * the longer it stays idle. The pump threads only read what "available" says is there, so a read never
+ * blocks them. Once a stream's Source has been told that the writer is gone, which for a child process means
+ * that it has exited, the rest of the stream is read to EOF on a separate thread, because the stream may
+ * still stay open for a long time -- for instance, when a grandchild of the process inherited it.
+ * Data is delivered to the handler in a new buffer that the handler may keep.
+ */
+
+public class StreamPump
+{
+    private static final Logger log = LoggerFactory.getLogger(StreamPump.class);
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int MAX_READ_SIZE = 65536;
+    public static final int FINAL_READ_SIZE = 8192;
+    /** Poll again this soon after a stream or process was last busy. */
+    public static final long MIN_POLL_DELAY_NS = 50000L;
+    /** Back off to polling this often when nothing has happened for a while. */
+    public static final long MAX_POLL_DELAY_NS = 10000000L;
+
+    private final ScheduledThreadPoolExecutor pool;
+    private final ExecutorService drainPool;
+
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicInteger activeProcesses = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+
+    public StreamPump()
+    {
+        this(DEFAULT_THREADS);
+    }
+
+    public StreamPump(int threads)
+    {
+        pool = new ScheduledThreadPoolExecutor(threads, new PumpThreadFactory("Trireme Stream Pump"));
+        drainPool = Executors.newCachedThreadPool(new PumpThreadFactory("Trireme Stream Drain"));
+    }
+
+    /**
+     * Start copying data from the source to the handler. The handler is called with an error code of
+     * zero for each chunk of data, and then once with ErrorCodes.EOF, or another error, and a null buffer.
+     * Calls for a single pump never overlap.
+     */
+    public Pump start(Source src, IOCompletionHandler<ByteBuffer> handler)
+    {
+        Pump p = new Pump(src, handler);
+        activeStreams.incrementAndGet();
+        src.pump = p;
+        p.next(0L);
+        return p;
+    }
+
+    /**
+     * Call the handler with the exit code of the process, from a pump thread, once it has exited.
+     */
+    public void watch(Process proc, IOCompletionHandler<Integer> onExit)
+    {
+        activeProcesses.incrementAndGet();
+        pool.execute(new ExitWatch(proc, onExit));
+    }
+
+    /**
+     * Stop the pump threads. Streams that are still being read are not read any more.
+     */
+    public void shutdown()
+    {
+        pool.shutdownNow();
+        drainPool.shutdownNow();
+    }
+
+    /**
+     * Return the number of streams that are being read right now.
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * Return the number of processes that are being watched right now.
+     */
+    public int getActiveProcesses() {
+        return activeProcesses.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    /**
+     * Return the number of times that a stream or process was checked and had nothing new.
+     */
+    public long getIdlePollCount() {
+        return polls.get();
+    }
+
+    /**
+     * An InputStream along with a flag that says whether whatever writes to it is gone.
+     */
+    public static class Source
+    {
+        private final InputStream in;
+        private volatile boolean writerClosed;
+        private volatile Pump pump;
+
+        public Source(InputStream in)
+        {
+            this.in = in;
+        }
+
+        public InputStream getStream() {
+            return in;
+        }
+
+        /**
+         * Say that nothing more will be written, so that reading the rest of the stream will not block.
+         */
+        public void writerClosed()
+        {
+            writerClosed = true;
+            Pump p = pump;
+            if (p != null) {
+                // Don't wait for the next poll to read the rest
+                p.wake();
+            }
+        }
+
+        public boolean isWriterClosed() {
+            return writerClosed;
+        }
+    }
+
+    public final class Pump
+    {
+        private final Source src;
+        private final IOCompletionHandler<ByteBuffer> handler;
+        private volatile boolean cancelled;
+        private long delay = MIN_POLL_DELAY_NS;
+
+        // A poll only runs if its generation is current, so that "wake" never makes two run at once
+        private int generation;
+        private boolean running;
+        private boolean woken;
+
+        Pump(Source src, IOCompletionHandler<ByteBuffer> handler)
+        {
+            this.src = src;
+            this.handler = handler;
+        }
+
+        /**
+         * Stop reading. No more data will be delivered once the current read, if any, is done.
+         */
+        public void cancel()
+        {
+            if (!cancelled) {
+                cancelled = true;
+                activeStreams.decrementAndGet();
+            }
+        }
+
+        /**
+         * Poll right away rather than waiting for the next scheduled poll.
+         */
+        synchronized void wake()
+        {
+            if (running) {
+                woken = true;
+            } else {
+                generation++;
+                pool.execute(new Poll(generation));
+            }
+        }
+
+        synchronized void next(long delayNs)
+        {
+            running = false;
+            generation++;
+            if (woken || (delayNs == 0L)) {
+                woken = false;
+                pool.execute(new Poll(generation));
+            } else {
+                pool.schedule(new Poll(generation), delayNs, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        synchronized boolean claim(int gen)
+        {
+            if ((gen != generation) || running) {
+                return false;
+            }
+            running = true;
+            return true;
+        }
+
+        void poll()
+        {
+            if (cancelled) {
+                return;
+            }
+
+            // Check this first -- if the writer closes after we check "available" then we'll be woken
+            boolean lastRead = src.isWriterClosed();
+            try {
+                int avail = src.getStream().available();
+                if ((avail == 0) && !lastRead) {
+                    polls.incrementAndGet();
+                    long d = delay;
+                    delay = Math.min(delay * 2L, MAX_POLL_DELAY_NS);
+                    next(d);
+                    return;
+                }
+
+                if (avail == 0) {
+                    // The writer is gone but the stream may not be at EOF, so this read could block for
+                    // a long time. Do it on a thread of its own. This pump stays "running" so no poll
+                    // will overlap with it.
+                    drainPool.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            drain();
+                        }
+                    });
+                    return;
+                }
+
+                if (!read(Math.min(avail, MAX_READ_SIZE))) {
+                    return;
+                }
+                // There may well be more, so check again right away
+                delay = MIN_POLL_DELAY_NS;
+                if (!cancelled) {
+                    next(0L);
+                }
+
+            } catch (EOFException eofe) {
+                complete(ErrorCodes.EOF);
+            } catch (IOException ioe) {
+                handleError(ioe);
+            }
+        }
+
+        /**
+         * Read to the end of the stream, blocking as long as necessary.
+         */
+        void drain()
+        {
+            try {
+                while (!cancelled && read(FINAL_READ_SIZE)) {
+                    // Keep going
+                }
+            } catch (EOFException eofe) {
+                complete(ErrorCodes.EOF);
+            } catch (IOException ioe) {
+                handleError(ioe);
+            }
+        }
+
+        /**
+         * Read once and deliver the result, returning false if the stream has ended.
+         */
+        private boolean read(int size)
+            throws IOException
+        {
+            byte[] buf = new byte[size];
+            int count = src.getStream().read(buf);
+            if (count < 0) {
+                complete(ErrorCodes.EOF);
+                return false;
+            }
+            if (count > 0) {
+                reads.incrementAndGet();
+                bytesRead.addAndGet(count);
+                handler.ioComplete(0, ByteBuffer.wrap(buf, 0, count));
+            }
+            return true;
+        }
+
+        private void handleError(IOException ioe)
+        {
+            if (log.isDebugEnabled()) {
+                log.debug("Error reading from {}: {}", src.getStream(), ioe);
+            }
+            complete("Stream Closed".equalsIgnoreCase(ioe.getMessage()) ? ErrorCodes.EOF : ErrorCodes.EIO);
+        }
+
+        private void complete(int err)
+        {
+            if (!cancelled) {
+                cancel();
+                handler.ioComplete(err, null);
+            }
+        }
+
+        private final class Poll
+            implements Runnable
+        {
+            private final int gen;
+
+            Poll(int gen)
+            {
+                this.gen = gen;
+            }
+
+            @Override
+            public void run()
+            {
+                if (claim(gen)) {
+                    poll();
+                }
+            }
+        }
+    }
+
+    private final class ExitWatch
+        implements Runnable
+    {
+        private final Process proc;
+        private final IOCompletionHandler<Integer> onExit;
+        private long delay = MIN_POLL_DELAY_NS;
+
+        ExitWatch(Process proc, IOCompletionHandler<Integer> onExit)
+        {
+            this.proc = proc;
+            this.onExit = onExit;
+        }
+
+        @Override
+        public void run()
+        {
+            int exitCode;
+            try {
+                exitCode = proc.exitValue();
+            } catch (IllegalThreadStateException stillRunning) {
+                polls.incrementAndGet();
+                pool.schedule(this, delay, TimeUnit.NANOSECONDS);
+                delay = Math.min(delay * 2L, MAX_POLL_DELAY_NS);
+                return;
+            }
+
+            activeProcesses.decrementAndGet();
+            onExit.ioComplete(0, exitCode);
+        }
+    }
+
+    private static final class PumpThreadFactory
+        implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PumpThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, name + ' ' + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
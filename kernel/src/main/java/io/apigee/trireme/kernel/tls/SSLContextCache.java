@@ -0,0 +1,288 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.tls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class manages the SSLContext objects used by TLS connections so that they are created as rarely
+ * as possible. Since JSSE keeps its TLS session cache inside the SSLContext, re-using a context is also
+ * what makes session resumption possible. Contexts that carry no key material (which is the case for
+ * nearly every TLS client) are shared by protocol, so that a new connection to the same host and port
+ * may resume an earlier session automatically. In addition, connections may register a session "token"
+ * so that a client that passes a saved session back in may be re-attached to the context that holds it.
+ * A single cache is thread-safe and is normally shared by every script in a NodeEnvironment.
+ * <p>
+ * Sessions are never shared between owners. The owner is normally the script's sandbox, so that scripts
+ * in different sandboxes, which may belong to different tenants, each get their own shared contexts and
+ * can't resume each other's sessions. Scripts with no sandbox all have the same "null" owner.
+ * </p>
+ */
+
+public class SSLContextCache
+{
+    private static final Logger log = LoggerFactory.getLogger(SSLContextCache.class);
+
+    /** Use the JSSE default for the session cache size. */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = -1;
+    /** Use the JSSE default for the session timeout. */
+    public static final int DEFAULT_SESSION_TIMEOUT = -1;
+    public static final int DEFAULT_MAX_TOKENS = 1000;
+
+    private static final Object NO_OWNER = new Object();
+
+    // Weak, so that contexts go away along with the sandbox that owns them
+    private final WeakHashMap<Object, HashMap<String, SSLContext>> sharedContexts =
+        new WeakHashMap<Object, HashMap<String, SSLContext>>();
+    private final TokenMap tokens;
+
+    private volatile int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    private volatile int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+    private final AtomicLong contextsCreated = new AtomicLong();
+    private final AtomicLong contextsReused = new AtomicLong();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    public SSLContextCache()
+    {
+        this(DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * Create a cache that remembers at most "maxTokens" saved sessions.
+     */
+    public SSLContextCache(int maxTokens)
+    {
+        this.tokens = new TokenMap(maxTokens);
+    }
+
+    /**
+     * Set the maximum number of sessions that each SSLContext will cache, or zero for no limit.
+     * This only affects contexts created after the call.
+     */
+    public void setSessionCacheSize(int size) {
+        this.sessionCacheSize = size;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Set the number of seconds that a cached session may be resumed, or zero for no limit.
+     * This only affects contexts created after the call.
+     */
+    public void setSessionTimeout(int seconds) {
+        this.sessionTimeout = seconds;
+    }
+
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Create a new context with the session settings of this cache applied.
+     */
+    public SSLContext createContext(String protocol, KeyManager[] keyManagers,
+                                    TrustManager[] trustManagers)
+        throws NoSuchAlgorithmException, KeyManagementException
+    {
+        return createContext(protocol, keyManagers, trustManagers, sessionTimeout);
+    }
+
+    /**
+     * Create a new context with the session settings of this cache, but with a different session timeout.
+     */
+    public SSLContext createContext(String protocol, KeyManager[] keyManagers,
+                                    TrustManager[] trustManagers, int timeout)
+        throws NoSuchAlgorithmException, KeyManagementException
+    {
+        SSLContext ctx = SSLContext.getInstance(protocol);
+        ctx.init(keyManagers, trustManagers, null);
+        configure(ctx.getClientSessionContext(), timeout);
+        configure(ctx.getServerSessionContext(), timeout);
+        contextsCreated.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Created a new SSLContext {} for {}", ctx, protocol);
+        }
+        return ctx;
+    }
+
+    private void configure(SSLSessionContext sc, int timeout)
+    {
+        if (sc == null) {
+            return;
+        }
+        if (sessionCacheSize >= 0) {
+            sc.setSessionCacheSize(sessionCacheSize);
+        }
+        if (timeout >= 0) {
+            sc.setSessionTimeout(timeout);
+        }
+    }
+
+    /**
+     * Return the context that is shared by every connection with the same owner that uses the specified
+     * protocol and has no key managers of its own. All callers must pass equivalent trust managers -- in
+     * practice these are trust managers that accept everything, and the actual verification takes place
+     * after the handshake.
+     */
+    public SSLContext getSharedContext(Object owner, String protocol, TrustManager[] trustManagers)
+        throws NoSuchAlgorithmException, KeyManagementException
+    {
+        synchronized (sharedContexts) {
+            Object key = (owner == null ? NO_OWNER : owner);
+            HashMap<String, SSLContext> contexts = sharedContexts.get(key);
+            if (contexts == null) {
+                contexts = new HashMap<String, SSLContext>();
+                sharedContexts.put(key, contexts);
+            }
+            SSLContext ctx = contexts.get(protocol);
+            if (ctx == null) {
+                ctx = createContext(protocol, null, trustManagers);
+                contexts.put(protocol, ctx);
+            } else {
+                contextsReused.incrementAndGet();
+            }
+            return ctx;
+        }
+    }
+
+    /**
+     * Record that a context was re-used by a new connection rather than created again.
+     */
+    public void recordReuse() {
+        contextsReused.incrementAndGet();
+    }
+
+    /**
+     * Remember that the session identified by "token" lives in the specified context.
+     */
+    public void putSession(Object owner, byte[] token, SSLContext ctx)
+    {
+        synchronized (tokens) {
+            tokens.put(ByteBuffer.wrap(token.clone()), new SessionEntry(owner, ctx));
+        }
+    }
+
+    /**
+     * Find the context that holds the session identified by "token," or null if it is not known or
+     * belongs to a different owner.
+     */
+    public SSLContext getSession(Object owner, byte[] token, int offset, int length)
+    {
+        synchronized (tokens) {
+            SessionEntry e = tokens.get(ByteBuffer.wrap(token, offset, length));
+            if ((e == null) || (e.owner.get() != (owner == null ? NO_OWNER : owner))) {
+                return null;
+            }
+            return e.context;
+        }
+    }
+
+    /**
+     * Record the result of a completed handshake.
+     */
+    public void recordHandshake(boolean resumed)
+    {
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the number of SSLContexts that have been created.
+     */
+    public long getContextsCreated() {
+        return contextsCreated.get();
+    }
+
+    /**
+     * Return the number of times that an existing SSLContext was used instead of creating one.
+     */
+    public long getContextsReused() {
+        return contextsReused.get();
+    }
+
+    /**
+     * Return the number of handshakes that did not resume a previous session.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Return the number of handshakes that resumed a previous session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    private static final class SessionEntry
+    {
+        final WeakReference<Object> owner;
+        final SSLContext context;
+
+        SessionEntry(Object owner, SSLContext context)
+        {
+            this.owner = new WeakReference<Object>(owner == null ? NO_OWNER : owner);
+            this.context = context;
+        }
+    }
+
+    private static final class TokenMap
+        extends LinkedHashMap<ByteBuffer, SessionEntry>
+    {
+        private final int maxSize;
+
+        TokenMap(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SessionEntry> eldest)
+        {
+            return size() > maxSize;
+        }
+    }
+}
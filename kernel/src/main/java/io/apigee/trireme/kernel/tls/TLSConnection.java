@@ -25,6 +25,7 @@ import io.apigee.trireme.kernel.BiCallback;
 import io.apigee.trireme.kernel.Callback;
 import io.apigee.trireme.kernel.GenericNodeRuntime;
 import io.apigee.trireme.kernel.TriCallback;
+import io.apigee.trireme.kernel.util.BufferPool;
 import io.apigee.trireme.kernel.util.BufferUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,11 +35,13 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.X509TrustManager;
 import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.SecureRandom;
 import java.util.ArrayDeque;
 
 /**
@@ -52,6 +55,15 @@ public class TLSConnection
 
     private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
+    /** Wrap up to this many TLS records into one buffer before delivering it. */
+    private static final int WRITE_RECORDS = 4;
+    /** Idle buffers kept for all connections in the process. */
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final BufferPool bufferPool = new BufferPool(MAX_POOLED_BUFFERS);
+    private static final int TOKEN_LEN = 32;
+    private static final String SESSION_MARK = "io.apigee.trireme.handshakeComplete";
+    private static final SecureRandom tokenRandom = new SecureRandom();
+
     private final ArrayDeque<TLSChunk> outgoing = new ArrayDeque<TLSChunk>();
     private final ArrayDeque<TLSChunk> incoming = new ArrayDeque<TLSChunk>();
 
@@ -68,12 +80,19 @@ public class TLSConnection
     private Callback<Void> onHandshakeDone;
     private Callback<SSLException> onError;
 
+    private SSLContextCache contextCache;
+    private Object cacheOwner;
+    private SSLContext context;
     private SSLEngine engine;
     private X509TrustManager trustManager;
+    private int packetSize;
     private ByteBuffer writeBuf;
     private ByteBuffer readBuf;
 
     private boolean handshaking;
+    private long handshakeStart;
+    private boolean sessionReused;
+    private byte[] sessionToken;
     private boolean initFinished;
     private boolean sentShutdown;
     private boolean receivedShutdown;
@@ -97,6 +116,7 @@ public class TLSConnection
                      X509TrustManager trustManager)
     {
         this.trustManager = trustManager;
+        this.context = ctx;
 
         if (!isServer && (serverName != null)) {
             engine = ctx.createSSLEngine(serverName, serverPort);
@@ -116,11 +136,8 @@ public class TLSConnection
             log.debug("Created SSLEngine {}", engine);
         }
 
-        if (log.isDebugEnabled()) {
-            log.debug("Allocating read and write buffers of size {}", engine.getSession().getPacketBufferSize());
-        }
-        readBuf = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
-        writeBuf = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        // The read and write buffers are borrowed from the pool only while records are being processed
+        packetSize = engine.getSession().getPacketBufferSize();
 
         // Do this last because we still want the previous initialization to succeed
         // to simplify error handling
@@ -138,6 +155,21 @@ public class TLSConnection
         }
     }
 
+    /**
+     * Set a cache that will be told about every completed handshake, and which will remember which
+     * context holds the session that it produced. Only connections with the same owner, which is
+     * normally the script's sandbox, may resume that session.
+     */
+    public void setContextCache(SSLContextCache cache, Object owner)
+    {
+        this.contextCache = cache;
+        this.cacheOwner = owner;
+    }
+
+    public SSLContext getContext() {
+        return context;
+    }
+
     public void setWriteCallback(TriCallback<ByteBuffer, Boolean, Object> cb) {
         this.writeCallback = cb;
     }
@@ -170,6 +202,26 @@ public class TLSConnection
         return initFinished;
     }
 
+    /**
+     * Return true if the last completed handshake resumed a previous session rather than creating a new one.
+     */
+    public boolean isSessionReused() {
+        return sessionReused;
+    }
+
+    /**
+     * Return an opaque value that identifies the current session, which may be passed to
+     * SSLContextCache.getSession to find the context that will resume it. Returns null if the
+     * handshake has not completed.
+     */
+    public byte[] getSessionToken() {
+        return sessionToken;
+    }
+
+    public SSLSession getSession() {
+        return (engine == null ? null : engine.getSession());
+    }
+
     public boolean isSentShutdown() {
         return sentShutdown;
     }
@@ -266,6 +318,8 @@ public class TLSConnection
 
     /**
      * Wrap whatever is on the head of the outgoing queue, and return false if we should stop further processing.
+     * As long as there is room, consecutive records -- either handshake messages or a large chunk of
+     * data that spans several records -- are wrapped into the same buffer and delivered together.
      */
     private boolean doWrap()
     {
@@ -276,36 +330,43 @@ public class TLSConnection
             bb = EMPTY;
         }
 
+        if (writeBuf == null) {
+            writeBuf = bufferPool.get(packetSize * WRITE_RECORDS);
+        }
+
         boolean wasShutdown = false;
         SSLEngineResult result;
         do {
-            if ((qc != null) && qc.isShutdown()) {
-                log.trace("Sending closeOutbound");
-                engine.closeOutbound();
-                sentShutdown = true;
-                wasShutdown = true;
-            }
+            do {
+                if ((qc != null) && qc.isShutdown() && !wasShutdown) {
+                    log.trace("Sending closeOutbound");
+                    engine.closeOutbound();
+                    sentShutdown = true;
+                    wasShutdown = true;
+                }
 
-            if (log.isTraceEnabled()) {
-                log.trace("Wrapping {}", bb);
-            }
-            try {
-                result = engine.wrap(bb, writeBuf);
-            } catch (SSLException ssle) {
-                handleEncodingError(qc, ssle);
-                if (qc != null) {
-                    outgoing.remove();
+                if (log.isTraceEnabled()) {
+                    log.trace("Wrapping {}", bb);
+                }
+                try {
+                    result = engine.wrap(bb, writeBuf);
+                } catch (SSLException ssle) {
+                    handleEncodingError(qc, ssle);
+                    if (qc != null) {
+                        outgoing.remove();
+                    }
+                    releaseWriteBuffer();
+                    return false;
                 }
-                return false;
-            }
 
-            if (log.isTraceEnabled()) {
-                log.trace("wrap result: {}", result);
-            }
-            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
-                writeBuf = BufferUtils.doubleBuffer(writeBuf);
-            }
-        } while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+                if (log.isTraceEnabled()) {
+                    log.trace("wrap result: {}", result);
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
+                }
+            } while (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+        } while (canWrapMore(result, bb));
 
         Callback<Object> cb = null;
         if ((qc != null) && !bb.hasRemaining() && initFinished) {
@@ -320,21 +381,49 @@ public class TLSConnection
             processNotHandshaking();
         }
 
-        if (result.bytesProduced() > 0) {
+        // The handshake callback might have re-entered and delivered the buffer already
+        if ((writeBuf != null) && (writeBuf.position() > 0)) {
             // Deliver write callback in JavaScript after we are happy with reading
             deliverWriteBuffer(wasShutdown, cb);
-        } else if (cb != null) {
-            cb.call(null);
+        } else {
+            releaseWriteBuffer();
+            if (cb != null) {
+                cb.call(null);
+            }
         }
 
         return (result.getStatus() == SSLEngineResult.Status.OK);
     }
 
+    /**
+     * Decide whether to wrap another record into the current write buffer. We stop when the handshake
+     * finishes so that "processNotHandshaking" sees the same state that it always has.
+     */
+    private boolean canWrapMore(SSLEngineResult result, ByteBuffer bb)
+    {
+        if ((result.getStatus() != SSLEngineResult.Status.OK) || (result.bytesProduced() == 0) ||
+            (writeBuf.remaining() < packetSize)) {
+            return false;
+        }
+        switch (result.getHandshakeStatus()) {
+        case NEED_WRAP:
+            return true;
+        case NOT_HANDSHAKING:
+            return bb.hasRemaining();
+        default:
+            return false;
+        }
+    }
+
     private boolean doUnwrap()
     {
         TLSChunk qc = incoming.peek();
         ByteBuffer bb = (qc == null ? EMPTY : qc.getBuf());
 
+        if (readBuf == null) {
+            readBuf = bufferPool.get(packetSize);
+        }
+
         SSLEngineResult result;
         do {
             do {
@@ -346,6 +435,7 @@ public class TLSConnection
                     result = engine.unwrap(bb, readBuf);
                 } catch (SSLException ssle) {
                     handleEncodingError(qc, ssle);
+                    releaseReadBuffer();
                     return false;
                 }
 
@@ -364,6 +454,10 @@ public class TLSConnection
                 Callback<Object> cb = qc.removeCallback();
                 if (cb != null) {
                     cb.call(null);
+                    if (readBuf == null) {
+                        // We were called again and delivered the buffer that we were using
+                        readBuf = bufferPool.get(packetSize);
+                    }
                 }
 
                 // Now combine the first two chunks on the queue if they exist
@@ -401,8 +495,10 @@ public class TLSConnection
             processNotHandshaking();
         }
 
-        if ((result.bytesProduced() > 0) || deliverShutdown) {
+        if (((readBuf != null) && (readBuf.position() > 0)) || deliverShutdown) {
             deliverReadBuffer(deliverShutdown);
+        } else {
+            releaseReadBuffer();
         }
 
         return (result.getStatus() == SSLEngineResult.Status.OK);
@@ -412,23 +508,25 @@ public class TLSConnection
     {
         if (writeCallback != null) {
             ByteBuffer bb;
-            if (writeBuf.position() > 0) {
-                writeBuf.flip();
-                bb = ByteBuffer.allocate(writeBuf.remaining());
-                bb.put(writeBuf);
-                writeBuf.clear();
-                bb.flip();
+            if ((writeBuf != null) && (writeBuf.position() > 0)) {
+                bb = takeBuffer(writeBuf);
+                if (bb == writeBuf) {
+                    writeBuf = null;
+                } else {
+                    releaseWriteBuffer();
+                }
                 if (log.isTraceEnabled()) {
                     log.trace("Delivering {} bytes to the onwrap callback. shutdown = {}",
                               bb.remaining(), shutdown);
                 }
             } else {
                 bb = null;
+                releaseWriteBuffer();
             }
             writeCallback.call(bb, shutdown, cb);
 
         } else {
-            writeBuf.clear();
+            releaseWriteBuffer();
             if (cb != null) {
                 cb.call(null);
             }
@@ -439,24 +537,59 @@ public class TLSConnection
     {
         if (readCallback != null) {
             ByteBuffer bb;
-            if (readBuf.position() > 0) {
-                readBuf.flip();
-                bb = ByteBuffer.allocate(readBuf.remaining());
-                bb.put(readBuf);
-                bb.flip();
-                readBuf.clear();
+            if ((readBuf != null) && (readBuf.position() > 0)) {
+                bb = takeBuffer(readBuf);
+                if (bb == readBuf) {
+                    readBuf = null;
+                } else {
+                    releaseReadBuffer();
+                }
                 if (log.isTraceEnabled()) {
                     log.trace("Delivering {} bytes to the onunwrap callback. shutdown = {}",
                               bb.remaining(), shutdown);
                 }
             } else {
                 bb = null;
+                releaseReadBuffer();
             }
 
             readCallback.call(bb, shutdown);
 
         } else {
-            readBuf.clear();
+            releaseReadBuffer();
+        }
+    }
+
+    /**
+     * Return the data in a borrowed buffer so that it may be handed to the callback. If the buffer is
+     * mostly full then it is handed over as-is, with no copy, and the caller must not return it to the pool.
+     * Otherwise it is cheaper to copy the data and keep the big buffer.
+     */
+    private static ByteBuffer takeBuffer(ByteBuffer buf)
+    {
+        buf.flip();
+        if (buf.remaining() >= (buf.capacity() / 2)) {
+            return buf;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(buf.remaining());
+        bb.put(buf);
+        bb.flip();
+        return bb;
+    }
+
+    private void releaseWriteBuffer()
+    {
+        if (writeBuf != null) {
+            bufferPool.release(writeBuf);
+            writeBuf = null;
+        }
+    }
+
+    private void releaseReadBuffer()
+    {
+        if (readBuf != null) {
+            bufferPool.release(readBuf);
+            readBuf = null;
         }
     }
 
@@ -464,6 +597,7 @@ public class TLSConnection
     {
         if (!handshaking && !sentShutdown && !receivedShutdown) {
             handshaking = true;
+            handshakeStart = System.currentTimeMillis();
             if (onHandshakeStart != null) {
                 onHandshakeStart.call(null);
             }
@@ -476,12 +610,53 @@ public class TLSConnection
             checkPeerAuthorization();
             handshaking = false;
             initFinished = true;
+            recordSession();
             if (onHandshakeDone != null) {
                 onHandshakeDone.call(null);
             }
         }
     }
 
+    /**
+     * JSSE has no "isResumed" method, so every session is marked once a handshake on it completes.
+     * When JSSE resumes a session it hands back that same session, or for TLS 1.3 a copy with the
+     * same values, so the mark is there. A server that resumes from a stateless session ticket rebuilds
+     * the session from the ticket instead, which drops the mark but keeps the time that the original
+     * session was created -- which is before this handshake started, unlike a brand-new session.
+     */
+    private void recordSession()
+    {
+        SSLSession session = engine.getSession();
+        if (session.getValue(SESSION_MARK) != null) {
+            sessionReused = true;
+        } else {
+            sessionReused = (isServer && (session.getCreationTime() < handshakeStart));
+            session.putValue(SESSION_MARK, Boolean.TRUE);
+        }
+
+        byte[] id = session.getId();
+        if ((id == null) || (id.length == 0)) {
+            if (sessionToken == null) {
+                // TLS 1.3 and ticket-based sessions may have no ID, so make up one for this connection
+                sessionToken = new byte[TOKEN_LEN];
+                tokenRandom.nextBytes(sessionToken);
+            }
+        } else {
+            sessionToken = id;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Handshake complete. Session reused = {}", sessionReused);
+        }
+        if (contextCache != null) {
+            contextCache.recordHandshake(sessionReused);
+            if (!isServer) {
+                // Only clients choose which session to resume
+                contextCache.putSession(cacheOwner, sessionToken, context);
+            }
+        }
+    }
+
     /**
      * Run tasks that will block SSLEngine in the thread pool, so that the script thread can
      * keep on trucking. Then return back to the real world.
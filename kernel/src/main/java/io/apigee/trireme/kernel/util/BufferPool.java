@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of heap buffers. Code that needs a large buffer only while an operation is in
+ * progress borrows one and gives it back when done, so that thousands of idle connections do not each hold
+ * on to their own. A buffer that is handed off somewhere else simply is not released, and the
+ * pool allocates a new one next time. The pool holds at most a fixed number of idle buffers.
+ */
+
+public class BufferPool
+{
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+    private final int maxBuffers;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public BufferPool(int maxBuffers)
+    {
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Return an empty buffer with a capacity of at least "minSize."
+     */
+    public ByteBuffer get(int minSize)
+    {
+        ByteBuffer buf;
+        synchronized (buffers) {
+            buf = buffers.poll();
+        }
+        if ((buf == null) || (buf.capacity() < minSize)) {
+            // A buffer that is too small is dropped, so that the pool converges on the largest size in use
+            allocations.incrementAndGet();
+            return ByteBuffer.allocate(minSize);
+        }
+        reuses.incrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use it again.
+     */
+    public void release(ByteBuffer buf)
+    {
+        buf.clear();
+        synchronized (buffers) {
+            if (buffers.size() < maxBuffers) {
+                buffers.push(buf);
+            }
+        }
+    }
+
+    /**
+     * Return the number of idle buffers in the pool.
+     */
+    public int size()
+    {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    public long getReuseCount() {
+        return reuses.get();
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of durations, meant to be cheap enough to update on every pass through an
+ * event loop. Values are recorded in microseconds into power-of-two buckets, so recording takes a couple
+ * of atomic increments and no allocation, and percentiles are accurate to within a factor of two.
+ * Any number of threads may record and read at once; a snapshot taken while values are being recorded
+ * may be very slightly inconsistent.
+ */
+
+public class LatencyHistogram
+{
+    /** Bucket "n" holds values less than 2^n microseconds, so the last one tops out at about 35 minutes. */
+    public static final int NUM_BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit)
+    {
+        recordMicros(unit.toMicros(duration));
+    }
+
+    public void recordNanos(long nanos)
+    {
+        recordMicros(nanos / 1000L);
+    }
+
+    public void recordMicros(long micros)
+    {
+        long v = (micros < 0L ? 0L : micros);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(v), NUM_BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(v);
+
+        long curMax = max.get();
+        while ((v > curMax) && !max.compareAndSet(curMax, v)) {
+            curMax = max.get();
+        }
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public Snapshot getSnapshot()
+    {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.get(), total.get(), max.get());
+    }
+
+    /**
+     * An immutable copy of the histogram. All values are in microseconds. This class follows JavaBean
+     * conventions so that it may be returned from an MXBean.
+     */
+    public static class Snapshot
+    {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long total, long max)
+        {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMicros() {
+            return total;
+        }
+
+        public long getMaxMicros() {
+            return max;
+        }
+
+        public double getMeanMicros()
+        {
+            return (count == 0L ? 0.0 : (double)total / (double)count);
+        }
+
+        public long getMedianMicros() {
+            return getPercentile(0.5);
+        }
+
+        public long get90thPercentileMicros() {
+            return getPercentile(0.9);
+        }
+
+        public long get99thPercentileMicros() {
+            return getPercentile(0.99);
+        }
+
+        /**
+         * Return the upper bound of the bucket that contains the given fraction (between 0 and 1)
+         * of the recorded values, but no more than the largest value ever seen.
+         */
+        public long getPercentile(double fraction)
+        {
+            long sum = 0L;
+            for (long c : counts) {
+                sum += c;
+            }
+            if (sum == 0L) {
+                return 0L;
+            }
+
+            long target = (long)Math.ceil(sum * fraction);
+            long seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    long upper = (i == 0 ? 0L : (1L << i) - 1L);
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "count=" + count + " mean=" + Math.round(getMeanMicros()) + "us p50=" + getMedianMicros() +
+                   "us p99=" + get99thPercentileMicros() + "us max=" + max + "us";
+        }
+    }
+}
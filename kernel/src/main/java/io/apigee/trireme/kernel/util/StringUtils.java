@@ -22,12 +22,13 @@
 package io.apigee.trireme.kernel.util;
 
 import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.util.regex.Matcher;
@@ -45,6 +46,26 @@ public class StringUtils
      */
     public static String bufferToString(ByteBuffer buf, Charset cs)
     {
+        if (Charsets.BASE64.equals(cs) || Charsets.NODE_HEX.equals(cs)) {
+            // These have dedicated codecs that size the output exactly
+            byte[] bytes;
+            int offset;
+            int len = buf.remaining();
+            if (buf.hasArray()) {
+                bytes = buf.array();
+                offset = buf.arrayOffset() + buf.position();
+            } else {
+                bytes = new byte[len];
+                buf.duplicate().get(bytes);
+                offset = 0;
+            }
+            buf.position(buf.limit());
+            if (Charsets.BASE64.equals(cs)) {
+                return Base64Codec.encode(bytes, offset, len);
+            }
+            return HexCodec.encode(bytes, offset, len);
+        }
+
         if (buf.hasArray()) {
             // For common character sets like ASCII and UTF-8, this is actually much more efficient
             String s = new String(buf.array(),
@@ -114,37 +135,19 @@ public class StringUtils
     }
 
     /**
-     * Using a CharsetEncoder, translate a string to a ByteBuffer, allocating a new buffer
-     * as necessary.
+     * Translate a string to a ByteBuffer, allocating a new buffer as necessary.
      */
     public static ByteBuffer stringToBuffer(String str, Charset cs)
     {
         if (Charsets.BASE64.equals(cs)) {
-            // Special handling for Base64 -- ignore unmappable characters
-            CharsetEncoder enc = Charsets.get().getEncoder(cs);
-            enc.onMalformedInput(CodingErrorAction.REPORT);
-            enc.onUnmappableCharacter(CodingErrorAction.IGNORE);
-
-            CharBuffer chars = CharBuffer.wrap(str);
-            int bufLen = (int)(chars.remaining() * enc.averageBytesPerChar());
-            ByteBuffer writeBuf =  ByteBuffer.allocate(bufLen);
-
-            CoderResult result;
-            do {
-                result = enc.encode(chars, writeBuf, true);
-                if (result.isOverflow()) {
-                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
-                }
-            } while (result.isOverflow());
-            do {
-                result = enc.flush(writeBuf);
-                if (result.isOverflow()) {
-                    writeBuf = BufferUtils.doubleBuffer(writeBuf);
-                }
-            } while (result.isOverflow());
-
-            writeBuf.flip();
-            return writeBuf;
+            // Base64 ignores whitespace and illegal characters, so count exactly what we will produce
+            return ByteBuffer.wrap(Base64Codec.decode(str));
+        }
+        if (Charsets.NODE_HEX.equals(cs)) {
+            // Stop at the first invalid hex digit, as Node does
+            byte[] hex = new byte[HexCodec.decodedLength(str)];
+            int len = HexCodec.decode(str, hex, 0, hex.length);
+            return ByteBuffer.wrap(hex, 0, len);
         }
 
         // Use default decoding options, and this is optimized for common charsets as well
@@ -0,0 +1,64 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.streams.AsyncOutputWriter;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+public class AsyncOutputWriterTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF8");
+
+    @Test
+    public void testWrite()
+        throws Exception
+    {
+        AsyncOutputWriter writer = new AsyncOutputWriter();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AsyncOutputWriter.Sink sink =
+                writer.createSink(out, 4, AsyncOutputWriter.OverflowPolicy.BLOCK, null);
+            for (int i = 0; i < 100; i++) {
+                sink.write((i + "\n").getBytes(UTF8));
+            }
+            sink.close();
+            assertEquals(expected(0, 100), new String(out.toByteArray(), UTF8));
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteAfterShutdown()
+        throws Exception
+    {
+        AsyncOutputWriter writer = new AsyncOutputWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncOutputWriter.Sink sink =
+            writer.createSink(out, 4, AsyncOutputWriter.OverflowPolicy.BLOCK, null);
+        for (int i = 0; i < 50; i++) {
+            sink.write((i + "\n").getBytes(UTF8));
+        }
+        writer.shutdown();
+
+        // Nothing is rejected or lost once the writer thread is gone
+        for (int i = 50; i < 100; i++) {
+            sink.write((i + "\n").getBytes(UTF8));
+        }
+        sink.close();
+        assertEquals(expected(0, 100), new String(out.toByteArray(), UTF8));
+        assertEquals(0, sink.getQueuedWrites());
+    }
+
+    private static String expected(int start, int end)
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            s.append(i).append('\n');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.util.BufferPool;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest
+{
+    @Test
+    public void testReuse()
+    {
+        BufferPool pool = new BufferPool(2);
+        ByteBuffer b1 = pool.get(100);
+        assertEquals(100, b1.capacity());
+        b1.put((byte)1);
+        pool.release(b1);
+        assertEquals(1, pool.size());
+
+        ByteBuffer b2 = pool.get(50);
+        assertSame(b1, b2);
+        assertEquals(0, b2.position());
+        assertEquals(b2.capacity(), b2.remaining());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+    }
+
+    @Test
+    public void testLimits()
+    {
+        BufferPool pool = new BufferPool(2);
+        pool.release(ByteBuffer.allocate(10));
+        pool.release(ByteBuffer.allocate(10));
+        pool.release(ByteBuffer.allocate(10));
+        assertEquals(2, pool.size());
+
+        // Too small, so it is dropped and a bigger one is allocated
+        ByteBuffer big = pool.get(20);
+        assertEquals(20, big.capacity());
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.getAllocationCount());
+    }
+}
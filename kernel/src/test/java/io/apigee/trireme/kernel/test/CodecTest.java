@@ -0,0 +1,186 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.Base64Codec;
+import io.apigee.trireme.kernel.charsets.HexCodec;
+import io.apigee.trireme.kernel.charsets.SingleByteCodec;
+import io.apigee.trireme.kernel.charsets.Utf8Codec;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CodecTest
+{
+    private static final Random rand = new Random(1234L);
+
+    @Test
+    public void testBase64MatchesCharset()
+    {
+        for (int len = 0; len < 100; len++) {
+            byte[] b = randomBytes(len);
+            String expected = new String(b, Charsets.BASE64);
+            String encoded = Base64Codec.encode(b, 0, b.length);
+            assertEquals(expected, encoded);
+            assertEquals(encoded.length(), Base64Codec.encodedLength(len, false));
+
+            assertEquals(len, Base64Codec.decodedLength(encoded));
+            assertArrayEquals(b, Base64Codec.decode(encoded));
+            assertArrayEquals(encoded.getBytes(Charsets.BASE64), Base64Codec.decode(encoded));
+        }
+    }
+
+    @Test
+    public void testBase64Offset()
+    {
+        byte[] b = randomBytes(50);
+        String expected = new String(Arrays.copyOfRange(b, 7, 27), Charsets.BASE64);
+        assertEquals(expected, Base64Codec.encode(b, 7, 20));
+
+        byte[] out = new byte[30];
+        int written = Base64Codec.decode(expected, out, 5, 25);
+        assertEquals(20, written);
+        assertArrayEquals(Arrays.copyOfRange(b, 7, 27), Arrays.copyOfRange(out, 5, 25));
+    }
+
+    @Test
+    public void testBase64UrlSafe()
+    {
+        byte[] b = { (byte)0xfb, (byte)0xff, (byte)0xbf, (byte)0xfe };
+        String encoded = Base64Codec.encode(b, 0, b.length, true);
+        assertEquals("-_-__g", encoded);
+        assertEquals(encoded.length(), Base64Codec.encodedLength(b.length, true));
+        assertArrayEquals(b, Base64Codec.decode(encoded));
+        assertArrayEquals(b, Base64Codec.decode("+/+//g=="));
+
+        for (int len = 0; len < 20; len++) {
+            byte[] r = randomBytes(len);
+            String e = Base64Codec.encode(r, 0, len, true);
+            assertEquals(e.length(), Base64Codec.encodedLength(len, true));
+            assertArrayEquals(r, Base64Codec.decode(e));
+        }
+    }
+
+    @Test
+    public void testBase64Skipped()
+    {
+        assertEquals("Man", new String(Base64Codec.decode(" T W\nF\tu== "), Charsets.ASCII));
+        assertEquals("Man", new String(Base64Codec.decode("T.W{F}ué"), Charsets.ASCII));
+        assertEquals(0, Base64Codec.decode("").length);
+        assertEquals(0, Base64Codec.decode("K").length);
+    }
+
+    @Test
+    public void testBase64Tail()
+    {
+        // Trailing bits that don't make a complete byte are dropped, as in Node
+        assertArrayEquals(new byte[] { 0x41 }, Base64Codec.decode("QR"));
+        assertEquals(2, Base64Codec.decodedLength("aaa="));
+        assertEquals(3, Base64Codec.decodedLength("aaaa=="));
+        assertEquals("**", new String(Base64Codec.decode("Kio"), Charsets.ASCII));
+        assertEquals("*****", new String(Base64Codec.decode("KioqKio"), Charsets.ASCII));
+    }
+
+    @Test
+    public void testBase64Truncated()
+    {
+        byte[] out = new byte[3];
+        Arrays.fill(out, (byte)'x');
+        assertEquals(1, Base64Codec.decode("aaaaaa", out, 0, 1));
+        assertEquals('x', out[1]);
+        assertEquals(2, Base64Codec.decode("aaaaaaaa", out, 1, 2));
+    }
+
+    @Test
+    public void testHexMatchesCharset()
+    {
+        for (int len = 0; len < 100; len++) {
+            byte[] b = randomBytes(len);
+            String expected = new String(b, Charsets.NODE_HEX);
+            String encoded = HexCodec.encode(b, 0, b.length);
+            assertEquals(expected, encoded);
+
+            byte[] decoded = new byte[HexCodec.decodedLength(encoded)];
+            assertEquals(len, HexCodec.decode(encoded, decoded, 0, decoded.length));
+            assertArrayEquals(b, decoded);
+
+            byte[] upper = new byte[len];
+            assertEquals(len, HexCodec.decode(encoded.toUpperCase(), upper, 0, len));
+            assertArrayEquals(b, upper);
+        }
+    }
+
+    @Test
+    public void testHexInvalid()
+    {
+        byte[] out = new byte[4];
+        assertEquals(1, HexCodec.decode("ab0g12", out, 0, out.length));
+        assertEquals((byte)0xab, out[0]);
+        assertEquals(2, HexCodec.decode("abcde", out, 0, out.length));
+        assertEquals(1, HexCodec.decode("abcdef", out, 0, 1));
+        assertFalse(HexCodec.isEvenLength("abcde"));
+        assertTrue(HexCodec.isEvenLength("abcdef"));
+        assertTrue(HexCodec.isEvenLength(""));
+    }
+
+    @Test
+    public void testUtf8MatchesGetBytes()
+    {
+        String[] strs = {
+            "", "Hello, World!", "Il \u00e9tait tu\u00e9", "\u3042\u3044\u3046\u3048",
+            "\ud83d\ude00 smile", "ab\ud800cd", "trailing\ud83d", "\udc00lone low",
+            "mixed \u00ff\u0800\uffff\ud800\udc00!"
+        };
+        for (String s : strs) {
+            byte[] expected = s.getBytes(Charsets.UTF8);
+            assertEquals(s, expected.length, Utf8Codec.encodedLength(s));
+
+            byte[] out = new byte[expected.length + 2];
+            long result = Utf8Codec.encode(s, out, 1, expected.length);
+            assertEquals(s.length(), Utf8Codec.charsRead(result));
+            assertEquals(expected.length, Utf8Codec.bytesWritten(result));
+            assertArrayEquals(expected, Arrays.copyOfRange(out, 1, expected.length + 1));
+        }
+    }
+
+    @Test
+    public void testUtf8Partial()
+    {
+        // Each of these is three bytes, and we never write part of one
+        byte[] out = new byte[9];
+        long result = Utf8Codec.encode("\u3042\u3044\u3046\u3048", out, 0, 8);
+        assertEquals(2, Utf8Codec.charsRead(result));
+        assertEquals(6, Utf8Codec.bytesWritten(result));
+
+        // A surrogate pair is two chars but four bytes
+        result = Utf8Codec.encode("a\ud83d\ude00b", out, 0, 4);
+        assertEquals(1, Utf8Codec.charsRead(result));
+        assertEquals(1, Utf8Codec.bytesWritten(result));
+        result = Utf8Codec.encode("a\ud83d\ude00b", out, 0, 5);
+        assertEquals(3, Utf8Codec.charsRead(result));
+        assertEquals(5, Utf8Codec.bytesWritten(result));
+
+        result = Utf8Codec.encode("abcdef", out, 0, 0);
+        assertEquals(0, Utf8Codec.charsRead(result));
+        assertEquals(0, Utf8Codec.bytesWritten(result));
+    }
+
+    @Test
+    public void testSingleByte()
+    {
+        byte[] out = new byte[4];
+        assertEquals(3, SingleByteCodec.encodeBinary("a\u00ff\u0141", out, 0, 4));
+        assertArrayEquals(new byte[] { 'a', (byte)0xff, 0x41, 0 }, out);
+        assertEquals(2, SingleByteCodec.encodeAscii("\u00e9tait", out, 1, 2));
+        assertArrayEquals(new byte[] { 'a', '?', 't', 0 }, out);
+    }
+
+    private static byte[] randomBytes(int len)
+    {
+        byte[] b = new byte[len];
+        rand.nextBytes(b);
+        return b;
+    }
+}
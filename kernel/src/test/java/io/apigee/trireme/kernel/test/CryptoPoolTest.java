@@ -0,0 +1,121 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.crypto.CryptoPool;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class CryptoPoolTest
+{
+    @Test
+    public void testMetrics()
+        throws InterruptedException
+    {
+        CryptoPool pool = new CryptoPool(1, 10);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                pool.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ie) {
+                            throw new AssertionError(ie);
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+
+            // One thread, so two tasks are stuck in the queue
+            assertEquals(3, pool.getSubmittedCount());
+            assertEquals(2, pool.getQueueDepth());
+            Thread.sleep(20L);
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            // "completed" is counted just after the task returns
+            long timeout = System.currentTimeMillis() + 10000L;
+            while ((pool.getCompletedCount() < 3) && (System.currentTimeMillis() < timeout)) {
+                Thread.sleep(1L);
+            }
+            assertEquals(3, pool.getCompletedCount());
+            assertEquals(0, pool.getQueueDepth());
+            assertTrue(pool.getMaxWaitTime(TimeUnit.MILLISECONDS) >= 20L);
+            assertTrue(pool.getAverageRunTime(TimeUnit.NANOSECONDS) > 0L);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallerRuns()
+        throws InterruptedException
+    {
+        CryptoPool pool = new CryptoPool(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread me = Thread.currentThread();
+        final boolean[] ranHere = new boolean[1];
+
+        try {
+            Runnable blocker = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ie) {
+                        throw new AssertionError(ie);
+                    }
+                }
+            };
+            pool.execute(blocker);
+            pool.execute(blocker);
+            // Thread busy and queue full, so this one runs right here
+            pool.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ranHere[0] = (Thread.currentThread() == me);
+                }
+            });
+            assertTrue(ranHere[0]);
+            assertEquals(1, pool.getCallerRunCount());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdown()
+    {
+        CryptoPool pool = new CryptoPool(1, 1);
+        pool.shutdown();
+        try {
+            pool.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    fail("Task should not run");
+                }
+            });
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException ree) {
+            // Expected -- the caller can now tell its own caller that the task won't run
+        }
+        assertEquals(0L, pool.getCallerRunCount());
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.crypto.Digests;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class DigestsTest
+{
+    @Test
+    public void testClonedDigests()
+        throws GeneralSecurityException
+    {
+        byte[] data = "Hello, World!".getBytes();
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+        MessageDigest md1 = Digests.getDigest("SHA-256");
+        MessageDigest md2 = Digests.getDigest("SHA-256");
+        assertNotSame(md1, md2);
+
+        // Updating one clone must not affect the other one or the prototype
+        md1.update(data);
+        assertArrayEquals(expected, md1.digest());
+        assertArrayEquals(expected, md2.digest(data));
+        assertArrayEquals(expected, Digests.getDigest("SHA-256").digest(data));
+    }
+
+    @Test
+    public void testClonedMacs()
+        throws GeneralSecurityException
+    {
+        byte[] data = "Hello, World!".getBytes();
+        SecretKeySpec key = new SecretKeySpec("secret".getBytes(), "HmacSHA1");
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(key);
+        byte[] expected = mac.doFinal(data);
+
+        Mac m1 = Digests.getMac("HmacSHA1");
+        m1.init(key);
+        assertArrayEquals(expected, m1.doFinal(data));
+        Mac m2 = Digests.getMac("HmacSHA1");
+        m2.init(key);
+        assertArrayEquals(expected, m2.doFinal(data));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testBadAlgorithm()
+        throws GeneralSecurityException
+    {
+        Digests.getDigest("NOT-A-DIGEST");
+    }
+}
@@ -0,0 +1,287 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.BasicFilesystem;
+import io.apigee.trireme.kernel.fs.CachingFilesystem;
+import io.apigee.trireme.kernel.fs.FileConstants;
+import io.apigee.trireme.kernel.fs.FileStats;
+import io.apigee.trireme.kernel.fs.FilesystemImage;
+import io.apigee.trireme.kernel.fs.ImageFilesystem;
+import io.apigee.trireme.kernel.fs.StatCache;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ImageFilesystemTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF8");
+    private static final String HELLO = "Hello, World!";
+
+    private static FilesystemImage image;
+
+    @BeforeClass
+    public static void buildImage()
+    {
+        image = new FilesystemImage.Builder().
+            addFile("main.js", "require('./lib/foo');".getBytes(UTF8), 1000L).
+            addFile("lib/foo.js", HELLO.getBytes(UTF8), 2000L).
+            addFile("lib/bar.js", new byte[0], 3000L).
+            addDirectory("empty", 4000L).
+            build();
+    }
+
+    private static File base()
+    {
+        return new File("./target/imagetest");
+    }
+
+    private static ImageFilesystem readOnly()
+    {
+        return new ImageFilesystem(image, base(), new BasicFilesystem(), false);
+    }
+
+    @Test
+    public void testIndex()
+    {
+        assertEquals(6, image.size());
+        assertEquals(HELLO.length() + 21, image.getTotalSize());
+        assertTrue(image.get("").isDirectory());
+        assertEquals(Arrays.asList("empty", "lib", "main.js"), image.get("").getChildren());
+        assertEquals(Arrays.asList("bar.js", "foo.js"), image.get("lib").getChildren());
+        assertNull(image.get("lib/baz.js"));
+    }
+
+    @Test
+    public void testStat()
+        throws OSException
+    {
+        ImageFilesystem fs = readOnly();
+        FileStats s = fs.stat(new File(base(), "lib/foo.js"), "/lib/foo.js", false);
+        assertEquals(HELLO.length(), s.getSize());
+        assertEquals(2000L, s.getMtime());
+        assertEquals(FileConstants.S_IFREG, s.getMode() & FileConstants.S_IFMT);
+
+        s = fs.stat(new File(base(), "lib/../empty"), "/empty", false);
+        assertEquals(FileConstants.S_IFDIR, s.getMode() & FileConstants.S_IFMT);
+        s = fs.stat(base(), "/", false);
+        assertEquals(FileConstants.S_IFDIR, s.getMode() & FileConstants.S_IFMT);
+
+        try {
+            fs.stat(new File(base(), "nothere"), "/nothere", false);
+            fail("Expected ENOENT");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.ENOENT, ose.getCode());
+        }
+    }
+
+    @Test
+    public void testReaddir()
+        throws OSException
+    {
+        ImageFilesystem fs = readOnly();
+        assertEquals(Arrays.asList("bar.js", "foo.js"), fs.readdir(new File(base(), "lib"), "/lib"));
+        assertTrue(fs.readdir(new File(base(), "empty"), "/empty").isEmpty());
+        try {
+            fs.readdir(new File(base(), "main.js"), "/main.js");
+            fail("Expected ENOTDIR");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.ENOTDIR, ose.getCode());
+        }
+    }
+
+    @Test
+    public void testRead()
+        throws OSException
+    {
+        ImageFilesystem fs = readOnly();
+        int fd = fs.open(new File(base(), "lib/foo.js"), "/lib/foo.js", FileConstants.O_RDONLY, 0, 0);
+        assertEquals(HELLO.length(), fs.fstat(fd, false).getSize());
+
+        ByteBuffer buf = ByteBuffer.allocate(5);
+        assertEquals(5, fs.read(fd, buf, 0));
+        assertEquals("Hello", new String(buf.array(), UTF8));
+        buf.clear();
+        assertEquals(5, fs.read(fd, buf, 7));
+        assertEquals("World", new String(buf.array(), UTF8));
+        buf.clear();
+        assertEquals(1, fs.read(fd, buf, 12));
+        buf.clear();
+        assertEquals(0, fs.read(fd, buf, 13));
+
+        fs.close(fd);
+        try {
+            fs.read(fd, buf, 0);
+            fail("Expected EBADF");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.EBADF, ose.getCode());
+        }
+    }
+
+    @Test
+    public void testReadOnly()
+        throws OSException
+    {
+        ImageFilesystem fs = readOnly();
+        assertErrorCode(ErrorCodes.EROFS, fs, "main.js", FileConstants.O_WRONLY);
+        assertErrorCode(ErrorCodes.EROFS, fs, "main.js", FileConstants.O_RDWR);
+        assertErrorCode(ErrorCodes.ENOENT, fs, "new.js", FileConstants.O_WRONLY | FileConstants.O_CREAT);
+        try {
+            fs.unlink(new File(base(), "main.js"), "/main.js");
+            fail("Expected EROFS");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.EROFS, ose.getCode());
+        }
+        try {
+            fs.mkdir(new File(base(), "newdir"), "/newdir", 0777, 0);
+            fail("Expected EROFS");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.EROFS, ose.getCode());
+        }
+        assertFalse(new File(base(), "newdir").exists());
+    }
+
+    private static void assertErrorCode(int code, ImageFilesystem fs, String name, int flags)
+    {
+        try {
+            fs.open(new File(base(), name), '/' + name, flags, 0666, 0);
+            fail("Expected error " + code);
+        } catch (OSException ose) {
+            assertEquals(code, ose.getCode());
+        }
+    }
+
+    @Test
+    public void testOverlay()
+        throws OSException
+    {
+        File overlayBase = new File("./target/imageoverlay");
+        deleteTree(overlayBase);
+        assertTrue(overlayBase.mkdirs());
+        ImageFilesystem fs = new ImageFilesystem(image, overlayBase, new BasicFilesystem(), true);
+
+        // Opening an image file for append copies it to the disk first
+        File foo = new File(overlayBase, "lib/foo.js");
+        int fd = fs.open(foo, "/lib/foo.js", FileConstants.O_WRONLY | FileConstants.O_APPEND, 0666, 0);
+        fs.write(fd, ByteBuffer.wrap("!!".getBytes(UTF8)), fs.updatePosition(fd, 2));
+        fs.close(fd);
+        assertTrue(foo.exists());
+        assertEquals(HELLO.length() + 2, fs.stat(foo, "/lib/foo.js", false).getSize());
+        // ...but the image itself never changes
+        assertEquals(HELLO.length(), image.get("lib/foo.js").getStats().getSize());
+
+        // New files are created on the disk and show up alongside those from the image
+        File baz = new File(overlayBase, "lib/baz.js");
+        fd = fs.open(baz, "/lib/baz.js", FileConstants.O_WRONLY | FileConstants.O_CREAT, 0666, 0);
+        fs.close(fd);
+        List<String> names = fs.readdir(new File(overlayBase, "lib"), "/lib");
+        assertEquals(Arrays.asList("bar.js", "baz.js", "foo.js"), names);
+
+        fs.unlink(baz, "/lib/baz.js");
+        assertFalse(baz.exists());
+        try {
+            fs.unlink(new File(overlayBase, "lib/bar.js"), "/lib/bar.js");
+            fail("Expected EROFS");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.EROFS, ose.getCode());
+        }
+        deleteTree(overlayBase);
+    }
+
+    @Test
+    public void testOverlayWithStatCache()
+        throws OSException
+    {
+        File overlayBase = new File("./target/imagecached");
+        deleteTree(overlayBase);
+        assertTrue(overlayBase.mkdirs());
+        BasicFilesystem disk = new CachingFilesystem(new BasicFilesystem(), new StatCache(1, TimeUnit.MINUTES));
+        ImageFilesystem fs = new ImageFilesystem(image, overlayBase, disk, true);
+
+        // Descriptors from the image and from the disk under the cache must never collide
+        int imageFd = fs.open(new File(overlayBase, "lib/foo.js"), "/lib/foo.js", FileConstants.O_RDONLY, 0, 0);
+        File real = new File(overlayBase, "real.txt");
+        int diskFd = fs.open(real, "/real.txt", FileConstants.O_WRONLY | FileConstants.O_CREAT, 0666, 0);
+        assertFalse(imageFd == diskFd);
+
+        fs.write(diskFd, ByteBuffer.wrap("12345".getBytes(UTF8)), 0);
+        assertEquals(5, fs.fstat(diskFd, false).getSize());
+        assertEquals(HELLO.length(), fs.fstat(imageFd, false).getSize());
+
+        fs.close(diskFd);
+        ByteBuffer buf = ByteBuffer.allocate(5);
+        assertEquals(5, fs.read(imageFd, buf, 0));
+        assertEquals("Hello", new String(buf.array(), UTF8));
+        fs.close(imageFd);
+        try {
+            fs.fstat(diskFd, false);
+            fail("Expected EBADF");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.EBADF, ose.getCode());
+        }
+        deleteTree(overlayBase);
+    }
+
+    @Test
+    public void testOutsideBase()
+        throws OSException
+    {
+        ImageFilesystem fs = readOnly();
+        File real = new File("./target/test-classes/logback.xml");
+        FileStats s = fs.stat(real, real.getPath(), false);
+        assertEquals(real.length(), s.getSize());
+    }
+
+    @Test
+    public void testFromZip()
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        zos.putNextEntry(new ZipEntry("META-INF/"));
+        zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        zos.write("Manifest-Version: 1.0\n".getBytes(UTF8));
+        zos.putNextEntry(new ZipEntry("node/"));
+        zos.putNextEntry(new ZipEntry("node/lib/foo.js"));
+        zos.write(HELLO.getBytes(UTF8));
+        zos.putNextEntry(new ZipEntry("node/main.js"));
+        zos.write("require('./lib/foo');".getBytes(UTF8));
+        zos.close();
+
+        FilesystemImage zi = FilesystemImage.fromZip(new ByteArrayInputStream(bos.toByteArray()), "/node/");
+        assertEquals(4, zi.size());
+        assertEquals(Arrays.asList("lib", "main.js"), zi.get("").getChildren());
+        ByteBuffer contents = zi.get("lib/foo.js").getContents();
+        byte[] b = new byte[contents.remaining()];
+        contents.get(b);
+        assertEquals(HELLO, new String(b, UTF8));
+        assertNull(zi.get("META-INF"));
+
+        zi = FilesystemImage.fromZip(new ByteArrayInputStream(bos.toByteArray()), null);
+        assertEquals(Arrays.asList("META-INF", "node"), zi.get("").getChildren());
+    }
+
+    private static void deleteTree(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        f.delete();
+    }
+}
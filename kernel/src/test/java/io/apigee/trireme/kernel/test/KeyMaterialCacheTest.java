@@ -0,0 +1,98 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.crypto.KeyMaterialCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+public class KeyMaterialCacheTest
+{
+    @Test
+    public void testKeys()
+    {
+        String k1 = KeyMaterialCache.makeKey("cert", "one");
+        assertEquals(k1, KeyMaterialCache.makeKey("cert", "one"));
+        assertFalse(k1.equals(KeyMaterialCache.makeKey("key", "one")));
+        assertFalse(k1.equals(KeyMaterialCache.makeKey("cert", "one", null)));
+        assertFalse(KeyMaterialCache.makeKey("cert", "ab", "c").equals(KeyMaterialCache.makeKey("cert", "a", "bc")));
+        assertFalse(KeyMaterialCache.makeKey("cert", "a", null).equals(KeyMaterialCache.makeKey("cert", "a", "")));
+
+        byte[] store = "keystore".getBytes(Charsets.UTF8);
+        String s1 = KeyMaterialCache.makeKey("store", store, 0, store.length, "secret");
+        assertEquals(s1, KeyMaterialCache.makeKey("store", store, 0, store.length, "secret"));
+        assertFalse(s1.equals(KeyMaterialCache.makeKey("store", store, 0, store.length, "other")));
+        assertFalse(s1.equals(KeyMaterialCache.makeKey("store", store, 0, store.length, null)));
+        assertFalse(s1.equals(KeyMaterialCache.makeKey("store", store, 1, store.length - 1, "secret")));
+    }
+
+    @Test
+    public void testHits()
+        throws Exception
+    {
+        KeyMaterialCache cache = new KeyMaterialCache();
+        CountingLoader loader = new CountingLoader("value");
+
+        assertEquals("value", cache.get("a", loader));
+        assertEquals("value", cache.get("a", loader));
+        assertEquals("value", cache.get("a", loader));
+        assertEquals(1, loader.count);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.getTimeSaved(TimeUnit.MILLISECONDS) >= 20L);
+    }
+
+    @Test
+    public void testEviction()
+        throws Exception
+    {
+        KeyMaterialCache cache = new KeyMaterialCache(2);
+        CountingLoader loader = new CountingLoader("value");
+
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.get("a", loader);
+        // "b" is now the least recently used
+        cache.get("c", loader);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, loader.count);
+
+        cache.get("a", loader);
+        assertEquals(3, loader.count);
+        cache.get("b", loader);
+        assertEquals(4, loader.count);
+
+        cache.setMaxEntries(0);
+        assertEquals(0, cache.size());
+        cache.get("a", loader);
+        cache.get("a", loader);
+        assertEquals(6, loader.count);
+    }
+
+    private static final class CountingLoader
+        implements KeyMaterialCache.Loader<String>
+    {
+        private final String value;
+        int count;
+
+        CountingLoader(String value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public String load()
+        {
+            count++;
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException ie) {
+                throw new AssertionError(ie);
+            }
+            return value;
+        }
+    }
+}
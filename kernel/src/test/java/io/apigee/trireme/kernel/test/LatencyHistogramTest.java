@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.util.LatencyHistogram;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void testEmpty()
+    {
+        LatencyHistogram.Snapshot s = new LatencyHistogram().getSnapshot();
+        assertEquals(0L, s.getCount());
+        assertEquals(0L, s.getMaxMicros());
+        assertEquals(0L, s.getMedianMicros());
+        assertEquals(0.0, s.getMeanMicros(), 0.0);
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            h.recordMicros(10L);
+        }
+        h.record(5L, TimeUnit.MILLISECONDS);
+
+        LatencyHistogram.Snapshot s = h.getSnapshot();
+        assertEquals(100L, s.getCount());
+        assertEquals(5000L, s.getMaxMicros());
+        assertEquals(((99 * 10) + 5000) / 100.0, s.getMeanMicros(), 0.001);
+        // Percentiles are reported as the top of their power-of-two bucket
+        assertEquals(15L, s.getMedianMicros());
+        assertEquals(15L, s.get99thPercentileMicros());
+        assertEquals(5000L, s.getPercentile(1.0));
+
+        h.clear();
+        assertEquals(0L, h.getCount());
+        assertEquals(0L, h.getSnapshot().getMaxMicros());
+    }
+
+    @Test
+    public void testExtremes()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        h.recordNanos(-100L);
+        h.recordNanos(999L);
+        h.recordMicros(Long.MAX_VALUE / 2);
+        LatencyHistogram.Snapshot s = h.getSnapshot();
+        assertEquals(3L, s.getCount());
+        assertEquals(0L, s.getMedianMicros());
+        assertEquals(Long.MAX_VALUE / 2, s.getMaxMicros());
+    }
+}
@@ -184,4 +184,104 @@ public class PathTranslatorTest
         assertTrue(globalFile.exists());
         assertEquals(realFile.getCanonicalPath(), globalFile.getCanonicalPath());
     }
+
+    @Test
+    public void testLeadingDotDotEscape()
+        throws IOException
+    {
+        PathTranslator trans = new PathTranslator("./target/test-classes");
+        assertNull(trans.translate("/../io"));
+        assertNull(trans.translate("/../test-classes/io"));
+    }
+
+    @Test
+    public void testWorkingDirCache()
+        throws IOException
+    {
+        PathTranslator trans = new PathTranslator("./target/test-classes");
+        trans.setWorkingDir("/io/apigee");
+        File xl = trans.translate("trireme/kernel/test/PathTranslatorTest.class");
+        File realFile = new File("./target/test-classes/io/apigee/trireme/kernel/test/PathTranslatorTest.class");
+        assertEquals(realFile.getCanonicalPath(), xl.getCanonicalPath());
+        assertEquals(xl, trans.translate("trireme/kernel/test/PathTranslatorTest.class"));
+
+        trans.setWorkingDir("/io/apigee/trireme");
+        xl = trans.translate("trireme/kernel/test/PathTranslatorTest.class");
+        assertFalse(xl.exists());
+        xl = trans.translate("kernel/test/PathTranslatorTest.class");
+        assertEquals(realFile.getCanonicalPath(), xl.getCanonicalPath());
+
+        trans.setWorkingDir("/");
+        assertNull(trans.translate("../io"));
+        assertNull(trans.translate("../io"));
+    }
+
+    @Test
+    public void testReverseCanonical()
+        throws IOException
+    {
+        PathTranslator trans = new PathTranslator("./target/test-classes");
+        File realFile = new File("./target/test-classes/global/foo.txt");
+        String canon = realFile.getCanonicalPath();
+        String expected = File.separator + "global" + File.separator + "foo.txt";
+        assertEquals(expected, trans.reverseTranslate(realFile.getPath()));
+        assertEquals(expected, trans.reverseTranslate(canon, true));
+        assertNull(trans.reverseTranslate(new File("./target").getCanonicalPath(), true));
+        assertNull(trans.reverseTranslate(new File("./target/test-classes-other").getCanonicalPath(), true));
+    }
+
+    @Test
+    public void testMountBoundary()
+        throws IOException
+    {
+        if (Platform.get().isWindows()) {
+            System.out.println("Mount is currently not supported on Windows");
+            return;
+        }
+        PathTranslator trans = new PathTranslator("./target/test-classes");
+        trans.mount("/opt", new File("./target/test-classes/global"));
+        File xl = trans.translate("/optional/foo.txt");
+        File realFile = new File("./target/test-classes/optional/foo.txt");
+        assertEquals(realFile.getCanonicalPath(), xl.getCanonicalPath());
+    }
+
+    @Test
+    public void testMountEscape()
+        throws IOException
+    {
+        if (Platform.get().isWindows()) {
+            System.out.println("Mount is currently not supported on Windows");
+            return;
+        }
+        PathTranslator trans = new PathTranslator("./target/test-classes");
+        trans.mount("/opt", new File("./target/test-classes/global"));
+        // Climbing out of the mount lands back in the root, not next to the mounted directory
+        File xl = trans.translate("/opt/../logback.xml");
+        File realFile = new File("./target/test-classes/logback.xml");
+        assertEquals(realFile.getCanonicalPath(), xl.getCanonicalPath());
+        assertNull(trans.translate("/opt/../../logback.xml"));
+    }
+
+    @Test
+    public void testNestedMount()
+        throws IOException
+    {
+        if (Platform.get().isWindows()) {
+            System.out.println("Mount is currently not supported on Windows");
+            return;
+        }
+        PathTranslator trans = new PathTranslator();
+        trans.mount("/usr", new File("./target"));
+        trans.mount("/usr/lib", new File("./target/test-classes/global"));
+
+        File realFile = new File("./target/test-classes/global/foo.txt");
+        File globalFile = trans.translate("/usr/lib/foo.txt");
+        assertTrue(globalFile.exists());
+        assertEquals(realFile.getCanonicalPath(), globalFile.getCanonicalPath());
+
+        realFile = new File("./target/test-classes/logback.xml");
+        globalFile = trans.translate("/usr/test-classes/logback.xml");
+        assertTrue(globalFile.exists());
+        assertEquals(realFile.getCanonicalPath(), globalFile.getCanonicalPath());
+    }
 }
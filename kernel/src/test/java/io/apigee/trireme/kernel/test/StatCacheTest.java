@@ -0,0 +1,174 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.fs.AdvancedFilesystem;
+import io.apigee.trireme.kernel.fs.CachingFilesystem;
+import io.apigee.trireme.kernel.fs.FileConstants;
+import io.apigee.trireme.kernel.fs.StatCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class StatCacheTest
+{
+    private static final File DIR = new File("./target/statcachetest");
+
+    private StatCache cache;
+    private CachingFilesystem fs;
+
+    @Before
+    public void init()
+    {
+        deleteTree(DIR);
+        assertTrue(DIR.mkdirs());
+        cache = new StatCache(1, TimeUnit.HOURS);
+        fs = new CachingFilesystem(new AdvancedFilesystem(), cache);
+    }
+
+    @After
+    public void cleanup()
+    {
+        cache.close();
+        fs.cleanup();
+        deleteTree(DIR);
+    }
+
+    @Test
+    public void testHitsAndMisses()
+        throws OSException
+    {
+        fs.readdir(DIR, "/");
+        fs.stat(DIR, "/", false);
+        assertEquals(0L, cache.getHitCount());
+        assertEquals(2L, cache.getMissCount());
+
+        fs.stat(DIR, "/", false);
+        fs.stat(new File(DIR, "./foo/.."), "/", false);
+        fs.readdir(DIR, "/");
+        assertEquals(3L, cache.getHitCount());
+        assertEquals(2L, cache.getMissCount());
+
+        // lstat is cached separately
+        fs.stat(DIR, "/", true);
+        assertEquals(3L, cache.getMissCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testOwnWrites()
+        throws OSException
+    {
+        File f = new File(DIR, "foo.txt");
+        assertNotFound(f);
+        assertNotFound(f);
+        assertEquals(1L, cache.getHitCount());
+        assertTrue(fs.readdir(DIR, "/").isEmpty());
+
+        int fd = fs.open(f, "/foo.txt", FileConstants.O_WRONLY | FileConstants.O_CREAT, 0666, 0);
+        assertEquals(0L, fs.stat(f, "/foo.txt", false).getSize());
+        assertEquals(Arrays.asList("foo.txt"), fs.readdir(DIR, "/"));
+
+        fs.write(fd, ByteBuffer.wrap(new byte[10]), 0);
+        assertEquals(10L, fs.stat(f, "/foo.txt", false).getSize());
+        fs.ftruncate(fd, 5);
+        fs.close(fd);
+        assertEquals(5L, fs.stat(f, "/foo.txt", false).getSize());
+
+        fs.unlink(f, "/foo.txt");
+        assertNotFound(f);
+        assertTrue(fs.readdir(DIR, "/").isEmpty());
+
+        File d = new File(DIR, "subdir");
+        fs.mkdir(d, "/subdir", 0777, 0);
+        assertEquals(FileConstants.S_IFDIR, fs.stat(d, "/subdir", false).getMode() & FileConstants.S_IFMT);
+        File moved = new File(DIR, "moved");
+        fs.rename(d, "/subdir", moved, "/moved");
+        assertNotFound(d);
+        assertEquals(Arrays.asList("moved"), fs.readdir(DIR, "/"));
+    }
+
+    @Test
+    public void testExpiration()
+        throws OSException, IOException, InterruptedException
+    {
+        StatCache shortCache = new StatCache(50, TimeUnit.MILLISECONDS);
+        CachingFilesystem shortFs = new CachingFilesystem(new AdvancedFilesystem(), shortCache);
+        File f = new File(DIR, "bar.txt");
+        try {
+            assertNotFound(shortFs, f);
+            writeFile(f, 3);
+            // Changes made behind our back are not seen until the entry expires
+            assertNotFound(shortFs, f);
+            Thread.sleep(100L);
+            assertEquals(3L, shortFs.stat(f, "/bar.txt", false).getSize());
+        } finally {
+            shortCache.close();
+        }
+    }
+
+    @Test
+    public void testWatch()
+        throws OSException, IOException, InterruptedException
+    {
+        cache.watch(DIR, true);
+        File f = new File(DIR, "baz.txt");
+        assertNotFound(f);
+        assertTrue(fs.readdir(DIR, "/").isEmpty());
+
+        writeFile(f, 7);
+        long start = System.currentTimeMillis();
+        while (fs.readdir(DIR, "/").isEmpty() && ((System.currentTimeMillis() - start) < 30000L)) {
+            Thread.sleep(50L);
+        }
+        assertEquals(Arrays.asList("baz.txt"), fs.readdir(DIR, "/"));
+        assertEquals(7L, fs.stat(f, "/baz.txt", false).getSize());
+        assertTrue(cache.getInvalidationCount() > 0L);
+    }
+
+    private void assertNotFound(File f)
+    {
+        assertNotFound(fs, f);
+    }
+
+    private static void assertNotFound(CachingFilesystem cfs, File f)
+    {
+        try {
+            cfs.stat(f, f.getName(), false);
+            fail("Expected ENOENT");
+        } catch (OSException ose) {
+            assertEquals(ErrorCodes.ENOENT, ose.getCode());
+        }
+    }
+
+    private static void writeFile(File f, int len)
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[len]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File f)
+    {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,90 @@
+package io.apigee.trireme.kernel.test;
+
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import io.apigee.trireme.kernel.streams.StreamPump;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StreamPumpTest
+{
+    @Test
+    public void testReadToEOF()
+        throws Exception
+    {
+        StreamPump pump = new StreamPump(1);
+        try {
+            StreamPump.Source src = new StreamPump.Source(new ByteArrayInputStream("Hello, World!".getBytes("UTF-8")));
+            Collector c = new Collector();
+            pump.start(src, c);
+            src.writerClosed();
+
+            assertTrue(c.done.await(10, TimeUnit.SECONDS));
+            assertEquals(ErrorCodes.EOF, c.err);
+            assertEquals("Hello, World!", c.out.toString("UTF-8"));
+            assertEquals(0, pump.getActiveStreams());
+        } finally {
+            pump.shutdown();
+        }
+    }
+
+    @Test
+    public void testOpenStreamAfterWriterClosed()
+        throws Exception
+    {
+        // Only one pump thread, so if a stream that never ends holds it then nothing else is read
+        StreamPump pump = new StreamPump(1);
+        try {
+            PipedOutputStream stuckOut = new PipedOutputStream();
+            StreamPump.Source stuck = new StreamPump.Source(new PipedInputStream(stuckOut));
+            Collector stuckResult = new Collector();
+            pump.start(stuck, stuckResult);
+            // Like a process that exited but left a grandchild holding the pipe
+            stuck.writerClosed();
+            Thread.sleep(50L);
+
+            StreamPump.Source src = new StreamPump.Source(new ByteArrayInputStream("Still here".getBytes("UTF-8")));
+            Collector c = new Collector();
+            pump.start(src, c);
+            src.writerClosed();
+
+            assertTrue(c.done.await(10, TimeUnit.SECONDS));
+            assertEquals("Still here", c.out.toString("UTF-8"));
+            assertEquals(1L, stuckResult.done.getCount());
+
+            stuckOut.close();
+            assertTrue(stuckResult.done.await(10, TimeUnit.SECONDS));
+            assertEquals(ErrorCodes.EOF, stuckResult.err);
+        } finally {
+            pump.shutdown();
+        }
+    }
+
+    private static final class Collector
+        implements IOCompletionHandler<ByteBuffer>
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int err;
+
+        @Override
+        public void ioComplete(int errCode, ByteBuffer value)
+        {
+            if (errCode == 0) {
+                out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+            } else {
+                err = errCode;
+                done.countDown();
+            }
+        }
+    }
+}
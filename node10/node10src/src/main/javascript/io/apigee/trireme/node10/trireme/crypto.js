@@ -234,6 +234,20 @@ Hash.prototype.digest = function(outputEncoding) {
   return this._binding.digest(outputEncoding);
 };
 
+// Trireme extension: digest a whole file in Java so that its contents
+// never have to pass through JavaScript as a series of Buffers.
+exports.hashFile = function(algorithm, path, outputEncoding, callback) {
+  if (typeof outputEncoding === 'function') {
+    callback = outputEncoding;
+    outputEncoding = undefined;
+  }
+  if (typeof callback !== 'function')
+    throw new TypeError('callback must be a function');
+  outputEncoding = outputEncoding || exports.DEFAULT_ENCODING;
+  binding.hashFile(algorithm, require('path').resolve(path),
+                   outputEncoding, callback);
+};
+
 
 exports.createHmac = exports.Hmac = Hmac;
 
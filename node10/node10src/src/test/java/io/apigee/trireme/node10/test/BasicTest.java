@@ -11,6 +11,7 @@ import io.apigee.trireme.core.ScriptStatusListener;
 import io.apigee.trireme.core.SubprocessPolicy;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.kernel.Platform;
+import io.apigee.trireme.kernel.fs.FilesystemImage;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,7 +23,9 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.CancellationException;
@@ -319,6 +322,76 @@ public class BasicTest
         assertEquals(0, stat.getExitCode());
     }
 
+    @Test
+    public void testImageModules()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        FilesystemImage.Builder ib = new FilesystemImage.Builder();
+        addToImage(ib, new File("./target/test-classes/tests"), "");
+        Sandbox sb = new Sandbox();
+        sb.setFilesystemImage(ib.build(), false);
+        NodeScript script = env.createScript("moduletest.js",
+                                             new File("/moduletest.js"),
+                                             null);
+        script.setSandbox(sb);
+        ScriptStatus stat = script.execute().get();
+        assertEquals(0, stat.getExitCode());
+    }
+
+    @Test
+    public void testImageOverlayModules()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        File root = new File("./target/imageroot");
+        root.mkdirs();
+        FilesystemImage.Builder ib = new FilesystemImage.Builder();
+        addToImage(ib, new File("./target/test-classes/tests"), "tests/");
+        Sandbox sb = new Sandbox();
+        sb.setFilesystemRoot(root.getPath());
+        sb.setFilesystemImage(ib.build(), true);
+        NodeScript script = env.createScript("moduletest.js",
+                                             new File(root, "tests/moduletest.js"),
+                                             null);
+        script.setSandbox(sb);
+        ScriptStatus stat = script.execute().get();
+        assertEquals(0, stat.getExitCode());
+    }
+
+    @Test
+    public void testHashFile()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("hashfiletest.js");
+    }
+
+    @Test
+    public void testImageHashFile()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        FilesystemImage.Builder ib = new FilesystemImage.Builder();
+        addToImage(ib, new File("./target/test-classes/tests"), "");
+        Sandbox sb = new Sandbox();
+        sb.setFilesystemImage(ib.build(), false);
+        NodeScript script = env.createScript("hashfiletest.js",
+                                             new File("/hashfiletest.js"),
+                                             null);
+        script.setSandbox(sb);
+        ScriptStatus stat = script.execute().get();
+        assertEquals(0, stat.getExitCode());
+    }
+
+    private static void addToImage(FilesystemImage.Builder ib, File dir, String prefix)
+        throws IOException
+    {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                addToImage(ib, f, prefix + f.getName() + '/');
+            } else {
+                ib.addFile(prefix + f.getName(), Files.readAllBytes(f.toPath()), f.lastModified());
+            }
+        }
+    }
+
     @Test
     public void testBasicHttp()
         throws InterruptedException, ExecutionException, NodeException, IOException
@@ -544,6 +617,68 @@ public class BasicTest
         runTest("securepairtest.js");
     }
 
+    @Test
+    public void testTLSResume()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        long resumed = env.getSSLContextCache().getResumedHandshakes();
+        runTest("tlsresumetest.js");
+        assertTrue(env.getSSLContextCache().getResumedHandshakes() > resumed);
+    }
+
+    @Test
+    public void testTLSResumeSandboxes()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        NodeScript server = env.createScript("tlsresumeserver.js",
+                                             new File("target/test-classes/tests/tlsresumeserver.js"),
+                                             null);
+        ScriptFuture serverFuture = server.execute();
+        try {
+            waitForPort(33335);
+
+            // Scripts in the same sandbox share sessions, but scripts in another one don't
+            Sandbox sb1 = new Sandbox();
+            Sandbox sb2 = new Sandbox();
+            runTLSClient(sb1, "new");
+            runTLSClient(sb2, "new");
+            runTLSClient(sb1, "reused");
+
+        } finally {
+            serverFuture.cancel(true);
+            server.close();
+        }
+    }
+
+    private void runTLSClient(Sandbox sb, String expected)
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        NodeScript script = env.createScript("tlsresumeclient.js",
+                                             new File("target/test-classes/tests/tlsresumeclient.js"),
+                                             new String[] { expected });
+        script.setSandbox(sb);
+        ScriptStatus status = script.execute().get();
+        assertEquals(0, status.getExitCode());
+        script.close();
+    }
+
+    private static void waitForPort(int port)
+        throws InterruptedException, IOException
+    {
+        long timeout = System.currentTimeMillis() + 10000L;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException ioe) {
+                if (System.currentTimeMillis() > timeout) {
+                    throw ioe;
+                }
+                Thread.sleep(10L);
+            }
+        }
+    }
+
     @Test
     public void testArgv()
         throws InterruptedException, ExecutionException, NodeException
@@ -597,6 +732,13 @@ public class BasicTest
         runTest("decodingtest.js");
     }
 
+    @Test
+    public void testDgram()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("dgramtest.js");
+    }
+
 
     @Test
     public void testDefaultVersion()
@@ -0,0 +1,102 @@
+package io.apigee.trireme.node10.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptMetrics;
+import io.apigee.trireme.core.ScriptStatus;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class MetricsTest
+{
+    public static final long SCRIPT_TIMEOUT_SECS = 10L;
+
+    /**
+     * Block the event loop on purpose and check that it shows up as lag.
+     */
+    @Test
+    public void testLoopMetrics()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        NodeScript ns = env.createScript("metrics.js",
+            "var fs = require('fs');\n" +
+            "fs.stat(__filename, function() {});\n" +
+            "setTimeout(function() {}, 1);\n" +
+            "var start = Date.now();\n" +
+            "while ((Date.now() - start) < 100) {}\n" +
+            "setImmediate(function() {});\n", null);
+
+        try {
+            assertNull(ns.getMetrics());
+            ScriptFuture f = ns.execute();
+            ScriptStatus result = f.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+
+            ScriptMetrics m = ns.getMetrics();
+            assertNotNull(m);
+            assertTrue(m.getLoopIterations() > 0L);
+            assertEquals(1L, m.getEventLoopLag().getCount());
+            assertTrue(m.getEventLoopLag().getMaxMicros() >= 50000L);
+            for (ScriptMetrics.Phase p : ScriptMetrics.Phase.values()) {
+                assertEquals(m.getLoopIterations(), m.getPhase(p).getCount());
+            }
+            assertTrue(m.getAsyncPoolWait().getCount() > 0L);
+            assertEquals(0, m.getPinCount());
+            assertEquals(0, m.getTickQueueDepth());
+            assertEquals(0, m.getTimerQueueDepth());
+
+            m.reset();
+            assertEquals(0L, m.getLoopIterations());
+            assertEquals(0L, m.getEventLoopLag().getCount());
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testJmx()
+        throws Exception
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setJmxEnabled(true);
+        NodeScript ns = env.createScript("jmxtest.js",
+            "setTimeout(function() {}, 500);", null);
+        ns.setDisplayName("JMX Test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName(ScriptMetrics.JMX_DOMAIN + ":type=Script,name=\"JMX Test\",*");
+
+        try {
+            ScriptFuture f = ns.execute();
+            ObjectName name = null;
+            for (int i = 0; (i < 100) && (name == null); i++) {
+                name = ns.getMetrics().getMBeanName();
+                if (name == null) {
+                    Thread.sleep(10L);
+                }
+            }
+            assertNotNull(name);
+            assertEquals(1, server.queryNames(pattern, null).size());
+            assertEquals("JMX Test", server.getAttribute(name, "ScriptName"));
+            assertNotNull(server.getAttribute(name, "TimersPhase"));
+
+            ScriptStatus result = f.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+            assertTrue(server.queryNames(pattern, null).isEmpty());
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+}
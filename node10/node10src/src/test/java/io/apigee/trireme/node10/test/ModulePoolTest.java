@@ -0,0 +1,127 @@
+package io.apigee.trireme.node10.test;
+
+import io.apigee.trireme.core.InvocationFuture;
+import io.apigee.trireme.core.ModulePool;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class ModulePoolTest
+{
+    public static final long TIMEOUT_SECS = 10L;
+
+    private NodeEnvironment env;
+    private ModulePool pool;
+
+    @Before
+    public void start()
+        throws NodeException
+    {
+        env = new NodeEnvironment();
+        pool = env.createModulePool("functionmodule.js",
+                                    new File("./target/test-classes/tests/functionmodule.js"), null);
+    }
+
+    @After
+    public void stop()
+    {
+        pool.close();
+        env.close();
+    }
+
+    @Test
+    public void testCall()
+        throws Exception
+    {
+        pool.setMinInstances(2).setMaxInstances(2);
+        pool.start();
+        assertNotNull(env.getClassCache());
+        assertEquals(2, pool.getInstanceCount());
+        assertEquals(5, ((Number)pool.call("add", 2, 3).get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue());
+
+        ArrayList<Object[]> args = new ArrayList<Object[]>();
+        for (int i = 0; i < 100; i++) {
+            args.add(new Object[] { i, i });
+        }
+        int i = 0;
+        for (InvocationFuture f : pool.callAll("add", args)) {
+            assertEquals(i * 2, ((Number)f.get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue());
+            i++;
+        }
+        assertEquals(0, pool.getOutstandingCalls());
+
+        try {
+            pool.call("notAFunction");
+            fail("Expected a NodeException");
+        } catch (NodeException ne) {
+            // Expected
+        }
+        assertEquals(0, pool.getOutstandingCalls());
+    }
+
+    @Test
+    public void testGrowAndShrink()
+        throws Exception
+    {
+        pool.setMinInstances(1).setMaxInstances(3).setIdleTimeout(200L, TimeUnit.MILLISECONDS);
+        pool.start();
+        assertEquals(1, pool.getInstanceCount());
+
+        ArrayList<InvocationFuture> calls = new ArrayList<InvocationFuture>();
+        for (int i = 0; i < 10; i++) {
+            calls.add(pool.callAsync("sleep", 100));
+            Thread.sleep(20L);
+        }
+        for (InvocationFuture f : calls) {
+            f.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+        assertTrue(pool.getInstanceCount() > 1);
+        assertTrue(pool.getInstanceCount() <= 3);
+
+        Thread.sleep(500L);
+        pool.call("add", 1, 1).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        assertEquals(1, pool.getInstanceCount());
+        assertTrue(pool.getRecycledCount() > 0);
+    }
+
+    @Test
+    public void testRecycle()
+        throws Exception
+    {
+        pool.setMinInstances(1).setMaxInstances(1).setMaxCallsPerInstance(5);
+        pool.start();
+
+        for (int i = 0; i < 12; i++) {
+            int count = ((Number)pool.call("count").get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue();
+            assertEquals((i % 5) + 1, count);
+        }
+        assertEquals(2, pool.getRecycledCount());
+    }
+
+    @Test
+    public void testInstanceExit()
+        throws Exception
+    {
+        pool.setMinInstances(1).setMaxInstances(1);
+        pool.start();
+
+        // "double" throws from a timer when its callback isn't a function, which kills the instance
+        InvocationFuture bad = pool.callAsync("double", 1, "notACallback");
+        try {
+            bad.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected the call to fail");
+        } catch (Exception e) {
+            // Expected
+        }
+        assertEquals(3, ((Number)pool.call("add", 1, 2).get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue());
+        assertEquals(1, pool.getInstanceCount());
+    }
+}
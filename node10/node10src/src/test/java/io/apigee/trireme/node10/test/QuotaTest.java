@@ -0,0 +1,118 @@
+package io.apigee.trireme.node10.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.QuotaExceededException;
+import io.apigee.trireme.core.ResourceUsage;
+import io.apigee.trireme.core.Sandbox;
+import io.apigee.trireme.core.ScriptQuota;
+import io.apigee.trireme.core.ScriptStatus;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class QuotaTest
+{
+    public static final long SCRIPT_TIMEOUT_SECS = 20L;
+
+    private static ScriptStatus runScript(ScriptQuota quota, String script, NodeScript[] ns)
+        throws Exception
+    {
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setQuota(quota));
+        ns[0] = env.createScript("quota.js", script, null);
+        try {
+            return ns[0].execute().get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+        } catch (ExecutionException ee) {
+            return new ScriptStatus(ee.getCause());
+        } finally {
+            ns[0].close();
+            env.close();
+        }
+    }
+
+    @Test
+    public void testUsage()
+        throws Exception
+    {
+        NodeScript[] ns = new NodeScript[1];
+        ScriptStatus status = runScript(null,
+            "var a = [];\n" +
+            "for (var i = 0; i < 100000; i++) { a.push({ i: i }); }\n", ns);
+        assertEquals(0, status.getExitCode());
+
+        ResourceUsage usage = ns[0].getResourceUsage();
+        assertTrue(usage.getCpuTime(TimeUnit.NANOSECONDS) != 0L);
+        assertTrue(usage.getAllocatedBytes() != 0L);
+        assertFalse(usage.isThrottled());
+        assertEquals(usage.getCpuTime(TimeUnit.NANOSECONDS),
+                     ns[0].getResourceUsage().getCpuTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testHardCpuLimit()
+        throws Exception
+    {
+        NodeScript[] ns = new NodeScript[1];
+        ScriptStatus status = runScript(new ScriptQuota().setCpuTime(0L, 200L, TimeUnit.MILLISECONDS),
+                                        "while (true) {}", ns);
+        assertTrue(status.hasCause());
+        assertTrue(status.getCause() instanceof QuotaExceededException);
+        assertTrue(ns[0].getResourceUsage().getCpuTime(TimeUnit.MILLISECONDS) >= 200L);
+    }
+
+    @Test
+    public void testPerScriptQuota()
+        throws Exception
+    {
+        // The environment has no quota, so only this script's context counts instructions
+        NodeEnvironment env = new NodeEnvironment();
+        NodeScript ns = env.createScript("quota.js", "while (true) {}", null);
+        ns.setSandbox(new Sandbox().setQuota(new ScriptQuota().setInstructions(0L, 1000000L)));
+        ScriptStatus status;
+        try {
+            status = ns.execute().get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+        } catch (ExecutionException ee) {
+            status = new ScriptStatus(ee.getCause());
+        } finally {
+            ns.close();
+            env.close();
+        }
+        assertTrue(status.hasCause());
+        assertTrue(status.getCause() instanceof QuotaExceededException);
+        assertTrue(ns.getResourceUsage().getInstructionCount() > 1000000L);
+    }
+
+    @Test
+    public void testHardLimitNotCatchable()
+        throws Exception
+    {
+        NodeScript[] ns = new NodeScript[1];
+        ScriptStatus status = runScript(new ScriptQuota().setInstructions(0L, 1000000L),
+            "while (true) {\n" +
+            "  try { while (true) {} } catch (e) {}\n" +
+            "}", ns);
+        assertTrue(status.hasCause());
+        assertTrue(status.getCause() instanceof QuotaExceededException);
+        assertTrue(ns[0].getResourceUsage().getInstructionCount() > 1000000L);
+    }
+
+    @Test
+    public void testSoftLimit()
+        throws Exception
+    {
+        NodeScript[] ns = new NodeScript[1];
+        ScriptStatus status = runScript(new ScriptQuota().setCpuTime(10L, 0L, TimeUnit.MILLISECONDS)
+                                                         .setThrottleDelay(1L, TimeUnit.MILLISECONDS),
+            "var start = Date.now();\n" +
+            "while ((Date.now() - start) < 100) {}\n" +
+            "var count = 0;\n" +
+            "function next() { if (++count < 5) setImmediate(next); }\n" +
+            "next();", ns);
+        assertEquals(0, status.getExitCode());
+        assertTrue(ns[0].getResourceUsage().isThrottled());
+    }
+}
@@ -0,0 +1,211 @@
+package io.apigee.trireme.node10.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.kernel.handles.PublisherHandle;
+import io.apigee.trireme.kernel.streams.Publisher;
+import io.apigee.trireme.kernel.streams.Subscriber;
+import io.apigee.trireme.kernel.streams.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ReactiveStreamTest
+{
+    public static final long TIMEOUT_SECS = 10L;
+    private static final Charset UTF8 = Charset.forName("UTF8");
+
+    private NodeEnvironment env;
+    private NodeScript script;
+    private ScriptFuture future;
+
+    @Before
+    public void start()
+        throws NodeException
+    {
+        env = new NodeEnvironment();
+        script = env.createScript("streammodule.js",
+                                  new File("./target/test-classes/tests/streammodule.js"), null);
+        future = script.executeModule();
+    }
+
+    @After
+    public void stop()
+    {
+        future.cancel(true);
+        script.close();
+        env.close();
+    }
+
+    @Test
+    public void testPublisher()
+        throws Exception
+    {
+        CountingPublisher pub = new CountingPublisher(1000);
+        String result = (String)future.getFunction("collect").callAsync(pub).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            expected.append("Chunk ").append(i).append('\n');
+        }
+        assertEquals(expected.toString(), result);
+        assertTrue(pub.getMaxDemand() <= PublisherHandle.DEFAULT_WINDOW);
+    }
+
+    @Test
+    public void testPublisherCancel()
+        throws Exception
+    {
+        CountingPublisher pub = new CountingPublisher(-1);
+        Number taken = (Number)future.getFunction("take").callAsync(pub, 100).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        assertEquals(100, taken.intValue());
+        assertTrue(pub.awaitCancel());
+        // Only what the stream had room for was ever asked for
+        assertTrue(pub.getEmitted() < 100000);
+    }
+
+    @Test
+    public void testSubscriber()
+        throws Exception
+    {
+        CollectingSubscriber sub = new CollectingSubscriber();
+        Number blockedAt =
+            (Number)future.getFunction("produce").callAsync(sub, 100, 1024).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        // Nothing was requested, so the stream had to stop accepting writes
+        assertTrue(blockedAt.intValue() > 0);
+        assertTrue(blockedAt.intValue() < 100);
+        assertEquals(0L, sub.getReceived());
+
+        sub.getSubscription().request(Long.MAX_VALUE);
+        assertTrue(sub.awaitComplete());
+        assertEquals(100L * 1024L, sub.getReceived());
+        assertNull(sub.getError());
+    }
+
+    private static final class CountingPublisher
+        implements Publisher<ByteBuffer>, Subscription
+    {
+        private final int count;
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+        private Subscriber<? super ByteBuffer> subscriber;
+        private int emitted;
+        private long demand;
+        private long maxDemand;
+        private boolean done;
+
+        CountingPublisher(int count)
+        {
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> s)
+        {
+            subscriber = s;
+            s.onSubscribe(this);
+        }
+
+        @Override
+        public synchronized void request(long n)
+        {
+            demand += n;
+            maxDemand = Math.max(maxDemand, demand);
+            while ((demand > 0) && !done && (cancelled.getCount() > 0)) {
+                if ((count >= 0) && (emitted == count)) {
+                    done = true;
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onNext(ByteBuffer.wrap(("Chunk " + emitted + '\n').getBytes(UTF8)));
+                    emitted++;
+                    demand--;
+                }
+            }
+            if ((count >= 0) && (emitted == count) && !done) {
+                done = true;
+                subscriber.onComplete();
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled.countDown();
+        }
+
+        synchronized long getMaxDemand() {
+            return maxDemand;
+        }
+
+        synchronized int getEmitted() {
+            return emitted;
+        }
+
+        boolean awaitCancel()
+            throws InterruptedException
+        {
+            return cancelled.await(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static final class CollectingSubscriber
+        implements Subscriber<ByteBuffer>
+    {
+        private final CountDownLatch complete = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile long received;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription s)
+        {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(ByteBuffer buf)
+        {
+            received += buf.remaining();
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            error = t;
+            complete.countDown();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            complete.countDown();
+        }
+
+        Subscription getSubscription() {
+            return subscription;
+        }
+
+        long getReceived() {
+            return received;
+        }
+
+        Throwable getError() {
+            return error;
+        }
+
+        boolean awaitComplete()
+            throws InterruptedException
+        {
+            return complete.await(TIMEOUT_SECS, TimeUnit.SECONDS);
+        }
+    }
+}
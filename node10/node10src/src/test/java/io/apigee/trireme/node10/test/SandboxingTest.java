@@ -6,6 +6,7 @@ import io.apigee.trireme.core.NodeScript;
 import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.ScriptFuture;
 import io.apigee.trireme.core.ScriptStatus;
+import io.apigee.trireme.kernel.streams.AsyncOutputWriter;
 import org.junit.Test;
 import org.mozilla.javascript.ClassShutter;
 
@@ -197,4 +198,89 @@ public class SandboxingTest
         assertEquals(0, status.getExitCode());
         script.close();
     }
+
+    private static final String COUNT_SCRIPT =
+        "for (var i = 0; i < 1000; i++) {\n" +
+        "  console.log(i);\n" +
+        "}\n";
+
+    /**
+     * With async output and the "block" policy, every line arrives in order by the time the script exits.
+     */
+    @Test
+    public void testAsyncOutput()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setStdout(out).setAsyncOutput(16, AsyncOutputWriter.OverflowPolicy.BLOCK));
+
+        NodeScript ns = env.createScript("asyncoutput.js", COUNT_SCRIPT, null);
+
+        try {
+            ScriptFuture f = ns.execute();
+            ScriptStatus result = f.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                expected.append(i).append('\n');
+            }
+            assertEquals(expected.toString(), new String(out.toByteArray(), UTF8));
+            assertEquals(0L, ns.getMetrics().getDroppedOutputWrites());
+            assertTrue(ns.getMetrics().getOutputFlushLatency().getCount() > 0L);
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    /**
+     * When the output stream is stuck, writes past the end of the queue are dropped and counted
+     * rather than holding up the script.
+     */
+    @Test
+    public void testAsyncOutputDropped()
+        throws NodeException, InterruptedException, ExecutionException, TimeoutException
+    {
+        SlowOutputStream out = new SlowOutputStream();
+        NodeEnvironment env = new NodeEnvironment();
+        env.setSandbox(new Sandbox().setStdout(out).setAsyncOutput(4, AsyncOutputWriter.OverflowPolicy.DROP_NEWEST));
+
+        NodeScript ns = env.createScript("asyncoutput.js", COUNT_SCRIPT, null);
+
+        try {
+            ScriptFuture f = ns.execute();
+            ScriptStatus result = f.get(SCRIPT_TIMEOUT_SECS, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+
+            String[] lines = new String(out.toByteArray(), UTF8).split("\n");
+            long dropped = ns.getMetrics().getDroppedOutputWrites();
+            assertTrue(dropped > 0L);
+            assertEquals(1000L, lines.length + dropped);
+            assertEquals("0", lines[0]);
+        } finally {
+            ns.close();
+            env.close();
+        }
+    }
+
+    private static final class SlowOutputStream
+        extends ByteArrayOutputStream
+    {
+        private boolean stalled;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len)
+        {
+            if (!stalled) {
+                stalled = true;
+                try {
+                    Thread.sleep(500L);
+                } catch (InterruptedException ignore) {
+                }
+            }
+            super.write(b, off, len);
+        }
+    }
 }
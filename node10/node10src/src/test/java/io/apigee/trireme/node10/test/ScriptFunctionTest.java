@@ -0,0 +1,302 @@
+package io.apigee.trireme.node10.test;
+
+import io.apigee.trireme.core.BufferLease;
+import io.apigee.trireme.core.InvocationFuture;
+import io.apigee.trireme.core.InvocationListener;
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeException;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFunction;
+import io.apigee.trireme.core.ScriptFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.javascript.RhinoException;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ScriptFunctionTest
+{
+    public static final long TIMEOUT_SECS = 10L;
+
+    private NodeEnvironment env;
+    private NodeScript script;
+    private ScriptFuture future;
+
+    @Before
+    public void start()
+        throws NodeException
+    {
+        env = new NodeEnvironment();
+        script = env.createScript("functionmodule.js",
+                                  new File("./target/test-classes/tests/functionmodule.js"), null);
+        future = script.executeModule();
+    }
+
+    @After
+    public void stop()
+    {
+        future.cancel(true);
+        script.close();
+        env.close();
+    }
+
+    @Test
+    public void testCall()
+        throws Exception
+    {
+        ScriptFunction add = future.getFunction("add");
+        assertEquals("add", add.getName());
+        Object result = add.call(2, 3).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        assertEquals(5, ((Number)result).intValue());
+        assertEquals("foobar", add.call("foo", "bar").get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testConversion()
+        throws Exception
+    {
+        ScriptFunction echo = future.getFunction("echo");
+
+        Map<String, Object> obj = new HashMap<String, Object>();
+        obj.put("name", "Trireme");
+        obj.put("flag", true);
+        obj.put("list", Arrays.asList("one", "two"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> ret = (Map<String, Object>)echo.call(obj).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        assertEquals("Trireme", ret.get("name"));
+        assertEquals(Boolean.TRUE, ret.get("flag"));
+        assertEquals(Arrays.asList("one", "two"), ret.get("list"));
+
+        byte[] bytes = "Hello, World!".getBytes("UTF8");
+        assertArrayEquals(bytes, (byte[])echo.call((Object)bytes).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertNull(echo.call((Object)null).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+
+        ScriptFunction describe = future.getFunction("describe");
+        assertEquals("buffer:Hello, World!", describe.call((Object)bytes).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals("array:3", describe.call((Object)new Object[] { 1, 2, 3 }).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals("number", describe.call(1L).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+
+        try {
+            echo.call(new Object()).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testErrors()
+        throws Exception
+    {
+        try {
+            future.getFunction("notAFunction");
+            fail("Expected a NodeException");
+        } catch (NodeException ne) {
+            // Expected
+        }
+
+        try {
+            future.getFunction("fail").call("Oops").get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof RhinoException);
+            assertTrue(ee.getCause().getMessage().contains("Oops"));
+        }
+    }
+
+    @Test
+    public void testCallAsync()
+        throws Exception
+    {
+        ScriptFunction dbl = future.getFunction("double");
+        assertEquals(42, ((Number)dbl.callAsync(21).get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue());
+
+        try {
+            dbl.callAsync(-1).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof NodeException);
+            assertEquals("negative", ee.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCallAll()
+        throws Exception
+    {
+        ScriptFunction add = future.getFunction("add");
+        ArrayList<Object[]> args = new ArrayList<Object[]>();
+        for (int i = 0; i < 1000; i++) {
+            args.add(new Object[] { i, 1 });
+        }
+
+        final CountDownLatch done = new CountDownLatch(args.size());
+        List<InvocationFuture> results = add.callAll(args);
+        assertEquals(args.size(), results.size());
+        for (InvocationFuture f : results) {
+            f.setListener(new InvocationListener()
+            {
+                @Override
+                public void onComplete(InvocationFuture future)
+                {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i + 1, ((Number)results.get(i).get()).intValue());
+        }
+
+        ScriptFunction dbl = future.getFunction("double");
+        ArrayList<Object[]> dblArgs = new ArrayList<Object[]>();
+        for (int i = 0; i < 10; i++) {
+            dblArgs.add(new Object[] { i });
+        }
+        List<InvocationFuture> doubled = dbl.callAllAsync(dblArgs);
+        for (int i = 0; i < doubled.size(); i++) {
+            assertEquals(i * 2, ((Number)doubled.get(i).get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue());
+        }
+    }
+
+    @Test
+    public void testScriptExit()
+        throws Exception
+    {
+        ScriptFunction never = future.getFunction("never");
+        InvocationFuture pending = never.callAsync();
+        ScriptFunction add = future.getFunction("add");
+        assertEquals(3, ((Number)add.call(1, 2).get(TIMEOUT_SECS, TimeUnit.SECONDS)).intValue());
+        assertFalse(pending.isDone());
+
+        future.cancel(true);
+        try {
+            pending.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof NodeException);
+        }
+
+        // Wait for the script to really finish before trying again
+        try {
+            future.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        } catch (Exception ignore) {
+        }
+        try {
+            add.call(1, 2).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof NodeException);
+        }
+    }
+
+    @Test
+    public void testBufferLease()
+        throws Exception
+    {
+        byte[] data = "abcd".getBytes("UTF8");
+        BufferLease lease = new BufferLease(ByteBuffer.wrap(data));
+        assertFalse(lease.isCopied());
+
+        ScriptFunction keep = future.getFunction("keep");
+        assertEquals("bcde", keep.call(lease).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        // The script changed our own array
+        assertEquals("bcde", new String(data, "UTF8"));
+
+        lease.release();
+        assertTrue(lease.isReleased());
+
+        // After release, neither the Buffer nor its slice can reach the array
+        assertEquals(Arrays.asList(0, 0, ""), future.getFunction("kept").call().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals("bcde", new String(data, "UTF8"));
+
+        try {
+            keep.call(lease).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testBufferLeaseCopy()
+        throws Exception
+    {
+        byte[] data = "abcd".getBytes("UTF8");
+        BufferLease lease = new BufferLease(ByteBuffer.wrap(data), true);
+        assertTrue(lease.isCopied());
+
+        assertEquals("bcde", future.getFunction("keep").call(lease).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        // The script only has a copy until the lease is released
+        assertEquals("abcd", new String(data, "UTF8"));
+
+        lease.release();
+        assertEquals("bcde", new String(data, "UTF8"));
+        assertEquals(Arrays.asList(0, 0, ""), future.getFunction("kept").call().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBufferLeaseDirect()
+        throws Exception
+    {
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put("abcd".getBytes("UTF8"));
+        direct.flip();
+        BufferLease lease = new BufferLease(direct);
+        assertTrue(lease.isCopied());
+
+        assertEquals("bcde", future.getFunction("keep").call(lease).get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        lease.release();
+
+        // The script's changes were copied back, and the position didn't move
+        assertEquals(0, direct.position());
+        byte[] result = new byte[4];
+        direct.duplicate().get(result);
+        assertEquals("bcde", new String(result, "UTF8"));
+        assertEquals(Arrays.asList(0, 0, ""), future.getFunction("kept").call().get(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBufferLeaseScriptExit()
+        throws Exception
+    {
+        BufferLease lease = new BufferLease(ByteBuffer.wrap("abcd".getBytes("UTF8")));
+        future.getFunction("keep").call(lease).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        future.cancel(true);
+        try {
+            future.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        } catch (Exception ignore) {
+        }
+        // Returns right away since the script released everything as it exited
+        lease.release();
+        assertTrue(lease.isReleased());
+    }
+
+    @Test
+    public void testBufferViews()
+        throws Exception
+    {
+        ScriptFunction make = future.getFunction("makeBuffer");
+        assertTrue(make.isCopyBuffers());
+        assertTrue(make.call("Hello!").get(TIMEOUT_SECS, TimeUnit.SECONDS) instanceof byte[]);
+
+        make.setCopyBuffers(false);
+        ByteBuffer view = (ByteBuffer)make.call("Hello!").get(TIMEOUT_SECS, TimeUnit.SECONDS);
+        assertEquals(6, view.remaining());
+        byte[] result = new byte[view.remaining()];
+        view.get(result);
+        assertEquals("Hello!", new String(result, "UTF8"));
+    }
+}
@@ -0,0 +1,60 @@
+var assert = require('assert');
+var dgram = require('dgram');
+
+// Send bursts of datagrams over loopback. They are read from the socket in batches, but each
+// one should still arrive as a separate message with its own contents. Each burst is kept well
+// under what the socket buffer holds so that nothing is dropped.
+
+var ROUND = 50;
+var COUNT = 500;
+
+var server = dgram.createSocket('udp4');
+var client = dgram.createSocket('udp4');
+var received = {};
+var receivedCount = 0;
+var sentCount = 0;
+
+server.on('message', function(msg, rinfo) {
+  assert.equal(rinfo.address, '127.0.0.1');
+  assert.equal(rinfo.port, client.address().port);
+  assert.equal(rinfo.size, msg.length);
+  var s = msg.toString();
+  assert(/^Message [0-9]+$/.test(s));
+  assert(!received[s]);
+  received[s] = true;
+  receivedCount++;
+  if (receivedCount === COUNT) {
+    server.close();
+    client.close();
+  } else if ((receivedCount % ROUND) === 0) {
+    sendRound(receivedCount);
+  }
+});
+
+function sendRound(start) {
+  var port = server.address().port;
+  for (var i = start; i < (start + ROUND); i++) {
+    var buf = new Buffer('xxMessage ' + i + 'yy');
+    client.send(buf, 2, buf.length - 4, port, '127.0.0.1', function(err, len) {
+      assert(!err);
+      assert(len > 0);
+      sentCount++;
+    });
+  }
+}
+
+server.on('listening', function() {
+  var port = server.address().port;
+  client.bind(0, '127.0.0.1', function() {
+    sendRound(0);
+    // Sends without a callback should work too
+    client.send(new Buffer('x'), 0, 1, port + 1, '127.0.0.1');
+  });
+});
+
+server.bind(0, '127.0.0.1');
+
+process.on('exit', function() {
+  assert.equal(sentCount, COUNT);
+  assert.equal(receivedCount, COUNT);
+});
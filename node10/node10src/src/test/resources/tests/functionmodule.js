@@ -0,0 +1,72 @@
+// Functions for ScriptFunctionTest to call from Java.
+
+exports.add = function(a, b) {
+  return a + b;
+};
+
+exports.echo = function(v) {
+  return v;
+};
+
+exports.describe = function(v) {
+  if (Buffer.isBuffer(v)) {
+    return 'buffer:' + v.toString();
+  }
+  if (Array.isArray(v)) {
+    return 'array:' + v.length;
+  }
+  return typeof v;
+};
+
+exports.fail = function(msg) {
+  throw new Error(msg);
+};
+
+exports.double = function(x, cb) {
+  setImmediate(function() {
+    if (x < 0) {
+      cb(new Error('negative'));
+    } else {
+      cb(undefined, x * 2);
+    }
+  });
+};
+
+exports.never = function(cb) {
+};
+
+var calls = 0;
+
+exports.count = function() {
+  return ++calls;
+};
+
+exports.sleep = function(ms, cb) {
+  setTimeout(function() {
+    cb(undefined, calls);
+  }, ms);
+};
+
+var keptBuffer;
+var keptSlice;
+
+exports.keep = function(buf) {
+  keptBuffer = buf;
+  keptSlice = buf.slice(1, 3);
+  for (var i = 0; i < buf.length; i++) {
+    buf[i] = buf[i] + 1;
+  }
+  return buf.toString();
+};
+
+exports.kept = function() {
+  keptBuffer[0] = 0;
+  keptSlice.fill(0);
+  return [ keptBuffer.length, keptSlice.length, keptBuffer.toString() ];
+};
+
+exports.makeBuffer = function(s) {
+  return new Buffer(s);
+};
+
+exports.notAFunction = 'Hello!';
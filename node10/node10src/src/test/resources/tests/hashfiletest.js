@@ -0,0 +1,29 @@
+var assert = require('assert');
+var crypto = require('crypto');
+var fs = require('fs');
+var path = require('path');
+
+// hashFile reads through the same filesystem as "fs," so this also works inside a filesystem image
+
+var expected = crypto.createHash('sha1').update(fs.readFileSync(__filename)).digest('hex');
+var done = false;
+
+crypto.hashFile('sha1', __filename, 'hex', function(err, digest) {
+  assert(!err);
+  assert.equal(digest, expected);
+
+  crypto.hashFile('sha1', path.join(__dirname, 'doesnotexist.txt'), function(err) {
+    assert(err);
+    assert.equal(err.code, 'ENOENT');
+
+    crypto.hashFile('sha1', __dirname, function(err) {
+      assert(err);
+      assert.equal(err.code, 'EISDIR');
+      done = true;
+    });
+  });
+});
+
+process.on('exit', function() {
+  assert(done);
+});
@@ -0,0 +1,52 @@
+// Functions for ReactiveStreamTest that read from and write to streams passed from Java.
+
+exports.collect = function(readable, cb) {
+  var chunks = [];
+  readable.on('data', function(chunk) {
+    chunks.push(chunk);
+  });
+  readable.on('end', function() {
+    cb(undefined, Buffer.concat(chunks).toString());
+  });
+  readable.on('error', function(err) {
+    cb(err);
+  });
+};
+
+exports.take = function(readable, count, cb) {
+  var received = 0;
+  readable.on('data', function() {
+    received++;
+    if (received === count) {
+      readable.destroy();
+      cb(undefined, received);
+    }
+  });
+};
+
+exports.produce = function(writable, count, size, cb) {
+  var chunk = new Buffer(size);
+  chunk.fill('x');
+  var i = 0;
+  var blockedAt = -1;
+
+  function next() {
+    while (i < count) {
+      var ok = writable.write(chunk);
+      i++;
+      if (!ok) {
+        if (blockedAt < 0) {
+          blockedAt = i;
+          cb(undefined, blockedAt);
+        }
+        writable.once('drain', next);
+        return;
+      }
+    }
+    writable.end();
+    if (blockedAt < 0) {
+      cb(undefined, blockedAt);
+    }
+  }
+  next();
+};
@@ -0,0 +1,32 @@
+var assert = require('assert');
+var tls = require('tls');
+
+// Connect to tlsresumeserver.js twice without passing a session. The second connection always
+// resumes the first one's session. Whether the first one resumes an earlier session depends on
+// whether an earlier script shared this script's TLS session cache, which is the first argument.
+
+var PORT = 33335;
+var expectFirstReused = (process.argv[2] === 'reused');
+
+function connect(cb) {
+  var conn = tls.connect({
+    port: PORT,
+    host: '127.0.0.1',
+    rejectUnauthorized: false
+  }, function() {
+    var reused = conn.isSessionReused();
+    conn.on('data', function() {});
+    conn.on('end', function() {
+      cb(reused);
+    });
+  });
+}
+
+connect(function(firstReused) {
+  console.log('First connection reused = %s', firstReused);
+  assert.equal(firstReused, expectFirstReused);
+  connect(function(secondReused) {
+    console.log('Second connection reused = %s', secondReused);
+    assert(secondReused);
+  });
+});
@@ -0,0 +1,14 @@
+var path = require('path');
+var tls = require('tls');
+
+// Runs until it is cancelled, so that clients in other scripts can connect to it
+
+var PORT = 33335;
+
+var server = tls.createServer({
+  keystore: path.join(__dirname, './agent2.jks'),
+  passphrase: 'secure'
+}, function(conn) {
+  conn.end('Hello!');
+});
+server.listen(PORT);
@@ -0,0 +1,52 @@
+var assert = require('assert');
+var path = require('path');
+var tls = require('tls');
+
+var PORT = 33334;
+
+var server = tls.createServer({
+  keystore: path.join(__dirname, './agent2.jks'),
+  passphrase: 'secure'
+}, function(conn) {
+  conn.end('Hello!');
+});
+
+function connect(session, cb) {
+  var conn = tls.connect({
+    port: PORT,
+    host: '127.0.0.1',
+    rejectUnauthorized: false,
+    session: session
+  }, function() {
+    // These are only available until the connection closes
+    var result = {
+      session: conn.getSession(),
+      reused: conn.isSessionReused()
+    };
+    var data = '';
+    conn.setEncoding('utf8');
+    conn.on('data', function(chunk) {
+      data += chunk;
+    });
+    conn.on('end', function() {
+      assert.equal(data, 'Hello!');
+      cb(result);
+    });
+  });
+}
+
+server.listen(PORT, function() {
+  connect(undefined, function(first) {
+    var session = first.session;
+    console.log('First connection reused = %s', first.reused);
+    assert(!first.reused);
+    assert(Buffer.isBuffer(session));
+    assert(session.length > 0);
+
+    connect(session, function(second) {
+      console.log('Second connection reused = %s', second.reused);
+      assert(second.reused);
+      server.close();
+    });
+  });
+});
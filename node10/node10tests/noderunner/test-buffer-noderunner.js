@@ -820,9 +820,7 @@ assert.equal(Buffer._charsWritten, 9);
 buf.write('0123456789', 'binary');
 assert.equal(Buffer._charsWritten, 9);
 buf.write('123456', 'base64');
-var t = new Buffer('123456', 'base64');
-// NODERUNNER: That was invalid base64. What is the point of this test?
-//assert.equal(Buffer._charsWritten, 4);
+assert.equal(Buffer._charsWritten, 4);
 buf.write('00010203040506070809', 'hex');
 assert.equal(Buffer._charsWritten, 18);
 
@@ -840,14 +838,9 @@ assert.equal(Buffer('99').length, 2);
 assert.equal(Buffer('13.37').length, 5);
 
 // Ensure that the length argument is respected.
-// TODO NODERUNNER: base64 does not write partially as required by the test
-/*
 'ascii utf8 hex base64 binary'.split(' ').forEach(function(enc) {
-  var l = Buffer(1).write('aaaaaa', 0, 1, enc);
-  console.log('length(' + enc + ') = ' + l);
-  assert.equal(l, 1);
+  assert.equal(Buffer(1).write('aaaaaa', 0, 1, enc), 1);
 });
-*/
 
 // Regression test, guard against buffer overrun in the base64 decoder.
 var a = Buffer(3);
@@ -855,6 +848,14 @@ var b = Buffer('xxx');
 a.write('aaaaaaaa', 'base64');
 assert.equal(b.toString(), 'xxx');
 
+// Odd-length hex is rejected rather than truncated
+assert.throws(function() {
+  new Buffer('abc', 'hex');
+}, /Invalid hex string/);
+assert.throws(function() {
+  Buffer(4).write('abc', 'hex');
+}, TypeError);
+
 // issue GH-3416
 Buffer(Buffer(0), 0, 0);
 
@@ -981,3 +982,7 @@ assert.throws(function() {
     assert.equal(buf.slice(0, -i), s.slice(0, -i));
   }
 })();
+
+// Make sure byteLength properly checks for base64 padding
+assert.equal(Buffer.byteLength('aaa=', 'base64'), 2);
+assert.equal(Buffer.byteLength('aaaa==', 'base64'), 3);
@@ -0,0 +1,99 @@
+var assert = require('assert');
+var fs = require('fs');
+var path = require('path');
+
+var xslt = require('trireme-xslt');
+var nodeXslt = require('node_xslt');
+
+var asyncRequests = 0;
+var asyncSuccesses = 0;
+
+function normalize(s) {
+  // Compare the content and not how the serializer indented it
+  return s.replace(/\s+/g, ' ').replace(/>\s+</g, '><');
+}
+
+// A parsed document may be transformed many times
+function testParsedDocument(templFile, docFile, resultFile) {
+  var ss = xslt.compileStylesheet(fs.readFileSync(path.join(__dirname, templFile)));
+  var doc = xslt.parseDocument(fs.readFileSync(path.join(__dirname, docFile)));
+  var d = normalize(fs.readFileSync(path.join(__dirname, resultFile), { encoding: 'utf8' }));
+
+  assert.equal(d, normalize(xslt.transform(ss, doc)));
+  assert.equal(d, normalize(xslt.transform(ss, doc)));
+
+  var result = xslt.transformToBuffer(ss, doc);
+  assert(Buffer.isBuffer(result));
+  assert.equal(d, normalize(result.toString('utf8')));
+
+  // More jobs than the default limit on concurrent transforms, all using the same document
+  for (var i = 0; i < 20; i++) {
+    asyncRequests++;
+    xslt.transformToBuffer(ss, doc, function(err, result) {
+      assert(!err);
+      assert(Buffer.isBuffer(result));
+      if (d === normalize(result.toString('utf8'))) {
+        asyncSuccesses++;
+      } else {
+        console.error('Async buffer result does not match desired result');
+      }
+    });
+  }
+}
+
+// A document from "readXmlFile" may also be transformed more than once
+function testNodeXsltDocument(templFile, docFile) {
+  var ss = nodeXslt.readXsltFile(path.join(__dirname, templFile));
+  var doc = nodeXslt.readXmlFile(path.join(__dirname, docFile));
+  assert.equal(nodeXslt.transform(ss, doc, []), nodeXslt.transform(ss, doc, []));
+}
+
+function testStream(templFile, docFile, resultFile, params) {
+  var ss = xslt.compileStylesheet(fs.readFileSync(path.join(__dirname, templFile)));
+  var desired = fs.readFileSync(path.join(__dirname, resultFile), { encoding: 'utf8' });
+  var chunks = [];
+
+  asyncRequests++;
+  var ts = xslt.createTransformStream(ss, params);
+  ts.on('data', function(chunk) {
+    assert(Buffer.isBuffer(chunk));
+    chunks.push(chunk);
+  });
+  ts.on('end', function() {
+    var result = Buffer.concat(chunks).toString('utf8');
+    if (normalize(desired) === normalize(result)) {
+      asyncSuccesses++;
+    } else {
+      console.error('Streaming transform result does not match desired result');
+    }
+  });
+  ts.on('error', function(err) {
+    console.error('Error in streaming transform: %j', err);
+  });
+  fs.createReadStream(path.join(__dirname, docFile), { bufferSize: 256 }).pipe(ts);
+}
+
+testParsedDocument('./fixtures/apply-templates.xsl', './fixtures/catalog.xml', './fixtures/apply-templates-result.xml');
+testNodeXsltDocument('./fixtures/apply-templates.xsl', './fixtures/catalog.xml');
+testStream('./fixtures/sort.xsl', './fixtures/catalog.xml', './fixtures/sort-result.xml');
+testStream('./fixtures/for-each-param.xsl', './fixtures/catalog.xml',
+           './fixtures/for-each-param-result-1991.xml', { year: '1991' });
+
+var badStream = xslt.createTransformStream(
+  xslt.compileStylesheet(fs.readFileSync(path.join(__dirname, './fixtures/sort.xsl'))));
+var badStreamError = false;
+badStream.on('error', function() {
+  badStreamError = true;
+});
+badStream.resume();
+badStream.end('This is not even XML');
+
+process.on('exit', function() {
+  assert.equal(asyncRequests, asyncSuccesses);
+  assert(badStreamError);
+});
+
+// Should not parse
+assert.throws(function() {
+  xslt.parseDocument('This is not even XML');
+});
@@ -37,6 +37,7 @@ import io.apigee.trireme.node12.modules.SpawnSyncWrap;
 import io.apigee.trireme.node12.modules.StreamWrap;
 import io.apigee.trireme.node12.modules.TCPWrap;
 import io.apigee.trireme.node12.modules.TimerWrap;
+import io.apigee.trireme.node12.modules.UDPWrap;
 import io.apigee.trireme.node12.modules.Uv;
 import io.apigee.trireme.node12.modules.ZlibWrap;
 
@@ -135,6 +136,7 @@ public class Node12Implementation
         r.add(StreamWrap.class);
         r.add(TCPWrap.class);
         r.add(TimerWrap.class);
+        r.add(UDPWrap.class);
         r.add(Uv.class);
         r.add(ZlibWrap.class);
         return r;
@@ -25,29 +25,32 @@ import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.ScriptRunner;
 import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.kernel.handles.JavaInputStreamHandle;
 import io.apigee.trireme.kernel.handles.JavaOutputStreamHandle;
-import io.apigee.trireme.kernel.streams.BitBucketInputStream;
-import io.apigee.trireme.kernel.streams.BitBucketOutputStream;
 import io.apigee.trireme.kernel.streams.StreamPiper;
+import io.apigee.trireme.kernel.streams.StreamPump;
 import io.apigee.trireme.node12.modules.ProcessWrap;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Scriptable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+/**
+ * A child process that runs an OS command. Its output is read, and its exit is detected, by the
+ * environment's StreamPump, so that a child doesn't need threads of its own.
+ */
 public class SpawnedOSProcess
     extends SpawnedProcess
 {
@@ -64,6 +67,8 @@ public class SpawnedOSProcess
     private final ScriptRunner runtime;
 
     private Process proc;
+    private StreamPump.Source stdoutSource;
+    private StreamPump.Source stderrSource;
 
     public SpawnedOSProcess(List<String> execArgs, String file, File cwd,
                             Scriptable stdio, List<String> env, boolean detached,
@@ -110,9 +115,16 @@ public class SpawnedOSProcess
         if (log.isDebugEnabled()) {
             log.debug("Starting {}", proc);
         }
+        stdoutSource = new StreamPump.Source(proc.getInputStream());
+        stderrSource = new StreamPump.Source(proc.getErrorStream());
         return 0;
     }
 
+    private StreamPump getPump()
+    {
+        return runtime.getEnvironment().getStreamPump();
+    }
+
     /**
      * Regular, async spawn. Go through "stdio" array to figure out how to handle input and output.
      */
@@ -141,30 +153,27 @@ public class SpawnedOSProcess
                     createOutputStream(cx, fdObj, type, fd, proc.getOutputStream());
                     break;
                 case 1:
-                    createInputStream(cx, fdObj, type, fd, proc.getInputStream());
+                    createInputStream(cx, fdObj, type, fd, stdoutSource);
                     break;
                 case 2:
-                    createInputStream(cx, fdObj, type, fd, proc.getErrorStream());
+                    createInputStream(cx, fdObj, type, fd, stderrSource);
                     break;
                 }
             }
         }
 
-        runtime.getUnboundedPool().submit(new Runnable()
+        getPump().watch(proc, new IOCompletionHandler<Integer>()
         {
             @Override
-            public void run()
+            public void ioComplete(int errCode, Integer exitCode)
             {
-                try {
-                    int exitCode = proc.waitFor();
-                    if (log.isDebugEnabled()) {
-                        log.debug("Child process exited with {}", exitCode);
-                    }
-                    parent.callOnExit(exitCode);
-                } catch (InterruptedException ie) {
-                    // TODO some signal?
-                    parent.callOnExit(0);
+                if (log.isDebugEnabled()) {
+                    log.debug("Child process exited with {}", exitCode);
                 }
+                // Now the pump can read what's left of the output without blocking
+                stdoutSource.writerClosed();
+                stderrSource.writerClosed();
+                parent.callOnExit(exitCode);
             }
         });
 
@@ -186,40 +195,41 @@ public class SpawnedOSProcess
             return result;
         }
 
+        // The pump drains stdout and stderr while we write stdin, so the child can't block on a full pipe
+        OutputCollector stdout = new OutputCollector();
+        getPump().start(stdoutSource, stdout);
+        OutputCollector stderr = new OutputCollector();
+        getPump().start(stderrSource, stderr);
+
         // We have limited options for passing input to a subprocess in Java.
         // Furthermore, all the "stdio" options don't make sense in this scenario, do they?
         if (stdio.has(0, stdio)) {
             Scriptable si = (Scriptable)stdio.get(0, stdio);
             if (si.has("input", si)) {
-                // Spawn a thread to copy input buffer to process stdin -- need a thread in case
-                // there is a lot of data
                 Buffer.BufferImpl buffer = (Buffer.BufferImpl)si.get("input", si);
-                ByteArrayInputStream stdin =
-                    new ByteArrayInputStream(buffer.getArray(), buffer.getArrayOffset(), buffer.getLength());
-                StreamPiper piper = new StreamPiper(stdin, proc.getOutputStream(), true);
-                piper.start(runtime.getUnboundedPool());
+                OutputStream stdin = proc.getOutputStream();
+                try {
+                    stdin.write(buffer.getArray(), buffer.getArrayOffset(), buffer.getLength());
+                    stdin.close();
+                } catch (IOException ioe) {
+                    // The child exited or closed stdin without reading all of it, which is its business
+                    log.debug("Error writing to child process stdin: {}", ioe);
+                }
             }
         }
 
-        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        StreamPiper stdoutPiper = new StreamPiper(proc.getInputStream(), stdout, true);
-        stdoutPiper.start(runtime.getUnboundedPool());
-
-        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-        StreamPiper stderrPiper = new StreamPiper(proc.getErrorStream(), stderr, true);
-        stderrPiper.start(runtime.getUnboundedPool());
-
         try {
             // TODO Gonna have to start a timer thread for timeout
             int exitCode = proc.waitFor();
             result.setExitCode(exitCode);
+            stdoutSource.writerClosed();
+            stderrSource.writerClosed();
+            result.setStdout(stdout.getOutput());
+            result.setStderr(stderr.getOutput());
         } catch (InterruptedException ie) {
             result.setErrCode(ErrorCodes.EINTR);
         }
 
-        result.setStdout(ByteBuffer.wrap(stdout.toByteArray()));
-        result.setStderr(ByteBuffer.wrap(stderr.toByteArray()));
-
         return result;
     }
 
@@ -276,13 +286,14 @@ public class SpawnedOSProcess
      * This wil be used for stdout and stderr.
      */
     private void createInputStream(Context cx, Scriptable stdio, String type,
-                                   int arg, InputStream in)
+                                   int arg, StreamPump.Source src)
     {
         if (STDIO_PIPE.equals(type)) {
             if (log.isDebugEnabled()) {
-                log.debug("Setting fd {} to input stream {}", arg, in);
+                log.debug("Setting fd {} to input stream {}", arg, src.getStream());
             }
-            JavaInputStreamHandle streamHandle = new JavaInputStreamHandle(in, parent.getRuntime());
+            JavaInputStreamHandle streamHandle =
+                new JavaInputStreamHandle(src, getPump(), parent.getRuntime());
             Scriptable handle = createStreamHandle(cx, streamHandle);
             stdio.put("handle", stdio, handle);
 
@@ -290,19 +301,15 @@ public class SpawnedOSProcess
             if (log.isDebugEnabled()) {
                 log.debug("Setting fd {} to discard all output", arg);
             }
-            StreamPiper piper = new StreamPiper(in, new BitBucketOutputStream(), false);
-            piper.start(parent.getRuntime().getUnboundedPool());
+            getPump().start(src, new OutputCopier(null));
 
         } else if (STDIO_FD.equals(type)) {
-            StreamPiper piper;
             switch (getStdioFD(stdio)) {
             case 1:
-                piper = new StreamPiper(in, parent.getRuntime().getStdout(), false);
-                piper.start(parent.getRuntime().getUnboundedPool());
+                getPump().start(src, new OutputCopier(parent.getRuntime().getStdout()));
                 break;
             case 2:
-                piper = new StreamPiper(in, parent.getRuntime().getStderr(), false);
-                piper.start(parent.getRuntime().getUnboundedPool());
+                getPump().start(src, new OutputCopier(parent.getRuntime().getStderr()));
                 break;
             default:
                 throw new AssertionError("Only FDs 0, 1, and 2 supported");
@@ -321,4 +328,72 @@ public class SpawnedOSProcess
             env.put(kv[0], kv[1]);
         }
     }
+
+    /**
+     * Copy output from the child to one of our own streams, or discard it if the stream is null.
+     */
+    private static final class OutputCopier
+        implements IOCompletionHandler<ByteBuffer>
+    {
+        private final OutputStream out;
+
+        OutputCopier(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void ioComplete(int errCode, ByteBuffer buf)
+        {
+            if ((out == null) || (buf == null)) {
+                return;
+            }
+            try {
+                out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            } catch (IOException ioe) {
+                log.debug("Error copying child process output: {}", ioe);
+            }
+        }
+    }
+
+    /**
+     * Keep all the output from the child for spawnSync. Each buffer from the pump is only copied once,
+     * and not at all if the output arrived in a single read.
+     */
+    private static final class OutputCollector
+        implements IOCompletionHandler<ByteBuffer>
+    {
+        private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int length;
+
+        @Override
+        public void ioComplete(int errCode, ByteBuffer buf)
+        {
+            if (errCode == 0) {
+                chunks.add(buf);
+                length += buf.remaining();
+            } else {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Wait for EOF and return everything that was read.
+         */
+        ByteBuffer getOutput()
+            throws InterruptedException
+        {
+            done.await();
+            if (chunks.size() == 1) {
+                return chunks.get(0);
+            }
+            ByteBuffer all = ByteBuffer.allocate(length);
+            for (ByteBuffer chunk : chunks) {
+                all.put(chunk);
+            }
+            all.flip();
+            return all;
+        }
+    }
 }
@@ -38,7 +38,7 @@ public abstract class SpawnedProcess
     public static final String STDIO_FD =        "fd";
     public static final String STDIO_IGNORE =    "ignore";
 
-    protected static ProcessWrap.ProcessImpl parent;
+    protected final ProcessWrap.ProcessImpl parent;
 
     protected SpawnedProcess(ProcessWrap.ProcessImpl parent)
     {
@@ -23,6 +23,7 @@ package io.apigee.trireme.node12.modules;
 
 import io.apigee.trireme.core.InternalNodeModule;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.AbstractIdObject;
 import io.apigee.trireme.core.internal.IdPropertyMap;
 import io.apigee.trireme.kernel.Charsets;
@@ -31,8 +32,10 @@ import io.apigee.trireme.core.modules.Buffer;
 import io.apigee.trireme.kernel.handles.Handle;
 import io.apigee.trireme.kernel.handles.IOCompletionHandler;
 import io.apigee.trireme.kernel.util.PinState;
+import io.apigee.trireme.kernel.util.StringUtils;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
@@ -93,13 +96,14 @@ public class JavaStreamWrap
             Id_ref = 9,
             Id_unref = 10,
             Id_writeBinaryString = 11,
+            Id_writev = 12,
 
             Id_bytes = 1,
             Id_writeQueueSize = 2,
             Id_onRead = 3;
 
         protected static final int
-            MAX_METHOD = Id_writeBinaryString,
+            MAX_METHOD = Id_writev,
             MAX_PROPERTY = Id_onRead;
 
         static {
@@ -123,6 +127,7 @@ public class JavaStreamWrap
             p.addMethod("writeUtf8String", Id_writeUtf8String, 2);
             p.addMethod("writeBinaryString", Id_writeBinaryString, 2);
             p.addMethod("writeBuffer", Id_writeBuffer, 2);
+            p.addMethod("writev", Id_writev, 2);
             p.addMethod("close", Id_close, 1);
             p.addMethod("ref", Id_ref, 0);
             p.addMethod("unref", Id_unref, 0);
@@ -229,6 +234,8 @@ public class JavaStreamWrap
             case Id_writeBinaryString:
                 writeString(args, Charsets.NODE_BINARY);
                 break;
+            case Id_writev:
+                return writev(args);
             case Id_close:
                 close(args);
                 break;
@@ -322,6 +329,46 @@ public class JavaStreamWrap
             updateByteCount(req, len);
         }
 
+        /**
+         * net.js calls this with an array of alternating chunks and encodings when the socket is corked
+         * or when several writes are queued up. Hand them all to the handle at once so that sockets
+         * can send them with a single gathering write.
+         */
+        private int writev(Object[] args)
+        {
+            final StreamWrap.WriteWrap req = objArg(args, 0, StreamWrap.WriteWrap.class, true);
+            NativeArray chunks = objArg(args, 1, NativeArray.class, true);
+
+            int count = (int)(chunks.getLength() / 2);
+            ByteBuffer[] bufs = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                Object chunk = chunks.get(i * 2);
+                if (chunk instanceof Buffer.BufferImpl) {
+                    bufs[i] = ((Buffer.BufferImpl)chunk).getBuffer();
+                } else {
+                    String enc = Context.toString(chunks.get((i * 2) + 1));
+                    Charset cs = Charsets.get().resolveCharset(enc);
+                    if (cs == null) {
+                        throw Utils.makeTypeError(Context.getCurrentContext(), this, "Unknown encoding: " + enc);
+                    }
+                    bufs[i] = StringUtils.stringToBuffer(Context.toString(chunk), cs);
+                }
+            }
+
+            IOCompletionHandler<Integer> onComplete = new IOCompletionHandler<Integer>()
+            {
+                @Override
+                public void ioComplete(int errCode, Integer value)
+                {
+                    req.callOnComplete(Context.getCurrentContext(), StreamWrapImpl.this, StreamWrapImpl.this, errCode);
+                }
+            };
+
+            int len = handle.writev(bufs, onComplete);
+            updateByteCount(req, len);
+            return 0;
+        }
+
         private void updateByteCount(StreamWrap.WriteWrap req, int len)
         {
             req.setBytes(len);
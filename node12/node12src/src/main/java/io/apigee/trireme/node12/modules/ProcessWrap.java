@@ -23,6 +23,7 @@ package io.apigee.trireme.node12.modules;
 
 import io.apigee.trireme.core.InternalNodeModule;
 import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.ScriptTask;
 import io.apigee.trireme.core.SubprocessPolicy;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.AbstractIdObject;
@@ -267,15 +268,24 @@ public class ProcessWrap
             return (err == 0 ? Undefined.instance : err);
         }
 
-        public void callOnExit(int exitCode)
+        public void callOnExit(final int exitCode)
         {
             ProcessManager.get().removeProcess(pid);
-            if (onExit != null) {
-                // Give scripts, especially tests, a chance to set up callbacks
-                runtime.enqueueCallback(onExit, onExit, this, runtime.getDomain(),
-                                        new Object[]{exitCode});
-            }
-            pinState.clearPin(runtime);
+            // This is called from another thread. "onexit" calls "close," which also clears the pin,
+            // so change the pin state on the script thread, or the two can race and unpin twice.
+            runtime.enqueueTask(new ScriptTask()
+            {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    if (onExit != null) {
+                        // Give scripts, especially tests, a chance to set up callbacks
+                        runtime.enqueueCallback(onExit, onExit, ProcessImpl.this, runtime.getDomain(),
+                                                new Object[]{exitCode});
+                    }
+                    pinState.clearPin(runtime);
+                }
+            });
         }
 
         private Object objParam(String name, Scriptable s)
@@ -0,0 +1,496 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.node12.modules;
+
+import io.apigee.trireme.core.InternalNodeModule;
+import io.apigee.trireme.core.NodeRuntime;
+import io.apigee.trireme.core.ScriptTask;
+import io.apigee.trireme.core.internal.AbstractIdObject;
+import io.apigee.trireme.core.internal.IdPropertyMap;
+import io.apigee.trireme.core.internal.ScriptRunner;
+import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.ErrorCodes;
+import io.apigee.trireme.kernel.OSException;
+import io.apigee.trireme.kernel.handles.IOCompletionHandler;
+import io.apigee.trireme.kernel.handles.NIODatagramHandle;
+import io.apigee.trireme.kernel.util.PinState;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.apigee.trireme.core.ArgUtils.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Node's "dgram" module uses this internal module to implement UDP sockets.
+ */
+public class UDPWrap
+    implements InternalNodeModule
+{
+    protected static final Logger log = LoggerFactory.getLogger(UDPWrap.class);
+
+    @Override
+    public String getModuleName()
+    {
+        return "udp_wrap";
+    }
+
+    @Override
+    public Scriptable registerExports(Context cx, Scriptable scope, NodeRuntime runner)
+        throws InvocationTargetException, IllegalAccessException, InstantiationException
+    {
+        ScriptableObject exports = (ScriptableObject)cx.newObject(scope);
+
+        Function udpImpl = new UDPImpl().exportAsClass(exports);
+        exports.put(UDPImpl.CLASS_NAME, exports, udpImpl);
+        Function sendWrap = new SendWrap().exportAsClass(exports);
+        exports.put(SendWrap.CLASS_NAME, exports, sendWrap);
+        return exports;
+    }
+
+    public static class UDPImpl
+        extends AbstractIdObject<UDPImpl>
+    {
+        public static final String CLASS_NAME = "UDP";
+
+        private static final IdPropertyMap props = new IdPropertyMap(CLASS_NAME);
+
+        private static final int
+            Id_bind = 2,
+            Id_bind6 = 3,
+            Id_send = 4,
+            Id_send6 = 5,
+            Id_recvStart = 6,
+            Id_recvStop = 7,
+            Id_getsockname = 8,
+            Id_setBroadcast = 9,
+            Id_setTTL = 10,
+            Id_setMulticastTTL = 11,
+            Id_setMulticastLoopback = 12,
+            Id_addMembership = 13,
+            Id_dropMembership = 14,
+            Id_close = 15,
+            Id_ref = 16,
+            Id_unref = 17,
+
+            Id_onmessage = 1;
+
+        static {
+            props.addMethod("bind", Id_bind, 3);
+            props.addMethod("bind6", Id_bind6, 3);
+            props.addMethod("send", Id_send, 7);
+            props.addMethod("send6", Id_send6, 7);
+            props.addMethod("recvStart", Id_recvStart, 0);
+            props.addMethod("recvStop", Id_recvStop, 0);
+            props.addMethod("getsockname", Id_getsockname, 1);
+            props.addMethod("setBroadcast", Id_setBroadcast, 1);
+            props.addMethod("setTTL", Id_setTTL, 1);
+            props.addMethod("setMulticastTTL", Id_setMulticastTTL, 1);
+            props.addMethod("setMulticastLoopback", Id_setMulticastLoopback, 1);
+            props.addMethod("addMembership", Id_addMembership, 2);
+            props.addMethod("dropMembership", Id_dropMembership, 2);
+            props.addMethod("close", Id_close, 1);
+            props.addMethod("ref", Id_ref, 0);
+            props.addMethod("unref", Id_unref, 0);
+            props.addProperty("onmessage", Id_onmessage, 0);
+        }
+
+        private Function onMessage;
+        private ScriptRunner runtime;
+        private NIODatagramHandle handle;
+        private boolean reading;
+        private ArrayList<SendWrap> completedSends;
+        private final PinState pinState = new PinState();
+
+        public UDPImpl()
+        {
+            super(props);
+        }
+
+        protected UDPImpl(ScriptRunner runtime)
+        {
+            super(props);
+            this.runtime = runtime;
+            this.handle = new NIODatagramHandle(runtime);
+        }
+
+        @Override
+        protected UDPImpl defaultConstructor(Context cx, Object[] args)
+        {
+            ScriptRunner runner = (ScriptRunner)cx.getThreadLocal(ScriptRunner.RUNNER);
+            return new UDPImpl(runner);
+        }
+
+        @Override
+        protected UDPImpl defaultConstructor()
+        {
+            throw new AssertionError();
+        }
+
+        @Override
+        protected Object getInstanceIdValue(int id)
+        {
+            switch (id) {
+            case Id_onmessage:
+                return onMessage;
+            default:
+                return super.getInstanceIdValue(id);
+            }
+        }
+
+        @Override
+        protected void setInstanceIdValue(int id, Object value)
+        {
+            switch (id) {
+            case Id_onmessage:
+                onMessage = (Function)value;
+                break;
+            default:
+                super.setInstanceIdValue(id, value);
+                break;
+            }
+        }
+
+        @Override
+        protected Object prototypeCall(int id, Context cx, Scriptable scope, Object[] args)
+        {
+            switch (id) {
+            case Id_bind:
+            case Id_bind6:
+                return bind(args);
+            case Id_send:
+            case Id_send6:
+                return send(args);
+            case Id_recvStart:
+                recvStart();
+                break;
+            case Id_recvStop:
+                recvStop();
+                break;
+            case Id_getsockname:
+                return getsockname(args);
+            case Id_setBroadcast:
+                return setBroadcast(args);
+            case Id_setMulticastTTL:
+                return setMulticastTTL(args);
+            case Id_setMulticastLoopback:
+                return setMulticastLoopback(args);
+            case Id_setTTL:
+            case Id_addMembership:
+            case Id_dropMembership:
+                return ErrorCodes.EINVAL;
+            case Id_close:
+                close(args);
+                break;
+            case Id_ref:
+                pinState.ref(runtime);
+                break;
+            case Id_unref:
+                pinState.unref(runtime);
+                break;
+            default:
+                return super.prototypeCall(id, cx, scope, args);
+            }
+            return Undefined.instance;
+        }
+
+        private Object bind(Object[] args)
+        {
+            String address = stringArg(args, 0);
+            int port = intArg(args, 1);
+            try {
+                handle.bind(address, port);
+                return 0;
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+        }
+
+        private Object send(Object[] args)
+        {
+            final SendWrap req = objArg(args, 0, SendWrap.class, true);
+            Buffer.BufferImpl buf = objArg(args, 1, Buffer.BufferImpl.class, true);
+            int offset = intArg(args, 2);
+            int length = intArg(args, 3);
+            int port = intArg(args, 4);
+            String host = stringArg(args, 5);
+            boolean hasCallback = booleanArg(args, 6, false);
+
+            ByteBuffer bb = buf.getBuffer();
+            bb.position(bb.position() + offset);
+            bb.limit(bb.position() + length);
+
+            IOCompletionHandler<Integer> onComplete;
+            if (hasCallback) {
+                onComplete = new IOCompletionHandler<Integer>()
+                {
+                    @Override
+                    public void ioComplete(int errCode, Integer value)
+                    {
+                        sendComplete(errCode, req);
+                    }
+                };
+            } else {
+                // Nobody is listening, so don't put anything on the queue when the send is done
+                onComplete = new IOCompletionHandler<Integer>()
+                {
+                    @Override
+                    public void ioComplete(int errCode, Integer value)
+                    {
+                    }
+                };
+            }
+
+            try {
+                handle.send(host, port, bb, onComplete);
+                return 0;
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+        }
+
+        /**
+         * The completion may be delivered from inside "send," so it always has to go on the queue.
+         * Completions that arrive before that task runs share it, so that a burst of sends
+         * results in one task rather than one per datagram.
+         */
+        protected void sendComplete(int err, SendWrap req)
+        {
+            req.err = err;
+            if (completedSends != null) {
+                completedSends.add(req);
+                return;
+            }
+
+            completedSends = new ArrayList<SendWrap>();
+            completedSends.add(req);
+            runtime.enqueueTask(new ScriptTask()
+            {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    ArrayList<SendWrap> completed = completedSends;
+                    completedSends = null;
+                    for (SendWrap r : completed) {
+                        r.callOnComplete(cx);
+                    }
+                }
+            });
+        }
+
+        private void recvStart()
+        {
+            if (reading) {
+                return;
+            }
+            handle.startReadingDatagramBatches(new IOCompletionHandler<List<NIODatagramHandle.ReceivedDatagram>>()
+            {
+                @Override
+                public void ioComplete(int errCode, List<NIODatagramHandle.ReceivedDatagram> batch)
+                {
+                    onMessages(errCode, batch);
+                }
+            });
+            reading = true;
+            pinState.requestPin(runtime);
+        }
+
+        private void recvStop()
+        {
+            if (reading) {
+                handle.stopReading();
+                reading = false;
+                pinState.clearPin(runtime);
+            }
+        }
+
+        protected void onMessages(int err, List<NIODatagramHandle.ReceivedDatagram> batch)
+        {
+            // "onmessage" is set before "recvStart" so it's OK to call this in line, not on the queue
+            Context cx = Context.getCurrentContext();
+            if (onMessage == null) {
+                log.debug("Dropped {} incoming messages because onmessage was not set", batch.size());
+                return;
+            }
+            if (err != 0) {
+                onMessage.call(cx, onMessage, this, new Object[] { err, this });
+                return;
+            }
+
+            for (NIODatagramHandle.ReceivedDatagram dg : batch) {
+                // "onmessage" may have stopped reading or closed the socket
+                if (!reading) {
+                    break;
+                }
+                ByteBuffer bb = dg.getBuffer();
+                Buffer.BufferImpl buf = Buffer.BufferImpl.newBuffer(cx, this, bb, false);
+                Scriptable rinfo = cx.newObject(this);
+                SocketAddress addr = dg.getAddress();
+                if (addr instanceof InetSocketAddress) {
+                    formatAddress((InetSocketAddress)addr, rinfo);
+                }
+                onMessage.call(cx, onMessage, this,
+                               new Object[] { bb.remaining(), this, buf, rinfo });
+            }
+        }
+
+        private Object getsockname(Object[] args)
+        {
+            Scriptable out = objArg(args, 0, Scriptable.class, true);
+            InetSocketAddress addr = handle.getSockName();
+            if (addr == null) {
+                return ErrorCodes.EINVAL;
+            }
+            formatAddress(addr, out);
+            return 0;
+        }
+
+        private void formatAddress(InetSocketAddress addr, Scriptable out)
+        {
+            out.put("port", out, addr.getPort());
+            out.put("address", out, addr.getAddress().getHostAddress());
+            if (addr.getAddress() instanceof Inet6Address) {
+                out.put("family", out, "IPv6");
+            } else {
+                out.put("family", out, "IPv4");
+            }
+        }
+
+        private Object setBroadcast(Object[] args)
+        {
+            int on = intArg(args, 0);
+            try {
+                handle.setBroadcast(on != 0);
+                return 0;
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+        }
+
+        private Object setMulticastTTL(Object[] args)
+        {
+            int ttl = intArg(args, 0);
+            try {
+                handle.setMulticastTtl(ttl);
+                return 0;
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+        }
+
+        private Object setMulticastLoopback(Object[] args)
+        {
+            int on = intArg(args, 0);
+            try {
+                handle.setMulticastLoopback(on != 0);
+                return 0;
+            } catch (OSException ose) {
+                return ose.getCode();
+            }
+        }
+
+        private void close(Object[] args)
+        {
+            Function cb = functionArg(args, 0, false);
+
+            recvStop();
+            handle.close();
+            pinState.clearPin(runtime);
+
+            if (cb != null) {
+                runtime.enqueueCallback(cb, cb, this, runtime.getDomain(), Context.emptyArgs);
+            }
+        }
+    }
+
+    public static class SendWrap
+        extends AbstractIdObject<SendWrap>
+    {
+        public static final String CLASS_NAME = "SendWrap";
+
+        private static final IdPropertyMap props = new IdPropertyMap(CLASS_NAME);
+
+        private static final int
+            Id_oncomplete = 1;
+
+        static {
+            props.addProperty("oncomplete", Id_oncomplete, 0);
+        }
+
+        private Function onComplete;
+        int err;
+
+        public SendWrap()
+        {
+            super(props);
+        }
+
+        @Override
+        protected SendWrap defaultConstructor()
+        {
+            return new SendWrap();
+        }
+
+        @Override
+        protected Object getInstanceIdValue(int id)
+        {
+            switch (id) {
+            case Id_oncomplete:
+                return onComplete;
+            default:
+                return super.getInstanceIdValue(id);
+            }
+        }
+
+        @Override
+        protected void setInstanceIdValue(int id, Object value)
+        {
+            switch (id) {
+            case Id_oncomplete:
+                onComplete = (Function)value;
+                break;
+            default:
+                super.setInstanceIdValue(id, value);
+                break;
+            }
+        }
+
+        public void callOnComplete(Context cx)
+        {
+            if ((onComplete == null) || Undefined.instance.equals(onComplete)) {
+                return;
+            }
+            onComplete.call(cx, onComplete, this, new Object[] { err });
+        }
+    }
+}
@@ -11,6 +11,7 @@ import io.apigee.trireme.core.ScriptStatusListener;
 import io.apigee.trireme.core.SubprocessPolicy;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.kernel.Platform;
+import io.apigee.trireme.kernel.fs.FilesystemImage;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,6 +23,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.List;
@@ -328,6 +330,55 @@ public class BasicTest
         assertEquals(0, stat.getExitCode());
     }
 
+    @Test
+    public void testImageModules()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        FilesystemImage.Builder ib = new FilesystemImage.Builder();
+        addToImage(ib, new File("./target/test-classes/tests"), "");
+        Sandbox sb = new Sandbox();
+        sb.setFilesystemImage(ib.build(), false);
+        NodeScript script = env.createScript("moduletest.js",
+                                             new File("/moduletest.js"),
+                                             null);
+        script.setNodeVersion(NODE_VERSION);
+        script.setSandbox(sb);
+        ScriptStatus stat = script.execute().get();
+        assertEquals(0, stat.getExitCode());
+    }
+
+    @Test
+    public void testImageOverlayModules()
+        throws InterruptedException, ExecutionException, NodeException, IOException
+    {
+        File root = new File("./target/imageroot");
+        root.mkdirs();
+        FilesystemImage.Builder ib = new FilesystemImage.Builder();
+        addToImage(ib, new File("./target/test-classes/tests"), "tests/");
+        Sandbox sb = new Sandbox();
+        sb.setFilesystemRoot(root.getPath());
+        sb.setFilesystemImage(ib.build(), true);
+        NodeScript script = env.createScript("moduletest.js",
+                                             new File(root, "tests/moduletest.js"),
+                                             null);
+        script.setNodeVersion(NODE_VERSION);
+        script.setSandbox(sb);
+        ScriptStatus stat = script.execute().get();
+        assertEquals(0, stat.getExitCode());
+    }
+
+    private static void addToImage(FilesystemImage.Builder ib, File dir, String prefix)
+        throws IOException
+    {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                addToImage(ib, f, prefix + f.getName() + '/');
+            } else {
+                ib.addFile(prefix + f.getName(), Files.readAllBytes(f.toPath()), f.lastModified());
+            }
+        }
+    }
+
     @Test
     public void testBasicHttp()
         throws InterruptedException, ExecutionException, NodeException, IOException
@@ -615,6 +666,27 @@ public class BasicTest
         runTest("decodingtest.js");
     }
 
+    @Test
+    public void testWritev()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("writevtest.js");
+    }
+
+    @Test
+    public void testDgram()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("dgramtest.js");
+    }
+
+    @Test
+    public void testSpawnMany()
+        throws InterruptedException, ExecutionException, NodeException
+    {
+        runTest("spawnmanytest.js");
+    }
+
 
     @Test
     public void testDefaultVersion()
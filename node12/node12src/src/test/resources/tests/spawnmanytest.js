@@ -0,0 +1,60 @@
+var assert = require('assert');
+var child = require('child_process');
+
+if (process.platform === 'win32') {
+  process.exit(0);
+}
+
+// Many children at once share the same few threads for their output, so make sure that every one
+// of them still gets all its output and its exit code.
+
+var COUNT = 20;
+var closed = 0;
+
+function spawnOne(i) {
+  var c = child.spawn('sh', ['-c', 'echo out' + i + '; echo err' + i + ' 1>&2; exit ' + (i % 3)]);
+  var out = '';
+  var err = '';
+  c.stdout.setEncoding('utf8');
+  c.stderr.setEncoding('utf8');
+  c.stdout.on('data', function(chunk) { out += chunk; });
+  c.stderr.on('data', function(chunk) { err += chunk; });
+  c.on('close', function(code) {
+    assert.equal(code, i % 3);
+    assert.equal(out, 'out' + i + '\n');
+    assert.equal(err, 'err' + i + '\n');
+    closed++;
+  });
+}
+
+for (var i = 0; i < COUNT; i++) {
+  spawnOne(i);
+}
+
+// Output that is not piped still has to be drained or the child would never exit
+var ignored = child.spawn('sh', ['-c', 'i=0; while [ $i -lt 2000 ]; do echo 0123456789012345678901234567890123456789; i=$((i+1)); done'],
+                          { stdio: 'ignore' });
+var ignoredExit;
+ignored.on('exit', function(code) {
+  ignoredExit = code;
+});
+
+// spawnSync writes stdin while the output is being read, so input bigger than a pipe works
+var input = new Buffer(256 * 1024);
+for (var j = 0; j < input.length; j++) {
+  input[j] = j % 251;
+}
+var result = child.spawnSync('cat', [], { input: input });
+assert.equal(result.status, 0);
+assert.equal(result.stdout.length, input.length);
+assert.deepEqual(result.stdout, input);
+assert.equal(result.stderr.length, 0);
+
+result = child.spawnSync('sh', ['-c', 'echo Hello; exit 3']);
+assert.equal(result.status, 3);
+assert.equal(result.stdout.toString(), 'Hello\n');
+
+process.on('exit', function() {
+  assert.equal(closed, COUNT);
+  assert.equal(ignoredExit, 0);
+});
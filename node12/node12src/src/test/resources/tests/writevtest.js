@@ -0,0 +1,96 @@
+var assert = require('assert');
+var net = require('net');
+var http = require('http');
+
+// Corked writes on a socket should be flushed through the handle's "writev" all at once
+
+var received = '';
+var server = net.createServer(function(conn) {
+  conn.setEncoding('utf8');
+  conn.on('data', function(chunk) {
+    received += chunk;
+  });
+  conn.on('end', function() {
+    conn.end();
+  });
+});
+
+server.listen(0, function() {
+  var client = net.connect(server.address().port, function() {
+    assert.equal(typeof client._handle.writev, 'function');
+    client.cork();
+    client.write('Hello, ');
+    client.write(new Buffer('World'));
+    client.write('21', 'hex');
+    client.write('IQ==', 'base64');
+    client.uncork();
+    client.end();
+  });
+  client.on('close', function() {
+    server.close();
+    assert.equal(received, 'Hello, World!!');
+    testHttp();
+  });
+});
+
+// HTTP corks the connection to send the headers and the body together
+
+function testHttp() {
+  var httpServer = http.createServer(function(req, res) {
+    res.setHeader('Content-Type', 'text/plain');
+    res.end('ok');
+  });
+  httpServer.listen(0, function() {
+    http.get({ port: httpServer.address().port, path: '/' }, function(res) {
+      var body = '';
+      res.setEncoding('utf8');
+      res.on('data', function(chunk) {
+        body += chunk;
+      });
+      res.on('end', function() {
+        assert.equal(res.statusCode, 200);
+        assert.equal(body, 'ok');
+        httpServer.close();
+        testEmptyLastChunk();
+      });
+    });
+  });
+}
+
+// A large write followed by an empty one must not be treated as complete
+// after a partial gathering write
+
+var BIG_SIZE = 4 * 1024 * 1024;
+
+function testEmptyLastChunk() {
+  var count = 0;
+  var bigServer = net.createServer(function(conn) {
+    conn.on('data', function(chunk) {
+      count += chunk.length;
+    });
+    conn.on('end', function() {
+      conn.end();
+    });
+  });
+
+  bigServer.listen(0, function() {
+    var client = net.connect(bigServer.address().port, function() {
+      var big = new Buffer(BIG_SIZE);
+      big.fill('x');
+      var written = false;
+      client.cork();
+      client.write(big);
+      client.write('', function(err) {
+        assert(!err);
+        written = true;
+      });
+      client.uncork();
+      client.end();
+      client.on('close', function() {
+        bigServer.close();
+        assert(written);
+        assert.equal(count, BIG_SIZE);
+      });
+    });
+  });
+}
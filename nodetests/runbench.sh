@@ -0,0 +1,20 @@
+#!/bin/sh
+
+# Run the Node.js benchmarks on every supported Node version. Results go to target/benchmark-<version>.out.
+# To compare against an earlier run, copy its results to a directory and pass it here, along with
+# an optional threshold in percent. Differences go to target/benchmark-compare.out.
+#
+# ./runbench.sh [baseline dir] [threshold]
+
+ARGS="-DskipTests=false -Dtest=BenchmarkTest -DfailIfNoTests=false"
+
+if [ $# -ge 1 ]
+then
+  ARGS="${ARGS} -DBenchmarkBaseline=$1"
+fi
+if [ $# -ge 2 ]
+then
+  ARGS="${ARGS} -DBenchmarkThreshold=$2"
+fi
+
+mvn ${ARGS} test
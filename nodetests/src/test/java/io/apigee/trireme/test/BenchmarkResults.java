@@ -0,0 +1,80 @@
+package io.apigee.trireme.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Results of a benchmark run, read from the output of the benchmarks. Each result is a line in the form
+ * "name: value," which is what "common.js" and TestRunner print. This is the same format that
+ * "compare.py" reads, so results may be compared either way.
+ */
+public class BenchmarkResults
+{
+    private static final Pattern RESULT = Pattern.compile("^(.*):\\s*([0-9\\.]+(e[+-]?[0-9]+)?)\\s*$");
+
+    private final TreeMap<String, Double> results = new TreeMap<String, Double>();
+
+    public static BenchmarkResults load(File f)
+        throws IOException
+    {
+        BenchmarkResults r = new BenchmarkResults();
+        BufferedReader rdr = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                Matcher m = RESULT.matcher(line);
+                if (m.matches()) {
+                    r.results.put(m.group(1).trim(), Double.valueOf(m.group(2)));
+                }
+            }
+        } finally {
+            rdr.close();
+        }
+        return r;
+    }
+
+    public Map<String, Double> getResults() {
+        return results;
+    }
+
+    /**
+     * Latency, GC and heap results are better when they are smaller. Everything else is a rate.
+     */
+    static boolean isLowerBetter(String name)
+    {
+        return (name.contains(" latency_") || name.contains(" gc_") || name.contains(" heap_"));
+    }
+
+    /**
+     * Write every result that changed by more than "threshold" percent from the baseline, and return
+     * the number that got worse.
+     */
+    public int compare(BenchmarkResults baseline, int threshold, PrintWriter out)
+    {
+        int regressions = 0;
+        for (Map.Entry<String, Double> e : results.entrySet()) {
+            Double base = baseline.results.get(e.getKey());
+            if ((base == null) || (base == 0.0)) {
+                continue;
+            }
+            double pct = (e.getValue() / base) * 100.0;
+            if (Math.abs(pct - 100.0) <= threshold) {
+                continue;
+            }
+            boolean worse = (isLowerBetter(e.getKey()) ? (pct > 100.0) : (pct < 100.0));
+            if (worse) {
+                regressions++;
+            }
+            out.printf("%s %s %.5g %.5g %.1f%%%n", (worse ? "WORSE " : "BETTER"), e.getKey(),
+                       base, e.getValue(), pct);
+        }
+        return regressions;
+    }
+}
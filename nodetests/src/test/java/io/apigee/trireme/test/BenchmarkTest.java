@@ -10,8 +10,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -22,9 +27,20 @@ public class BenchmarkTest
     public static final int TEST_TIMEOUT = 900;
 
     private static final String BASE_DIR = "target/test-classes/benchmark";
-    public static final String RESULT_FILE = "target/benchmark.out";
+    public static final String RESULT_DIR = "target";
+    public static final String COMPARE_FILE = "target/benchmark-compare.out";
 
-    private static OutputStream resultWriter;
+    /** A directory of results from an earlier run to compare against, named as in RESULT_DIR. */
+    public static final String BASELINE_PROP = "BenchmarkBaseline";
+    /** Report results that differ from the baseline by more than this many percent. */
+    public static final String THRESHOLD_PROP = "BenchmarkThreshold";
+    public static final int DEFAULT_THRESHOLD = 10;
+
+    private static final String[] VERSIONS =
+        { JavaScriptTest.NODE_VERSION_10, JavaScriptTest.NODE_VERSION_12 };
+
+    private static final LinkedHashMap<String, OutputStream> resultWriters =
+        new LinkedHashMap<String, OutputStream>();
 
     private static final String[] TESTS = {
         "buffers/buffer-base64-encode.js",
@@ -62,43 +78,112 @@ public class BenchmarkTest
         "tls/tls-connect.js"
     };
 
+    private static final List<String> EXCLUDED_12 = Arrays.asList(
+        // Spawned scripts report their results but the parent never exits
+        "misc/spawn-echo.js",
+        "misc/startup.js"
+    );
+
     @BeforeClass
     public static void init()
         throws IOException
     {
-        resultWriter = new FileOutputStream(RESULT_FILE);
+        for (String v : getVersions()) {
+            resultWriters.put(v, new FileOutputStream(getResultFile(v)));
+        }
     }
 
+    /**
+     * Close the results and, if there is a baseline, write every result that changed by more than the
+     * threshold to COMPARE_FILE. Differences are reported but do not fail the build, since the baseline
+     * may well have come from a different machine.
+     */
     @AfterClass
     public static void cleanup()
         throws IOException
     {
-        resultWriter.close();
+        for (OutputStream out : resultWriters.values()) {
+            out.close();
+        }
+
+        String baseDir = System.getProperty(BASELINE_PROP);
+        if (baseDir == null) {
+            return;
+        }
+        int threshold = Integer.getInteger(THRESHOLD_PROP, DEFAULT_THRESHOLD);
+        PrintWriter compare = new PrintWriter(new FileOutputStream(COMPARE_FILE));
+        try {
+            for (String v : resultWriters.keySet()) {
+                File baseFile = new File(baseDir, getResultFile(v).getName());
+                if (!baseFile.exists()) {
+                    System.out.println("No baseline for Node " + v + " in " + baseFile);
+                    continue;
+                }
+                compare.println("Node " + v + ": baseline, current, percent of baseline");
+                int worse = BenchmarkResults.load(getResultFile(v)).compare(
+                    BenchmarkResults.load(baseFile), threshold, compare);
+                System.out.println("Node " + v + ": " + worse + " results are more than " +
+                                   threshold + "% worse than the baseline. See " + COMPARE_FILE);
+            }
+        } finally {
+            compare.close();
+        }
+    }
+
+    /**
+     * Run each benchmark on every Node version, or on just one if the "TestVersion" property
+     * is set to "10" or "12" as for JavaScriptTest.
+     */
+    private static List<String> getVersions()
+    {
+        String version = System.getProperty(JavaScriptTest.TEST_VERSION_PROP);
+        if ("10".equals(version)) {
+            return Collections.singletonList(JavaScriptTest.NODE_VERSION_10);
+        }
+        if ("12".equals(version)) {
+            return Collections.singletonList(JavaScriptTest.NODE_VERSION_12);
+        }
+        return Arrays.asList(VERSIONS);
+    }
+
+    public static File getResultFile(String nodeVersion)
+    {
+        return new File(RESULT_DIR, "benchmark-" + nodeVersion + ".out");
     }
 
-    @Parameterized.Parameters(name="{index}: {0} ({1}, {2})")
+    @Parameterized.Parameters(name="{index}: {0} ({1}, {2}, {3})")
     public static Collection<Object[]> enumerateTests()
     {
+        String testFile = System.getProperty(JavaScriptTest.TEST_FILE_NAME_PROP);
         ArrayList<Object[]> ret = new ArrayList<Object[]>();
-        for (String tf : TESTS) {
-            ret.add(new Object[] { new File(BASE_DIR, tf), DEFAULT_ADAPTER, "default" });
+        for (String v : getVersions()) {
+            for (String tf : TESTS) {
+                if (JavaScriptTest.NODE_VERSION_12.equals(v) && EXCLUDED_12.contains(tf)) {
+                    continue;
+                }
+                if ((testFile == null) || tf.contains(testFile)) {
+                    ret.add(new Object[] { new File(BASE_DIR, tf), DEFAULT_ADAPTER, "default", v });
+                }
+            }
         }
         return ret;
     }
 
-    public BenchmarkTest(File f, String adapter, String version)
+    public BenchmarkTest(File f, String adapter, String javaVersion, String nodeVersion)
     {
-        super(f, adapter, version, JavaScriptTest.NODE_VERSION_10);
+        super(f, adapter, javaVersion, nodeVersion);
     }
 
     @Test
     public void benchmarkTest()
         throws IOException, InterruptedException
     {
-        System.out.println("Benchmark: " + fileName.getName());
-        int exitCode = launchTest(TEST_TIMEOUT, resultWriter, false);
+        System.out.println("Benchmark: " + fileName.getName() + " (" + nodeVersion + ')');
+        int exitCode = launchTest(TEST_TIMEOUT, resultWriters.get(nodeVersion), false,
+                                  Collections.singletonList("-D" + TestRunner.STATS_PROP + "=true"));
         System.out.println("  = " + exitCode);
-        assertEquals(fileName.getName() + " (" + adapter + ", " + javaVersion + ") failed with =" + exitCode,
+        assertEquals(fileName.getName() + " (" + adapter + ", " + javaVersion + ", " + nodeVersion +
+                     ") failed with =" + exitCode,
                      0, exitCode);
     }
 }
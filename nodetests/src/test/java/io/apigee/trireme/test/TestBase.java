@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public abstract class TestBase
@@ -69,6 +70,12 @@ public abstract class TestBase
 
     protected int launchTest(int timeout, OutputStream o, boolean coverage)
         throws IOException, InterruptedException
+    {
+        return launchTest(timeout, o, coverage, null);
+    }
+
+    protected int launchTest(int timeout, OutputStream o, boolean coverage, List<String> jvmArgs)
+        throws IOException, InterruptedException
     {
         String command;
         if ("6".equals(javaVersion)) {
@@ -88,6 +95,9 @@ public abstract class TestBase
         if (coverage && (System.getProperty("CoverageArg") != null)) {
             args.add(System.getProperty("CoverageArg"));
         }
+        if (jvmArgs != null) {
+            args.addAll(jvmArgs);
+        }
         args.add("io.apigee.trireme.test.TestRunner");
         args.add(fileName.getName());
         args.add(adapter);
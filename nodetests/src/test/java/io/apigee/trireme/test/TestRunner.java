@@ -13,6 +13,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -27,6 +31,9 @@ public class TestRunner
     private static final Pattern FLAGS_PATTERN = Pattern.compile("^//[\\s+]Flags:(.+)");
     private static final Pattern WS_PATTERN = Pattern.compile("\\s");
 
+    /** If this system property is "true," print GC and heap statistics in the same form as benchmark results. */
+    public static final String STATS_PROP = "BenchmarkStats";
+
     public static void main(String[] args)
         throws IOException
     {
@@ -126,6 +133,36 @@ public class TestRunner
             env.close();
         }
 
+        if (Boolean.getBoolean(STATS_PROP)) {
+            printStats(fileName);
+        }
         System.exit(exitCode);
     }
+
+    /**
+     * Print totals for the whole JVM, which includes any child processes that the benchmark spawned, since
+     * those run inside the same JVM. The peak heap is the sum of the peaks of each pool, so it is an upper bound.
+     */
+    private static void printStats(File fileName)
+    {
+        long gcCount = 0L;
+        long gcTime = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionCount() > 0L) {
+                gcCount += gc.getCollectionCount();
+                gcTime += gc.getCollectionTime();
+            }
+        }
+        long peakHeap = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ((pool.getType() == MemoryType.HEAP) && (pool.getPeakUsage() != null)) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        String name = fileName.getAbsoluteFile().getParentFile().getName() + '/' + fileName.getName();
+        System.out.println(name + " gc_count: " + gcCount);
+        System.out.println(name + " gc_time_ms: " + gcTime);
+        System.out.println(name + " heap_peak_mb: " + (peakHeap / (1024L * 1024L)));
+    }
 }
@@ -54,6 +54,7 @@ function Benchmark(fn, options) {
   this._name = require.main.filename.split(/benchmark[\/\\]/).pop();
   this._start = [0,0];
   this._started = false;
+  this._samples = [];
   var self = this;
   process.nextTick(function() {
     self._run();
@@ -184,10 +185,26 @@ Benchmark.prototype.end = function(operations) {
   this.report(rate);
 };
 
+// Record how long a single operation took, in milliseconds, given the result
+// of process.hrtime() when it started. If any operations were recorded then
+// "report" prints latency percentiles along with the rate.
+Benchmark.prototype.sample = function(opStart) {
+  var elapsed = process.hrtime(opStart);
+  this._samples.push(elapsed[0] * 1e3 + elapsed[1] / 1e6);
+};
+
 Benchmark.prototype.report = function(value) {
   var heading = this.getHeading();
-  if (!silent)
+  if (!silent) {
     console.log('%s: %s', heading, value.toPrecision(5));
+    if (this._samples.length > 0) {
+      var samples = this._samples.sort(function(a, b) { return a - b; });
+      [50, 90, 99].forEach(function(p) {
+        var i = Math.min(samples.length - 1, Math.floor(samples.length * p / 100));
+        console.log('%s latency_p%d_ms: %s', heading, p, samples[i].toPrecision(5));
+      });
+    }
+  }
   process.exit(0);
 };
 
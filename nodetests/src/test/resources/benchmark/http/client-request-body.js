@@ -50,7 +50,9 @@ function main(conf) {
   });
 
   function pummel() {
+    var opStart = process.hrtime();
     var req = http.request(options, function(res) {
+      bench.sample(opStart);
       nreqs++;
       pummel();  // Line up next request.
       res.resume();
@@ -24,11 +24,13 @@ function startNode(conf) {
   start();
 
   function start() {
+    var opStart = process.hrtime();
     var node = spawn(process.execPath || process.argv[0], [emptyJsFile]);
     node.on('exit', function(exitCode) {
       if (exitCode !== 0) {
         throw new Error('Error during node startup');
       }
+      bench.sample(opStart);
       starts++;
 
       if (go)
@@ -28,12 +28,14 @@ import io.apigee.trireme.core.Sandbox;
 import io.apigee.trireme.core.ScriptFuture;
 import io.apigee.trireme.core.ScriptStatus;
 import io.apigee.trireme.core.ScriptStatusListener;
+import io.apigee.trireme.kernel.fs.FilesystemImage;
 import io.apigee.trireme.kernel.net.NetworkPolicy;
 import io.apigee.trireme.net.spi.HttpServerStub;
 import io.apigee.trireme.servlet.internal.EnvironmentManager;
 import io.apigee.trireme.servlet.internal.ResponseChunk;
 import io.apigee.trireme.servlet.internal.ResponseError;
 import io.apigee.trireme.servlet.internal.ScriptState;
+import io.apigee.trireme.servlet.internal.ServletContextImage;
 import io.apigee.trireme.servlet.internal.ServletChunk;
 import io.apigee.trireme.servlet.internal.ServletRequest;
 import io.apigee.trireme.servlet.internal.ServletResponse;
@@ -98,13 +100,33 @@ public class TriremeServlet
         }
 
         String basePath = config.getServletContext().getRealPath("/");
-        File scriptFile = new File(basePath, scriptName);
+        File scriptFile = null;
+        FilesystemImage image = null;
+
+        if (basePath == null) {
+            // The WAR was not expanded, so serve the scripts straight out of it
+            if (!sandboxMode) {
+                throw new ServletException("Cannot start servlet: " + SCRIPT_SANDBOX +
+                                           " must be set when the web app is not expanded on disk");
+            }
+            try {
+                image = ServletContextImage.build(config.getServletContext());
+            } catch (IOException ioe) {
+                throw new ServletException("Cannot start servlet: " + ioe, ioe);
+            }
+            if (image.get(scriptName.replaceAll("^/+", "")) == null) {
+                throw new ServletException("Cannot start servlet: " + scriptName + " is not found");
+            }
 
-        if (!scriptFile.exists()) {
-            throw new ServletException("Cannot start servlet: " + scriptFile + " is not found");
-        }
-        if (!scriptFile.canRead()) {
-            throw new ServletException("Cannot start servlet: " + scriptFile + " is not readable");
+        } else {
+            scriptFile = new File(basePath, scriptName);
+
+            if (!scriptFile.exists()) {
+                throw new ServletException("Cannot start servlet: " + scriptFile + " is not found");
+            }
+            if (!scriptFile.canRead()) {
+                throw new ServletException("Cannot start servlet: " + scriptFile + " is not readable");
+            }
         }
 
         NodeEnvironment env = EnvironmentManager.get().getEnvironment();
@@ -115,6 +137,7 @@ public class TriremeServlet
             if (sandboxMode) {
                 Sandbox sandbox = new Sandbox().
                     setFilesystemRoot(basePath).
+                    setFilesystemImage(image, false).
                     setHideOSDetails(true).
                     setAllowJarLoading(false).
                     setNetworkPolicy(new NetworkPolicy()
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2015 Apigee Corporation.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.apigee.trireme.servlet.internal;
+
+import io.apigee.trireme.kernel.fs.FilesystemImage;
+
+import javax.servlet.ServletContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * This class builds a FilesystemImage from the resources of a web application, so that scripts can
+ * run from a WAR that the container has not expanded on to the disk.
+ */
+
+public class ServletContextImage
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Build an image of all the resources in the context. Java classes and libraries under WEB-INF
+     * are skipped, since scripts have no use for them and they may be large.
+     */
+    public static FilesystemImage build(ServletContext ctx)
+        throws IOException
+    {
+        FilesystemImage.Builder b = new FilesystemImage.Builder();
+        addResources(ctx, b, "/");
+        return b.build();
+    }
+
+    private static void addResources(ServletContext ctx, FilesystemImage.Builder b, String dir)
+        throws IOException
+    {
+        Set<String> paths = ctx.getResourcePaths(dir);
+        if (paths == null) {
+            return;
+        }
+        for (String p : paths) {
+            if ("/WEB-INF/lib/".equals(p) || "/WEB-INF/classes/".equals(p)) {
+                continue;
+            }
+            if (p.endsWith("/")) {
+                b.addDirectory(p, -1L);
+                addResources(ctx, b, p);
+            } else {
+                InputStream in = ctx.getResourceAsStream(p);
+                if (in == null) {
+                    continue;
+                }
+                try {
+                    b.addFile(p, readFully(in), -1L);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int r;
+        while ((r = in.read(buf)) > 0) {
+            out.write(buf, 0, r);
+        }
+        return out.toByteArray();
+    }
+}
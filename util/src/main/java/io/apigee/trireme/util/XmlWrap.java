@@ -22,45 +22,96 @@
 package io.apigee.trireme.util;
 
 import io.apigee.trireme.core.InternalNodeModule;
+import io.apigee.trireme.core.NodeEnvironment;
 import io.apigee.trireme.core.NodeRuntime;
 import io.apigee.trireme.core.ScriptTask;
 import io.apigee.trireme.core.Utils;
 import io.apigee.trireme.core.internal.NodeOSException;
 import io.apigee.trireme.core.modules.Buffer;
+import io.apigee.trireme.kernel.Charsets;
+import io.apigee.trireme.kernel.charsets.HexCodec;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.annotations.JSFunction;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
 import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import static io.apigee.trireme.core.ArgUtils.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * This is the native part of the "trireme-xslt" and "node_xslt" modules. Compiled stylesheets are
+ * shared by every script in a NodeEnvironment. They are looked up by a digest of their content and of
+ * the TransformerFactory class, since a Templates object is thread-safe and compiling one is by far the most
+ * expensive part of a transform. The number of asynchronous transforms that may run at once is also limited
+ * across the whole environment.
+ * </p>
+ * <p>
+ * NodeEnvironment.setMaxXsltJobs sets the number of concurrent transforms. If it is not set, the
+ * "trireme.max.xslt.jobs" system property is used instead (default 8). The "trireme.xslt.cache.size"
+ * system property sets the number of compiled stylesheets to keep (default 100, and zero turns off the cache).
+ * </p>
+ */
 
 public class XmlWrap
     implements InternalNodeModule
 {
     public static final int DEFAULT_MAX_JOBS = 8;
+    public static final int DEFAULT_CACHE_SIZE = 100;
+    public static final String MAX_JOBS_PROP = "trireme.max.xslt.jobs";
+    public static final String CACHE_SIZE_PROP = "trireme.xslt.cache.size";
+
+    /** Output from "transformStream" is delivered in chunks of this size. */
+    public static final int OUTPUT_CHUNK_SIZE = 8192;
+
+    private static final Map<NodeEnvironment, Shared> sharedState = new WeakHashMap<NodeEnvironment, Shared>();
 
     @Override
     public String getModuleName() {
@@ -77,15 +128,37 @@ public class XmlWrap
         return wrap;
     }
 
+    static Shared getShared(NodeEnvironment env)
+    {
+        synchronized (sharedState) {
+            Shared s = sharedState.get(env);
+            if (s == null) {
+                int maxJobs = env.getMaxXsltJobs();
+                if (maxJobs <= 0) {
+                    maxJobs = Integer.getInteger(MAX_JOBS_PROP, DEFAULT_MAX_JOBS);
+                }
+                s = new Shared(maxJobs, Integer.getInteger(CACHE_SIZE_PROP, DEFAULT_CACHE_SIZE));
+                sharedState.put(env, s);
+            }
+            return s;
+        }
+    }
+
     public static class XmlWrapImpl
         extends ScriptableObject
     {
         public static final String CLASS_NAME = "_xmlWrapClass";
 
         private TransformerFactory transFactory;
+        private String transFactoryName = "";
+        private DocumentBuilderFactory docFactory;
         private NodeRuntime runtime;
-        private int availableSlots = DEFAULT_MAX_JOBS;
+        private Shared shared;
         private final ArrayDeque<Job> jobQueue = new ArrayDeque<Job>();
+        private boolean waiting;
+        // Set when "wake" has been called and cleared by whoever handles it, so that it is handled once
+        private final AtomicBoolean wakePending = new AtomicBoolean();
+        private volatile boolean closed;
 
         @Override
         public String getClassName() {
@@ -97,11 +170,15 @@ public class XmlWrap
             transFactory = TransformerFactory.newInstance();
             configureTransformer(cx);
             this.runtime = runtime;
-
-            String maxJobs = System.getProperty("trireme.max.xslt.jobs");
-            if (maxJobs != null) {
-                availableSlots = Integer.parseInt(maxJobs);
-            }
+            this.shared = getShared(runtime.getEnvironment());
+            runtime.registerCloseable(new Closeable()
+            {
+                @Override
+                public void close()
+                {
+                    exited();
+                }
+            });
         }
 
         private void configureTransformer(Context cx)
@@ -122,6 +199,7 @@ public class XmlWrap
 
             self.transFactory =
                 TransformerFactory.newInstance(className, XmlWrap.class.getClassLoader());
+            self.transFactoryName = className;
             self.configureTransformer(cx);
         }
 
@@ -132,24 +210,33 @@ public class XmlWrap
             ensureArg(args, 0);
             XmlWrapImpl self = (XmlWrapImpl)thisObj;
 
-            Source src = self.getSource(cx, args[0]);
-
-            try {
-                // Keep in mind that we are in Node.js and the factory will be single-threaded.
-                // Set the error listener to prevent stuff being written to standard error.
-                Err errs = new Err();
-                self.transFactory.setErrorListener(errs);
-                Templates tmpl = self.transFactory.newTemplates(src);
-
-                ScriptableObject ret = (ScriptableObject)cx.newObject(thisObj);
-                ret.associateValue("template", tmpl);
-                return ret;
+            Doc content = self.getDoc(cx, args[0]);
+            String key = content.makeKey(self.transFactoryName);
+            Templates tmpl = self.shared.getTemplates(key);
 
-            } catch (TransformerConfigurationException e) {
-                throw Utils.makeError(cx, thisObj, "XSLT transformer exception: " + e);
+            if (tmpl == null) {
+                try {
+                    // Keep in mind that we are in Node.js and the factory will be single-threaded.
+                    // Set the error listener to prevent stuff being written to standard error.
+                    Err errs = new Err();
+                    self.transFactory.setErrorListener(errs);
+                    tmpl = self.transFactory.newTemplates(content.open());
+                    self.shared.putTemplates(key, tmpl);
+
+                } catch (TransformerConfigurationException e) {
+                    throw Utils.makeError(cx, thisObj, "XSLT transformer exception: " + e);
+                }
             }
+
+            ScriptableObject ret = (ScriptableObject)cx.newObject(thisObj);
+            ret.associateValue("template", tmpl);
+            return ret;
         }
 
+        /**
+         * Wrap a string, a buffer, or an array of buffers so that it may be transformed. It is
+         * parsed again each time it is used.
+         */
         @JSFunction
         @SuppressWarnings("unused")
         public static Object createDocument(Context cx, Scriptable thisObj, Object[] args, Function funObj)
@@ -157,125 +244,307 @@ public class XmlWrap
             ensureArg(args, 0);
             XmlWrapImpl self = (XmlWrapImpl)thisObj;
 
-            Source src = self.getSource(cx, args[0]);
+            Doc doc = self.getDoc(cx, args[0]);
             ScriptableObject ret = (ScriptableObject)cx.newObject(thisObj);
-            ret.associateValue("document", src);
+            ret.associateValue("document", doc);
             return ret;
         }
 
+        /**
+         * Parse a document right away so that it may be transformed many times without parsing it again.
+         */
         @JSFunction
         @SuppressWarnings("unused")
-        public static Object transform(Context cx, Scriptable thisObj, Object[] args, Function funObj)
+        public static Object parseDocument(Context cx, Scriptable thisObj, Object[] args, Function funObj)
         {
-            ScriptableObject ss = objArg(args, 0, ScriptableObject.class, true);
-            ScriptableObject doc = objArg(args, 1, ScriptableObject.class, true);
-            Scriptable params = objArg(args, 2, Scriptable.class, false);
-            Function callback = functionArg(args, 3, false);
+            ensureArg(args, 0);
             XmlWrapImpl self = (XmlWrapImpl)thisObj;
 
-            Templates tmpl = (Templates)ss.getAssociatedValue("template");
-            if (tmpl == null) {
-                throw Utils.makeError(cx, thisObj, "Stylesheet was not created by createStylesheet");
+            Doc doc = self.getDoc(cx, args[0]);
+            try {
+                InputStream in = doc.openStream();
+                try {
+                    DocumentBuilder builder = self.getDocumentFactory(cx).newDocumentBuilder();
+                    // Otherwise parse errors are written to standard error
+                    builder.setErrorHandler(new ParseErr());
+                    Document dom = builder.parse(in);
+                    doc = new Doc(dom);
+                } finally {
+                    in.close();
+                }
+            } catch (ParserConfigurationException e) {
+                throw Utils.makeError(cx, thisObj, "Error configuring XML parser: " + e);
+            } catch (SAXException e) {
+                throw Utils.makeError(cx, thisObj, "XML parse error: " + e);
+            } catch (IOException e) {
+                throw Utils.makeError(cx, thisObj, "XML parse error: " + e);
             }
 
-            Source src = (Source)doc.getAssociatedValue("document");
-            if (src == null) {
-                throw Utils.makeError(cx, thisObj, "Document was not created by createDocument");
-            }
+            ScriptableObject ret = (ScriptableObject)cx.newObject(thisObj);
+            ret.associateValue("document", doc);
+            return ret;
+        }
+
+        /**
+         * transform(stylesheet, document, params, callback, toBuffer): Return the result as a string,
+         * or as a buffer if "toBuffer" is true. With a callback, run the transform in the background.
+         */
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static Object transform(Context cx, Scriptable thisObj, Object[] args, Function funObj)
+        {
+            Function callback = functionArg(args, 3, false);
+            boolean toBuffer = booleanArg(args, 4, false);
+            XmlWrapImpl self = (XmlWrapImpl)thisObj;
+
+            Job job = self.makeJob(cx, args, callback, toBuffer ? Job.Output.BUFFER : Job.Output.STRING);
 
             if ((callback == null) || Undefined.instance.equals(callback)) {
                 // Synchronous case
                 try {
-                    return self.doTransform(tmpl, src, params);
+                    if (toBuffer) {
+                        OutputBuffer out = new OutputBuffer();
+                        self.doTransform(job, new StreamResult(out));
+                        return Buffer.BufferImpl.newBuffer(cx, thisObj, out.getArray(), 0, out.size());
+                    }
+                    StringWriter out = new StringWriter();
+                    self.doTransform(job, new StreamResult(out));
+                    return out.toString();
                 } catch (NodeOSException nse) {
                     throw Utils.makeError(cx, thisObj, nse);
                 }
 
             } else {
-                Job job = new Job(tmpl, src, params, callback);
-                self.jobQueue.add(job);
-                self.scheduleJobs();
-
+                self.queueJob(job);
                 return Undefined.instance;
             }
         }
 
+        /**
+         * transformStream(stylesheet, document, params, onData, callback): Run the transform in the
+         * background and call "onData" with each chunk of output as it is produced, then "callback."
+         */
+        @JSFunction
+        @SuppressWarnings("unused")
+        public static void transformStream(Context cx, Scriptable thisObj, Object[] args, Function funObj)
+        {
+            Function onData = functionArg(args, 3, true);
+            Function callback = functionArg(args, 4, true);
+            XmlWrapImpl self = (XmlWrapImpl)thisObj;
+
+            Job job = self.makeJob(cx, args, callback, Job.Output.STREAM);
+            job.onData = onData;
+            self.queueJob(job);
+        }
+
+        private Job makeJob(Context cx, Object[] args, Function callback, Job.Output output)
+        {
+            ScriptableObject ss = objArg(args, 0, ScriptableObject.class, true);
+            ScriptableObject doc = objArg(args, 1, ScriptableObject.class, true);
+            Scriptable params = objArg(args, 2, Scriptable.class, false);
+
+            Templates tmpl = (Templates)ss.getAssociatedValue("template");
+            if (tmpl == null) {
+                throw Utils.makeError(cx, this, "Stylesheet was not created by createStylesheet");
+            }
+
+            Doc src = (Doc)doc.getAssociatedValue("document");
+            if (src == null) {
+                throw Utils.makeError(cx, this, "Document was not created by createDocument");
+            }
+
+            // Read the parameters here, since the transform may run on another thread
+            Map<String, String> paramMap = null;
+            if (params != null) {
+                paramMap = new HashMap<String, String>();
+                for (Object id : params.getIds()) {
+                    if (id instanceof String) {
+                        String name = (String)id;
+                        paramMap.put(name, Context.toString(params.get(name, params)));
+                    }
+                }
+            }
+
+            return new Job(tmpl, src, paramMap, callback, output);
+        }
+
+        private void queueJob(Job job)
+        {
+            // Stay alive while the job is queued, and not just while it is running
+            runtime.pin();
+            jobQueue.add(job);
+            scheduleJobs();
+        }
+
+        /**
+         * Start as many queued jobs as the environment-wide limit allows. If there is no room, then get
+         * in line to be woken up when another script's job completes.
+         */
         private void scheduleJobs()
         {
-            while (!jobQueue.isEmpty() && (availableSlots > 0)) {
-                Job job = jobQueue.poll();
-                availableSlots--;
-                assert(availableSlots >= 0);
-                scheduleJob(job);
+            while (!jobQueue.isEmpty()) {
+                if (shared.slots.tryAcquire()) {
+                    scheduleJob(jobQueue.poll());
+                } else if (waiting) {
+                    return;
+                } else {
+                    // Loop around and try again in case a slot was freed before we got in line
+                    waiting = true;
+                    shared.waiters.add(this);
+                }
+            }
+            if (waiting && shared.waiters.remove(this)) {
+                // We got our slots without being woken up, so don't take a wakeup that someone else needs.
+                // If we weren't in the queue any more, then a wakeup is on its way and will be passed on.
+                waiting = false;
+            }
+        }
+
+        /**
+         * Called on another thread when one of the environment's job slots has been freed. If this
+         * script can't use the slot, because it has nothing left to run or has exited, then the next
+         * waiting script is woken up instead.
+         */
+        void wake()
+        {
+            wakePending.set(true);
+            if (closed) {
+                passWakeup();
+                return;
+            }
+            runtime.enqueueTask(new ScriptTask()
+            {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    if (!wakePending.getAndSet(false)) {
+                        return;
+                    }
+                    waiting = false;
+                    if (jobQueue.isEmpty()) {
+                        shared.wakeNext();
+                    } else {
+                        scheduleJobs();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Called when the script exits. The task queued by "wake" won't run any more, so pass on
+         * any wakeup that it would have handled.
+         */
+        void exited()
+        {
+            closed = true;
+            shared.waiters.remove(this);
+            passWakeup();
+        }
+
+        private void passWakeup()
+        {
+            if (wakePending.getAndSet(false)) {
+                shared.wakeNext();
             }
         }
 
         private void scheduleJob(final Job job)
         {
-            runtime.pin();
             runtime.getAsyncPool().execute(new Runnable()
             {
                 @Override
                 public void run()
                 {
                     try {
-                        final String result = doTransform(job.tmpl, job.src, job.params);
-                        runtime.enqueueTask(new ScriptTask()
-                        {
-                            @Override
-                            public void execute(Context cx, Scriptable scope)
-                            {
-                                availableSlots++;
-                                scheduleJobs();
-                                job.callback.call(cx, job.callback, XmlWrapImpl.this, new Object[]{
-                                    Undefined.instance, result});
-
-                            }
-                        });
-
-                    } catch (final NodeOSException nse) {
-                        runtime.enqueueTask(new ScriptTask()
-                        {
-                            @Override
-                            public void execute(Context cx, Scriptable scope)
-                            {
-                                availableSlots++;
-                                scheduleJobs();
-                                job.callback.call(cx, job.callback, XmlWrapImpl.this, new Object[]{
-                                    Utils.makeErrorObject(cx, XmlWrapImpl.this, nse)
-                                });
-                            }
-                        });
+                        runJob(job);
                     } finally {
+                        shared.release();
                         runtime.unPin();
                     }
                 }
             });
         }
 
-        String doTransform(Templates tmpl, Source src, Scriptable params)
-            throws NodeOSException
+        private void runJob(final Job job)
         {
-            StringWriter output = new StringWriter();
-            StreamResult result = new StreamResult(output);
+            final Object result;
+            NodeOSException err = null;
+            ChunkOutput chunks = null;
+            OutputBuffer buf = null;
+            StringWriter str = null;
 
+            try {
+                switch (job.output) {
+                case STREAM:
+                    chunks = new ChunkOutput(job.onData);
+                    doTransform(job, new StreamResult(chunks));
+                    chunks.flush();
+                    break;
+                case BUFFER:
+                    buf = new OutputBuffer();
+                    doTransform(job, new StreamResult(buf));
+                    break;
+                default:
+                    str = new StringWriter();
+                    doTransform(job, new StreamResult(str));
+                    break;
+                }
+            } catch (NodeOSException nse) {
+                err = nse;
+            }
+
+            final NodeOSException error = err;
+            final OutputBuffer bufResult = buf;
+            final StringWriter strResult = str;
+            runtime.enqueueTask(new ScriptTask()
+            {
+                @Override
+                public void execute(Context cx, Scriptable scope)
+                {
+                    scheduleJobs();
+                    if (error != null) {
+                        job.callback.call(cx, job.callback, XmlWrapImpl.this, new Object[]{
+                            Utils.makeErrorObject(cx, XmlWrapImpl.this, error)
+                        });
+                    } else if (bufResult != null) {
+                        job.callback.call(cx, job.callback, XmlWrapImpl.this, new Object[]{
+                            Undefined.instance,
+                            Buffer.BufferImpl.newBuffer(cx, XmlWrapImpl.this, bufResult.getArray(), 0, bufResult.size())
+                        });
+                    } else if (strResult != null) {
+                        job.callback.call(cx, job.callback, XmlWrapImpl.this, new Object[]{
+                            Undefined.instance, strResult.toString()
+                        });
+                    } else {
+                        job.callback.call(cx, job.callback, XmlWrapImpl.this, new Object[]{ Undefined.instance });
+                    }
+                }
+            });
+        }
+
+        void doTransform(Job job, Result result)
+            throws NodeOSException
+        {
             Err errs = new Err();
             try {
-                Transformer trans = tmpl.newTransformer();
+                Transformer trans = job.tmpl.newTransformer();
                 trans.setErrorListener(errs);
                 trans.setOutputProperty(OutputKeys.INDENT, "yes");
 
-                if (params != null) {
-                    for (Object id : params.getIds()) {
-                        if (id instanceof String) {
-                            String name = (String)id;
-                            String val = Context.toString(params.get(name, params));
-                            trans.setParameter(name, val);
-                        }
+                if (job.params != null) {
+                    for (Map.Entry<String, String> p : job.params.entrySet()) {
+                        trans.setParameter(p.getKey(), p.getValue());
                     }
                 }
 
-                trans.transform(src, result);
+                if (job.src.dom == null) {
+                    trans.transform(job.src.open(), result);
+                } else {
+                    // A DOM is not thread-safe even for reading, so one transform at a time
+                    synchronized (job.src.dom) {
+                        trans.transform(job.src.open(), result);
+                    }
+                }
 
             } catch (TransformerConfigurationException tce) {
                 throw new NodeOSException(tce.toString());
@@ -291,25 +560,285 @@ public class XmlWrap
                 }
                 throw new NodeOSException(msgs.toString());
             }
+        }
 
-            return output.toString();
+        private DocumentBuilderFactory getDocumentFactory(Context cx)
+        {
+            if (docFactory == null) {
+                DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+                f.setNamespaceAware(true);
+                try {
+                    f.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                } catch (ParserConfigurationException pce) {
+                    throw Utils.makeError(cx, this, "Error configuring XML parser: " + pce);
+                }
+                docFactory = f;
+            }
+            return docFactory;
         }
 
-        private Source getSource(Context cx, Object o)
+        private Doc getDoc(Context cx, Object o)
         {
             if (o instanceof String) {
-                return new StreamSource(new StringReader((String)o));
+                return new Doc((String)o);
 
             } else if (o instanceof Buffer.BufferImpl) {
                 Buffer.BufferImpl buf = (Buffer.BufferImpl)o;
-                ByteArrayInputStream bis =
-                    new ByteArrayInputStream(buf.getArray(), buf.getArrayOffset(), buf.getLength());
-                return new StreamSource(bis);
+                return new Doc(Collections.singletonList(buf.getBuffer()));
+
+            } else if ((o instanceof Scriptable) && ((Scriptable)o).has("length", (Scriptable)o)) {
+                // An array of buffers, as collected by a stream
+                Scriptable a = (Scriptable)o;
+                int len = (int)Context.toNumber(a.get("length", a));
+                ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>(len);
+                for (int i = 0; i < len; i++) {
+                    Object b = a.get(i, a);
+                    if (!(b instanceof Buffer.BufferImpl)) {
+                        throw Utils.makeError(cx, this, "Input must be a string, a buffer, or an array of buffers");
+                    }
+                    bufs.add(((Buffer.BufferImpl)b).getBuffer());
+                }
+                return new Doc(bufs);
 
             } else {
                 throw Utils.makeError(cx, this, "Input must be a string or a buffer");
             }
         }
+
+        /**
+         * Collect output into buffers of OUTPUT_CHUNK_SIZE and pass each one to the script as soon
+         * as it fills up.
+         */
+        private final class ChunkOutput
+            extends OutputStream
+        {
+            private final Function onData;
+            private byte[] buf = new byte[OUTPUT_CHUNK_SIZE];
+            private int count;
+
+            ChunkOutput(Function onData)
+            {
+                this.onData = onData;
+            }
+
+            @Override
+            public void write(int b)
+            {
+                if (count == buf.length) {
+                    flush();
+                }
+                buf[count++] = (byte)b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                while (len > 0) {
+                    if (count == buf.length) {
+                        flush();
+                    }
+                    int n = Math.min(len, buf.length - count);
+                    System.arraycopy(b, off, buf, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush()
+            {
+                if (count == 0) {
+                    return;
+                }
+                final byte[] chunk = buf;
+                final int len = count;
+                buf = new byte[OUTPUT_CHUNK_SIZE];
+                count = 0;
+
+                runtime.enqueueTask(new ScriptTask()
+                {
+                    @Override
+                    public void execute(Context cx, Scriptable scope)
+                    {
+                        onData.call(cx, onData, XmlWrapImpl.this, new Object[] {
+                            Buffer.BufferImpl.newBuffer(cx, XmlWrapImpl.this, chunk, 0, len)
+                        });
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * An input document. Either the raw text or bytes, which are parsed on every transform, or a DOM.
+     */
+    static final class Doc
+    {
+        final String text;
+        final List<ByteBuffer> bufs;
+        final Document dom;
+
+        Doc(String text)
+        {
+            this.text = text;
+            this.bufs = null;
+            this.dom = null;
+        }
+
+        Doc(List<ByteBuffer> bufs)
+        {
+            this.text = null;
+            this.bufs = bufs;
+            this.dom = null;
+        }
+
+        Doc(Document dom)
+        {
+            this.text = null;
+            this.bufs = null;
+            this.dom = dom;
+        }
+
+        Source open()
+        {
+            if (dom != null) {
+                return new DOMSource(dom);
+            }
+            if (text != null) {
+                return new StreamSource(new StringReader(text));
+            }
+            return new StreamSource(openStream());
+        }
+
+        InputStream openStream()
+        {
+            if (text != null) {
+                return new ByteArrayInputStream(text.getBytes(Charsets.UTF8));
+            }
+            if (bufs.size() == 1) {
+                return openBuffer(bufs.get(0));
+            }
+            ArrayList<InputStream> streams = new ArrayList<InputStream>(bufs.size());
+            for (ByteBuffer bb : bufs) {
+                streams.add(openBuffer(bb));
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        private static InputStream openBuffer(ByteBuffer bb)
+        {
+            return new ByteArrayInputStream(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        }
+
+        /**
+         * Digest the content along with the name of the factory that will compile it.
+         */
+        String makeKey(String factoryName)
+        {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nse) {
+                throw new AssertionError(nse);
+            }
+            digest.update(factoryName.getBytes(Charsets.UTF8));
+            digest.update((byte)0);
+            if (text != null) {
+                digest.update((byte)'s');
+                digest.update(text.getBytes(Charsets.UTF8));
+            } else {
+                digest.update((byte)'b');
+                for (ByteBuffer bb : bufs) {
+                    digest.update(bb.duplicate());
+                }
+            }
+            byte[] d = digest.digest();
+            return HexCodec.encode(d, 0, d.length);
+        }
+    }
+
+    /**
+     * State shared by every script in a NodeEnvironment.
+     */
+    static final class Shared
+    {
+        final Semaphore slots;
+        final ConcurrentLinkedQueue<XmlWrapImpl> waiters = new ConcurrentLinkedQueue<XmlWrapImpl>();
+        private final TemplateMap templates;
+
+        Shared(int maxJobs, int cacheSize)
+        {
+            this.slots = new Semaphore(maxJobs);
+            this.templates = new TemplateMap(cacheSize);
+        }
+
+        Templates getTemplates(String key)
+        {
+            synchronized (templates) {
+                return templates.get(key);
+            }
+        }
+
+        void putTemplates(String key, Templates t)
+        {
+            synchronized (templates) {
+                if (templates.maxEntries > 0) {
+                    templates.put(key, t);
+                }
+            }
+        }
+
+        void release()
+        {
+            slots.release();
+            wakeNext();
+        }
+
+        /**
+         * Tell the next script in line that a slot may be free.
+         */
+        void wakeNext()
+        {
+            XmlWrapImpl w = waiters.poll();
+            if (w != null) {
+                w.wake();
+            }
+        }
+    }
+
+    private static final class TemplateMap
+        extends LinkedHashMap<String, Templates>
+    {
+        final int maxEntries;
+
+        TemplateMap(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Templates> eldest)
+        {
+            return size() > maxEntries;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that lets us wrap its array in a Buffer without copying it.
+     */
+    private static final class OutputBuffer
+        extends ByteArrayOutputStream
+    {
+        OutputBuffer()
+        {
+            super(OUTPUT_CHUNK_SIZE);
+        }
+
+        byte[] getArray() {
+            return buf;
+        }
     }
 
     private static final class Err
@@ -347,19 +876,48 @@ public class XmlWrap
         }
     }
 
+    private static final class ParseErr
+        implements ErrorHandler
+    {
+        @Override
+        public void warning(SAXParseException exception)
+        {
+            // Ignore warnings
+        }
+
+        @Override
+        public void error(SAXParseException exception)
+            throws SAXException
+        {
+            throw exception;
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception)
+            throws SAXException
+        {
+            throw exception;
+        }
+    }
+
     private static final class Job
     {
+        enum Output { STRING, BUFFER, STREAM }
+
         Templates tmpl;
-        Source src;
-        Scriptable params;
+        Doc src;
+        Map<String, String> params;
         Function callback;
+        Function onData;
+        Output output;
 
-        Job(Templates tmpl, Source src, Scriptable params, Function callback)
+        Job(Templates tmpl, Doc src, Map<String, String> params, Function callback, Output output)
         {
             this.tmpl = tmpl;
             this.src = src;
             this.params = params;
             this.callback = callback;
+            this.output = output;
         }
     }
 }
@@ -21,6 +21,8 @@
  */
 
 var binding = process.binding('xml-wrap');
+var stream = require('stream');
+var util = require('util');
 
 function setTransformer(transformerClass) {
   binding.setTransformer(transformerClass);
@@ -31,7 +33,26 @@ function compileStylesheet(stylesheet) {
   return binding.createStylesheet(stylesheet);
 }
 
+// Parse a document once so that it may be passed to "transform" many times.
+function parseDocument(document) {
+  checkInput(document, 'document');
+  return new ParsedDocument(binding.parseDocument(document));
+}
+
+function ParsedDocument(doc) {
+  this._document = doc;
+}
+
 function transform(stylesheet, document, p, callback) {
+  return doTransform(stylesheet, document, p, callback, false);
+}
+
+// Just like "transform" but the result is a Buffer.
+function transformToBuffer(stylesheet, document, p, callback) {
+  return doTransform(stylesheet, document, p, callback, true);
+}
+
+function doTransform(stylesheet, document, p, callback, toBuffer) {
   if (!stylesheet) {
     throw new Error('stylesheet must be set');
   }
@@ -45,11 +66,14 @@ function transform(stylesheet, document, p, callback) {
   if (callback && (typeof callback !== 'function')) {
     throw new Error('callback must be a function');
   }
-  checkInput(document, 'document');
+  if (!(document instanceof ParsedDocument)) {
+    checkInput(document, 'document');
+  }
   var parameters = (p ? p : {});
 
   try {
-    var parsedDoc = binding.createDocument(document);
+    var parsedDoc = ((document instanceof ParsedDocument) ?
+                     document._document : binding.createDocument(document));
 
     var cb;
     if (callback) {
@@ -58,7 +82,7 @@ function transform(stylesheet, document, p, callback) {
       };
     }
 
-    var result = binding.transform(stylesheet, parsedDoc, parameters, cb);
+    var result = binding.transform(stylesheet, parsedDoc, parameters, cb, toBuffer);
     if (!cb) {
       return result;
     }
@@ -72,6 +96,54 @@ function transform(stylesheet, document, p, callback) {
   }
 }
 
+/*
+ * A Transform stream that reads a document and writes the result of the transformation as Buffers.
+ * XSLT needs the whole document before it can start, so the input is collected until the end, but it is
+ * never copied into one big buffer, and the output is pushed as it is produced.
+ */
+function TransformStream(stylesheet, p, options) {
+  if (!(this instanceof TransformStream)) {
+    return new TransformStream(stylesheet, p, options);
+  }
+  if (!stylesheet) {
+    throw new Error('stylesheet must be set');
+  }
+  if (p && (typeof p !== 'object')) {
+    throw new Error('parameters must be an object');
+  }
+  stream.Transform.call(this, options);
+  this._stylesheet = stylesheet;
+  this._parameters = (p ? p : {});
+  this._chunks = [];
+}
+util.inherits(TransformStream, stream.Transform);
+
+TransformStream.prototype._transform = function(chunk, encoding, cb) {
+  this._chunks.push(Buffer.isBuffer(chunk) ? chunk : new Buffer(chunk, encoding));
+  cb();
+};
+
+TransformStream.prototype._flush = function(cb) {
+  var self = this;
+  try {
+    var doc = binding.createDocument(this._chunks);
+    this._chunks = [];
+    binding.transformStream(this._stylesheet, doc, this._parameters,
+      function(data) {
+        self.push(data);
+      },
+      function(err) {
+        cb(err);
+      });
+  } catch (e) {
+    cb(e);
+  }
+};
+
+function createTransformStream(stylesheet, p, options) {
+  return new TransformStream(stylesheet, p, options);
+}
+
 function checkInput(inp, name) {
   if ((typeof inp !== 'string') && (!(inp instanceof Buffer))) {
     throw new Error(name + ' must be a string or a Buffer');
@@ -80,4 +152,8 @@ function checkInput(inp, name) {
 
 module.exports.setTransformer = setTransformer;
 module.exports.compileStylesheet = compileStylesheet;
+module.exports.parseDocument = parseDocument;
 module.exports.transform = transform;
+module.exports.transformToBuffer = transformToBuffer;
+module.exports.createTransformStream = createTransformStream;
+module.exports.TransformStream = TransformStream;
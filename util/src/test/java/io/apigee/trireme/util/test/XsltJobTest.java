@@ -0,0 +1,64 @@
+package io.apigee.trireme.util.test;
+
+import io.apigee.trireme.core.NodeEnvironment;
+import io.apigee.trireme.core.NodeScript;
+import io.apigee.trireme.core.ScriptFuture;
+import io.apigee.trireme.core.ScriptStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class XsltJobTest
+{
+    private static final int SCRIPTS = 8;
+    private static final long TIMEOUT_SECS = 60L;
+
+    private NodeEnvironment env;
+
+    @Before
+    public void init()
+    {
+        // One slot for the whole environment, so that every script but one is always waiting
+        env = new NodeEnvironment().setMaxXsltJobs(1);
+    }
+
+    @After
+    public void cleanup()
+    {
+        env.close();
+    }
+
+    @Test
+    public void testSharedJobSlots()
+        throws Exception
+    {
+        List<NodeScript> scripts = new ArrayList<NodeScript>();
+        List<ScriptFuture> futures = new ArrayList<ScriptFuture>();
+        for (int i = 0; i < SCRIPTS; i++) {
+            NodeScript script = env.createScript("xsltburst.js",
+                                                 new File("./target/test-classes/testscripts/xsltburst.js"),
+                                                 new String[] { (i % 3) == 0 ? "exit" : "run" });
+            scripts.add(script);
+            futures.add(script.execute());
+        }
+
+        try {
+            // A lost wakeup leaves a script waiting forever for a free slot
+            for (ScriptFuture f : futures) {
+                ScriptStatus status = f.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+                assertEquals(0, status.getExitCode());
+            }
+        } finally {
+            for (NodeScript script : scripts) {
+                script.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+var xslt = require('trireme-xslt');
+
+// Run bursts of async transforms with pauses in between, so that this script's queue
+// empties and refills while other scripts are waiting for the same job slots.
+// With "exit" as the argument, exit in the middle with jobs still queued.
+
+var ss = xslt.compileStylesheet('<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform"><xsl:template match="/"><out><xsl:value-of select="count(//a)"/></out></xsl:template></xsl:stylesheet>');
+var doc = '<r>' + new Array(2000).join('<a>x</a>') + '</r>';
+var rounds = 0;
+var exitEarly = (process.argv[2] === 'exit');
+
+function burst() {
+  var n = 1 + Math.floor(Math.random() * 3);
+  var left = n;
+  for (var i = 0; i < n; i++) {
+    xslt.transform(ss, doc, {}, function(err) {
+      if (err) {
+        throw err;
+      }
+      if (--left === 0) {
+        if (++rounds < 30) {
+          setTimeout(burst, Math.floor(Math.random() * 3));
+        }
+      }
+    });
+  }
+  if (exitEarly && (rounds > 3)) {
+    process.exit(0);
+  }
+}
+burst();